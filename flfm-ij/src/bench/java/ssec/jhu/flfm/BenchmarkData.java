@@ -0,0 +1,62 @@
+package ssec.jhu.flfm;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+/** Synthetic images for the benchmarks, so they run without experiment data. */
+final class BenchmarkData {
+
+  /** Seed of the pixel values, fixed so every run measures the same data. */
+  private static final long SEED = 42;
+
+  /** Private constructor to prevent instantiation. */
+  private BenchmarkData() {}
+
+  /**
+   * Creates a 16 bit stack of square slices filled with noise, like a camera frame.
+   *
+   * @param size the width and height of the slices
+   * @param slices the number of slices
+   * @return the stack
+   */
+  static ImagePlus stack(int size, int slices) {
+    Random random = new Random(SEED);
+    ImageStack stack = new ImageStack(size, size);
+    for (int z = 0; z < slices; z++) {
+      short[] pixels = new short[size * size];
+      for (int i = 0; i < pixels.length; i++) {
+        pixels[i] = (short) (100 + random.nextInt(4000));
+      }
+      stack.addSlice(new ShortProcessor(size, size, pixels, null));
+    }
+    return new ImagePlus("stack", stack);
+  }
+
+  /**
+   * Creates a 32 bit PSF: one centered Gaussian per plane, wider the further the plane is from the
+   * middle of the stack.
+   *
+   * @param size the width and height of the planes
+   * @param planes the number of planes
+   * @return the PSF
+   */
+  static ImagePlus psf(int size, int planes) {
+    ImageStack stack = new ImageStack(size, size);
+    double center = size / 2.0;
+    for (int z = 0; z < planes; z++) {
+      double sigma = 1 + Math.abs(z - planes / 2.0);
+      float[] pixels = new float[size * size];
+      for (int y = 0; y < size; y++) {
+        for (int x = 0; x < size; x++) {
+          double r2 = (x - center) * (x - center) + (y - center) * (y - center);
+          pixels[y * size + x] = (float) Math.exp(-r2 / (2 * sigma * sigma));
+        }
+      }
+      stack.addSlice(new FloatProcessor(size, size, pixels));
+    }
+    return new ImagePlus("psf", stack);
+  }
+}
@@ -0,0 +1,74 @@
+package ssec.jhu.flfm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ij.ImagePlus;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of image stacks to arrays and back, see {@link ArrayUtils}. The arrays live on the CPU,
+ * so the numbers show the cost on the host without a copy to a GPU.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+
+  /** Width and height of the slices. */
+  @Param({"512", "2048"})
+  public int size;
+
+  /** Number of slices, 1 for a camera frame and more for a reconstructed volume. */
+  @Param({"1", "32"})
+  public int slices;
+
+  /** Pixel type of the images converted back from arrays. */
+  @Param({"UINT16_SATURATE", "UINT16_RESCALE", "FLOAT32"})
+  public OutputType outputType;
+
+  private NDManager manager;
+  private ImagePlus image;
+  private NDArray array;
+
+  @Setup
+  public void setUp() {
+    manager = NDManager.newBaseManager();
+    image = BenchmarkData.stack(size, slices);
+    array = ArrayUtils.convertImageToArray(image, manager);
+  }
+
+  @TearDown
+  public void tearDown() {
+    array.close();
+    manager.close();
+  }
+
+  /** Widens the slices into one direct buffer and wraps it as an array. */
+  @Benchmark
+  public long convertImageToArray() {
+    try (NDArray converted = ArrayUtils.convertImageToArray(image, manager)) {
+      return converted.size();
+    }
+  }
+
+  /** Copies an array to the host and converts it to the output type. */
+  @Benchmark
+  public ImagePlus convertArrayToImage() {
+    return ArrayUtils.convertArrayToImage(array, outputType);
+  }
+}
@@ -0,0 +1,80 @@
+package ssec.jhu.flfm;
+
+import ij.ImagePlus;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end reconstructions with {@link Algorithm#runModel} on the CPU.
+ *
+ * <p>The models are taken from {@code src/main/resources/models}, so they have to be generated
+ * first, see {@code make models}. With the model {@code none} the reconstruction runs the
+ * iterations of {@link TorchRichardsonLucy} instead. The PSF and the cached models stay loaded
+ * between invocations, as in the plugin, so the end to end numbers show the cost of a run after the
+ * first.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelBenchmark {
+
+  private static final DeviceInfo CPU = new DeviceInfo("CPU", -1);
+
+  /** The model file, or {@code none} to run the iterations. */
+  @Param({"model5.pt", "none"})
+  public String model;
+
+  /** Width and height of the input and the PSF planes. */
+  @Param({"256", "1024"})
+  public int size;
+
+  /** Number of planes of the PSF and the reconstructed volume. */
+  @Param({"8", "32"})
+  public int planes;
+
+  private ImagePlus psfImage;
+  private ImagePlus inputImage;
+  private RunOptions options;
+
+  @Setup
+  public void setUp() {
+    psfImage = BenchmarkData.psf(size, planes);
+    inputImage = BenchmarkData.stack(size, 1);
+    options = new RunOptions(OutputType.FLOAT32);
+    if (getModelPath() == null) {
+      options.iterations = 5;
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    Algorithm.shutdown();
+  }
+
+  private String getModelPath() {
+    return "none".equals(model) ? null : model;
+  }
+
+  /**
+   * Reconstructs a frame with a cached model and PSF, from the conversion of the input to the
+   * conversion of the volume.
+   */
+  @Benchmark
+  public ImagePlus runModel() {
+    return Algorithm.runModel(getModelPath(), CPU, psfImage, inputImage, options);
+  }
+}
@@ -0,0 +1,54 @@
+package ssec.jhu.flfm;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a model on the CPU: reading it from the model store, deserializing it and creating its
+ * predictor. The cache is emptied before every load, so each one is a miss, see {@link ModelCache}.
+ * Like {@link ModelBenchmark}, it needs the generated models.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelLoadBenchmark {
+
+  private static final DeviceInfo CPU = new DeviceInfo("CPU", -1);
+
+  /** The model file. */
+  @Param({"model1.pt", "model5.pt"})
+  public String model;
+
+  @Setup(Level.Invocation)
+  public void evictModels() {
+    Algorithm.getModelCache().invalidateAll();
+  }
+
+  @TearDown
+  public void tearDown() {
+    Algorithm.shutdown();
+  }
+
+  /** Loads the model and creates its predictor. */
+  @Benchmark
+  public boolean loadModel() {
+    try (ModelCache.Handle handle = Algorithm.acquireModel(model, CPU)) {
+      return handle != null;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package ssec.jhu.flfm;
+
+import ij.ImagePlus;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cropping and masking of a reconstructed volume on the host, see {@link
+ * PluginController#cropImage} and {@link PluginController#applyCircleMask}. The circle covers the
+ * middle of the volume with a diameter of half its width.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PostProcessingBenchmark {
+
+  /** Width and height of the planes. */
+  @Param({"512", "2048"})
+  public int size;
+
+  /** Number of planes of the volume. */
+  @Param({"8", "64"})
+  public int planes;
+
+  private ImagePlus volume;
+  private ImagePlus cropped;
+
+  @Setup
+  public void setUp() {
+    volume = BenchmarkData.stack(size, planes);
+    cropped = BenchmarkData.stack(size / 2, planes);
+  }
+
+  /** Copies the square around the circle out of every plane. */
+  @Benchmark
+  public ImagePlus cropImage() {
+    return PluginController.cropImage(volume, size / 4, size / 4, size / 2, size / 2);
+  }
+
+  /** Zeroes the pixels outside the circle; masking an already masked volume costs the same. */
+  @Benchmark
+  public ImagePlus applyCircleMask() {
+    return PluginController.applyCircleMask(cropped, size / 4, size / 4, size / 2);
+  }
+}
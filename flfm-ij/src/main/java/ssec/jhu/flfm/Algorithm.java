@@ -6,16 +6,28 @@ import ai.djl.Model;
 import ai.djl.engine.Engine;
 import ai.djl.engine.EngineException;
 import ai.djl.engine.EngineProvider;
-import ai.djl.inference.Predictor;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
 import ai.djl.translate.TranslateException;
 import ai.djl.util.ClassLoaderUtils;
 import ij.ImagePlus;
+import ij.process.FloatProcessor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,7 +36,9 @@ import org.slf4j.LoggerFactory;
  * Utility class for running deep learning models using DJL (Deep Java Library) within the context
  * of ImageJ plugins.
  *
- * <p>Handles engine initialization, device selection, and model inference.
+ * <p>Handles engine initialization, device selection, and model inference. Reconstructions are
+ * dispatched to a {@link ReconstructionEngine} based on the selected device: {@link TorchEngine}
+ * for the PyTorch CPU and GPU devices and {@link JavaEngine} for the pure Java fallback.
  */
 public class Algorithm {
 
@@ -34,6 +48,43 @@ public class Algorithm {
   /** Singleton instance of the DJL Engine. */
   private static Engine engine = null;
 
+  /** Cache of loaded models and predictors, shared by all runs. */
+  private static final ModelCache modelCache =
+      new ModelCache(
+          Integer.getInteger(
+              Constants.PROP_MODEL_CACHE_ENTRIES, Constants.DEFAULT_MODEL_CACHE_ENTRIES),
+          Long.getLong(Constants.PROP_MODEL_CACHE_BYTES, Constants.DEFAULT_MODEL_CACHE_BYTES));
+
+  /** Local copies of the bundled models, which are loaded from files instead of streams. */
+  private static final ModelStore modelStore = new ModelStore(ModelStore.getDefaultRoot());
+
+  /** Cache of normalized PSF arrays on their devices, shared by all runs. */
+  private static final PsfCache psfCache =
+      new PsfCache(
+          Integer.getInteger(
+              Constants.PROP_PSF_CACHE_ENTRIES, Constants.DEFAULT_PSF_CACHE_ENTRIES));
+
+  /** The reconstruction engines, in the order their devices are listed. */
+  private static final List<ReconstructionEngine> engines =
+      Arrays.asList(new TorchEngine(), new JavaEngine());
+
+  /** One lock per device, so only one run uses a device at a time. */
+  private static final Map<String, ReentrantLock> deviceLocks = new ConcurrentHashMap<>();
+
+  /** Timings and counters of the runs, with the hit rates of the caches above. */
+  private static final Metrics metrics = Metrics.getGlobal();
+
+  /** Devices and precisions the iterations failed to run in, see {@link #disablePrecision}. */
+  private static final Set<String> failedPrecisions = ConcurrentHashMap.newKeySet();
+
+  /** Models and precisions a run asked for and was run in 32 bit instead, warned about once. */
+  private static final Set<String> ignoredPrecisions = ConcurrentHashMap.newKeySet();
+
+  static {
+    metrics.addCache("model", modelCache::getHits, modelCache::getMisses);
+    metrics.addCache("PSF", psfCache::getHits, psfCache::getMisses);
+  }
+
   /** Private constructor to prevent instantiation. */
   private Algorithm() {}
 
@@ -45,11 +96,14 @@ public class Algorithm {
    *
    * @return the initialized {@link Engine} instance
    */
-  private static Engine initEngine() {
+  static Engine initEngine() {
     if (engine != null) {
       return engine;
     }
 
+    // the thread counts are read by PyTorch when the engine starts
+    ThreadingConfig.applyToEngine();
+
     // first try to get the default engine but if that fails, try to manually
     // get the PyTorch engine.
     try {
@@ -82,52 +136,112 @@ public class Algorithm {
 
     return engine;
   }
+  /**
+   * Returns whether the PyTorch engine has been started.
+   *
+   * @return {@code true} once {@link #initEngine} found an engine
+   */
+  static boolean isEngineStarted() {
+    return engine != null;
+  }
 
   /**
-   * Returns the available devices for model inference.
+   * Returns the available devices of all reconstruction engines.
    *
-   * <p>If the engine is not available, returns a single error device.
+   * <p>The error device of an engine that failed to load is only listed when no other engine has a
+   * device, so the pure Java engine takes over when PyTorch is not available.
    *
    * @return an array of {@link DeviceInfo} representing available devices
    */
   public static DeviceInfo[] getDevices() {
-    // Returns the available devices for model inference
-    Device[] devices;
-    try {
-      devices = initEngine().getDevices();
-    } catch (EngineException | NullPointerException e) {
-      logger.error("Engine not available or error retrieving devices: " + e.getMessage());
-      logger.error("Stack trace: ");
-      for (StackTraceElement ste : e.getStackTrace()) {
-        logger.error(ste.toString());
+    List<DeviceInfo> devices = new ArrayList<>();
+    List<DeviceInfo> errors = new ArrayList<>();
+    for (ReconstructionEngine reconstructionEngine : engines) {
+      for (DeviceInfo deviceInfo : reconstructionEngine.getDevices()) {
+        if (Constants.DEVICE_ERROR.equals(deviceInfo.type)) {
+          errors.add(deviceInfo);
+        } else {
+          devices.add(deviceInfo);
+        }
       }
+    }
+    if (devices.isEmpty()) {
+      devices.addAll(errors);
+    }
+    return devices.toArray(new DeviceInfo[0]);
+  }
 
-      return new DeviceInfo[] {
-        new DeviceInfo("ERR", -2) // show an error device if the engine is not available
-      };
+  /**
+   * Returns the engine that runs on the given device.
+   *
+   * @param deviceInfo the device selected by the user
+   * @return the engine owning the device
+   * @throws IllegalArgumentException if no engine supports the device
+   */
+  public static ReconstructionEngine getEngine(DeviceInfo deviceInfo) {
+    for (ReconstructionEngine reconstructionEngine : engines) {
+      if (reconstructionEngine.supports(deviceInfo)) {
+        return reconstructionEngine;
+      }
     }
+    throw new IllegalArgumentException("No engine for device " + deviceInfo.toDisplay());
+  }
 
-    DeviceInfo[] deviceInfos;
-    if (devices[0].getDeviceType().toLowerCase().equals("gpu")) {
-      // if the first device is a GPU then all listed devices are GPUs and we
-      // can add one more CPU device to the list.
-      deviceInfos = new DeviceInfo[devices.length + 1];
+  /**
+   * Returns the iteration count encoded in a model file name, e.g. 5 for "model5.pt".
+   *
+   * @param modelPathStr the path to the model file
+   * @return the number of iterations the model runs
+   */
+  public static int parseIterations(String modelPathStr) {
+    String digits = FilenameUtils.getName(modelPathStr).replaceAll("[^0-9]", "");
+    if (digits.isEmpty()) {
+      throw new IllegalArgumentException("No iteration count in model name " + modelPathStr);
+    }
+    return Integer.parseInt(digits);
+  }
 
-      for (int i = 0; i < devices.length; i++) {
-        deviceInfos[i] = new DeviceInfo("GPU", devices[i].getDeviceId());
-      }
-      deviceInfos[devices.length] = new DeviceInfo("CPU", -1); // Add CPU as last device
-    } else {
-      // If the first device is not a GPU, then there is just a single CPU device
-      deviceInfos = new DeviceInfo[1];
-      deviceInfos[0] = new DeviceInfo("CPU", -1); // Only CPU
+  /**
+   * Returns the number of iterations a run performs: the count requested in the options, or else
+   * the count of the model.
+   *
+   * @param modelPathStr the path to the model file, may be {@code null} if the options set a count
+   * @param options the options of the run
+   * @return the number of iterations to run
+   */
+  public static int getIterations(String modelPathStr, RunOptions options) {
+    if (options.iterations > 0) {
+      return options.iterations;
+    }
+    if (modelPathStr == null) {
+      throw new IllegalArgumentException("Neither a model nor an iteration count is given");
     }
-    return deviceInfos;
+    return parseIterations(modelPathStr);
+  }
+
+  /**
+   * Returns whether a run can use the exported model as is. That is the case when the model runs
+   * exactly the requested number of iterations and neither early stopping nor previews are
+   * requested; otherwise the iterations are run one by one, see {@link TorchRichardsonLucy}.
+   *
+   * @param modelPathStr the path to the model file, may be {@code null}
+   * @param options the options of the run
+   * @return {@code true} if the exported model should be used
+   */
+  public static boolean usesModel(String modelPathStr, RunOptions options) {
+    return modelPathStr != null
+        && options.tolerance <= 0
+        && options.previewInterval <= 0
+        && (options.iterations <= 0 || parseIterations(modelPathStr) == options.iterations);
   }
 
   /**
    * Runs the specified model on the given input and PSF images using the selected device.
    *
+   * <p>On the PyTorch devices the loaded model and its predictor are kept in the {@link ModelCache}
+   * and the normalized PSF in the {@link PsfCache}, so subsequent runs with the same model, PSF and
+   * device skip straight to prediction.
+   *
    * @param modelPathStr the path to the model file
    * @param deviceInfo the device to use for inference
    * @param psfImage the point spread function image
@@ -136,69 +250,578 @@ public class Algorithm {
    */
   public static ImagePlus runModel(
       String modelPathStr, DeviceInfo deviceInfo, ImagePlus psfImage, ImagePlus inputImage) {
-    ImagePlus outputImage = null;
+    return runModel(modelPathStr, deviceInfo, psfImage, inputImage, new RunOptions());
+  }
+
+  /**
+   * Runs the specified model on the given input and PSF images using the selected device.
+   *
+   * <p>The run is handed to the {@link ReconstructionEngine} that owns the device. Runs on the same
+   * device are serialized: a run waits until the device is free, see {@link #lockDevice}. With
+   * {@link RunOptions#tiled} set, inputs that do not fit into the memory of the device are
+   * reconstructed in tiles, see {@link TiledReconstruction}.
+   *
+   * @param modelPathStr the path to the model file
+   * @param deviceInfo the device to use for inference
+   * @param psfImage the point spread function image
+   * @param inputImage the input image to process
+   * @param options the options of this run, such as the output pixel type
+   * @return the output {@link ImagePlus} after model inference, or {@code null} if an error occurs
+   * @throws java.util.concurrent.CancellationException if the run is cancelled
+   */
+  public static ImagePlus runModel(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus inputImage,
+      RunOptions options) {
+    ReentrantLock lock = lockDevice(deviceInfo, options);
+    metrics.increment("runs");
+    try {
+      ReconstructionEngine reconstructionEngine = getEngine(deviceInfo);
+      ImagePlus output =
+          options.tiled
+              ? TiledReconstruction.run(
+                  reconstructionEngine, modelPathStr, deviceInfo, psfImage, inputImage, options)
+              : reconstructionEngine.reconstruct(
+                  modelPathStr, deviceInfo, psfImage, inputImage, options);
+      if (output == null) {
+        metrics.increment("runs.failed");
+      }
+      return output;
+    } catch (CancellationException e) {
+      metrics.increment("runs.cancelled");
+      throw e;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Warms up a device: loads the model into the {@link ModelCache} and runs a reconstruction of a
+   * small dummy image through the same code path as a real run. The first real run then no longer
+   * pays for loading the native libraries, starting the engine, deserializing the model and the JIT
+   * compilation of its kernels.
+   *
+   * @param modelPathStr the path to the model to preload, or {@code null} to only warm up the
+   *     iterations
+   * @param deviceInfo the device to warm up
+   * @return {@code true} if the dummy reconstruction succeeded
+   */
+  public static boolean warmUp(String modelPathStr, DeviceInfo deviceInfo) {
+    int size = Constants.WARMUP_SIZE;
+    float[] psf = new float[size * size];
+    psf[(size / 2) * size + size / 2] = 1;
+    float[] input = new float[size * size];
+    Arrays.fill(input, 1);
+    RunOptions options = new RunOptions();
+    options.outputType = OutputType.FLOAT32;
+    if (modelPathStr == null) {
+      options.iterations = Constants.WARMUP_ITERATIONS;
+    }
+
+    long start = System.currentTimeMillis();
+    ImagePlus output =
+        runModel(
+            modelPathStr,
+            deviceInfo,
+            new ImagePlus("warmUpPsf", new FloatProcessor(size, size, psf)),
+            new ImagePlus("warmUpInput", new FloatProcessor(size, size, input)),
+            options);
+    logger.info(
+        "Warm-up of {} took {} s",
+        deviceInfo.toDisplay(),
+        (System.currentTimeMillis() - start) / 1000.0);
+    return output != null;
+  }
+
+  /**
+   * Waits until no other run uses the device and locks it. The caller must unlock the returned lock
+   * when its run is finished.
+   *
+   * @param deviceInfo the device to lock
+   * @param options the options of the run, checked for cancellation while waiting
+   * @return the locked lock of the device
+   * @throws CancellationException if the run is cancelled while waiting
+   */
+  public static ReentrantLock lockDevice(DeviceInfo deviceInfo, RunOptions options) {
+    ReentrantLock lock =
+        deviceLocks.computeIfAbsent(deviceInfo.toDisplay(), d -> new ReentrantLock());
+    boolean waiting = false;
+    try {
+      while (!lock.tryLock(Constants.DEVICE_LOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (!waiting) {
+          logger.info("Waiting for another run on {} to finish", deviceInfo.toDisplay());
+          waiting = true;
+        }
+        options.checkCancelled();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted while waiting for " + deviceInfo.toDisplay());
+    }
+    return lock;
+  }
 
-    try (NDManager manager = NDManager.newBaseManager(Device.fromName(deviceInfo.toDeviceName()))) {
+  /**
+   * Creates a new {@link NDManager} on the given device.
+   *
+   * @param deviceInfo the device the manager allocates arrays on
+   * @return a new base manager that must be closed by the caller
+   */
+  public static NDManager newManager(DeviceInfo deviceInfo) {
+    return NDManager.newBaseManager(Device.fromName(deviceInfo.toDeviceName()));
+  }
+
+  /**
+   * Converts the PSF image to an array and normalizes it so that it sums to one.
+   *
+   * @param psfImage the point spread function image
+   * @param manager the manager to allocate the array with
+   * @return the normalized PSF array
+   */
+  public static NDArray preparePsf(ImagePlus psfImage, NDManager manager) {
+    try (Metrics.Timer timer = metrics.start(Metrics.Stage.PSF_NORMALIZATION)) {
       NDArray psfArray = ArrayUtils.convertImageToArray(psfImage, manager);
-      NDArray inputArray = ArrayUtils.convertImageToArray(inputImage, manager);
       psfArray.divi(psfArray.sum()); // Normalize PSF
+      return psfArray;
+    }
+  }
+
+  /**
+   * Acquires the cached predictor for the model and device, loading the model if needed.
+   *
+   * @param modelPathStr the path to the model file
+   * @param deviceInfo the device to use for inference
+   * @return a handle that must be closed after use, or {@code null} if the model cannot be loaded
+   */
+  public static ModelCache.Handle acquireModel(String modelPathStr, DeviceInfo deviceInfo) {
+    try {
+      return modelCache.acquire(
+          modelPathStr,
+          deviceInfo,
+          (m, d) -> {
+            try (Metrics.Timer timer = metrics.start(Metrics.Stage.MODEL_LOAD)) {
+              return loadModel(m, d);
+            }
+          });
+    } catch (IOException | MalformedModelException e) {
+      logger.debug("Error loading model: " + e.getMessage());
+      logger.error("Stack trace: ");
+      for (StackTraceElement ste : e.getStackTrace()) {
+        logger.error(ste.toString());
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns the precision a run on the device uses. Models run in 32 bit, the precision they are
+   * exported with, as the weights of a TorchScript model cannot be cast once it is loaded. The
+   * iterations run in the precision of the options, or in {@link Precision#FP32} if the device does
+   * not support it or the iterations have failed in it before. A reduced precision asked for with a
+   * model is logged as ignored, once per model, see {@link #isPrecisionIgnored}.
+   *
+   * @param modelPathStr the path to the model file, may be {@code null} if the options set the
+   *     iteration count
+   * @param deviceInfo the device to use
+   * @param options the options of the run
+   * @return the precision to run in
+   */
+  public static Precision getPrecision(
+      String modelPathStr, DeviceInfo deviceInfo, RunOptions options) {
+    Precision precision = options.precision;
+    if (precision == Precision.FP32) {
+      return Precision.FP32;
+    }
+    if (isPrecisionIgnored(modelPathStr, options)) {
+      if (ignoredPrecisions.add(modelPathStr + "/" + precision)) {
+        logger.warn(
+            "Models run in 32-bit, ignoring {} for {}", precision.toDisplay(), modelPathStr);
+      }
+      return Precision.FP32;
+    }
+    if (!precision.isSupported(deviceInfo)) {
+      logger.info(
+          "{} does not support {}, running in 32-bit",
+          deviceInfo.toDisplay(),
+          precision.toDisplay());
+      return Precision.FP32;
+    }
+    if (failedPrecisions.contains(deviceInfo.toDeviceName() + "/" + precision)) {
+      return Precision.FP32;
+    }
+    return precision;
+  }
+
+  /**
+   * Returns whether the reduced precision of the options is ignored because the run uses a model,
+   * which always runs in 32 bit, see {@link #getPrecision}.
+   *
+   * @param modelPathStr the path to the model file, may be {@code null} if the options set the
+   *     iteration count
+   * @param options the options of the run
+   * @return {@code true} if a reduced precision is set but the run uses a model
+   */
+  public static boolean isPrecisionIgnored(String modelPathStr, RunOptions options) {
+    return options.precision != Precision.FP32 && usesModel(modelPathStr, options);
+  }
+
+  /**
+   * Remembers that the iterations failed to run in a reduced precision on the device, so later runs
+   * go straight to 32 bit.
+   *
+   * @param deviceInfo the device the iterations failed on
+   * @param precision the precision the iterations failed in
+   * @param reason the message of the failure, may be {@code null}
+   */
+  public static void disablePrecision(DeviceInfo deviceInfo, Precision precision, String reason) {
+    logger.warn(
+        "Iterations failed in {} on {}, falling back to 32-bit: {}",
+        precision.toDisplay(),
+        deviceInfo.toDisplay(),
+        reason);
+    failedPrecisions.add(deviceInfo.toDeviceName() + "/" + precision);
+    metrics.increment("precision.fallbacks");
+  }
+
+  /**
+   * Compares a reconstruction in the precision of the options with one in 32 bit, to check that the
+   * reduced precision is accurate enough for the data before running it on a whole series.
+   *
+   * @param modelPathStr the path to the model file, may be {@code null} if the options set the
+   *     iteration count
+   * @param deviceInfo the device to use
+   * @param psfImage the point spread function image
+   * @param inputImage the input image, typically the first frame of a series
+   * @param options the options of the run
+   * @return the relative error, see {@link ArrayUtils#relativeError}, or {@code NaN} if a
+   *     reconstruction failed or the run uses a model, which runs in 32 bit either way
+   */
+  public static double checkPrecision(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus inputImage,
+      RunOptions options) {
+    if (isPrecisionIgnored(modelPathStr, options)) {
+      logger.warn(
+          "Models run in 32-bit, there is no {} reconstruction to check",
+          options.precision.toDisplay());
+      return Double.NaN;
+    }
+    RunOptions reference = options.copy();
+    reference.precision = Precision.FP32;
+    reference.outputType = OutputType.FLOAT32;
+    reference.previewListener = null;
+    RunOptions reduced = reference.copy();
+    reduced.precision = options.precision;
+    ImagePlus expected = runModel(modelPathStr, deviceInfo, psfImage, inputImage, reference);
+    ImagePlus actual = runModel(modelPathStr, deviceInfo, psfImage, inputImage, reduced);
+    if (expected == null || actual == null) {
+      return Double.NaN;
+    }
+    double error = ArrayUtils.relativeError(expected, actual);
+    logger.info(
+        "Relative error of {} against 32-bit on {}: {}",
+        options.precision.toDisplay(),
+        deviceInfo.toDisplay(),
+        error);
+    return error;
+  }
+
+  /**
+   * Runs a single input image through an already loaded model with a prepared PSF.
+   *
+   * <p>The arrays created for the input and the output are closed before returning, so the same
+   * manager, PSF and model can be reused for many inputs.
+   *
+   * @param handle the handle of the loaded model
+   * @param manager the manager to allocate the input array with
+   * @param psfArray the normalized PSF array, see {@link PsfCache}
+   * @param inputImage the input image to process
+   * @param options the options of this run, such as the output pixel type
+   * @return the output {@link ImagePlus} after model inference, or {@code null} if an error occurs
+   */
+  public static ImagePlus predict(
+      ModelCache.Handle handle,
+      NDManager manager,
+      NDArray psfArray,
+      ImagePlus inputImage,
+      RunOptions options) {
+    try (NDArray inputArray = ArrayUtils.convertImageToArray(inputImage, manager)) {
+      return predict(handle, psfArray, inputArray, options);
+    }
+  }
+
+  /**
+   * Runs an input array through an already loaded model with a prepared PSF, such as an input read
+   * by {@link TiffReader}. The output array is closed before returning, the input array is left to
+   * the caller.
+   *
+   * @param handle the handle of the loaded model
+   * @param psfArray the normalized PSF array, see {@link PsfCache}
+   * @param inputArray the input of shape (slices, height, width)
+   * @param options the options of this run, such as the output pixel type
+   * @return the output {@link ImagePlus} after model inference, or {@code null} if an error occurs
+   */
+  public static ImagePlus predict(
+      ModelCache.Handle handle, NDArray psfArray, NDArray inputArray, RunOptions options) {
+    NDArray out = predictVolume(handle, psfArray, inputArray);
+    if (out == null) {
+      return null;
+    }
+    try (NDArray output = out) {
+      return toImage(output, options);
+    }
+  }
+
+  /**
+   * Runs an input array through an already loaded model and returns the reconstructed volume on its
+   * device, so it can be written to an {@link OutputSink} with {@link #toSink}.
+   *
+   * @param handle the handle of the loaded model
+   * @param psfArray the normalized PSF array, see {@link PsfCache}
+   * @param inputArray the input of shape (slices, height, width)
+   * @return the volume, to be closed by the caller, or {@code null} if an error occurs
+   */
+  public static NDArray predictVolume(
+      ModelCache.Handle handle, NDArray psfArray, NDArray inputArray) {
+    NDArray out;
+    try (Metrics.Timer timer = metrics.start(Metrics.Stage.PREDICT)) {
+      out = handle.getPredictor().predict(new NDArray[] {inputArray, psfArray});
+    } catch (TranslateException e) {
+      logger.error("Error during prediction: " + e.getMessage());
+      logger.error("Stack trace: ");
+      for (StackTraceElement ste : e.getStackTrace()) {
+        logger.error(ste.toString());
+      }
+      return null;
+    }
+    return out;
+  }
+
+  /**
+   * Reconstructs a single input image by running the Richardson-Lucy iterations one by one.
+   *
+   * <p>Like {@link #predict}, the arrays created for the input and the output are closed before
+   * returning, so the same deconvolution can be reused for many inputs.
+   *
+   * @param deconvolution the deconvolution prepared with the PSF
+   * @param manager the manager to allocate the input array with
+   * @param inputImage the input image to process
+   * @param iterations the maximum number of iterations
+   * @param options the options of this run, such as the output pixel type, the tolerance and the
+   *     preview listener
+   * @return the output {@link ImagePlus}
+   */
+  public static ImagePlus iterate(
+      TorchRichardsonLucy deconvolution,
+      NDManager manager,
+      ImagePlus inputImage,
+      int iterations,
+      RunOptions options) {
+    try (NDArray inputArray = ArrayUtils.convertImageToArray(inputImage, manager)) {
+      return iterate(deconvolution, inputArray, iterations, options);
+    }
+  }
+
+  /**
+   * Reconstructs an input array by running the Richardson-Lucy iterations one by one, such as an
+   * input read by {@link TiffReader}. The output array is closed before returning, the input array
+   * is left to the caller.
+   *
+   * @param deconvolution the deconvolution prepared with the PSF
+   * @param inputArray the input of shape (slices, height, width)
+   * @param iterations the maximum number of iterations
+   * @param options the options of this run, such as the output pixel type, the tolerance and the
+   *     preview listener
+   * @return the output {@link ImagePlus}
+   */
+  public static ImagePlus iterate(
+      TorchRichardsonLucy deconvolution, NDArray inputArray, int iterations, RunOptions options) {
+    try (NDArray output = iterateVolume(deconvolution, inputArray, iterations, options)) {
+      return toImage(output, options);
+    }
+  }
+
+  /**
+   * Reconstructs an input array by running the Richardson-Lucy iterations one by one and returns
+   * the volume on its device, so it can be written to an {@link OutputSink} with {@link #toSink}.
+   *
+   * @param deconvolution the deconvolution prepared with the PSF
+   * @param inputArray the input of shape (slices, height, width)
+   * @param iterations the maximum number of iterations
+   * @param options the options of this run, such as the tolerance and the preview listener
+   * @return the volume, to be closed by the caller
+   */
+  public static NDArray iterateVolume(
+      TorchRichardsonLucy deconvolution, NDArray inputArray, int iterations, RunOptions options) {
+    long start = System.currentTimeMillis();
+    TorchRichardsonLucy.Observer observer =
+        (iteration, object) -> {
+          options.checkCancelled();
+          if (options.isPreviewDue(iteration, iterations)) {
+            options.previewListener.onPreview(toImage(object, options), iteration);
+          }
+        };
+    NDArray output;
+    try (Metrics.Timer timer = metrics.start(Metrics.Stage.ITERATE)) {
+      output = deconvolution.run(inputArray, iterations, options.tolerance, observer);
+    }
+    long end = System.currentTimeMillis();
+    logger.debug(
+        "{} iterations took {} s", deconvolution.getIterationsRun(), (end - start) / 1000.0);
+    return output;
+  }
+
+  /**
+   * Copies a volume to the host as an image. If the options set a crop, the volume is cropped and
+   * masked on its device first, so only the kept square is copied.
+   *
+   * @param volume the volume of shape (Z, H, W)
+   * @param options the options of the run
+   * @return the image of the volume
+   */
+  public static ImagePlus toImage(NDArray volume, RunOptions options) {
+    if (options.crop == null) {
+      return ArrayUtils.convertArrayToImage(volume, options.outputType);
+    }
+    try (NDArray cropped = options.crop.apply(volume)) {
+      return ArrayUtils.convertArrayToImage(cropped, options.outputType);
+    }
+  }
+
+  /**
+   * Writes a volume to a sink plane by plane, see {@link ArrayUtils#writeArray}. Like {@link
+   * #toImage}, the volume is cropped and masked on its device first if the options set a crop.
+   *
+   * @param volume the volume of shape (Z, H, W)
+   * @param options the options of the run
+   * @param sink the sink to open and write to; closing it is left to the caller
+   * @throws IOException if the sink cannot write the planes
+   */
+  public static void toSink(NDArray volume, RunOptions options, OutputSink sink)
+      throws IOException {
+    toSink(volume, options, sink, 0, 1);
+  }
+
+  /**
+   * Writes a volume to a sink as one frame of a time series, see {@link #toSink(NDArray,
+   * RunOptions, OutputSink)}. The sink is opened with the first frame.
+   *
+   * @param volume the volume of shape (Z, H, W)
+   * @param options the options of the run
+   * @param sink the sink to write to; closing it is left to the caller
+   * @param t the frame, from 0
+   * @param frames the number of frames, all of the shape of this volume
+   * @throws IOException if the sink cannot write the planes
+   */
+  public static void toSink(NDArray volume, RunOptions options, OutputSink sink, int t, int frames)
+      throws IOException {
+    if (options.crop == null) {
+      ArrayUtils.writeFrame(volume, options.outputType, sink, t, frames);
+      return;
+    }
+    try (NDArray cropped = options.crop.apply(volume)) {
+      ArrayUtils.writeFrame(cropped, options.outputType, sink, t, frames);
+    }
+  }
+
+  /**
+   * Returns the cache holding the loaded models and predictors.
+   *
+   * @return the shared {@link ModelCache}
+   */
+  public static ModelCache getModelCache() {
+    return modelCache;
+  }
 
-      String modelName = FilenameUtils.getName(modelPathStr);
+  /**
+   * Returns the cache holding the normalized PSF arrays.
+   *
+   * @return the shared {@link PsfCache}
+   */
+  public static PsfCache getPsfCache() {
+    return psfCache;
+  }
 
-      try (Model model = Model.newInstance(modelName, "PyTorch")) {
+  /** Releases the cached models, predictors and PSFs. Called when the plugin is closed. */
+  public static void shutdown() {
+    logger.debug("Releasing cached models and PSFs");
+    modelCache.invalidateAll();
+    psfCache.invalidateAll();
+  }
+
+  /**
+   * Loads a model from the packaged resources or the file system and creates its predictor.
+   *
+   * @param modelPathStr the path to the model file
+   * @param deviceInfo the device to load the model on
+   * @return a new {@link ModelCache.Entry} for the model
+   * @throws IOException if the model cannot be found or read
+   * @throws MalformedModelException if the model file is not a valid model
+   */
+  static ModelCache.Entry loadModel(String modelPathStr, DeviceInfo deviceInfo)
+      throws IOException, MalformedModelException {
+    String modelName = FilenameUtils.getName(modelPathStr);
+    Device device = Device.fromName(deviceInfo.toDeviceName());
+    Model model = Model.newInstance(modelName, device, "PyTorch");
+    long sizeBytes;
+    try {
+      // The model will either be loaded from the specified path
+      // if it's being run in the IDE or from the resources/models
+      // directory if it's being run as a packaged JAR.
+      ClassLoader classLoader = ClassLoaderUtils.getContextClassLoader();
+      URL modelUrl = classLoader.getResource("models/" + modelPathStr);
+      // Load the model from the stream:
+      if (modelUrl != null) {
+        // If the model is found in the resources, load it from its copy in the model store,
+        // or from the stream if it cannot be extracted
+        logger.debug("Loading model from resources: " + modelPathStr);
+        Path storedModelPath = null;
         try {
-          // The model will either be loaded from the specified path
-          // if it's being run in the IDE or from the resources/models
-          // directory if it's being run as a packaged JAR.
-          ClassLoader classLoader = ClassLoaderUtils.getContextClassLoader();
-          InputStream modelStream = classLoader.getResourceAsStream("models/" + modelPathStr);
-          // Load the model from the stream:
-          if (modelStream != null) {
-            // If the model is found in the resources, load it from the stream
-            logger.debug("Loading model from resources: " + modelPathStr);
+          ModelInfo bundled = ModelIndex.findBundled(modelName);
+          storedModelPath =
+              modelStore.get(modelName, modelUrl, bundled != null ? bundled.sha256 : null);
+        } catch (IOException e) {
+          logger.warn("Cannot extract model {} to the store: {}", modelName, e.getMessage());
+        }
+        if (storedModelPath != null) {
+          sizeBytes = Files.size(storedModelPath);
+          model.load(storedModelPath);
+        } else {
+          URLConnection connection = modelUrl.openConnection();
+          sizeBytes = Math.max(0, connection.getContentLengthLong());
+          try (InputStream modelStream = connection.getInputStream()) {
             model.load(modelStream);
-            // Load the model from the file system.
-          } else {
-            // Define a safe base directory for models, This prevents path traversal attacks.
-            // This path will likely be used in the IDE
-            Path baseDir =
-                Paths.get("flfm-ij/src/main/resources/models").toAbsolutePath().normalize();
-            Path resolvedModelPath = baseDir.resolve(modelName).normalize();
-            if (!resolvedModelPath.startsWith(baseDir)) {
-              logger.error("Potential path traversal attempt detected: " + modelPathStr);
-              return null;
-            }
-            logger.debug("Loading model " + modelName + " from: " + modelPathStr);
-            model.load(resolvedModelPath);
-          }
-        } catch (IOException | MalformedModelException e) {
-          logger.debug("Error loading model: " + e.getMessage());
-          logger.error("Stack trace: ");
-          for (StackTraceElement ste : e.getStackTrace()) {
-            logger.error(ste.toString());
           }
-          return null;
         }
-
-        try (Predictor<NDArray[], NDArray> predictor = model.newPredictor(new ModelTranslator())) {
-          long start = System.currentTimeMillis();
-          NDArray out;
-          try {
-            out = predictor.predict(new NDArray[] {inputArray, psfArray});
-          } catch (TranslateException e) {
-            logger.error("Error during prediction: " + e.getMessage());
-            logger.error("Stack trace: ");
-            for (StackTraceElement ste : e.getStackTrace()) {
-              logger.error(ste.toString());
-            }
-            return null;
-          }
-          long end = System.currentTimeMillis();
-          logger.debug("Prediction took " + (end - start) / 1000.0 + " s");
-          outputImage = ArrayUtils.convertArrayToImage(out);
+        // Load the model from the file system.
+      } else {
+        // Define a safe base directory for models, This prevents path traversal attacks.
+        // This is the external models directory if the model lies in it, or else the
+        // source tree, which will likely be used in the IDE
+        Path externalDir = ModelIndex.getExternalDirectory();
+        Path baseDir =
+            externalDir != null && Paths.get(modelPathStr).isAbsolute()
+                ? externalDir
+                : Paths.get("flfm-ij/src/main/resources/models").toAbsolutePath().normalize();
+        Path resolvedModelPath = baseDir.resolve(modelName).normalize();
+        if (!resolvedModelPath.startsWith(baseDir)
+            || (Paths.get(modelPathStr).isAbsolute()
+                && !resolvedModelPath.equals(Paths.get(modelPathStr).normalize()))) {
+          throw new IOException("Potential path traversal attempt detected: " + modelPathStr);
         }
+        logger.debug("Loading model " + modelName + " from: " + modelPathStr);
+        sizeBytes = Files.size(resolvedModelPath);
+        model.load(resolvedModelPath);
       }
+    } catch (IOException | MalformedModelException | RuntimeException e) {
+      model.close();
+      throw e;
     }
-    return outputImage;
+
+    return new ModelCache.Entry(model, model.newPredictor(new ModelTranslator()), sizeBytes);
   }
 }
@@ -3,15 +3,44 @@ package ssec.jhu.flfm;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 
 public class ArrayUtils {
   private ArrayUtils() {}
 
+  /**
+   * Converts an image stack to a float32 array of shape (slices, height, width).
+   *
+   * <p>All slices are widened in parallel into a single direct buffer which backs the returned
+   * array, so no temporary per slice arrays are created. A direct buffer holds at most 2 GB, so
+   * larger stacks, such as the PSF of a deep volume, are converted in slabs of slices that are
+   * copied into the array one after another.
+   *
+   * @param image the 8 bit, 16 bit or 32 bit image to convert
+   * @param manager the manager to allocate the array with
+   * @return the image data as an {@link NDArray}
+   */
   public static NDArray convertImageToArray(ImagePlus image, NDManager manager) {
+    return convertImageToArray(image, manager, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Converts an image stack to a float32 array, widening at most {@code maxBufferBytes} at once.
+   *
+   * @param image the 8 bit, 16 bit or 32 bit image to convert
+   * @param manager the manager to allocate the array with
+   * @param maxBufferBytes the largest direct buffer to allocate
+   * @return the image data as an {@link NDArray}
+   */
+  static NDArray convertImageToArray(ImagePlus image, NDManager manager, long maxBufferBytes) {
     if (image == null) {
       throw new IllegalArgumentException("Image cannot be null");
     }
@@ -19,46 +48,179 @@ public class ArrayUtils {
     int width = image.getWidth();
     int height = image.getHeight();
     int numSlices = image.getStackSize();
+    ImageStack stack = image.getStack();
 
-    NDArray fullStack = manager.zeros(new Shape(numSlices, height, width));
-    // slices are one indexed in ImageJ, but zero indexed in NDArray
-    for (int slice = 1; slice <= numSlices; slice++) {
-      ImageProcessor processor = image.getStack().getProcessor(slice);
-      short[] pixels = (short[]) processor.getPixels();
+    long sliceBytes = (long) height * width * Float.BYTES;
+    if (sliceBytes > maxBufferBytes) {
+      throw new IllegalArgumentException("Slice is too large to convert: " + sliceBytes);
+    }
+    int slabSlices = (int) Math.min(numSlices, maxBufferBytes / sliceBytes);
+    try (Metrics.Timer timer = Metrics.getGlobal().start(Metrics.Stage.IMAGE_TO_ARRAY)) {
+      if (slabSlices == numSlices) {
+        return createSlab(stack, 0, numSlices, manager);
+      }
 
-      // Convert slice to a float array
-      float[] floatPixels = new float[pixels.length];
-      for (int i = 0; i < pixels.length; i++) {
-        floatPixels[i] = pixels[i] & 0xFFFF; // Unsigned conversion
+      NDArray array = manager.zeros(new Shape(numSlices, height, width), DataType.FLOAT32);
+      try {
+        for (int start = 0; start < numSlices; start += slabSlices) {
+          int end = Math.min(numSlices, start + slabSlices);
+          try (NDArray slab = createSlab(stack, start, end, manager)) {
+            array.set(new NDIndex("{}:{}", start, end), slab);
+          }
+        }
+      } catch (RuntimeException e) {
+        array.close();
+        throw e;
       }
+      return array;
+    }
+  }
+
+  /** Widens the slices {@code [start, end)} into a direct buffer and wraps it as an array. */
+  private static NDArray createSlab(ImageStack stack, int start, int end, NDManager manager) {
+    int sliceSize = stack.getWidth() * stack.getHeight();
+    ByteBuffer buffer = manager.allocateDirect((end - start) * sliceSize * Float.BYTES);
+    FloatBuffer floats = buffer.asFloatBuffer();
+    Parallel.forEach(
+        end - start,
+        slice -> widen(stack.getPixels(start + slice + 1), floats, slice * sliceSize, sliceSize));
+    return manager.create(
+        buffer, new Shape(end - start, stack.getHeight(), stack.getWidth()), DataType.FLOAT32);
+  }
 
-      // Add slice to the NDArray stack
-      NDArray sliceNDArray = manager.create(floatPixels, new Shape(height, width));
-      fullStack.set(
-          new NDIndex(slice - 1 + ",:,:"),
-          sliceNDArray); // Set the slice into the stack (0-indexed)
+  /**
+   * Converts every slice of the image to a float array. 16 bit and 8 bit pixels are treated as
+   * unsigned. Slices are converted in parallel.
+   *
+   * @param image the 8 bit, 16 bit or 32 bit image to convert
+   * @return one array of length {@code height * width} per slice
+   */
+  public static float[][] convertImageToPlanes(ImagePlus image) {
+    if (image == null) {
+      throw new IllegalArgumentException("Image cannot be null");
     }
+    ImageStack stack = image.getStack();
+    int sliceSize = stack.getWidth() * stack.getHeight();
+    float[][] planes = new float[stack.getSize()][];
+    Parallel.forEach(
+        planes.length,
+        slice -> {
+          planes[slice] = new float[sliceSize];
+          widen(stack.getPixels(slice + 1), FloatBuffer.wrap(planes[slice]), 0, sliceSize);
+        });
+    return planes;
+  }
 
-    return fullStack;
+  /** Writes {@code count} pixels to the buffer as floats, starting at {@code offset}. */
+  private static void widen(Object pixels, FloatBuffer buffer, int offset, int count) {
+    if (pixels instanceof short[]) {
+      short[] values = (short[]) pixels;
+      for (int i = 0; i < count; i++) {
+        buffer.put(offset + i, values[i] & 0xFFFF); // Unsigned conversion
+      }
+    } else if (pixels instanceof byte[]) {
+      byte[] values = (byte[]) pixels;
+      for (int i = 0; i < count; i++) {
+        buffer.put(offset + i, values[i] & 0xFF);
+      }
+    } else if (pixels instanceof float[]) {
+      float[] values = (float[]) pixels;
+      for (int i = 0; i < count; i++) {
+        buffer.put(offset + i, values[i]);
+      }
+    } else {
+      throw new IllegalArgumentException(
+          "Unsupported pixel type: " + (pixels == null ? null : pixels.getClass()));
+    }
   }
 
+  /**
+   * Converts an array of shape (slices, height, width) to a 16 bit image stack, clipping values to
+   * the 16 bit range.
+   *
+   * @param array the array to convert
+   * @return the array data as an {@link ImagePlus}
+   */
   public static ImagePlus convertArrayToImage(NDArray array) {
+    return convertArrayToImage(array, OutputType.UINT16_SATURATE);
+  }
+
+  /**
+   * Converts an array of shape (slices, height, width) to an image stack of the given type.
+   *
+   * <p>The whole array is copied to the host in one transfer and the slices are then converted in
+   * parallel.
+   *
+   * @param array the array to convert
+   * @param outputType the pixel type of the returned stack
+   * @return the array data as an {@link ImagePlus}
+   */
+  public static ImagePlus convertArrayToImage(NDArray array, OutputType outputType) {
     if (array == null) {
       throw new IllegalArgumentException("Array cannot be null");
     }
-    ImageStack stack = new ImageStack((int) array.getShape().get(1), (int) array.getShape().get(2));
-    int numSlices = (int) array.getShape().get(0);
-
-    for (int slice = 0; slice < numSlices; slice++) {
-      // Get each slice from the NDArray (convert to 2D)
-      NDArray sliceNDArray = array.get(slice);
-      float[] slicePixels = sliceNDArray.toFloatArray();
+    Shape shape = array.getShape();
+    int numSlices = (int) shape.get(0);
+    int height = (int) shape.get(1);
+    int width = (int) shape.get(2);
 
-      short[] pixels = new short[slicePixels.length];
-      for (int i = 0; i < slicePixels.length; i++) {
-        pixels[i] = (short) slicePixels[i];
+    try (Metrics.Timer timer = Metrics.getGlobal().start(Metrics.Stage.ARRAY_TO_IMAGE)) {
+      FloatBuffer data;
+      if (array.getDataType() == DataType.FLOAT32) {
+        data = array.toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+      } else {
+        try (NDArray converted = array.toType(DataType.FLOAT32, false)) {
+          data = converted.toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
       }
+      return convertBufferToImage(data, numSlices, height, width, outputType);
+    }
+  }
+
+  /**
+   * Converts float data laid out as (slices, height, width) to an image stack of the given type.
+   * Slices are converted in parallel.
+   *
+   * @param data the values, starting at index 0
+   * @param numSlices the number of slices
+   * @param height the height of a slice
+   * @param width the width of a slice
+   * @param outputType the pixel type of the returned stack
+   * @return the data as an {@link ImagePlus}
+   */
+  public static ImagePlus convertBufferToImage(
+      FloatBuffer data, int numSlices, int height, int width, OutputType outputType) {
+    int sliceSize = width * height;
+    Object[] slices = new Object[numSlices];
+
+    float scale = 1;
+    if (outputType == OutputType.UINT16_RESCALE) {
+      float max = max(data, numSlices * sliceSize);
+      scale = max > 0 ? 65535f / max : 1;
+    }
+    final float factor = scale;
+
+    Parallel.forEach(
+        numSlices,
+        slice -> {
+          int offset = slice * sliceSize;
+          if (outputType == OutputType.FLOAT32) {
+            float[] pixels = new float[sliceSize];
+            FloatBuffer view = data.duplicate();
+            view.position(offset);
+            view.get(pixels);
+            slices[slice] = pixels;
+          } else {
+            short[] pixels = new short[sliceSize];
+            for (int i = 0; i < sliceSize; i++) {
+              pixels[i] = toUnsignedShort(data.get(offset + i) * factor);
+            }
+            slices[slice] = pixels;
+          }
+        });
 
+    ImageStack stack = new ImageStack(width, height);
+    for (Object pixels : slices) {
       stack.addSlice(null, pixels);
     }
     // Create a new ImagePlus object with the stack
@@ -66,4 +228,221 @@ public class ArrayUtils {
 
     return image;
   }
+
+  /**
+   * Converts reconstructed planes to an image stack of the given type. Planes are converted in
+   * parallel; for 32 bit output the arrays are used as the slice pixels without copying.
+   *
+   * @param planes the planes, each of length {@code height * width}
+   * @param height the height of a plane
+   * @param width the width of a plane
+   * @param outputType the pixel type of the returned stack
+   * @return the planes as an {@link ImagePlus}
+   */
+  public static ImagePlus convertPlanesToImage(
+      float[][] planes, int height, int width, OutputType outputType) {
+    int sliceSize = width * height;
+    Object[] slices = new Object[planes.length];
+
+    float scale = 1;
+    if (outputType == OutputType.UINT16_RESCALE) {
+      float[] maxima = new float[planes.length];
+      Parallel.forEach(
+          planes.length, slice -> maxima[slice] = max(FloatBuffer.wrap(planes[slice]), sliceSize));
+      float max = max(FloatBuffer.wrap(maxima), maxima.length);
+      scale = max > 0 ? 65535f / max : 1;
+    }
+    final float factor = scale;
+
+    Parallel.forEach(
+        planes.length,
+        slice -> {
+          if (outputType == OutputType.FLOAT32) {
+            slices[slice] = planes[slice];
+          } else {
+            float[] plane = planes[slice];
+            short[] pixels = new short[sliceSize];
+            for (int i = 0; i < sliceSize; i++) {
+              pixels[i] = toUnsignedShort(plane[i] * factor);
+            }
+            slices[slice] = pixels;
+          }
+        });
+
+    ImageStack stack = new ImageStack(width, height);
+    for (Object pixels : slices) {
+      stack.addSlice(null, pixels);
+    }
+    return new ImagePlus("Image", stack);
+  }
+
+  /**
+   * Writes an array of shape (slices, height, width) to a sink, one slice at a time.
+   *
+   * <p>Only one slice is copied to the host at a time and handed to the sink, which writes it while
+   * the next slice is copied, so the volume never exists on the heap as a whole. For {@link
+   * OutputType#UINT16_RESCALE} the maximum is found on the device of the array first.
+   *
+   * @param array the array to write
+   * @param outputType the pixel type to write
+   * @param sink the sink to open and write to; closing it is left to the caller
+   * @throws IOException if the sink cannot write the slices
+   */
+  public static void writeArray(NDArray array, OutputType outputType, OutputSink sink)
+      throws IOException {
+    writeFrame(array, outputType, sink, 0, 1);
+  }
+
+  /**
+   * Writes an array of shape (slices, height, width) to a sink as frame {@code t} of a time series,
+   * see {@link #writeArray}. The sink is opened with the first frame; {@link
+   * OutputType#UINT16_RESCALE} scales every frame on its own.
+   *
+   * @param array the array to write
+   * @param outputType the pixel type to write
+   * @param sink the sink to write to; closing it is left to the caller
+   * @param t the frame, from 0
+   * @param frames the number of frames, all of the shape of this array
+   * @throws IOException if the sink cannot write the slices
+   */
+  public static void writeFrame(
+      NDArray array, OutputType outputType, OutputSink sink, int t, int frames) throws IOException {
+    Shape shape = array.getShape();
+    int numSlices = (int) shape.get(0);
+    int height = (int) shape.get(1);
+    int width = (int) shape.get(2);
+
+    float factor = 1;
+    if (outputType == OutputType.UINT16_RESCALE) {
+      try (NDArray max = array.max()) {
+        float value = max.toType(DataType.FLOAT32, false).getFloat();
+        factor = value > 0 ? 65535f / value : 1;
+      }
+    }
+
+    if (t == 0) {
+      sink.open(width, height, numSlices * frames, frames, outputType);
+    }
+    for (int z = 0; z < numSlices; z++) {
+      float[] plane;
+      try (NDArray slice = array.get(z)) {
+        if (slice.getDataType() == DataType.FLOAT32) {
+          plane = slice.toFloatArray();
+        } else {
+          try (NDArray converted = slice.toType(DataType.FLOAT32, false)) {
+            plane = converted.toFloatArray();
+          }
+        }
+      }
+      sink.writePlane(t * numSlices + z, toPixels(plane, outputType, factor));
+    }
+  }
+
+  /**
+   * Writes the slices of an image stack to a sink. 32 bit stacks are written as {@link
+   * OutputType#FLOAT32}, all others as 16 bit. The frames of a hyperstack stay frames of the sink.
+   *
+   * @param image the image to write
+   * @param sink the sink to open and write to; closing it is left to the caller
+   * @throws IOException if the sink cannot write the slices
+   */
+  public static void writeImage(ImagePlus image, OutputSink sink) throws IOException {
+    ImageStack stack = image.getStack();
+    boolean float32 = image.getBitDepth() == 32;
+    int frames = image.getNChannels() == 1 ? image.getNFrames() : 1;
+    sink.open(
+        stack.getWidth(),
+        stack.getHeight(),
+        stack.getSize(),
+        stack.getSize() % frames == 0 ? frames : 1,
+        float32 ? OutputType.FLOAT32 : OutputType.UINT16_SATURATE);
+    for (int z = 1; z <= stack.getSize(); z++) {
+      Object pixels = stack.getPixels(z);
+      if (!(pixels instanceof float[]) && !(pixels instanceof short[])) {
+        pixels = stack.getProcessor(z).convertToShort(false).getPixels();
+      }
+      sink.writePlane(z - 1, pixels);
+    }
+  }
+
+  /**
+   * Returns the relative error of an image against a reference: the root of the summed squared
+   * differences divided by the root of the summed squared reference values. Used to compare a
+   * reconstruction in reduced precision with one in 32 bit, see {@link Algorithm#checkPrecision}.
+   *
+   * @param expected the reference image
+   * @param actual the image to compare, of the same size as the reference
+   * @return the relative error, 0 if the images are equal
+   */
+  public static double relativeError(ImagePlus expected, ImagePlus actual) {
+    ImageStack expectedStack = expected.getStack();
+    ImageStack actualStack = actual.getStack();
+    if (expectedStack.getWidth() != actualStack.getWidth()
+        || expectedStack.getHeight() != actualStack.getHeight()
+        || expectedStack.getSize() != actualStack.getSize()) {
+      throw new IllegalArgumentException("The images differ in size");
+    }
+    double difference = 0;
+    double reference = 0;
+    int count = expectedStack.getWidth() * expectedStack.getHeight();
+    for (int z = 1; z <= expectedStack.getSize(); z++) {
+      ImageProcessor expectedSlice = expectedStack.getProcessor(z);
+      ImageProcessor actualSlice = actualStack.getProcessor(z);
+      for (int i = 0; i < count; i++) {
+        double value = expectedSlice.getf(i);
+        double delta = actualSlice.getf(i) - value;
+        difference += delta * delta;
+        reference += value * value;
+      }
+    }
+    if (reference == 0) {
+      return difference == 0 ? 0 : Double.POSITIVE_INFINITY;
+    }
+    return Math.sqrt(difference / reference);
+  }
+
+  /** Converts a plane to the pixels of the output type, scaling 16 bit values by the factor. */
+  private static Object toPixels(float[] plane, OutputType outputType, float factor) {
+    if (outputType == OutputType.FLOAT32) {
+      return plane;
+    }
+    short[] pixels = new short[plane.length];
+    for (int i = 0; i < plane.length; i++) {
+      pixels[i] = toUnsignedShort(plane[i] * factor);
+    }
+    return pixels;
+  }
+
+  /** Rounds a value to the nearest unsigned 16 bit integer, clipping it to [0, 65535]. */
+  static short toUnsignedShort(float value) {
+    if (!(value > 0)) { // also maps NaN to 0
+      return 0;
+    }
+    if (value >= 65535f) {
+      return (short) 0xFFFF;
+    }
+    return (short) (int) (value + 0.5f);
+  }
+
+  /** Returns the largest of the first {@code count} values of the buffer, searching in parallel. */
+  private static float max(FloatBuffer data, int count) {
+    int chunk = 1 << 16;
+    int numChunks = (count + chunk - 1) / chunk;
+    float[] maxima = new float[numChunks];
+    Parallel.forEach(
+        numChunks,
+        c -> {
+          float max = Float.NEGATIVE_INFINITY;
+          int end = Math.min(count, (c + 1) * chunk);
+          for (int i = c * chunk; i < end; i++) {
+            max = Math.max(max, data.get(i));
+          }
+          maxima[c] = max;
+        });
+    float max = Float.NEGATIVE_INFINITY;
+    for (float value : maxima) {
+      max = Math.max(max, value);
+    }
+    return max;
+  }
 }
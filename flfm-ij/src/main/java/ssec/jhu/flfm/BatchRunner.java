@@ -0,0 +1,741 @@
+package ssec.jhu.flfm;
+
+import ai.djl.engine.EngineException;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ij.IJ;
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Headless reconstruction of many input images with the same PSF and model.
+ *
+ * <p>The inputs run through a bounded three stage pipeline: a reader thread loads the next images
+ * while the current one is reconstructed, and a writer thread saves finished reconstructions. The
+ * model, the normalized PSF array and the {@link NDManager} are created once and reused for every
+ * input on the PyTorch devices. The device is locked for the whole batch, so other runs wait until
+ * it is finished.
+ *
+ * <p>The reconstructions are written with an {@link OutputSink}. On the PyTorch devices the
+ * inference stage copies a volume to the sink plane by plane while the threads of the sink write
+ * the planes, so a volume is never held on the heap as a whole.
+ *
+ * <p>On the PyTorch devices the reader streams uncompressed TIFF inputs with {@link TiffReader}
+ * straight into the direct buffer the input array is created from, so an input is never held as an
+ * {@link ImagePlus} too. Other inputs are opened with ImageJ.
+ *
+ * <p>As in the plugin and {@link HeadlessRunner}, every slice of a multi-slice input is a frame of
+ * a time series, reconstructed on its own and written as a hyperstack of Z slices and frames.
+ */
+public class BatchRunner {
+
+  /** Logger for the BatchRunner class. */
+  private static final Logger logger = LoggerFactory.getLogger(BatchRunner.class);
+
+  /** Number of images that may wait between two pipeline stages. */
+  private static final int QUEUE_CAPACITY = 2;
+
+  /** Timing and outcome of a single input file. */
+  public static class Result {
+    public final Path input;
+    public Path output;
+    public long inputBytes;
+    public long readMillis;
+    public long inferMillis;
+    public long writeMillis;
+    public String error;
+
+    Result(Path input) {
+      this.input = input;
+    }
+
+    public boolean isSuccess() {
+      return error == null && output != null;
+    }
+  }
+
+  /** An item travelling through the pipeline. */
+  private static class Item {
+    final Result result;
+    ImagePlus image;
+
+    /** The input streamed by {@link TiffReader}, instead of the image. */
+    ByteBuffer pixels;
+
+    Shape shape;
+
+    /** The sink the inference stage writes the reconstruction to, instead of the image. */
+    OutputSink sink;
+
+    /** The reconstructions of the frames queued on the scheduler, resolved by the writer. */
+    List<Future<ImagePlus>> pending;
+
+    long submitted;
+
+    Item(Result result, ImagePlus image) {
+      this.result = result;
+      this.image = image;
+    }
+  }
+
+  /**
+   * The Richardson-Lucy iterations shared by the inputs of a batch. If they fail in a reduced
+   * precision, they are prepared again in 32 bit for the rest of the batch, as {@link TorchEngine}
+   * does for a single run.
+   */
+  private static class SharedIterations implements AutoCloseable {
+    private final DeviceInfo deviceInfo;
+    private final NDArray psfArray;
+    private final NDManager manager;
+    private final int iterations;
+    private final RunOptions options;
+    private Precision precision;
+    private TorchRichardsonLucy deconvolution;
+
+    SharedIterations(
+        DeviceInfo deviceInfo,
+        NDArray psfArray,
+        NDManager manager,
+        Precision precision,
+        int iterations,
+        RunOptions options) {
+      this.deviceInfo = deviceInfo;
+      this.psfArray = psfArray;
+      this.manager = manager;
+      this.precision = precision;
+      this.iterations = iterations;
+      this.options = options;
+      this.deconvolution = new TorchRichardsonLucy(psfArray, manager, precision);
+    }
+
+    /** Reconstructs a frame, see {@link Algorithm#iterateVolume}. */
+    NDArray run(NDArray frame) {
+      if (precision == Precision.FP32) {
+        return Algorithm.iterateVolume(deconvolution, frame, iterations, options);
+      }
+      String reason = "the iterations failed";
+      try {
+        NDArray volume = Algorithm.iterateVolume(deconvolution, frame, iterations, options);
+        if (volume != null) {
+          return volume;
+        }
+      } catch (EngineException | UnsupportedOperationException e) {
+        reason = e.getMessage();
+      }
+      Algorithm.disablePrecision(deviceInfo, precision, reason);
+      deconvolution.close();
+      precision = Precision.FP32;
+      deconvolution = new TorchRichardsonLucy(psfArray, manager, precision);
+      return Algorithm.iterateVolume(deconvolution, frame, iterations, options);
+    }
+
+    @Override
+    public void close() {
+      deconvolution.close();
+    }
+  }
+
+  /** Marks the end of the input in the pipeline queues. */
+  private static final Item END = new Item(null, null);
+
+  private final String modelPathStr;
+  private final DeviceInfo deviceInfo;
+  private final ImagePlus psfImage;
+  private final Path outputDir;
+  private final RunOptions options;
+  private DeviceScheduler scheduler;
+  private OutputFormat format = OutputFormat.TIFF;
+  private final int sinkThreads =
+      Integer.getInteger(Constants.PROP_SINK_THREADS, Constants.DEFAULT_SINK_THREADS);
+
+  /**
+   * Creates a batch runner.
+   *
+   * @param modelPathStr the path to the model file, may be {@code null} if the options set the
+   *     iteration count
+   * @param deviceInfo the device to use for inference
+   * @param psfImage the point spread function image shared by all inputs
+   * @param outputDir the directory the reconstructions are written to
+   * @param centerX the x coordinate of the crop center
+   * @param centerY the y coordinate of the crop center
+   * @param radius the radius of the circular crop
+   * @param options the options applied to every input, such as the output pixel type
+   */
+  public BatchRunner(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      Path outputDir,
+      int centerX,
+      int centerY,
+      int radius,
+      RunOptions options) {
+    this.modelPathStr = modelPathStr;
+    this.deviceInfo = deviceInfo;
+    this.psfImage = psfImage;
+    this.outputDir = outputDir;
+    this.options = options.copy();
+    this.options.crop = new CircleCrop(centerX, centerY, radius);
+  }
+
+  /**
+   * Spreads the inputs across the lanes of a scheduler instead of running them on the device of
+   * this runner, see {@link DeviceScheduler}.
+   *
+   * @param scheduler the scheduler to queue the inputs on, or {@code null} to use the device
+   */
+  public void setScheduler(DeviceScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Sets the format the reconstructions are written in; TIFF by default.
+   *
+   * @param format the output format
+   */
+  public void setOutputFormat(OutputFormat format) {
+    this.format = format;
+  }
+
+  /**
+   * Reconstructs all inputs and writes the results to the output directory.
+   *
+   * @param inputs the input TIFF files
+   * @return the result of every input, in input order
+   * @throws IOException if the output directory cannot be created
+   * @throws InterruptedException if the calling thread is interrupted
+   */
+  public List<Result> run(List<Path> inputs) throws IOException, InterruptedException {
+    Files.createDirectories(outputDir);
+    List<Result> results = new ArrayList<>();
+    for (Path input : inputs) {
+      results.add(new Result(input));
+    }
+
+    BlockingQueue<Item> readQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    ExecutorService io = Executors.newFixedThreadPool(2);
+    long start = System.currentTimeMillis();
+
+    if (scheduler != null) {
+      // the lanes take the queued inputs themselves, the writer waits for them in input order
+      BlockingQueue<Item> writeQueue =
+          new ArrayBlockingQueue<>(scheduler.getLanes().size() + QUEUE_CAPACITY);
+      try {
+        Future<?> reader = io.submit(() -> read(results, readQueue, false));
+        Future<?> writer = io.submit(() -> write(writeQueue));
+        Item item;
+        while ((item = readQueue.take()) != END) {
+          item.submitted = System.currentTimeMillis();
+          item.pending = new ArrayList<>();
+          for (int t = 1; t <= item.image.getStackSize(); t++) {
+            ImagePlus frame = PluginController.getFrame(item.image, t);
+            item.pending.add(scheduler.submit(modelPathStr, psfImage, frame, options.copy()));
+          }
+          writeQueue.put(item);
+        }
+        writeQueue.put(END);
+        reader.get();
+        writer.get();
+      } catch (ExecutionException e) {
+        throw new IOException("Batch pipeline failed", e.getCause());
+      } finally {
+        io.shutdownNow();
+      }
+      report(results, System.currentTimeMillis() - start);
+      return results;
+    }
+
+    BlockingQueue<Item> writeQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    ReentrantLock lock = null;
+    try {
+      lock = Algorithm.lockDevice(deviceInfo, options);
+      // The PyTorch devices share one manager, PSF array and model or deconvolution across the
+      // batch. Tiled runs and the Java engine go through Algorithm.runModel for every input.
+      boolean shared = !options.tiled && Algorithm.getEngine(deviceInfo) instanceof TorchEngine;
+      boolean usesModel = shared && Algorithm.usesModel(modelPathStr, options);
+      int iterations = Algorithm.getIterations(modelPathStr, options);
+      Precision precision = Algorithm.getPrecision(modelPathStr, deviceInfo, options);
+      try (NDManager manager = shared ? Algorithm.newManager(deviceInfo) : null;
+          PsfCache.Lease psf =
+              shared ? Algorithm.getPsfCache().acquire(psfImage, deviceInfo) : null) {
+        NDArray psfArray = shared ? psf.getArray() : null;
+        try (ModelCache.Handle handle =
+                usesModel ? Algorithm.acquireModel(modelPathStr, deviceInfo) : null;
+            SharedIterations deconvolution =
+                shared && !usesModel
+                    ? new SharedIterations(
+                        deviceInfo, psfArray, manager, precision, iterations, options)
+                    : null) {
+          if (usesModel && handle == null) {
+            throw new IOException("Unable to load model " + modelPathStr);
+          }
+
+          Future<?> reader = io.submit(() -> read(results, readQueue, shared));
+          Future<?> writer = io.submit(() -> write(writeQueue));
+
+          // Inference runs on the calling thread so the DJL context class loader is preserved.
+          Item item;
+          while ((item = readQueue.take()) != END) {
+            long inferStart = System.currentTimeMillis();
+            try {
+              if (!shared) {
+                List<ImagePlus> volumes = new ArrayList<>();
+                for (int t = 1; t <= item.image.getStackSize(); t++) {
+                  ImagePlus frame = PluginController.getFrame(item.image, t);
+                  ImagePlus output =
+                      Algorithm.runModel(modelPathStr, deviceInfo, psfImage, frame, options);
+                  if (output == null) {
+                    item.result.error = "Prediction failed";
+                    break;
+                  }
+                  volumes.add(output);
+                }
+                item.image =
+                    item.result.error == null ? PluginController.stackFrames(volumes) : null;
+              } else {
+                try (NDArray input =
+                    item.pixels != null
+                        ? manager.create(item.pixels, item.shape, DataType.FLOAT32)
+                        : ArrayUtils.convertImageToArray(item.image, manager)) {
+                  item.pixels = null;
+                  item.image = null;
+                  int frames = (int) input.getShape().get(0);
+                  for (int t = 0; t < frames; t++) {
+                    try (NDArray frame = input.get("{}:{}", t, t + 1);
+                        NDArray volume =
+                            usesModel
+                                ? Algorithm.predictVolume(handle, psfArray, frame)
+                                : deconvolution.run(frame)) {
+                      if (volume == null) {
+                        item.result.error = "Prediction failed";
+                        break;
+                      }
+                      // the planes are copied to the host here, the threads of the sink write them
+                      if (item.sink == null) {
+                        item.sink =
+                            format.createSink(getOutputPath(item.result.input), sinkThreads);
+                      }
+                      Algorithm.toSink(volume, options, item.sink, t, frames);
+                    }
+                  }
+                }
+              }
+            } catch (IOException | RuntimeException e) {
+              logger.error("Error reconstructing {}: {}", item.result.input, e.getMessage());
+              item.result.error = e.getMessage();
+            }
+            item.result.inferMillis = System.currentTimeMillis() - inferStart;
+            writeQueue.put(item);
+          }
+          writeQueue.put(END);
+
+          reader.get();
+          writer.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Batch pipeline failed", e.getCause());
+        }
+      }
+    } finally {
+      io.shutdownNow();
+      if (lock != null) {
+        lock.unlock();
+      }
+    }
+
+    report(results, System.currentTimeMillis() - start);
+    return results;
+  }
+
+  /**
+   * Reader stage: loads every input and hands it to the inference stage. With {@code stream} set,
+   * TIFF inputs {@link TiffReader} supports are decoded into direct buffers instead of images.
+   */
+  private void read(List<Result> results, BlockingQueue<Item> readQueue, boolean stream) {
+    try {
+      for (Result result : results) {
+        long readStart = System.currentTimeMillis();
+        Item item = stream ? stream(result) : null;
+        if (item == null) {
+          ImagePlus image = null;
+          try {
+            image = IJ.openImage(result.input.toString());
+          } catch (RuntimeException e) {
+            logger.error("Error reading {}: {}", result.input, e.getMessage());
+          }
+          if (image != null) {
+            result.inputBytes = (long) image.getSizeInBytes();
+            item = new Item(result, image);
+          }
+        }
+        result.readMillis = System.currentTimeMillis() - readStart;
+        if (item == null) {
+          result.error = "Unable to open image";
+          logger.error("Unable to open {}", result.input);
+          continue;
+        }
+        readQueue.put(item);
+      }
+      readQueue.put(END);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Streams an input with {@link TiffReader}, or returns {@code null} if it cannot. */
+  private static Item stream(Result result) {
+    try (TiffReader reader = new TiffReader(result.input)) {
+      Item item = new Item(result, null);
+      item.shape = new Shape(reader.getSliceCount(), reader.getHeight(), reader.getWidth());
+      item.pixels = reader.readAll();
+      result.inputBytes = item.shape.size() * (reader.getBitsPerSample() / 8);
+      return item;
+    } catch (IOException | IllegalArgumentException e) {
+      logger.debug("Opening {} with ImageJ: {}", result.input, e.getMessage());
+      return null;
+    }
+  }
+
+  /** Writer stage: saves every finished reconstruction as a TIFF file. */
+  private void write(BlockingQueue<Item> writeQueue) {
+    try {
+      Item item;
+      while ((item = writeQueue.take()) != END) {
+        Result result = item.result;
+        if (item.pending != null) {
+          resolve(item);
+        }
+        if (result.error != null && item.sink == null) {
+          continue;
+        }
+        long writeStart = System.currentTimeMillis();
+        Path output = getOutputPath(result.input);
+        // a sink opened by the inference stage is still writing, closing it waits for it
+        try (OutputSink sink =
+            item.sink != null ? item.sink : format.createSink(output, sinkThreads)) {
+          if (item.sink == null) {
+            ArrayUtils.writeImage(item.image, sink);
+          }
+        } catch (IOException | RuntimeException e) {
+          logger.error("Error writing {}: {}", output, e.getMessage());
+          if (result.error == null) {
+            result.error = "Unable to write " + output;
+          }
+        }
+        item.image = null;
+        item.sink = null;
+        result.writeMillis = System.currentTimeMillis() - writeStart;
+        if (result.error != null) {
+          continue;
+        }
+        result.output = output;
+        logger.info(
+            "{}: read {} ms, inference {} ms, write {} ms",
+            result.input.getFileName(),
+            result.readMillis,
+            result.inferMillis,
+            result.writeMillis);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Returns the file or directory the reconstruction of an input is written to. */
+  private Path getOutputPath(Path input) {
+    String name = FilenameUtils.getBaseName(input.getFileName().toString());
+    return outputDir.resolve(name + Constants.BATCH_OUTPUT_SUFFIX + format.getExtension());
+  }
+
+  /** Waits for the scheduled reconstructions of the frames of an item. */
+  private static void resolve(Item item) throws InterruptedException {
+    try {
+      List<ImagePlus> volumes = new ArrayList<>();
+      for (Future<ImagePlus> frame : item.pending) {
+        ImagePlus output = frame.get();
+        if (output == null) {
+          item.result.error = "Prediction failed";
+          break;
+        }
+        volumes.add(output);
+      }
+      if (item.result.error == null) {
+        item.image = PluginController.stackFrames(volumes);
+      }
+    } catch (ExecutionException e) {
+      logger.error("Error reconstructing {}: {}", item.result.input, e.getCause().getMessage());
+      item.result.error = e.getCause().getMessage();
+    } catch (CancellationException e) {
+      item.result.error = "Cancelled";
+    }
+    item.result.inferMillis = System.currentTimeMillis() - item.submitted;
+  }
+
+  /** Logs the aggregate throughput of a finished batch. */
+  private static void report(List<Result> results, long elapsedMillis) {
+    long succeeded = results.stream().filter(Result::isSuccess).count();
+    long bytes = results.stream().mapToLong(r -> r.inputBytes).sum();
+    double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+    logger.info(
+        "Reconstructed {} of {} files in {} s ({} files/s, {} MB/s)",
+        succeeded,
+        results.size(),
+        String.format("%.2f", seconds),
+        String.format("%.3f", succeeded / seconds),
+        String.format("%.2f", bytes / seconds / (1024.0 * 1024.0)));
+  }
+
+  /**
+   * Resolves a directory or a glob pattern to the list of TIFF files it contains.
+   *
+   * @param pattern a directory, or a path whose file name is a glob such as {@code data/*.tif}
+   * @return the matching files sorted by name
+   * @throws IOException if the directory cannot be listed
+   */
+  public static List<Path> resolveInputs(String pattern) throws IOException {
+    Path path = Paths.get(pattern);
+    Path dir;
+    String glob;
+    if (Files.isDirectory(path)) {
+      dir = path;
+      glob = "*.{tif,tiff,TIF,TIFF}";
+    } else {
+      dir = path.getParent() != null ? path.getParent() : Paths.get(".");
+      glob = path.getFileName().toString();
+    }
+
+    List<Path> inputs = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+      for (Path entry : stream) {
+        if (Files.isRegularFile(entry)) {
+          inputs.add(entry);
+        }
+      }
+    }
+    Collections.sort(inputs);
+    return inputs;
+  }
+
+  /**
+   * Runs a batch from the command line.
+   *
+   * <p>Usage: {@code BatchRunner --psf psf.tif --input <dir|glob> --output <dir> [--model
+   * model5.pt] [--iterations 5] [--tolerance 0.001] [--device CPU|all] [--host-lanes 2] [--center-x
+   * 1000] [--center-y 980] [--radius 230] [--output-type UINT16_SATURATE|UINT16_RESCALE|FLOAT32]
+   * [--output-format TIFF|OME_ZARR] [--max-batch 8] [--precision FP32|FP16|BF16] [--check-precision
+   * true] [--metrics metrics.json]}. Either a model or an iteration count is required. With {@code
+   * --check-precision} the first input is reconstructed in both the reduced precision and 32 bit,
+   * and the batch runs in 32 bit if they differ by more than {@value
+   * Constants#PRECISION_TOLERANCE}, see {@link Algorithm#checkPrecision}. With {@code --device all}
+   * the inputs are spread across every device, and the CPU is split into {@code --host-lanes}
+   * lanes, see {@link DeviceScheduler}; inputs of the same size then run in batches of up to {@code
+   * --max-batch} frames, see {@link BatchedReconstruction}. With {@code --metrics} the timings,
+   * counters and memory peaks of the batch are written to the file at the end, as CSV if its name
+   * ends with {@code .csv}, see {@link Metrics}.
+   *
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    String psf = null;
+    String input = null;
+    String output = null;
+    String model = null;
+    String device = "CPU";
+    OutputType outputType = OutputType.UINT16_SATURATE;
+    OutputFormat outputFormat = OutputFormat.TIFF;
+    Precision precision = Precision.FP32;
+    boolean checkPrecision = false;
+    String metrics = null;
+    int iterations = 0;
+    double tolerance = 0;
+    boolean tiled = false;
+    long maxTileBytes = 0;
+    int hostLanes = Integer.getInteger(Constants.PROP_HOST_LANES, Constants.DEFAULT_HOST_LANES);
+    int centerX = Constants.DEFAULT_CENTER_X;
+    int centerY = Constants.DEFAULT_CENTER_Y;
+    int radius = Constants.DEFAULT_RADIUS;
+
+    boolean valid = true;
+    try {
+      for (int i = 0; i < args.length; i += 2) {
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value for " + args[i]);
+        }
+        String value = args[i + 1];
+        switch (args[i]) {
+          case "--psf":
+            psf = value;
+            break;
+          case "--input":
+            input = value;
+            break;
+          case "--output":
+            output = value;
+            break;
+          case "--model":
+            model = value;
+            break;
+          case "--iterations":
+            iterations = Integer.parseInt(value);
+            break;
+          case "--tolerance":
+            tolerance = Double.parseDouble(value);
+            break;
+          case "--tiled":
+            tiled = Boolean.parseBoolean(value);
+            break;
+          case "--max-tile-bytes":
+            maxTileBytes = Long.parseLong(value);
+            break;
+          case "--device":
+            device = value;
+            break;
+          case "--host-lanes":
+            hostLanes = Integer.parseInt(value);
+            break;
+          case "--max-batch":
+            System.setProperty(Constants.PROP_MAX_BATCH, Integer.toString(Integer.parseInt(value)));
+            break;
+          case "--center-x":
+            centerX = Integer.parseInt(value);
+            break;
+          case "--center-y":
+            centerY = Integer.parseInt(value);
+            break;
+          case "--radius":
+            radius = Integer.parseInt(value);
+            break;
+          case "--output-type":
+            outputType = OutputType.valueOf(value.toUpperCase(Locale.ROOT));
+            break;
+          case "--output-format":
+            outputFormat = OutputFormat.valueOf(value.toUpperCase(Locale.ROOT));
+            break;
+          case "--precision":
+            precision = Precision.valueOf(value.toUpperCase(Locale.ROOT));
+            break;
+          case "--check-precision":
+            checkPrecision = Boolean.parseBoolean(value);
+            break;
+          case "--metrics":
+            metrics = value;
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown argument: " + args[i]);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // an unknown flag, a missing value or a value that does not parse
+      System.err.println(e.getMessage());
+      valid = false;
+    }
+    if (!valid
+        || psf == null
+        || input == null
+        || output == null
+        || (model == null && iterations <= 0)) {
+      System.err.println(
+          "Usage: BatchRunner --psf <psf.tif> --input <dir|glob> --output <dir>"
+              + " [--model <model.pt>] [--iterations n] [--tolerance x]"
+              + " [--device CPU|GPU:n|all] [--host-lanes n] [--max-batch n]"
+              + " [--center-x n] [--center-y n] [--radius n]"
+              + " [--output-type UINT16_SATURATE|UINT16_RESCALE|FLOAT32] [--output-format TIFF|OME_ZARR]"
+              + " [--tiled true|false] [--max-tile-bytes n]"
+              + " [--precision FP32|FP16|BF16] [--check-precision true|false]"
+              + " [--metrics <metrics.json|metrics.csv>]");
+      System.exit(2);
+    }
+
+    // divide the cores between the lanes before the engine starts
+    ThreadingConfig threading = ThreadingConfig.getCurrent().copy();
+    threading.concurrentRuns = "all".equalsIgnoreCase(device) ? Math.max(1, hostLanes) : 1;
+    ThreadingConfig.setCurrent(threading);
+
+    RunOptions options = new RunOptions(outputType);
+    options.iterations = iterations;
+    options.tolerance = tolerance;
+    options.tiled = tiled;
+    options.maxTileBytes = maxTileBytes;
+    options.precision = precision;
+    ImagePlus psfImage = IJ.openImage(new File(psf).getAbsolutePath());
+    if (psfImage == null) {
+      throw new IOException("Unable to open PSF image " + psf);
+    }
+    boolean allDevices = "all".equalsIgnoreCase(device);
+    List<Path> inputs = resolveInputs(input);
+    if (Algorithm.isPrecisionIgnored(model, options)) {
+      logger.warn("Models run in 32-bit, ignoring --precision {}", precision.toDisplay());
+      options.precision = Precision.FP32;
+    }
+    if (checkPrecision && options.precision != Precision.FP32 && !inputs.isEmpty()) {
+      ImagePlus first = IJ.openImage(inputs.get(0).toString());
+      double error =
+          first == null
+              ? Double.NaN
+              : Algorithm.checkPrecision(
+                  model,
+                  allDevices ? new DeviceInfo("CPU", -1) : DeviceInfo.fromDisplay(device),
+                  psfImage,
+                  first,
+                  options);
+      if (!(error <= Constants.PRECISION_TOLERANCE)) {
+        logger.warn(
+            "{} differs from 32-bit by {} on {}, running in 32-bit",
+            precision.toDisplay(),
+            error,
+            inputs.get(0));
+        options.precision = Precision.FP32;
+      }
+    }
+    BatchRunner runner =
+        new BatchRunner(
+            model,
+            allDevices ? new DeviceInfo("CPU", -1) : DeviceInfo.fromDisplay(device),
+            psfImage,
+            Paths.get(output),
+            centerX,
+            centerY,
+            radius,
+            options);
+    DeviceScheduler scheduler =
+        allDevices
+            ? new DeviceScheduler(
+                DeviceScheduler.selectDevices(Algorithm.getDevices()), hostLanes, 0, model)
+            : null;
+    runner.setScheduler(scheduler);
+    runner.setOutputFormat(outputFormat);
+    List<Result> results = runner.run(inputs);
+    if (scheduler != null) {
+      scheduler.close();
+    }
+    if (metrics != null) {
+      Metrics.getGlobal().sampleHostMemory();
+      Metrics.getGlobal().write(Paths.get(metrics));
+      logger.info("Metrics written to {}", metrics);
+    }
+    Algorithm.shutdown();
+    System.exit(results.stream().allMatch(Result::isSuccess) ? 0 : 1);
+  }
+}
@@ -0,0 +1,41 @@
+package ssec.jhu.flfm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.translate.Translator;
+import ai.djl.translate.TranslatorContext;
+
+/**
+ * Translator that runs several frames through a model in one forward pass.
+ *
+ * <p>The input is the frames of shape (B, H, W), one light-field image per slice, and the PSF
+ * shared by all of them. The frames get a batch dimension in front of the image of shape (1, H, W)
+ * that {@link ModelTranslator} passes, and the output of shape (B, Z, H, W) is split back into one
+ * volume per frame. A model that was exported without a batch dimension fails here, see {@link
+ * BatchedReconstruction} for the fallback.
+ */
+public class BatchedModelTranslator implements Translator<NDArray[], NDList> {
+  @Override
+  public NDList processOutput(TranslatorContext ctx, NDList list) {
+    NDArray output = list.get(0);
+    long frames = ((NDArray) ctx.getAttachment("frames")).getShape().get(0);
+    if (output.getShape().dimension() != 4 || output.getShape().get(0) != frames) {
+      throw new IllegalStateException(
+          "Expected " + frames + " volumes, the model returned shape " + output.getShape());
+    }
+    NDList volumes = new NDList();
+    for (int i = 0; i < frames; i++) {
+      volumes.add(output.get(i));
+    }
+    return volumes;
+  }
+
+  @Override
+  public NDList processInput(TranslatorContext ctx, NDArray[] input) {
+    NDArray frames = input[0];
+    NDArray psf = input[1];
+    ctx.setAttachment("frames", frames);
+
+    return new NDList(frames.expandDims(1), psf);
+  }
+}
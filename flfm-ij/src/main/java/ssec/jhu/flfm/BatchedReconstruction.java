@@ -0,0 +1,248 @@
+package ssec.jhu.flfm;
+
+import ai.djl.engine.EngineException;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.translate.TranslateException;
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reconstruction of several frames of the same size, such as the time points of a time series, in
+ * one pass on a PyTorch device.
+ *
+ * <p>The frames are stacked along a batch dimension and share one PSF. With a model they go through
+ * a single forward pass, see {@link BatchedModelTranslator}; without one the iterations run on the
+ * whole batch, see {@link TorchRichardsonLucy}. Small frames leave much of a device idle in a pass
+ * of their own, so a batch raises the throughput roughly by its size until the device is busy. The
+ * size of a batch is bounded by the memory of the device, see {@link #getBatchSize}.
+ *
+ * <p>Models exported without a batch dimension fail on a batch. The frames of such a model are run
+ * one at a time, and the model is not given a batch again while it is cached. Other failures of a
+ * batch, such as the device running out of memory, only run the frames of that batch one at a time.
+ */
+public class BatchedReconstruction {
+
+  /** Logger for the BatchedReconstruction class. */
+  private static final Logger logger = LoggerFactory.getLogger(BatchedReconstruction.class);
+
+  /** Private constructor to prevent instantiation. */
+  private BatchedReconstruction() {}
+
+  /**
+   * Returns how many frames to reconstruct in one pass.
+   *
+   * @param availableBytes the memory the batch may use
+   * @param bytesPerFrame the estimated memory of the reconstruction of one frame, see {@link
+   *     ReconstructionEngine#estimateBytes}
+   * @param frames the number of frames waiting
+   * @param maxBatch the largest batch to run
+   * @return the batch size, at least 1
+   */
+  public static int getBatchSize(
+      long availableBytes, long bytesPerFrame, int frames, int maxBatch) {
+    long fitting = bytesPerFrame > 0 ? availableBytes / bytesPerFrame : frames;
+    return (int) Math.max(1, Math.min(fitting, Math.min(frames, maxBatch)));
+  }
+
+  /**
+   * Returns the largest batch to run, from the system property {@value Constants#PROP_MAX_BATCH}.
+   *
+   * @return the maximum batch size, at least 1
+   */
+  public static int getMaxBatch() {
+    return Math.max(1, Integer.getInteger(Constants.PROP_MAX_BATCH, Constants.DEFAULT_MAX_BATCH));
+  }
+
+  /**
+   * Reconstructs the frames in one pass. Locks the device like {@link Algorithm#runModel}, and
+   * falls back to 32 bit like {@link TorchEngine#reconstruct} if the iterations fail in a reduced
+   * precision.
+   *
+   * @param modelPathStr the path to the model file, may be {@code null} if the options set the
+   *     iteration count
+   * @param deviceInfo the PyTorch device to use
+   * @param psfImage the point spread function image shared by all frames
+   * @param inputs the frames, single images of the same size
+   * @param options the options of the run, shared by all frames; previews are not sent
+   * @return the reconstructed volume of every frame, or {@code null} if the reconstruction failed
+   * @throws CancellationException if the run is cancelled
+   */
+  public static ImagePlus[] run(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus[] inputs,
+      RunOptions options) {
+    RunOptions batchOptions = options.copy();
+    batchOptions.previewListener = null;
+    ReentrantLock lock = Algorithm.lockDevice(deviceInfo, options);
+    Metrics.getGlobal().increment("batches");
+    Metrics.getGlobal().add("batch.frames", inputs.length);
+    try {
+      Precision precision = Algorithm.getPrecision(modelPathStr, deviceInfo, options);
+      if (precision == Precision.FP32) {
+        return run(modelPathStr, deviceInfo, psfImage, inputs, batchOptions, precision);
+      }
+      String reason = "the iterations failed";
+      try {
+        ImagePlus[] outputs =
+            run(modelPathStr, deviceInfo, psfImage, inputs, batchOptions, precision);
+        if (outputs != null) {
+          return outputs;
+        }
+      } catch (EngineException | UnsupportedOperationException e) {
+        reason = e.getMessage();
+      }
+      Algorithm.disablePrecision(deviceInfo, precision, reason);
+      return run(modelPathStr, deviceInfo, psfImage, inputs, batchOptions, Precision.FP32);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Reconstructs the frames in one pass in the given precision, on a locked device. */
+  private static ImagePlus[] run(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus[] inputs,
+      RunOptions batchOptions,
+      Precision precision) {
+    try (NDManager manager = Algorithm.newManager(deviceInfo);
+        PsfCache.Lease psf = Algorithm.getPsfCache().acquire(psfImage, deviceInfo);
+        NDArray frames = ArrayUtils.convertImageToArray(stack(inputs), manager)) {
+      batchOptions.checkCancelled();
+      long start = System.currentTimeMillis();
+      ImagePlus[] outputs;
+      if (Algorithm.usesModel(modelPathStr, batchOptions)) {
+        try (ModelCache.Handle handle = Algorithm.acquireModel(modelPathStr, deviceInfo)) {
+          if (handle == null) {
+            return null;
+          }
+          outputs = predict(handle, psf.getArray(), frames, batchOptions);
+        }
+      } else {
+        int iterations = Algorithm.getIterations(modelPathStr, batchOptions);
+        TorchRichardsonLucy.Observer observer =
+            (iteration, object) -> batchOptions.checkCancelled();
+        try (TorchRichardsonLucy deconvolution =
+                new TorchRichardsonLucy(psf.getArray(), manager, precision);
+            NDArray batch = frames.expandDims(1)) {
+          NDArray volumes;
+          try (Metrics.Timer timer = Metrics.getGlobal().start(Metrics.Stage.ITERATE)) {
+            volumes = deconvolution.run(batch, iterations, batchOptions.tolerance, observer);
+          }
+          try (NDArray closing = volumes) {
+            outputs = split(volumes, batchOptions);
+          }
+        }
+      }
+      logger.debug(
+          "Batch of {} frames took {} s",
+          inputs.length,
+          (System.currentTimeMillis() - start) / 1000.0);
+      return outputs;
+    }
+  }
+
+  /**
+   * Runs a batch of frames through a model, or every frame on its own if the model cannot take a
+   * batch.
+   *
+   * @param handle the handle of the loaded model
+   * @param psfArray the normalized PSF array, see {@link PsfCache}
+   * @param frames the frames of shape (B, H, W)
+   * @param options the options of the run
+   * @return the volume of every frame, or {@code null} if a prediction failed
+   */
+  public static ImagePlus[] predict(
+      ModelCache.Handle handle, NDArray psfArray, NDArray frames, RunOptions options) {
+    int count = (int) frames.getShape().get(0);
+    if (count > 1 && handle.supportsBatches()) {
+      try {
+        NDList volumes;
+        try (Metrics.Timer timer = Metrics.getGlobal().start(Metrics.Stage.PREDICT)) {
+          volumes = handle.getBatchPredictor().predict(new NDArray[] {frames, psfArray});
+        }
+        try (NDList closing = volumes) {
+          ImagePlus[] outputs = new ImagePlus[count];
+          for (int i = 0; i < count; i++) {
+            outputs[i] = Algorithm.toImage(volumes.get(i), options);
+          }
+          return outputs;
+        }
+      } catch (TranslateException | RuntimeException e) {
+        if (isBatchUnsupported(e)) {
+          logger.info(
+              "The model cannot take a batch, running frames one at a time: {}", e.getMessage());
+          handle.disableBatches();
+        } else {
+          logger.warn("The batch failed, running its frames one at a time: {}", e.getMessage());
+        }
+      }
+    }
+
+    ImagePlus[] outputs = new ImagePlus[count];
+    for (int i = 0; i < count; i++) {
+      options.checkCancelled();
+      try (NDArray frame = frames.get("{}:{}", i, i + 1)) {
+        outputs[i] = Algorithm.predict(handle, psfArray, frame, options);
+      }
+      if (outputs[i] == null) {
+        return null;
+      }
+    }
+    return outputs;
+  }
+
+  /**
+   * Returns whether a failed batch shows that the model cannot take a batch at all: an unsupported
+   * operation, or a shape that does not fit, such as from a model without a batch dimension or from
+   * {@link BatchedModelTranslator}. Running out of memory is a failure of the pass, not the model.
+   *
+   * @param failure the exception of the batch, searched with its causes
+   * @return {@code true} if batches should no longer be given to the model
+   */
+  static boolean isBatchUnsupported(Throwable failure) {
+    boolean unsupported = false;
+    for (Throwable e = failure; e != null; e = e.getCause()) {
+      String message = String.valueOf(e.getMessage()).toLowerCase(Locale.ROOT);
+      if (message.contains("out of memory")) {
+        return false;
+      }
+      unsupported |=
+          e instanceof UnsupportedOperationException
+              || message.contains("shape")
+              || message.contains("dimension")
+              || message.contains("size");
+    }
+    return unsupported;
+  }
+
+  /** Splits volumes of shape (B, Z, H, W) into one image per frame. */
+  private static ImagePlus[] split(NDArray volumes, RunOptions options) {
+    ImagePlus[] outputs = new ImagePlus[(int) volumes.getShape().get(0)];
+    for (int i = 0; i < outputs.length; i++) {
+      try (NDArray volume = volumes.get(i)) {
+        outputs[i] = Algorithm.toImage(volume, options);
+      }
+    }
+    return outputs;
+  }
+
+  /** Stacks the single images of the frames, without copying their pixels. */
+  private static ImagePlus stack(ImagePlus[] inputs) {
+    ImageStack stack = new ImageStack(inputs[0].getWidth(), inputs[0].getHeight());
+    for (ImagePlus input : inputs) {
+      stack.addSlice(input.getProcessor());
+    }
+    return new ImagePlus("frames", stack);
+  }
+}
@@ -0,0 +1,175 @@
+package ssec.jhu.flfm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of the sinks that encode and write planes on a pool of writer threads.
+ *
+ * <p>{@link #writePlane} hands a plane to the pool and returns, so the next plane can be copied
+ * from the device while earlier ones are encoded and written. At most two planes per thread wait
+ * for the pool, which bounds the memory a slow disk can pile up. Planes are encoded as little
+ * endian bytes, the layout of both the TIFF and the Zarr sink.
+ */
+abstract class ChunkedOutputSink implements OutputSink {
+
+  private final int threads;
+  private ExecutorService executor;
+  private Semaphore pending;
+  private final AtomicInteger written = new AtomicInteger();
+  private volatile IOException error;
+
+  protected int width;
+  protected int height;
+  protected int planes;
+  protected int frames = 1;
+  protected OutputType outputType;
+
+  /**
+   * Creates a sink that writes on the given number of threads.
+   *
+   * @param threads the number of writer threads
+   */
+  protected ChunkedOutputSink(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  @Override
+  public void open(int width, int height, int planes, OutputType outputType) throws IOException {
+    open(width, height, planes, 1, outputType);
+  }
+
+  @Override
+  public void open(int width, int height, int planes, int frames, OutputType outputType)
+      throws IOException {
+    if (frames < 1 || planes % frames != 0) {
+      throw new IllegalArgumentException(
+          planes + " planes cannot be split into " + frames + " frames");
+    }
+    this.width = width;
+    this.height = height;
+    this.planes = planes;
+    this.frames = frames;
+    this.outputType = outputType;
+    begin();
+    this.pending = new Semaphore(2 * threads);
+    this.executor = Executors.newFixedThreadPool(threads);
+  }
+
+  /** Returns the number of planes of a frame. */
+  protected int getSlices() {
+    return planes / frames;
+  }
+
+  /** Returns the size of a pixel in bytes. */
+  protected int getBytesPerPixel() {
+    return outputType == OutputType.FLOAT32 ? Float.BYTES : Short.BYTES;
+  }
+
+  /** Returns the size of a plane in bytes. */
+  protected long getPlaneBytes() {
+    return (long) width * height * getBytesPerPixel();
+  }
+
+  @Override
+  public void writePlane(int z, Object pixels) throws IOException {
+    if (executor == null) {
+      throw new IllegalStateException("The sink is not open");
+    }
+    if (z < 0 || z >= planes) {
+      throw new IndexOutOfBoundsException("Plane " + z + " of " + planes);
+    }
+    checkError();
+    try {
+      pending.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the writer");
+    }
+    executor.execute(
+        () -> {
+          try {
+            writePlaneBytes(z, encode(pixels));
+            written.incrementAndGet();
+          } catch (IOException | RuntimeException e) {
+            if (error == null) {
+              error = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+          } finally {
+            pending.release();
+          }
+        });
+  }
+
+  /** Encodes the pixels of a plane as little endian bytes. */
+  private ByteBuffer encode(Object pixels) {
+    int count = width * height;
+    ByteBuffer bytes =
+        ByteBuffer.allocate(count * getBytesPerPixel()).order(ByteOrder.LITTLE_ENDIAN);
+    if (outputType == OutputType.FLOAT32) {
+      bytes.asFloatBuffer().put((float[]) pixels, 0, count);
+    } else {
+      bytes.asShortBuffer().put((short[]) pixels, 0, count);
+    }
+    return bytes;
+  }
+
+  private void checkError() throws IOException {
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (executor != null) {
+        executor.shutdown();
+        try {
+          executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          executor.shutdownNow();
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the writer");
+        }
+      }
+    } finally {
+      finish(error == null && written.get() == planes);
+    }
+    checkError();
+    if (written.get() != planes) {
+      throw new IOException("Only " + written.get() + " of " + planes + " planes were written");
+    }
+  }
+
+  /**
+   * Creates the destination once the dimensions are known.
+   *
+   * @throws IOException if the destination cannot be created
+   */
+  protected abstract void begin() throws IOException;
+
+  /**
+   * Writes an encoded plane; called from the writer threads.
+   *
+   * @param z the zero based index of the plane
+   * @param bytes the little endian pixels of the plane
+   * @throws IOException if the plane cannot be written
+   */
+  protected abstract void writePlaneBytes(int z, ByteBuffer bytes) throws IOException;
+
+  /**
+   * Completes the destination and releases its resources.
+   *
+   * @param complete whether every plane was written
+   * @throws IOException if the destination cannot be completed
+   */
+  protected abstract void finish(boolean complete) throws IOException;
+}
@@ -0,0 +1,135 @@
+package ssec.jhu.flfm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.types.Shape;
+import ij.gui.OvalRoi;
+import java.awt.Rectangle;
+
+/**
+ * The square of side {@code 2 * radius} around a center, with everything outside the inscribed
+ * circle set to zero.
+ *
+ * <p>This is the post-processing of every reconstruction. It is applied to the volume before it is
+ * converted to an image, on the device for the PyTorch engine, so only the kept square is copied to
+ * the host. The square is clipped to the bounds of the volume; the circle stays where it is.
+ */
+public class CircleCrop {
+  public final int centerX;
+  public final int centerY;
+  public final int radius;
+
+  public CircleCrop(int centerX, int centerY, int radius) {
+    if (radius <= 0) {
+      throw new IllegalArgumentException("The radius must be positive: " + radius);
+    }
+    this.centerX = centerX;
+    this.centerY = centerY;
+    this.radius = radius;
+  }
+
+  /**
+   * Returns the part of the square that lies inside an image of the given size.
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   * @return the clipped square
+   * @throws IllegalArgumentException if the square lies outside the image
+   */
+  public Rectangle getBounds(int width, int height) {
+    Rectangle bounds =
+        new Rectangle(centerX - radius, centerY - radius, 2 * radius, 2 * radius)
+            .intersection(new Rectangle(0, 0, width, height));
+    if (bounds.isEmpty()) {
+      throw new IllegalArgumentException(
+          "The crop around (" + centerX + ", " + centerY + ") lies outside the image");
+    }
+    return bounds;
+  }
+
+  /**
+   * Returns the circle mask of the clipped square, 1 inside the circle and 0 outside. The circle is
+   * the same as the one of an {@link OvalRoi} of diameter {@code 2 * radius}.
+   *
+   * @param bounds the clipped square, see {@link #getBounds}
+   * @return the mask, row major with the size of the bounds
+   */
+  public float[] getMask(Rectangle bounds) {
+    return getCircleMask().toArray(toSquare(bounds));
+  }
+
+  /** Returns the mask of the whole, unclipped square. */
+  private CircleMask getCircleMask() {
+    return CircleMask.of(radius, radius, 2 * radius, 2 * radius, 2 * radius);
+  }
+
+  /** Translates clipped bounds from image coordinates to the coordinates of the square. */
+  private Rectangle toSquare(Rectangle bounds) {
+    return new Rectangle(
+        bounds.x - (centerX - radius), bounds.y - (centerY - radius), bounds.width, bounds.height);
+  }
+
+  /**
+   * Crops and masks a volume on its device.
+   *
+   * @param volume the volume of shape (Z, H, W)
+   * @return a new array of shape (Z, h, w) with the clipped square, owned by the manager of the
+   *     volume
+   */
+  public NDArray apply(NDArray volume) {
+    int height = (int) volume.getShape().get(1);
+    int width = (int) volume.getShape().get(2);
+    Rectangle bounds = getBounds(width, height);
+    try (Metrics.Timer timer = Metrics.getGlobal().start(Metrics.Stage.CROP_MASK);
+        NDArray square =
+            volume.get(
+                ":, {}:{}, {}:{}",
+                bounds.y,
+                bounds.y + bounds.height,
+                bounds.x,
+                bounds.x + bounds.width);
+        NDArray mask =
+            volume
+                .getManager()
+                .create(getMask(bounds), new Shape(1, bounds.height, bounds.width))) {
+      return square.mul(mask);
+    }
+  }
+
+  /**
+   * Crops and masks a volume on the host.
+   *
+   * @param planes the planes of the volume, each of length {@code width * height}
+   * @param width the width of a plane
+   * @param height the height of a plane
+   * @return the cropped and masked planes, of the size of {@link #getBounds}
+   */
+  public float[][] apply(float[][] planes, int width, int height) {
+    Rectangle bounds = getBounds(width, height);
+    Rectangle square = toSquare(bounds);
+    CircleMask mask = getCircleMask();
+    float[][] cropped = new float[planes.length][bounds.width * bounds.height];
+    try (Metrics.Timer timer = Metrics.getGlobal().start(Metrics.Stage.CROP_MASK)) {
+      Parallel.forEach(
+          planes.length,
+          z -> {
+            // only the spans inside the circle are copied, the rest stays zero
+            for (int y = 0; y < bounds.height; y++) {
+              int[] spans = mask.getSpans(square.y + y);
+              for (int i = 0; i < spans.length; i += 2) {
+                int start = Math.max(spans[i], square.x) - square.x;
+                int end = Math.min(spans[i + 1], square.x + square.width) - square.x;
+                if (start < end) {
+                  System.arraycopy(
+                      planes[z],
+                      (bounds.y + y) * width + bounds.x + start,
+                      cropped[z],
+                      y * bounds.width + start,
+                      end - start);
+                }
+              }
+            }
+          });
+    }
+    return cropped;
+  }
+}
@@ -0,0 +1,169 @@
+package ssec.jhu.flfm;
+
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A circle mask stored as the spans of every row that lie inside the circle.
+ *
+ * <p>The spans are computed once per center, diameter and image size with the same point-in-oval
+ * test as {@link OvalRoi#contains}, and the masks are cached, so masking a stack only zeroes the
+ * pixels between the spans. Slices are masked in parallel and in place.
+ */
+public class CircleMask {
+
+  /** Recently used masks, keyed by center, diameter and image size. */
+  private static final Map<String, CircleMask> cache =
+      new LinkedHashMap<String, CircleMask>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CircleMask> eldest) {
+          return size() > Constants.CIRCLE_MASK_CACHE_ENTRIES;
+        }
+      };
+
+  private static final int[] NO_SPANS = new int[0];
+
+  private final int width;
+  private final int height;
+
+  /** Per row the start (inclusive) and end (exclusive) of every span inside the circle. */
+  private final int[][] spans;
+
+  private CircleMask(int centerX, int centerY, int diameter, int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.spans = new int[height][];
+    OvalRoi circle =
+        new OvalRoi(centerX - diameter / 2, centerY - diameter / 2, diameter, diameter);
+    Rectangle bounds = circle.getBounds().intersection(new Rectangle(0, 0, width, height));
+    int[] row = new int[width + 1];
+    for (int y = 0; y < height; y++) {
+      int count = 0;
+      if (y >= bounds.y && y < bounds.y + bounds.height) {
+        boolean inside = false;
+        for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+          if (circle.contains(x, y) != inside) {
+            row[count++] = x;
+            inside = !inside;
+          }
+        }
+        if (inside) {
+          row[count++] = bounds.x + bounds.width;
+        }
+      }
+      spans[y] = count == 0 ? NO_SPANS : Arrays.copyOf(row, count);
+    }
+  }
+
+  /**
+   * Returns the mask of the circle with the given center and diameter in an image of the given
+   * size. The circle is the one of {@code new OvalRoi(centerX - diameter / 2, centerY - diameter /
+   * 2, diameter, diameter)}.
+   *
+   * @param centerX the x coordinate of the center
+   * @param centerY the y coordinate of the center
+   * @param diameter the diameter of the circle
+   * @param width the width of the image
+   * @param height the height of the image
+   * @return the mask, possibly shared with other callers
+   */
+  public static CircleMask of(int centerX, int centerY, int diameter, int width, int height) {
+    String key = centerX + "," + centerY + "," + diameter + "," + width + "x" + height;
+    synchronized (cache) {
+      CircleMask mask = cache.get(key);
+      if (mask == null) {
+        mask = new CircleMask(centerX, centerY, diameter, width, height);
+        cache.put(key, mask);
+      }
+      return mask;
+    }
+  }
+
+  /**
+   * Returns the spans of a row that lie inside the circle, as pairs of start (inclusive) and end
+   * (exclusive) columns.
+   *
+   * @param y the row
+   * @return the spans; must not be modified
+   */
+  public int[] getSpans(int y) {
+    return spans[y];
+  }
+
+  /**
+   * Sets every pixel outside the circle to zero, in every slice of the stack. Slices are masked in
+   * parallel and in place.
+   *
+   * @param stack the stack to mask, of the size of the mask
+   */
+  public void apply(ImageStack stack) {
+    if (stack.getWidth() != width || stack.getHeight() != height) {
+      throw new IllegalArgumentException("The stack and the mask must have the same size");
+    }
+    Parallel.forEach(stack.getSize(), i -> apply(stack.getPixels(i + 1)));
+  }
+
+  /**
+   * Sets every pixel outside the circle to zero.
+   *
+   * @param pixels the pixel array of a slice, of type byte[], short[], float[] or int[]
+   */
+  public void apply(Object pixels) {
+    for (int y = 0; y < height; y++) {
+      int offset = y * width;
+      int[] row = spans[y];
+      int start = 0;
+      for (int i = 0; i <= row.length; i += 2) {
+        int end = i < row.length ? row[i] : width;
+        fill(pixels, offset + start, offset + end);
+        if (i < row.length) {
+          start = row[i + 1];
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the mask of a region as an array with 1 inside and 0 outside the circle.
+   *
+   * @param region the region, within the size of the mask
+   * @return the values, row major with the size of the region
+   */
+  public float[] toArray(Rectangle region) {
+    float[] values = new float[region.width * region.height];
+    for (int y = 0; y < region.height; y++) {
+      int[] row = spans[region.y + y];
+      for (int i = 0; i < row.length; i += 2) {
+        int start = Math.max(row[i], region.x);
+        int end = Math.min(row[i + 1], region.x + region.width);
+        if (start < end) {
+          Arrays.fill(
+              values, y * region.width + start - region.x, y * region.width + end - region.x, 1);
+        }
+      }
+    }
+    return values;
+  }
+
+  /** Sets the pixels in [from, to) to zero. */
+  private static void fill(Object pixels, int from, int to) {
+    if (from >= to) {
+      return;
+    }
+    if (pixels instanceof float[]) {
+      Arrays.fill((float[]) pixels, from, to, 0);
+    } else if (pixels instanceof short[]) {
+      Arrays.fill((short[]) pixels, from, to, (short) 0);
+    } else if (pixels instanceof byte[]) {
+      Arrays.fill((byte[]) pixels, from, to, (byte) 0);
+    } else if (pixels instanceof int[]) {
+      Arrays.fill((int[]) pixels, from, to, 0);
+    } else {
+      throw new IllegalArgumentException("Unsupported pixel type: " + pixels);
+    }
+  }
+}
@@ -13,15 +13,79 @@ public class Constants {
 
   public static final String BTN_CALCULATE = "Calculate";
   public static final String LBL_ITERATIONS = "Iterations:";
+  public static final String LBL_OUTPUT_TYPE = "Output:";
+  public static final String LBL_TOLERANCE = "Stop at change:";
+  public static final String LBL_PREVIEW_INTERVAL = "Preview every:";
+  public static final String LBL_PREVIEW_UNIT = "iterations (0 = off)";
+  public static final String TITLE_PREVIEW = "FLFM Preview";
+  public static final String LBL_TILED = "Tile large inputs";
+  public static final String LBL_THREADS = "Threads:";
+  public static final String LBL_THREADS_UNIT = "per run (0 = auto)";
+  public static final String LBL_PRECISION = "Precision:";
+  public static final String LBL_STATUS_STARTING = "Starting...";
+  public static final String LBL_STATUS_WARMING_UP = "Warming up on %s...";
+  public static final String LBL_STATUS_READY = "Ready";
+  public static final String LBL_STATUS_NO_PREVIEW = "No previews for time series";
+  public static final String LBL_STATUS_MODEL_FP32 = "Models run in 32-bit, precision ignored";
+  public static final String LBL_STATUS_WARMUP_FAILED = "Warm-up failed, the first run may be slow";
   public static final String TITLE_STANDALONE_UI = "FLFM Standalone";
   public static final String TITLE_PLUGIN_UI = "FLFM Plugin";
 
+  public static final String LBL_ALL_DEVICES = "All devices";
   public static final String LBL_SELECT_IMG = "Select an image:";
   public static final String LBL_PROMPT_TITLE = "Open Image";
 
   public static final String PT_ENGINE_CLASS = "ai.djl.pytorch.engine.PtEngineProvider";
-  public static final String BTN_WORKING = "Working...";
+  public static final String BTN_CANCEL = "Cancel";
+  public static final String BTN_CANCELLING = "Cancelling...";
+  public static final String BTN_EXPORT_METRICS = "Export Metrics...";
+  public static final String BTN_RESET_METRICS = "Reset Metrics";
+  public static final String LBL_EXPORT_METRICS = "Export Metrics (.json or .csv)";
+  public static final String METRICS_FILE = "flfm-metrics.json";
+  public static final String DEVICE_JAVA = "JAVA";
+  public static final String DEVICE_ERROR = "ERR";
   public static final int DEFAULT_CENTER_X = 1000;
   public static final int DEFAULT_CENTER_Y = 980;
   public static final int DEFAULT_RADIUS = 230;
+  public static final String BATCH_OUTPUT_SUFFIX = "_recon";
+
+  // Output sinks: the writer threads of a sink, and the largest y and x extent of a Zarr chunk.
+  public static final String PROP_SINK_THREADS = "flfm.sink.threads";
+  public static final int DEFAULT_SINK_THREADS = 2;
+  public static final int ZARR_CHUNK_SIZE = 1024;
+
+  // Files larger than this are opened as virtual stacks whose slices are read on demand.
+  public static final long VIRTUAL_STACK_BYTES = 512L * 1024 * 1024;
+
+  // System properties used to tune the plugin in headless or scripted use.
+  public static final String PROP_MODEL_CACHE_ENTRIES = "flfm.modelCache.maxEntries";
+  public static final String PROP_MODEL_CACHE_BYTES = "flfm.modelCache.maxBytes";
+  public static final int DEFAULT_MODEL_CACHE_ENTRIES = 4;
+  public static final long DEFAULT_MODEL_CACHE_BYTES = 2L * 1024 * 1024 * 1024;
+  public static final String PROP_PSF_CACHE_ENTRIES = "flfm.psfCache.maxEntries";
+  public static final int DEFAULT_PSF_CACHE_ENTRIES = 2;
+  public static final long DEVICE_LOCK_POLL_MILLIS = 200;
+  public static final int DEFAULT_TILE_OVERLAP = 32;
+  public static final int MIN_TILE_SIZE = 64;
+  public static final double TILE_MEMORY_FRACTION = 0.5;
+  public static final int CIRCLE_MASK_CACHE_ENTRIES = 8;
+  public static final String MODEL_INDEX_RESOURCE = "models/index.properties";
+  public static final String PROP_MODELS_DIR = "flfm.modelsDir";
+  public static final long MODEL_WATCH_SETTLE_MILLIS = 500;
+  public static final String PROP_MODEL_STORE = "flfm.modelStore";
+  public static final String DEFAULT_MODEL_STORE = ".flfm/models";
+  public static final String PROP_HOST_LANES = "flfm.scheduler.hostLanes";
+  public static final int DEFAULT_HOST_LANES = 1;
+  public static final String PROP_MAX_BATCH = "flfm.batch.max";
+  public static final int DEFAULT_MAX_BATCH = 8;
+  public static final double PRECISION_TOLERANCE = 0.01;
+  public static final String PROP_INTRA_OP_THREADS = "flfm.threads.intraOp";
+  public static final String PROP_INTER_OP_THREADS = "flfm.threads.interOp";
+  public static final String PROP_POOL_THREADS = "flfm.threads.pool";
+  public static final String DJL_NUM_THREADS = "ai.djl.pytorch.num_threads";
+  public static final String DJL_NUM_INTEROP_THREADS = "ai.djl.pytorch.num_interop_threads";
+  public static final String PT_JNI_UTILS_CLASS = "ai.djl.pytorch.jni.JniUtils";
+  public static final String PROP_WARMUP = "flfm.warmup";
+  public static final int WARMUP_SIZE = 32;
+  public static final int WARMUP_ITERATIONS = 2;
 }
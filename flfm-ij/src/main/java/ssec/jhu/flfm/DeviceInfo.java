@@ -4,9 +4,47 @@ public class DeviceInfo {
   public String type;
   public int id;
 
+  /**
+   * The inference lane on the device. A device can be split into several lanes that run
+   * reconstructions concurrently, each with its own device lock and cached predictor, see {@link
+   * DeviceScheduler}. Lane 0 is the device itself.
+   */
+  public int lane;
+
   public DeviceInfo(String type, int id) {
+    this(type, id, 0);
+  }
+
+  public DeviceInfo(String type, int id, int lane) {
     this.type = type;
     this.id = id;
+    this.lane = lane;
+  }
+
+  /**
+   * Returns the given lane of this device.
+   *
+   * @param lane the lane
+   * @return a new device info for the lane
+   */
+  public DeviceInfo withLane(int lane) {
+    return new DeviceInfo(type, id, lane);
+  }
+
+  /**
+   * Parses a device from its display name, e.g. "CPU", "GPU:0" or "CPU#1".
+   *
+   * @param display the display name as returned by {@link #toDisplay()}
+   * @return the parsed device
+   */
+  public static DeviceInfo fromDisplay(String display) {
+    String[] laneParts = display.trim().split("#");
+    int lane = laneParts.length > 1 ? Integer.parseInt(laneParts[1]) : 0;
+    String[] parts = laneParts[0].split(":");
+    if (parts.length == 1) {
+      return new DeviceInfo(parts[0].toUpperCase(), -1, lane);
+    }
+    return new DeviceInfo(parts[0].toUpperCase(), Integer.parseInt(parts[1]), lane);
   }
 
   public String toDeviceName() {
@@ -17,9 +55,10 @@ public class DeviceInfo {
   }
 
   public String toDisplay() {
+    String lanePart = lane > 0 ? "#" + lane : ""; // CPU#1, GPU:0#1, etc.
     if (id == -1) {
-      return type.toUpperCase(); // CPU
+      return type.toUpperCase() + lanePart; // CPU
     }
-    return type.toUpperCase() + ":" + id; // GPU:0, GPU:1, etc.
+    return type.toUpperCase() + ":" + id + lanePart; // GPU:0, GPU:1, etc.
   }
 }
@@ -0,0 +1,371 @@
+package ssec.jhu.flfm;
+
+import ij.ImagePlus;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads queued reconstructions, such as the frames of a time series or the inputs of a batch,
+ * across several devices.
+ *
+ * <p>Every device gets an inference lane with its own worker thread; the host devices (CPU and
+ * JAVA) can be split into several lanes that share the cores, see {@link DeviceInfo#lane}. A lane
+ * first warms up its own predictor (see {@link Algorithm#warmUp}) and then takes the oldest queued
+ * reconstruction that fits into the memory of its device that the other lanes of the device have
+ * not reserved. A reconstruction that does not fit even into an idle device is run alone and in
+ * tiles (see {@link TiledReconstruction}). Each lane runs through {@link Algorithm#runModel}, so it
+ * holds the lock of its lane while it works.
+ *
+ * <p>A lane on a PyTorch device also takes the queued reconstructions that can share a pass with
+ * the one it took, as many as fit into the memory of the device, and runs them as one batch, see
+ * {@link BatchedReconstruction}.
+ */
+public class DeviceScheduler implements AutoCloseable {
+
+  /** Logger for the DeviceScheduler class. */
+  private static final Logger logger = LoggerFactory.getLogger(DeviceScheduler.class);
+
+  /** A queued reconstruction. */
+  private static class Job {
+    final String modelPathStr;
+    final ImagePlus psfImage;
+    final ImagePlus inputImage;
+    final RunOptions options;
+    final CompletableFuture<ImagePlus> result = new CompletableFuture<>();
+
+    /** The memory reserved for the job on the device of its lane. */
+    long reservation;
+
+    Job(String modelPathStr, ImagePlus psfImage, ImagePlus inputImage, RunOptions options) {
+      this.modelPathStr = modelPathStr;
+      this.psfImage = psfImage;
+      this.inputImage = inputImage;
+      this.options = options;
+    }
+
+    /** Returns whether the other job can run in one batch with this one. */
+    boolean canBatchWith(Job other) {
+      return Objects.equals(modelPathStr, other.modelPathStr)
+          && psfImage == other.psfImage
+          && inputImage.getStackSize() == 1
+          && other.inputImage.getStackSize() == 1
+          && inputImage.getWidth() == other.inputImage.getWidth()
+          && inputImage.getHeight() == other.inputImage.getHeight()
+          && !options.tiled
+          && !other.options.tiled
+          && options.outputType == other.options.outputType
+          && options.precision == other.options.precision
+          && options.iterations == other.options.iterations
+          && options.tolerance == other.options.tolerance
+          && options.crop == other.options.crop;
+    }
+  }
+
+  private final List<DeviceInfo> lanes = new ArrayList<>();
+  private final LinkedList<Job> queue = new LinkedList<>();
+
+  /** The memory each device may use, keyed by its device name. */
+  private final Map<String, Long> capacities = new HashMap<>();
+
+  /** The memory reserved by the running reconstructions, keyed by device name. */
+  private final Map<String, Long> reserved = new HashMap<>();
+
+  private final int maxBatch = BatchedReconstruction.getMaxBatch();
+  private final int[] completed;
+  private int running;
+  private int peakRunning;
+  private boolean closed;
+
+  /**
+   * Starts the lanes of the given devices.
+   *
+   * @param devices the devices to use; error devices are skipped
+   * @param hostLanes the number of lanes each host device (CPU and JAVA) is split into
+   * @param maxBytesPerDevice the memory a device may use for reconstructions, or 0 for the memory
+   *     the engine reports as available, see {@link ReconstructionEngine#getAvailableBytes}
+   * @param warmUpModel the model every lane loads before it takes work, or {@code null}
+   */
+  public DeviceScheduler(
+      DeviceInfo[] devices, int hostLanes, long maxBytesPerDevice, String warmUpModel) {
+    for (DeviceInfo device : devices) {
+      if (Constants.DEVICE_ERROR.equals(device.type)) {
+        continue;
+      }
+      int count = isHost(device) ? Math.max(1, hostLanes) : 1;
+      for (int lane = 0; lane < count; lane++) {
+        lanes.add(device.withLane(lane));
+      }
+      long capacity =
+          maxBytesPerDevice > 0
+              ? maxBytesPerDevice
+              : Algorithm.getEngine(device).getAvailableBytes(device);
+      capacities.put(device.toDeviceName(), capacity);
+      reserved.put(device.toDeviceName(), 0L);
+    }
+    if (lanes.isEmpty()) {
+      throw new IllegalArgumentException("No devices to schedule on");
+    }
+    this.completed = new int[lanes.size()];
+    Algorithm.getModelCache().reserveLanes(lanes.size());
+
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    for (int i = 0; i < lanes.size(); i++) {
+      final int index = i;
+      Thread worker =
+          new Thread(() -> work(index, warmUpModel), "flfm-lane-" + lanes.get(i).toDisplay());
+      // the workers load the engine, so they need the class loader of the plugin
+      worker.setContextClassLoader(classLoader);
+      worker.setDaemon(true);
+      worker.start();
+    }
+    logger.info("Scheduling reconstructions on {} lanes", lanes.size());
+  }
+
+  /**
+   * Selects the devices worth scheduling on: the PyTorch devices, or the Java engine if PyTorch is
+   * not available. The Java engine is much slower than PyTorch on the same cores, so it is not used
+   * next to it.
+   *
+   * @param devices the available devices, see {@link Algorithm#getDevices}
+   * @return the devices to schedule on
+   */
+  public static DeviceInfo[] selectDevices(DeviceInfo[] devices) {
+    List<DeviceInfo> selected = new ArrayList<>();
+    for (DeviceInfo device : devices) {
+      if (!Constants.DEVICE_JAVA.equals(device.type)
+          && !Constants.DEVICE_ERROR.equals(device.type)) {
+        selected.add(device);
+      }
+    }
+    if (selected.isEmpty()) {
+      selected.add(new DeviceInfo(Constants.DEVICE_JAVA, -1));
+    }
+    return selected.toArray(new DeviceInfo[0]);
+  }
+
+  /** Returns whether the device is the host, which can be split into several lanes. */
+  private static boolean isHost(DeviceInfo device) {
+    return "CPU".equalsIgnoreCase(device.type) || Constants.DEVICE_JAVA.equals(device.type);
+  }
+
+  /**
+   * Queues a reconstruction. The options must not be shared with another queued reconstruction, as
+   * a reconstruction that does not fit into a device changes them to run tiled.
+   *
+   * @param modelPathStr the path to the model file, may be {@code null} if the options set the
+   *     iteration count
+   * @param psfImage the point spread function image
+   * @param inputImage the input image to process
+   * @param options the options of this reconstruction
+   * @return the reconstructed volume, {@code null} if the reconstruction failed
+   */
+  public Future<ImagePlus> submit(
+      String modelPathStr, ImagePlus psfImage, ImagePlus inputImage, RunOptions options) {
+    Job job = new Job(modelPathStr, psfImage, inputImage, options);
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("The scheduler is closed");
+      }
+      queue.add(job);
+      notifyAll();
+    }
+    return job.result;
+  }
+
+  /**
+   * Returns the lanes reconstructions are scheduled on.
+   *
+   * @return the lanes, in the order of the devices
+   */
+  public List<DeviceInfo> getLanes() {
+    return new ArrayList<>(lanes);
+  }
+
+  /**
+   * Returns the number of reconstructions every lane has finished.
+   *
+   * @return the counts, in the order of {@link #getLanes}
+   */
+  public synchronized int[] getCompleted() {
+    return completed.clone();
+  }
+
+  /**
+   * Returns the largest number of reconstructions that ran at the same time.
+   *
+   * @return the peak concurrency
+   */
+  public synchronized int getPeakRunning() {
+    return peakRunning;
+  }
+
+  /** The loop of the worker thread of a lane. */
+  private void work(int index, String warmUpModel) {
+    DeviceInfo lane = lanes.get(index);
+    if (warmUpModel != null) {
+      try {
+        Algorithm.warmUp(warmUpModel, lane);
+      } catch (RuntimeException e) {
+        logger.warn("Warm-up of {} failed: {}", lane.toDisplay(), e.getMessage());
+      }
+    }
+    while (true) {
+      List<Job> batch;
+      long reservation;
+      synchronized (this) {
+        while ((batch = take(lane)) == null) {
+          if (closed) {
+            return;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        reservation = batch.stream().mapToLong(job -> job.reservation).sum();
+        reserved.merge(lane.toDeviceName(), reservation, Long::sum);
+        running++;
+        peakRunning = Math.max(peakRunning, running);
+      }
+
+      if (batch.size() == 1) {
+        run(lane, batch.get(0));
+      } else {
+        runBatch(lane, batch);
+      }
+
+      synchronized (this) {
+        reserved.merge(lane.toDeviceName(), -reservation, Long::sum);
+        running--;
+        completed[index] += batch.size();
+        notifyAll();
+      }
+    }
+  }
+
+  /** Runs a single reconstruction on a lane. */
+  private static void run(DeviceInfo lane, Job job) {
+    try {
+      job.options.checkCancelled();
+      ImagePlus output =
+          Algorithm.runModel(job.modelPathStr, lane, job.psfImage, job.inputImage, job.options);
+      job.result.complete(output);
+    } catch (CancellationException e) {
+      job.result.cancel(false);
+    } catch (RuntimeException e) {
+      logger.error("Reconstruction on {} failed: {}", lane.toDisplay(), e.getMessage());
+      job.result.completeExceptionally(e);
+    }
+  }
+
+  /** Runs a batch of reconstructions on a lane in one pass. */
+  private static void runBatch(DeviceInfo lane, List<Job> batch) {
+    Job first = batch.get(0);
+    ImagePlus[] inputs = new ImagePlus[batch.size()];
+    for (int i = 0; i < inputs.length; i++) {
+      inputs[i] = batch.get(i).inputImage;
+    }
+    try {
+      first.options.checkCancelled();
+      ImagePlus[] outputs =
+          BatchedReconstruction.run(
+              first.modelPathStr, lane, first.psfImage, inputs, first.options);
+      for (int i = 0; i < inputs.length; i++) {
+        batch.get(i).result.complete(outputs == null ? null : outputs[i]);
+      }
+    } catch (CancellationException e) {
+      batch.forEach(job -> job.result.cancel(false));
+    } catch (RuntimeException e) {
+      logger.error("Batch of {} on {} failed: {}", batch.size(), lane.toDisplay(), e.getMessage());
+      batch.forEach(job -> job.result.completeExceptionally(e));
+    }
+  }
+
+  /**
+   * Removes and returns the oldest queued job that fits into the unreserved memory of the device of
+   * the lane, together with the queued jobs that can join it in a batch. A job that is larger than
+   * the whole device is taken only when the device is idle, and then runs tiled and alone.
+   */
+  private List<Job> take(DeviceInfo lane) {
+    Job job = takeFirst(lane);
+    if (job == null) {
+      return null;
+    }
+    List<Job> batch = new ArrayList<>();
+    batch.add(job);
+    if (maxBatch > 1 && !job.options.tiled && Algorithm.getEngine(lane) instanceof TorchEngine) {
+      // frames of one size have the same estimate, so the memory bounds the number of frames
+      long free = capacities.get(lane.toDeviceName()) - reserved.get(lane.toDeviceName());
+      int size =
+          BatchedReconstruction.getBatchSize(free, job.reservation, queue.size() + 1, maxBatch);
+      Iterator<Job> iterator = queue.iterator();
+      while (iterator.hasNext() && batch.size() < size) {
+        Job next = iterator.next();
+        if (job.canBatchWith(next)) {
+          iterator.remove();
+          next.reservation = job.reservation;
+          batch.add(next);
+        }
+      }
+    }
+    return batch;
+  }
+
+  /** Removes and returns the oldest queued job that can run on the lane now. */
+  private Job takeFirst(DeviceInfo lane) {
+    ReconstructionEngine engine = Algorithm.getEngine(lane);
+    long capacity = capacities.get(lane.toDeviceName());
+    long inUse = reserved.get(lane.toDeviceName());
+    Iterator<Job> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      Job job = iterator.next();
+      long estimate =
+          engine.estimateBytes(
+              job.psfImage.getStackSize(), job.inputImage.getHeight(), job.inputImage.getWidth());
+      if (estimate <= capacity - inUse) {
+        iterator.remove();
+        job.reservation = estimate;
+        return job;
+      }
+      if (estimate > capacity && inUse == 0) {
+        iterator.remove();
+        logger.info(
+            "Reconstruction needs {} MB, more than the {} MB of {}, running it tiled",
+            estimate / (1024 * 1024),
+            capacity / (1024 * 1024),
+            lane.toDisplay());
+        job.options.tiled = true;
+        job.options.maxTileBytes = capacity;
+        job.reservation = capacity;
+        return job;
+      }
+    }
+    return null;
+  }
+
+  /** Stops the lanes after their current reconstruction and cancels the queued ones. */
+  @Override
+  public void close() {
+    List<Job> pending;
+    synchronized (this) {
+      closed = true;
+      pending = new ArrayList<>(queue);
+      queue.clear();
+      notifyAll();
+    }
+    for (Job job : pending) {
+      job.result.cancel(false);
+    }
+  }
+}
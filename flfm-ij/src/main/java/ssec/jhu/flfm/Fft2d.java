@@ -0,0 +1,254 @@
+package ssec.jhu.flfm;
+
+import java.util.Arrays;
+
+/**
+ * Two dimensional complex FFT of a fixed size, in pure Java.
+ *
+ * <p>Data is stored row major as separate real and imaginary float arrays of length {@code height *
+ * width}; the transforms work in place. Power of two lengths use an iterative radix-2 transform,
+ * any other length is computed with Bluestein's algorithm. Rows and columns are transformed in
+ * parallel on the fork/join pool. Intermediate values are kept in double precision.
+ */
+public class Fft2d {
+
+  private final int height;
+  private final int width;
+  private final Fft1d rowFft;
+  private final Fft1d colFft;
+
+  /**
+   * Creates a transform for planes of the given size.
+   *
+   * @param height the number of rows
+   * @param width the number of columns
+   */
+  public Fft2d(int height, int width) {
+    this.height = height;
+    this.width = width;
+    this.rowFft = Fft1d.of(width);
+    this.colFft = height == width ? rowFft : Fft1d.of(height);
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Computes the forward transform in place.
+   *
+   * @param re the real parts
+   * @param im the imaginary parts
+   */
+  public void forward(float[] re, float[] im) {
+    transform(re, im, false);
+  }
+
+  /**
+   * Computes the inverse transform in place, scaled by {@code 1 / (height * width)}.
+   *
+   * @param re the real parts
+   * @param im the imaginary parts
+   */
+  public void inverse(float[] re, float[] im) {
+    transform(re, im, true);
+  }
+
+  private void transform(float[] re, float[] im, boolean inverse) {
+    double scale = inverse ? 1.0 / ((double) height * width) : 1.0;
+
+    Parallel.forEach(
+        height,
+        y -> {
+          double[][] buf = Fft1d.buffer(width);
+          double[] bre = buf[0];
+          double[] bim = buf[1];
+          int offset = y * width;
+          for (int x = 0; x < width; x++) {
+            bre[x] = re[offset + x];
+            bim[x] = im[offset + x];
+          }
+          rowFft.transform(bre, bim, inverse);
+          for (int x = 0; x < width; x++) {
+            re[offset + x] = (float) bre[x];
+            im[offset + x] = (float) bim[x];
+          }
+        });
+
+    Parallel.forEach(
+        width,
+        x -> {
+          double[][] buf = Fft1d.buffer(height);
+          double[] bre = buf[0];
+          double[] bim = buf[1];
+          for (int y = 0; y < height; y++) {
+            bre[y] = re[y * width + x];
+            bim[y] = im[y * width + x];
+          }
+          colFft.transform(bre, bim, inverse);
+          for (int y = 0; y < height; y++) {
+            re[y * width + x] = (float) (bre[y] * scale);
+            im[y * width + x] = (float) (bim[y] * scale);
+          }
+        });
+  }
+
+  /** A one dimensional, unnormalized complex FFT of a fixed length. */
+  private abstract static class Fft1d {
+    private static final ThreadLocal<double[][]> buffers = new ThreadLocal<>();
+
+    final int n;
+
+    Fft1d(int n) {
+      this.n = n;
+    }
+
+    static Fft1d of(int n) {
+      return Integer.bitCount(n) == 1 ? new Radix2(n) : new Bluestein(n);
+    }
+
+    /** Returns a per thread pair of scratch arrays of at least the given length. */
+    static double[][] buffer(int length) {
+      double[][] buf = buffers.get();
+      if (buf == null || buf[0].length < length) {
+        buf = new double[][] {new double[length], new double[length]};
+        buffers.set(buf);
+      }
+      return buf;
+    }
+
+    /** Transforms the first {@code n} values in place, without scaling the inverse. */
+    abstract void transform(double[] re, double[] im, boolean inverse);
+  }
+
+  /** Iterative in place radix-2 Cooley-Tukey transform. */
+  private static class Radix2 extends Fft1d {
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reversed;
+
+    Radix2(int n) {
+      super(n);
+      cos = new double[n / 2];
+      sin = new double[n / 2];
+      for (int i = 0; i < n / 2; i++) {
+        cos[i] = Math.cos(2 * Math.PI * i / n);
+        sin[i] = Math.sin(2 * Math.PI * i / n);
+      }
+      reversed = new int[n];
+      int bits = Integer.numberOfTrailingZeros(n);
+      for (int i = 0; i < n; i++) {
+        reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+      }
+    }
+
+    @Override
+    void transform(double[] re, double[] im, boolean inverse) {
+      for (int i = 0; i < n; i++) {
+        int j = reversed[i];
+        if (j > i) {
+          double t = re[i];
+          re[i] = re[j];
+          re[j] = t;
+          t = im[i];
+          im[i] = im[j];
+          im[j] = t;
+        }
+      }
+      double sign = inverse ? 1 : -1;
+      for (int size = 2; size <= n; size <<= 1) {
+        int half = size >> 1;
+        int step = n / size;
+        for (int start = 0; start < n; start += size) {
+          for (int k = 0; k < half; k++) {
+            double wr = cos[k * step];
+            double wi = sign * sin[k * step];
+            int a = start + k;
+            int b = a + half;
+            double tr = re[b] * wr - im[b] * wi;
+            double ti = re[b] * wi + im[b] * wr;
+            re[b] = re[a] - tr;
+            im[b] = im[a] - ti;
+            re[a] += tr;
+            im[a] += ti;
+          }
+        }
+      }
+    }
+  }
+
+  /** Bluestein's chirp-z transform for lengths that are not a power of two. */
+  private static class Bluestein extends Fft1d {
+    private final Radix2 fft;
+    private final double[] chirpRe;
+    private final double[] chirpIm;
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+    private final ThreadLocal<double[][]> scratch;
+
+    Bluestein(int n) {
+      super(n);
+      int m = Integer.highestOneBit(2 * n - 1);
+      if (m < 2 * n - 1) {
+        m <<= 1;
+      }
+      fft = new Radix2(m);
+      chirpRe = new double[n];
+      chirpIm = new double[n];
+      for (int k = 0; k < n; k++) {
+        // k * k mod 2n keeps the angle accurate for large k
+        long kk = ((long) k * k) % (2L * n);
+        double angle = Math.PI * kk / n;
+        chirpRe[k] = Math.cos(angle);
+        chirpIm[k] = -Math.sin(angle);
+      }
+      kernelRe = new double[m];
+      kernelIm = new double[m];
+      kernelRe[0] = chirpRe[0];
+      kernelIm[0] = -chirpIm[0];
+      for (int k = 1; k < n; k++) {
+        kernelRe[k] = kernelRe[m - k] = chirpRe[k];
+        kernelIm[k] = kernelIm[m - k] = -chirpIm[k];
+      }
+      fft.transform(kernelRe, kernelIm, false);
+      final int size = m;
+      scratch = ThreadLocal.withInitial(() -> new double[][] {new double[size], new double[size]});
+    }
+
+    @Override
+    void transform(double[] re, double[] im, boolean inverse) {
+      int m = fft.n;
+      // the inverse transform is the conjugate of the forward transform of the conjugate
+      double sign = inverse ? -1 : 1;
+      double[][] buf = scratch.get();
+      double[] ar = buf[0];
+      double[] ai = buf[1];
+      Arrays.fill(ar, n, m, 0);
+      Arrays.fill(ai, n, m, 0);
+      for (int k = 0; k < n; k++) {
+        double xr = re[k];
+        double xi = sign * im[k];
+        ar[k] = xr * chirpRe[k] - xi * chirpIm[k];
+        ai[k] = xr * chirpIm[k] + xi * chirpRe[k];
+      }
+      fft.transform(ar, ai, false);
+      for (int k = 0; k < m; k++) {
+        double r = ar[k] * kernelRe[k] - ai[k] * kernelIm[k];
+        double i = ar[k] * kernelIm[k] + ai[k] * kernelRe[k];
+        ar[k] = r;
+        ai[k] = i;
+      }
+      fft.transform(ar, ai, true);
+      for (int k = 0; k < n; k++) {
+        double cr = ar[k] / m;
+        double ci = ai[k] / m;
+        re[k] = cr * chirpRe[k] - ci * chirpIm[k];
+        im[k] = sign * (cr * chirpIm[k] + ci * chirpRe[k]);
+      }
+    }
+  }
+}
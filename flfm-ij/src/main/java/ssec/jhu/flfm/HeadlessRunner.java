@@ -0,0 +1,373 @@
+package ssec.jhu.flfm;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.WindowManager;
+import ij.plugin.PlugIn;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reconstruction of a single input without the plugin window, for nodes without a display.
+ *
+ * <p>The runner takes the same settings as the plugin window and runs the same pipeline as {@link
+ * PluginController#runModel}: the model is chosen by the iteration count, a single frame is
+ * reconstructed with {@link Algorithm#runModel} and the slices of a time series are spread across
+ * the devices by a {@link DeviceScheduler}. The volume is cropped and masked to the circle before
+ * it is copied from the device. No AWT component is created, so it runs with {@code
+ * -Djava.awt.headless=true}.
+ *
+ * <p>It is called from the command line, see {@link #main}, or from an ImageJ macro:
+ *
+ * <pre>
+ * run("FLFM Headless", "psf=[/data/psf.tif] input=[/data/frame.tif] iterations=5 device=GPU:0"
+ *     + " center_x=1000 center_y=980 radius=230 output=[/data/out/frame_recon.tif]");
+ * </pre>
+ *
+ * <p>In a macro the PSF and the input may also name open images; without an output the
+ * reconstruction is shown instead of written.
+ */
+public class HeadlessRunner implements PlugIn {
+
+  /** Logger for the HeadlessRunner class. */
+  private static final Logger logger = LoggerFactory.getLogger(HeadlessRunner.class);
+
+  private static final String USAGE =
+      "Usage: HeadlessRunner --psf <psf.tif> --input <input.tif> --output <file|dir>"
+          + " [--iterations n] [--model <model.pt>] [--tolerance x] [--device CPU|GPU:n|all]"
+          + " [--center-x n] [--center-y n] [--radius n] [--threads n] [--tiled true|false]"
+          + " [--output-type UINT16_SATURATE|UINT16_RESCALE|FLOAT32] [--precision FP32|FP16|BF16]";
+
+  /** The settings of a run, named as in the plugin window. */
+  public static class Settings {
+    public String psf;
+    public String input;
+    public String output;
+    public String model;
+    public int iterations;
+    public double tolerance;
+    public String device = "CPU";
+    public int centerX = Constants.DEFAULT_CENTER_X;
+    public int centerY = Constants.DEFAULT_CENTER_Y;
+    public int radius = Constants.DEFAULT_RADIUS;
+    public int threads;
+    public boolean tiled;
+    public OutputType outputType = OutputType.UINT16_SATURATE;
+    public Precision precision = Precision.FP32;
+
+    /** The names of the macro options. */
+    private static final String[] KEYS = {
+      "psf",
+      "input",
+      "output",
+      "model",
+      "iterations",
+      "tolerance",
+      "device",
+      "center_x",
+      "center_y",
+      "radius",
+      "threads",
+      "tiled",
+      "output_type",
+      "precision"
+    };
+
+    /**
+     * Parses command line arguments of the form {@code --center-x 1000}.
+     *
+     * @param args the command line arguments
+     * @return the settings
+     * @throws IllegalArgumentException if an argument is unknown or a value is invalid
+     */
+    public static Settings fromArguments(String[] args) {
+      Settings settings = new Settings();
+      for (int i = 0; i < args.length; i += 2) {
+        if (!args[i].startsWith("--") || i + 1 >= args.length) {
+          throw new IllegalArgumentException("Expected --<name> <value>: " + args[i]);
+        }
+        settings.set(args[i].substring(2).replace('-', '_'), args[i + 1]);
+      }
+      return settings;
+    }
+
+    /**
+     * Parses the options of an ImageJ macro call of the form {@code center_x=1000
+     * input=[/data/frame 1.tif]}, see {@link Macro#getValue}.
+     *
+     * @param options the macro options
+     * @return the settings
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public static Settings fromMacroOptions(String options) {
+      Settings settings = new Settings();
+      for (String key : KEYS) {
+        String value = Macro.getValue(options, key, null);
+        if (value != null) {
+          settings.set(key, value);
+        }
+      }
+      return settings;
+    }
+
+    private void set(String key, String value) {
+      switch (key) {
+        case "psf":
+          psf = value;
+          break;
+        case "input":
+          input = value;
+          break;
+        case "output":
+          output = value;
+          break;
+        case "model":
+          model = value;
+          break;
+        case "iterations":
+          iterations = Integer.parseInt(value);
+          break;
+        case "tolerance":
+          tolerance = Double.parseDouble(value);
+          break;
+        case "device":
+          device = value;
+          break;
+        case "center_x":
+          centerX = Integer.parseInt(value);
+          break;
+        case "center_y":
+          centerY = Integer.parseInt(value);
+          break;
+        case "radius":
+          radius = Integer.parseInt(value);
+          break;
+        case "threads":
+          threads = Integer.parseInt(value);
+          break;
+        case "tiled":
+          tiled = Boolean.parseBoolean(value);
+          break;
+        case "output_type":
+          outputType = OutputType.valueOf(value.toUpperCase(Locale.ROOT));
+          break;
+        case "precision":
+          precision = Precision.valueOf(value.toUpperCase(Locale.ROOT));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown argument: " + key);
+      }
+    }
+
+    /**
+     * Returns the options of the run, as {@link PluginController#runModel} sets them from the
+     * plugin window.
+     *
+     * @return the run options, cropped to the circle
+     */
+    public RunOptions toRunOptions() {
+      RunOptions options = new RunOptions(outputType);
+      options.iterations = iterations;
+      options.tolerance = tolerance;
+      options.tiled = tiled;
+      options.precision = precision;
+      options.crop = new CircleCrop(centerX, centerY, radius);
+      return options;
+    }
+  }
+
+  /**
+   * Runs the reconstruction from an ImageJ macro or {@code IJ.run}, with the options of the call.
+   *
+   * @param arg the options, used if the plugin is not called from a macro
+   */
+  @Override
+  public void run(String arg) {
+    String options = Macro.getOptions();
+    if (options == null && arg != null && !arg.trim().isEmpty()) {
+      options = arg;
+    }
+    if (options == null) {
+      logger.error("No options given, call the plugin from a macro: {}", USAGE);
+      return;
+    }
+    ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(HeadlessRunner.class.getClassLoader());
+      Settings settings = Settings.fromMacroOptions(options);
+      ImagePlus result = reconstruct(settings);
+      if (settings.output != null) {
+        Path path = write(result, settings);
+        logger.info("Reconstruction written to {}", path);
+      } else if (!GraphicsEnvironment.isHeadless()) {
+        result.show();
+      } else {
+        logger.warn("No output given, the reconstruction is discarded");
+      }
+    } catch (Exception e) {
+      logger.error("Error occurred while running model: {}", e.getMessage());
+      Macro.abort();
+    } finally {
+      Thread.currentThread().setContextClassLoader(originalClassLoader);
+    }
+  }
+
+  /**
+   * Reconstructs the input of the settings. The thread count of the settings is used for this run
+   * only; the {@link ThreadingConfig} in use before is restored afterwards.
+   *
+   * @param settings the settings of the run
+   * @return the reconstruction, with one time point per slice of the input
+   * @throws IOException if the PSF or the input cannot be opened, or the reconstruction fails
+   * @throws IllegalArgumentException if neither a model nor an iteration count is given
+   * @throws java.util.concurrent.CancellationException if the run is interrupted
+   */
+  public static ImagePlus reconstruct(Settings settings) throws IOException {
+    ImagePlus psfImage = openImage(settings.psf, "PSF");
+    ImagePlus inputImage = openImage(settings.input, "input");
+    RunOptions options = settings.toRunOptions();
+    String model =
+        settings.model != null
+            ? settings.model
+            : PluginController.findModelLocation(ModelIndex.getModels(), settings.iterations);
+    if (model == null && options.iterations <= 0) {
+      throw new IllegalArgumentException("No model or iteration count given");
+    }
+    ThreadingConfig previous = ThreadingConfig.getCurrent();
+    ThreadingConfig threading = previous.copy();
+    threading.intraOpThreads = settings.threads;
+    ThreadingConfig.setCurrent(threading);
+    try {
+      DeviceInfo[] devices =
+          "all".equalsIgnoreCase(settings.device)
+              ? DeviceScheduler.selectDevices(Algorithm.getDevices())
+              : new DeviceInfo[] {DeviceInfo.fromDisplay(settings.device)};
+      logger.debug("Selected model: {}, Selected devices: {}", model, devices.length);
+
+      ImagePlus result;
+      if (inputImage.getStackSize() > 1) {
+        try (DeviceScheduler scheduler =
+            new DeviceScheduler(
+                devices,
+                Integer.getInteger(Constants.PROP_HOST_LANES, Constants.DEFAULT_HOST_LANES),
+                0,
+                model)) {
+          result = PluginController.runFrames(scheduler, model, psfImage, inputImage, options);
+        }
+      } else {
+        result = Algorithm.runModel(model, devices[0], psfImage, inputImage, options);
+      }
+      if (result == null) {
+        throw new IOException("Reconstruction of " + settings.input + " failed");
+      }
+      return result;
+    } finally {
+      // the threads of the settings apply to this run only, not to the rest of the JVM
+      ThreadingConfig.setCurrent(previous);
+    }
+  }
+
+  /**
+   * Writes a reconstruction to the output of the settings. An output ending in {@code .zarr} is
+   * written as OME-Zarr and any other as TIFF; an existing directory receives a file named after
+   * the input, as {@link BatchRunner} names it. A time series keeps its frames in either format.
+   *
+   * @param result the reconstruction
+   * @param settings the settings of the run
+   * @return the file or directory written
+   * @throws IOException if the output cannot be written
+   */
+  public static Path write(ImagePlus result, Settings settings) throws IOException {
+    Path path = Paths.get(settings.output);
+    OutputFormat format =
+        settings.output.toLowerCase(Locale.ROOT).endsWith(".zarr")
+            ? OutputFormat.OME_ZARR
+            : OutputFormat.TIFF;
+    if (Files.isDirectory(path) && format == OutputFormat.TIFF) {
+      String name = FilenameUtils.getBaseName(new File(settings.input).getName());
+      path = path.resolve(name + Constants.BATCH_OUTPUT_SUFFIX + format.getExtension());
+    }
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+
+    try (OutputSink sink =
+        format.createSink(
+            path,
+            Integer.getInteger(Constants.PROP_SINK_THREADS, Constants.DEFAULT_SINK_THREADS))) {
+      ArrayUtils.writeImage(result, sink);
+    }
+    return path;
+  }
+
+  /** Opens an image file, or in a macro an open image with that title. */
+  private static ImagePlus openImage(String location, String name) throws IOException {
+    if (location == null) {
+      throw new IllegalArgumentException("No " + name + " image given");
+    }
+    File file = new File(location);
+    ImagePlus image =
+        file.isFile() ? IJ.openImage(file.getAbsolutePath()) : WindowManager.getImage(location);
+    if (image == null) {
+      throw new IOException("Unable to open " + name + " image " + location);
+    }
+    return image;
+  }
+
+  /**
+   * Reconstructs an input from the command line and writes it to the output.
+   *
+   * <p>Usage: {@code HeadlessRunner --psf psf.tif --input frame.tif --output <file|dir>
+   * [--iterations 5] [--model model5.pt] [--tolerance 0.001] [--device CPU|GPU:0|all] [--center-x
+   * 1000] [--center-y 980] [--radius 230] [--threads 0] [--tiled true] [--output-type
+   * UINT16_SATURATE|UINT16_RESCALE|FLOAT32] [--precision FP32|FP16|BF16]}. Either a model or an
+   * iteration count is required; with an iteration count the exported model for that count is used
+   * if there is one, as in the plugin window. The process exits with 0 on success, 1 if the
+   * reconstruction fails and 2 on invalid arguments, so jobs can be scheduled across nodes.
+   *
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    Settings settings;
+    try {
+      settings = Settings.fromArguments(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      settings = null;
+    }
+    if (settings == null
+        || settings.psf == null
+        || settings.input == null
+        || settings.output == null
+        || (settings.model == null && settings.iterations <= 0)) {
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+
+    int status = 0;
+    try {
+      Path path = write(reconstruct(settings), settings);
+      logger.info("Reconstruction written to {}", path);
+    } catch (Exception e) {
+      logger.error("Error occurred while running model: {}", e.getMessage());
+      logger.error("Stack trace: ");
+      for (StackTraceElement ste : e.getStackTrace()) {
+        logger.error(ste.toString());
+      }
+      status = 1;
+    } finally {
+      Algorithm.shutdown();
+    }
+    System.exit(status);
+  }
+}
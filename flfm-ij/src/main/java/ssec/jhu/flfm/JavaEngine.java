@@ -0,0 +1,104 @@
+package ssec.jhu.flfm;
+
+import ij.ImagePlus;
+import java.awt.Rectangle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reconstruction engine that runs {@link RichardsonLucy} in pure Java.
+ *
+ * <p>It needs no native libraries, so it is always available, also when the PyTorch engine cannot
+ * be loaded. It is listed as the "JAVA" device.
+ */
+public class JavaEngine implements ReconstructionEngine {
+
+  /** Logger for the JavaEngine class. */
+  private static final Logger logger = LoggerFactory.getLogger(JavaEngine.class);
+
+  /** Estimated peak heap memory of a reconstruction per voxel of the volume. */
+  private static final long BYTES_PER_VOXEL = 20;
+
+  @Override
+  public DeviceInfo[] getDevices() {
+    return new DeviceInfo[] {new DeviceInfo(Constants.DEVICE_JAVA, -1)};
+  }
+
+  @Override
+  public boolean supports(DeviceInfo deviceInfo) {
+    return Constants.DEVICE_JAVA.equalsIgnoreCase(deviceInfo.type);
+  }
+
+  /** Returns the free heap memory, scaled by {@link Constants#TILE_MEMORY_FRACTION}. */
+  @Override
+  public long getAvailableBytes(DeviceInfo deviceInfo) {
+    Runtime runtime = Runtime.getRuntime();
+    long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    return (long) (free * Constants.TILE_MEMORY_FRACTION);
+  }
+
+  /**
+   * The PSF planes, their spectra, the estimate and a copy of the output take about {@value
+   * #BYTES_PER_VOXEL} bytes per voxel.
+   */
+  @Override
+  public long estimateBytes(int numPlanes, int height, int width) {
+    return BYTES_PER_VOXEL * numPlanes * height * width;
+  }
+
+  @Override
+  public ImagePlus reconstruct(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus inputImage,
+      RunOptions options) {
+    int iterations = Algorithm.getIterations(modelPathStr, options);
+    int width = psfImage.getWidth();
+    int height = psfImage.getHeight();
+    if (inputImage.getWidth() != width || inputImage.getHeight() != height) {
+      throw new IllegalArgumentException("The input image and the PSF must have the same size");
+    }
+    if (inputImage.getStackSize() != 1) {
+      throw new IllegalArgumentException("The input image must have a single slice");
+    }
+
+    float[][] psf = ArrayUtils.convertImageToPlanes(psfImage);
+    float[] image = ArrayUtils.convertImageToPlanes(inputImage)[0];
+    RichardsonLucy.normalize(psf);
+
+    long start = System.currentTimeMillis();
+    RichardsonLucy deconvolution = new RichardsonLucy(psf, height, width);
+    RichardsonLucy.Observer observer =
+        (iteration, object) -> {
+          options.checkCancelled();
+          if (options.isPreviewDue(iteration, iterations)) {
+            // the planes are updated in place by the next iteration, so the preview gets a copy
+            float[][] copy = new float[object.length][];
+            for (int z = 0; z < object.length; z++) {
+              copy[z] = object[z].clone();
+            }
+            options.previewListener.onPreview(toImage(copy, height, width, options), iteration);
+          }
+        };
+    float[][] volume = deconvolution.run(image, iterations, options.tolerance, observer);
+    long end = System.currentTimeMillis();
+    logger.debug(
+        "Richardson-Lucy with {} iterations took {} s",
+        deconvolution.getIterationsRun(),
+        (end - start) / 1000.0);
+
+    return toImage(volume, height, width, options);
+  }
+
+  /** Converts the planes to an image, cropped and masked if the options set a crop. */
+  static ImagePlus toImage(float[][] planes, int height, int width, RunOptions options) {
+    if (options.crop == null) {
+      return ArrayUtils.convertPlanesToImage(planes, height, width, options.outputType);
+    }
+    Rectangle bounds = options.crop.getBounds(width, height);
+    float[][] cropped = options.crop.apply(planes, width, height);
+    return ArrayUtils.convertPlanesToImage(
+        cropped, bounds.height, bounds.width, options.outputType);
+  }
+}
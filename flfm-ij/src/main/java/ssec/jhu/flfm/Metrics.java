@@ -0,0 +1,516 @@
+package ssec.jhu.flfm;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Timings, counters, cache hit rates and memory high-water marks of the reconstruction pipeline.
+ *
+ * <p>Every stage of a run records its latency in a {@link Histogram}, see {@link Stage}, so the
+ * plugin window and the exports show where the time goes on a workstation. The host memory is
+ * sampled whenever a stage ends; the memory of a GPU is sampled by {@link TorchEngine} after each
+ * run, so its high-water mark includes the cached models and PSFs but not the transient peak inside
+ * a prediction. The metrics of all runs since the start, or the last {@link #reset}, are kept in
+ * the instance returned by {@link #getGlobal}.
+ */
+public class Metrics {
+
+  /** A stage of a reconstruction whose latency is recorded. */
+  public enum Stage {
+    /** Widening an image stack into an array, see {@link ArrayUtils#convertImageToArray}. */
+    IMAGE_TO_ARRAY("image to array"),
+    /** Converting and normalizing the PSF, see {@link Algorithm#preparePsf}. */
+    PSF_NORMALIZATION("PSF normalization"),
+    /** Loading a model and creating its predictor, see {@link ModelCache}. */
+    MODEL_LOAD("model load"),
+    /** A forward pass of a model. */
+    PREDICT("predict"),
+    /** The Richardson-Lucy iterations without a model, see {@link TorchRichardsonLucy}. */
+    ITERATE("iterate"),
+    /** Copying a volume to the host as an image, see {@link ArrayUtils#convertArrayToImage}. */
+    ARRAY_TO_IMAGE("array to image"),
+    /** Cropping a volume to the circle and masking it, on the device or on the host. */
+    CROP_MASK("crop and mask");
+
+    private final String display;
+
+    Stage(String display) {
+      this.display = display;
+    }
+
+    public String toDisplay() {
+      return display;
+    }
+  }
+
+  /** Latencies of one stage, counted in buckets of increasing width. */
+  public static class Histogram {
+    /** Upper bounds of the buckets in milliseconds; the last bucket holds everything above. */
+    static final double[] BOUNDS_MILLIS = {
+      1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+
+    private final long[] buckets = new long[BOUNDS_MILLIS.length + 1];
+    private long count;
+    private long totalNanos;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+
+    void record(long nanos) {
+      double millis = nanos / 1e6;
+      int bucket = 0;
+      while (bucket < BOUNDS_MILLIS.length && millis > BOUNDS_MILLIS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket]++;
+      count++;
+      totalNanos += nanos;
+      minNanos = Math.min(minNanos, nanos);
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public double getTotalMillis() {
+      return totalNanos / 1e6;
+    }
+
+    public double getMeanMillis() {
+      return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    public double getMinMillis() {
+      return count == 0 ? 0 : minNanos / 1e6;
+    }
+
+    public double getMaxMillis() {
+      return maxNanos / 1e6;
+    }
+
+    /**
+     * Returns an upper estimate of a percentile: the upper bound of the bucket it falls into, but
+     * at most the largest latency recorded.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in milliseconds, 0 if nothing has been recorded
+     */
+    public double getPercentileMillis(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100 * count);
+      long seen = 0;
+      for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          return Math.min(BOUNDS_MILLIS[i], getMaxMillis());
+        }
+      }
+      return getMaxMillis();
+    }
+
+    /**
+     * Returns the number of latencies in each bucket, see {@link #BOUNDS_MILLIS}.
+     *
+     * @return a copy of the bucket counts
+     */
+    public long[] getBuckets() {
+      return buckets.clone();
+    }
+
+    private Histogram copy() {
+      Histogram copy = new Histogram();
+      System.arraycopy(buckets, 0, copy.buckets, 0, buckets.length);
+      copy.count = count;
+      copy.totalNanos = totalNanos;
+      copy.minNanos = minNanos;
+      copy.maxNanos = maxNanos;
+      return copy;
+    }
+  }
+
+  /** Measures a stage from its creation until it is closed. */
+  public class Timer implements AutoCloseable {
+    private final Stage stage;
+    private final long start = System.nanoTime();
+    private boolean closed;
+
+    private Timer(Stage stage) {
+      this.stage = stage;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        record(stage, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /** Hit and miss counts of a cache, read when the metrics are reported. */
+  private static class CacheCounts {
+    final LongSupplier hits;
+    final LongSupplier misses;
+
+    CacheCounts(LongSupplier hits, LongSupplier misses) {
+      this.hits = hits;
+      this.misses = misses;
+    }
+  }
+
+  private static final Metrics global = new Metrics();
+
+  private final Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+  private final Map<String, Long> counters = new TreeMap<>();
+  private final Map<String, CacheCounts> caches = new LinkedHashMap<>();
+  private final Map<String, Long> devicePeaks = new TreeMap<>();
+  private final BufferPoolMXBean directPool = findDirectPool();
+  private long heapPeak;
+  private long directPeak;
+
+  /**
+   * Returns the metrics of the pipeline, shared by all runs.
+   *
+   * @return the global metrics
+   */
+  public static Metrics getGlobal() {
+    return global;
+  }
+
+  private static BufferPoolMXBean findDirectPool() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if ("direct".equals(pool.getName())) {
+        return pool;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Starts measuring a stage; closing the returned timer records its latency.
+   *
+   * @param stage the stage
+   * @return the running timer
+   */
+  public Timer start(Stage stage) {
+    return new Timer(stage);
+  }
+
+  /**
+   * Records the latency of a stage and samples the memory of the host.
+   *
+   * @param stage the stage
+   * @param nanos the latency in nanoseconds
+   */
+  public synchronized void record(Stage stage, long nanos) {
+    histograms.computeIfAbsent(stage, s -> new Histogram()).record(nanos);
+    sampleHostMemory();
+  }
+
+  /**
+   * Adds one to a counter, such as the number of runs.
+   *
+   * @param counter the name of the counter
+   */
+  public void increment(String counter) {
+    add(counter, 1);
+  }
+
+  /**
+   * Adds to a counter.
+   *
+   * @param counter the name of the counter
+   * @param amount the amount to add
+   */
+  public synchronized void add(String counter, long amount) {
+    counters.merge(counter, amount, Long::sum);
+  }
+
+  /**
+   * Registers a cache whose hit rate is reported.
+   *
+   * @param name the name of the cache
+   * @param hits supplies the number of hits
+   * @param misses supplies the number of misses
+   */
+  public synchronized void addCache(String name, LongSupplier hits, LongSupplier misses) {
+    caches.put(name, new CacheCounts(hits, misses));
+  }
+
+  /**
+   * Records the memory used on a device, keeping the highest value seen.
+   *
+   * @param device the name of the device, see {@link DeviceInfo#toDeviceName}
+   * @param usedBytes the memory in use on the device
+   */
+  public synchronized void recordDeviceMemory(String device, long usedBytes) {
+    devicePeaks.merge(device, usedBytes, Math::max);
+  }
+
+  /** Samples the used heap and the direct buffers that back the input arrays. */
+  public synchronized void sampleHostMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    heapPeak = Math.max(heapPeak, runtime.totalMemory() - runtime.freeMemory());
+    if (directPool != null) {
+      directPeak = Math.max(directPeak, directPool.getMemoryUsed());
+    }
+  }
+
+  /**
+   * Returns a copy of the latencies of a stage.
+   *
+   * @param stage the stage
+   * @return the histogram, empty if the stage has not run
+   */
+  public synchronized Histogram getHistogram(Stage stage) {
+    Histogram histogram = histograms.get(stage);
+    return histogram == null ? new Histogram() : histogram.copy();
+  }
+
+  /**
+   * Returns the value of a counter.
+   *
+   * @param counter the name of the counter
+   * @return the value, 0 if the counter has not been incremented
+   */
+  public synchronized long getCounter(String counter) {
+    return counters.getOrDefault(counter, 0L);
+  }
+
+  /** Clears the latencies, counters and high-water marks. The caches stay registered. */
+  public synchronized void reset() {
+    histograms.clear();
+    counters.clear();
+    devicePeaks.clear();
+    heapPeak = 0;
+    directPeak = 0;
+  }
+
+  /**
+   * Returns a short, human readable summary for the status panel of the plugin window.
+   *
+   * @return one line per stage that has run, followed by the cache hit rates and memory peaks
+   */
+  public synchronized String summary() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+      Histogram h = entry.getValue();
+      text.append(
+          String.format(
+              Locale.ROOT,
+              "%-18s %5d x  mean %9.1f ms  p95 %9.1f ms  max %9.1f ms%n",
+              entry.getKey().toDisplay(),
+              h.getCount(),
+              h.getMeanMillis(),
+              h.getPercentileMillis(95),
+              h.getMaxMillis()));
+    }
+    for (Map.Entry<String, CacheCounts> entry : caches.entrySet()) {
+      long hits = entry.getValue().hits.getAsLong();
+      long misses = entry.getValue().misses.getAsLong();
+      text.append(
+          String.format(
+              Locale.ROOT,
+              "%s cache: %d hits, %d misses (%.0f%%)%n",
+              entry.getKey(),
+              hits,
+              misses,
+              100 * hitRate(hits, misses)));
+    }
+    text.append(
+        String.format(
+            Locale.ROOT,
+            "peak heap %.0f MB, direct %.0f MB",
+            heapPeak / 1048576.0,
+            directPeak / 1048576.0));
+    for (Map.Entry<String, Long> entry : devicePeaks.entrySet()) {
+      text.append(
+          String.format(Locale.ROOT, ", %s %.0f MB", entry.getKey(), entry.getValue() / 1048576.0));
+    }
+    for (Map.Entry<String, Long> entry : counters.entrySet()) {
+      text.append(String.format(Locale.ROOT, "%n%s: %d", entry.getKey(), entry.getValue()));
+    }
+    return text.toString();
+  }
+
+  private static double hitRate(long hits, long misses) {
+    return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+  }
+
+  /**
+   * Returns the metrics as a JSON document with the sections {@code stages}, {@code counters},
+   * {@code caches} and {@code memory}. Latencies are in milliseconds and memory in bytes.
+   *
+   * @return the JSON document
+   */
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder("{\n  \"stages\": {");
+    String separator = "\n";
+    for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+      Histogram h = entry.getValue();
+      json.append(separator)
+          .append("    \"")
+          .append(entry.getKey().name().toLowerCase(Locale.ROOT))
+          .append("\": {")
+          .append(String.format(Locale.ROOT, "\"count\": %d", h.getCount()))
+          .append(String.format(Locale.ROOT, ", \"totalMs\": %.3f", h.getTotalMillis()))
+          .append(String.format(Locale.ROOT, ", \"meanMs\": %.3f", h.getMeanMillis()))
+          .append(String.format(Locale.ROOT, ", \"minMs\": %.3f", h.getMinMillis()))
+          .append(String.format(Locale.ROOT, ", \"p50Ms\": %.3f", h.getPercentileMillis(50)))
+          .append(String.format(Locale.ROOT, ", \"p95Ms\": %.3f", h.getPercentileMillis(95)))
+          .append(String.format(Locale.ROOT, ", \"maxMs\": %.3f", h.getMaxMillis()))
+          .append(", \"buckets\": {");
+      long[] buckets = h.getBuckets();
+      for (int i = 0; i < buckets.length; i++) {
+        json.append(i == 0 ? "" : ", ")
+            .append('"')
+            .append(bucketName(i))
+            .append("\": ")
+            .append(buckets[i]);
+      }
+      json.append("}}");
+      separator = ",\n";
+    }
+    json.append(histograms.isEmpty() ? "},\n" : "\n  },\n");
+
+    json.append("  \"counters\": {");
+    separator = "";
+    for (Map.Entry<String, Long> entry : counters.entrySet()) {
+      json.append(separator)
+          .append('"')
+          .append(entry.getKey())
+          .append("\": ")
+          .append(entry.getValue());
+      separator = ", ";
+    }
+    json.append("},\n  \"caches\": {");
+    separator = "";
+    for (Map.Entry<String, CacheCounts> entry : caches.entrySet()) {
+      long hits = entry.getValue().hits.getAsLong();
+      long misses = entry.getValue().misses.getAsLong();
+      json.append(separator)
+          .append('"')
+          .append(entry.getKey())
+          .append("\": ")
+          .append(
+              String.format(
+                  Locale.ROOT,
+                  "{\"hits\": %d, \"misses\": %d, \"hitRate\": %.4f}",
+                  hits,
+                  misses,
+                  hitRate(hits, misses)));
+      separator = ", ";
+    }
+    json.append("},\n  \"memory\": {")
+        .append("\"heapPeakBytes\": ")
+        .append(heapPeak)
+        .append(", \"directPeakBytes\": ")
+        .append(directPeak)
+        .append(", \"devicePeakBytes\": {");
+    separator = "";
+    for (Map.Entry<String, Long> entry : devicePeaks.entrySet()) {
+      json.append(separator)
+          .append('"')
+          .append(entry.getKey())
+          .append("\": ")
+          .append(entry.getValue());
+      separator = ", ";
+    }
+    return json.append("}}\n}\n").toString();
+  }
+
+  /**
+   * Returns the metrics as CSV with one value per row and the columns {@code
+   * section,name,metric,value}, which keeps the file easy to append to and to compare between
+   * workstations.
+   *
+   * @return the CSV document, with a header row
+   */
+  public synchronized String toCsv() {
+    StringBuilder csv = new StringBuilder("section,name,metric,value\n");
+    for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+      String name = entry.getKey().name().toLowerCase(Locale.ROOT);
+      Histogram h = entry.getValue();
+      csvRow(csv, "stage", name, "count", Long.toString(h.getCount()));
+      csvRow(csv, "stage", name, "totalMs", format(h.getTotalMillis()));
+      csvRow(csv, "stage", name, "meanMs", format(h.getMeanMillis()));
+      csvRow(csv, "stage", name, "minMs", format(h.getMinMillis()));
+      csvRow(csv, "stage", name, "p50Ms", format(h.getPercentileMillis(50)));
+      csvRow(csv, "stage", name, "p95Ms", format(h.getPercentileMillis(95)));
+      csvRow(csv, "stage", name, "maxMs", format(h.getMaxMillis()));
+      long[] buckets = h.getBuckets();
+      for (int i = 0; i < buckets.length; i++) {
+        csvRow(csv, "stage", name, "bucket_" + bucketName(i), Long.toString(buckets[i]));
+      }
+    }
+    for (Map.Entry<String, Long> entry : counters.entrySet()) {
+      csvRow(csv, "counter", entry.getKey(), "value", Long.toString(entry.getValue()));
+    }
+    for (Map.Entry<String, CacheCounts> entry : caches.entrySet()) {
+      long hits = entry.getValue().hits.getAsLong();
+      long misses = entry.getValue().misses.getAsLong();
+      csvRow(csv, "cache", entry.getKey(), "hits", Long.toString(hits));
+      csvRow(csv, "cache", entry.getKey(), "misses", Long.toString(misses));
+      csvRow(
+          csv,
+          "cache",
+          entry.getKey(),
+          "hitRate",
+          String.format(Locale.ROOT, "%.4f", hitRate(hits, misses)));
+    }
+    csvRow(csv, "memory", "heap", "peakBytes", Long.toString(heapPeak));
+    csvRow(csv, "memory", "direct", "peakBytes", Long.toString(directPeak));
+    for (Map.Entry<String, Long> entry : devicePeaks.entrySet()) {
+      csvRow(csv, "memory", entry.getKey(), "peakBytes", Long.toString(entry.getValue()));
+    }
+    return csv.toString();
+  }
+
+  /**
+   * Writes the metrics to a file, as CSV if its name ends with {@code .csv} and as JSON otherwise.
+   *
+   * @param path the file to write, replaced if it exists
+   * @throws IOException if the file cannot be written
+   */
+  public void write(Path path) throws IOException {
+    boolean csv = path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+    Files.write(path, (csv ? toCsv() : toJson()).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Names a bucket by its upper bound in milliseconds, or {@code inf} for the last one. */
+  private static String bucketName(int bucket) {
+    if (bucket == Histogram.BOUNDS_MILLIS.length) {
+      return "inf";
+    }
+    return "le" + (long) Histogram.BOUNDS_MILLIS[bucket];
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+
+  private static void csvRow(
+      StringBuilder csv, String section, String name, String metric, String value) {
+    csv.append(section)
+        .append(',')
+        .append(name)
+        .append(',')
+        .append(metric)
+        .append(',')
+        .append(value)
+        .append('\n');
+  }
+}
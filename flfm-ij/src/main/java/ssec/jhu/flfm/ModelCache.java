@@ -0,0 +1,397 @@
+package ssec.jhu.flfm;
+
+import ai.djl.MalformedModelException;
+import ai.djl.Model;
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LRU cache of loaded models and their predictors, keyed by model path and device.
+ *
+ * <p>Loading a TorchScript model is often slower than running it, so models are kept alive between
+ * runs. The cache is bounded both by the number of entries and by an estimate of the memory the
+ * models occupy. Entries that are evicted while in use are closed once the last user releases them.
+ *
+ * <p>Models are loaded outside the lock of the cache, so a slow load on one device does not hold up
+ * the other devices or the statistics. Threads that ask for a model that is being loaded wait for
+ * that load instead of starting their own.
+ */
+public class ModelCache {
+
+  /** Logger for the ModelCache class. */
+  private static final Logger logger = LoggerFactory.getLogger(ModelCache.class);
+
+  /** Loads a model and builds its predictor when there is no cached entry. */
+  public interface Loader {
+    /**
+     * Loads the model for the given path and device.
+     *
+     * @param modelPathStr the path to the model file
+     * @param deviceInfo the device to load the model on
+     * @return a new, uncached entry
+     * @throws IOException if the model file cannot be read
+     * @throws MalformedModelException if the model file is not a valid model
+     */
+    Entry load(String modelPathStr, DeviceInfo deviceInfo)
+        throws IOException, MalformedModelException;
+  }
+
+  /** A loaded model together with the predictor built from it. */
+  public static class Entry {
+    private final Model model;
+    private final Predictor<NDArray[], NDArray> predictor;
+    private final long sizeBytes;
+    private Predictor<NDArray[], NDList> batchPredictor;
+    private boolean batchesFailed;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int users;
+    private boolean evicted;
+
+    /**
+     * Creates a cache entry.
+     *
+     * @param model the loaded model
+     * @param predictor the predictor created from {@code model}
+     * @param sizeBytes the estimated memory used by the model, usually its file size
+     */
+    public Entry(Model model, Predictor<NDArray[], NDArray> predictor, long sizeBytes) {
+      this.model = model;
+      this.predictor = predictor;
+      this.sizeBytes = sizeBytes;
+    }
+
+    public Model getModel() {
+      return model;
+    }
+
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    private void close() {
+      predictor.close();
+      if (batchPredictor != null) {
+        batchPredictor.close();
+      }
+      model.close();
+    }
+  }
+
+  /**
+   * Exclusive access to a cached predictor. Predictors are not thread safe, so only one handle per
+   * entry is handed out at a time. Closing the handle returns the entry to the cache.
+   */
+  public class Handle implements AutoCloseable {
+    private final Entry entry;
+    private boolean released;
+
+    private Handle(Entry entry) {
+      this.entry = entry;
+    }
+
+    public Predictor<NDArray[], NDArray> getPredictor() {
+      return entry.predictor;
+    }
+
+    public Model getModel() {
+      return entry.model;
+    }
+
+    /**
+     * Returns the predictor that runs several frames in one pass, see {@link
+     * BatchedModelTranslator}, creating it on first use.
+     *
+     * @return the batch predictor
+     */
+    public Predictor<NDArray[], NDList> getBatchPredictor() {
+      if (entry.batchPredictor == null) {
+        entry.batchPredictor = entry.model.newPredictor(new BatchedModelTranslator());
+      }
+      return entry.batchPredictor;
+    }
+
+    /**
+     * Returns whether the model may take a batch of frames; {@code false} once a batch has failed.
+     *
+     * @return {@code true} if batches are worth trying
+     */
+    public boolean supportsBatches() {
+      return !entry.batchesFailed;
+    }
+
+    /** Remembers that the model cannot take a batch of frames. */
+    public void disableBatches() {
+      entry.batchesFailed = true;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(entry);
+      }
+    }
+  }
+
+  private final int configuredEntries;
+  private int maxEntries;
+  private final long maxBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Loads in progress by key, completed with the entry or with {@code null} if the load failed. */
+  private final Map<String, CompletableFuture<Entry>> loading = new HashMap<>();
+
+  /**
+   * Counts the calls of {@link #invalidateAll}. A load that started before the last one hands its
+   * model to its caller only and closes it on release instead of publishing it.
+   */
+  private long generation;
+
+  private long totalBytes;
+  private long hits;
+  private long misses;
+
+  /**
+   * Creates a new cache.
+   *
+   * @param maxEntries the maximum number of models to keep loaded
+   * @param maxBytes the maximum estimated size of all loaded models in bytes
+   */
+  public ModelCache(int maxEntries, long maxBytes) {
+    this.configuredEntries = Math.max(1, maxEntries);
+    this.maxEntries = configuredEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Makes room for a model on every lane of a {@link DeviceScheduler}, which each hold their own
+   * entry, so the lanes do not evict each other. The limit grows to the configured number of
+   * entries plus one entry for every lane beyond the first, and never shrinks.
+   *
+   * @param lanes the number of lanes that share a model
+   */
+  public synchronized void reserveLanes(int lanes) {
+    maxEntries = Math.max(maxEntries, configuredEntries + lanes - 1);
+  }
+
+  public synchronized int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * Builds the cache key for a model and device. Every lane of a device has its own entry, so lanes
+   * predict concurrently, see {@link DeviceInfo#lane}.
+   *
+   * @param modelPathStr the path to the model file
+   * @param deviceInfo the device the model runs on
+   * @return the key used to look up the cache entry
+   */
+  public static String key(String modelPathStr, DeviceInfo deviceInfo) {
+    String lane = deviceInfo.lane > 0 ? "#" + deviceInfo.lane : "";
+    return modelPathStr + "@" + deviceInfo.toDeviceName() + lane;
+  }
+
+  /**
+   * Returns a handle to the cached predictor for the model and device, loading it if needed. Blocks
+   * while another thread holds a handle to the same entry.
+   *
+   * @param modelPathStr the path to the model file
+   * @param deviceInfo the device the model runs on
+   * @param loader used to load the model when it is not cached
+   * @return a handle that must be closed after use
+   * @throws IOException if the model file cannot be read
+   * @throws MalformedModelException if the model file is not a valid model
+   */
+  public Handle acquire(String modelPathStr, DeviceInfo deviceInfo, Loader loader)
+      throws IOException, MalformedModelException {
+    String key = key(modelPathStr, deviceInfo);
+    Entry entry = null;
+    CompletableFuture<Entry> pending = null;
+    long started;
+    while (true) {
+      synchronized (this) {
+        started = generation;
+        entry = entries.get(key);
+        if (entry != null) {
+          hits++;
+          logger.debug("Model cache hit for {}", key);
+          entry.users++;
+          break;
+        }
+        pending = loading.get(key);
+        if (pending == null) {
+          misses++;
+          logger.debug("Model cache miss for {}", key);
+          pending = new CompletableFuture<>();
+          loading.put(key, pending);
+          break;
+        }
+      }
+      // another thread is loading the model, look again once it is done or has failed
+      await(pending, key);
+    }
+
+    if (entry == null) {
+      entry = load(key, modelPathStr, deviceInfo, loader, pending, started);
+    }
+    entry.lock.lock();
+    return new Handle(entry);
+  }
+
+  /**
+   * Loads an entry without holding the lock of the cache, then publishes it to the waiters. If the
+   * cache was invalidated during the load, the entry is only used by this caller and closed when it
+   * releases the handle, and the waiters load the model again.
+   */
+  private Entry load(
+      String key,
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      Loader loader,
+      CompletableFuture<Entry> pending,
+      long started)
+      throws IOException, MalformedModelException {
+    Entry loaded = null;
+    boolean published = false;
+    try {
+      loaded = loader.load(modelPathStr, deviceInfo);
+      return loaded;
+    } finally {
+      synchronized (this) {
+        loading.remove(key);
+        if (loaded != null) {
+          loaded.users++;
+          if (started == generation) {
+            entries.put(key, loaded);
+            totalBytes += loaded.sizeBytes;
+            evict(loaded);
+            published = true;
+          } else {
+            logger.debug("Model cache was invalidated while loading {}, not caching it", key);
+            loaded.evicted = true;
+          }
+        }
+      }
+      pending.complete(published ? loaded : null);
+    }
+  }
+
+  /** Waits for the load of another thread, whatever its outcome. */
+  private static void await(CompletableFuture<Entry> pending, String key) {
+    try {
+      pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted while waiting for the model " + key);
+    } catch (ExecutionException e) {
+      // the loading thread reports the failure, this one tries again
+    }
+  }
+
+  /**
+   * Removes and closes the entry for the given model and device. If the entry is in use it is
+   * closed when the last handle is released.
+   *
+   * @param modelPathStr the path to the model file
+   * @param deviceInfo the device the model runs on
+   */
+  public void invalidate(String modelPathStr, DeviceInfo deviceInfo) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.remove(key(modelPathStr, deviceInfo));
+      if (entry == null) {
+        return;
+      }
+      totalBytes -= entry.sizeBytes;
+      entry.evicted = true;
+      if (entry.users > 0) {
+        return;
+      }
+    }
+    entry.close();
+  }
+
+  /**
+   * Removes all entries from the cache and closes every model that is not currently in use. Models
+   * still loading are not cached either, see {@link #generation}.
+   */
+  public void invalidateAll() {
+    List<Entry> idle = new ArrayList<>();
+    synchronized (this) {
+      generation++;
+      for (Entry entry : entries.values()) {
+        entry.evicted = true;
+        if (entry.users == 0) {
+          idle.add(entry);
+        }
+      }
+      entries.clear();
+      totalBytes = 0;
+    }
+    logger.debug("Closing {} cached models", idle.size());
+    for (Entry entry : idle) {
+      entry.close();
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private void release(Entry entry) {
+    entry.lock.unlock();
+    boolean close;
+    synchronized (this) {
+      entry.users--;
+      close = entry.evicted && entry.users == 0;
+    }
+    if (close) {
+      entry.close();
+    }
+  }
+
+  /** Evicts least recently used entries, other than {@code keep}, until the cache fits. */
+  private void evict(Entry keep) {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while ((entries.size() > maxEntries || totalBytes > maxBytes) && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      Entry entry = eldest.getValue();
+      if (entry == keep) {
+        continue;
+      }
+      logger.debug("Evicting model {} from the cache", eldest.getKey());
+      it.remove();
+      totalBytes -= entry.sizeBytes;
+      entry.evicted = true;
+      if (entry.users == 0) {
+        entry.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,366 @@
+package ssec.jhu.flfm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The index of the available models.
+ *
+ * <p>The bundled models are listed in the index file {@value Constants#MODEL_INDEX_RESOURCE}, which
+ * the build writes next to the models with {@link #main}, so startup reads one small resource
+ * instead of listing the entries of the plugin JAR. Builds without the index fall back to the scan
+ * of {@link PluginController#getModelLocations}.
+ *
+ * <p>Models can also be put into an external directory set with the system property {@value
+ * Constants#PROP_MODELS_DIR}. Its models are described when they are first seen and again only when
+ * their size or modification time changes, and the directory can be watched for new models, see
+ * {@link Watcher}.
+ */
+public class ModelIndex {
+
+  /** Logger for the ModelIndex class. */
+  private static final Logger logger = LoggerFactory.getLogger(ModelIndex.class);
+
+  private static final String KEY_ITERATIONS = ".iterations";
+  private static final String KEY_SIZE = ".size";
+  private static final String KEY_SHA256 = ".sha256";
+
+  /** Descriptions of external models, keyed by path, size and modification time. */
+  private static final Map<String, ModelInfo> described = new HashMap<>();
+
+  /** The bundled models, read on first use by {@link #findBundled}. */
+  private static volatile List<ModelInfo> bundled;
+
+  /** Private constructor to prevent instantiation. */
+  private ModelIndex() {}
+
+  /**
+   * Writes the index of the models in a directory into the directory. Run by the build after the
+   * models are copied to the classes directory.
+   *
+   * @param args the models directory
+   * @throws IOException if a model cannot be read or the index cannot be written
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      throw new IllegalArgumentException("Usage: ModelIndex <models directory>");
+    }
+    Path dir = Paths.get(args[0]);
+    List<ModelInfo> models = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.pt")) {
+      for (Path file : stream) {
+        String name = file.getFileName().toString();
+        models.add(describe(file, name));
+      }
+    }
+    Path indexFile = dir.resolve(Paths.get(Constants.MODEL_INDEX_RESOURCE).getFileName());
+    try (OutputStream out = Files.newOutputStream(indexFile)) {
+      write(models, out);
+    }
+    logger.info("Wrote the index of {} models to {}", models.size(), indexFile);
+  }
+
+  /**
+   * Returns the bundled models and the models in the external models directory, ordered by their
+   * iteration count.
+   *
+   * @return the available models
+   */
+  public static List<ModelInfo> getModels() {
+    List<ModelInfo> models = new ArrayList<>(getBundledModels());
+    Path dir = getExternalDirectory();
+    if (dir != null) {
+      models.addAll(scan(dir));
+    }
+    models.sort(Comparator.comparingInt((ModelInfo m) -> m.iterations));
+    return models;
+  }
+
+  /**
+   * Returns the bundled model with the given name.
+   *
+   * @param name the file name of the model
+   * @return the model, or {@code null} if it is not bundled
+   */
+  public static ModelInfo findBundled(String name) {
+    List<ModelInfo> models = bundled;
+    if (models == null) {
+      models = getBundledModels();
+      bundled = models;
+    }
+    for (ModelInfo model : models) {
+      if (model.name.equals(name)) {
+        return model;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the models bundled with the plugin, as listed by the index file.
+   *
+   * @return the bundled models, empty if there are none
+   */
+  public static List<ModelInfo> getBundledModels() {
+    try (InputStream in =
+        ModelIndex.class.getClassLoader().getResourceAsStream(Constants.MODEL_INDEX_RESOURCE)) {
+      if (in != null) {
+        return read(in);
+      }
+    } catch (IOException e) {
+      logger.error("Error reading the model index: {}", e.getMessage());
+    }
+
+    logger.debug("No model index found, scanning for models");
+    List<ModelInfo> models = new ArrayList<>();
+    String[] locations = PluginController.getModelLocations();
+    if (locations != null) {
+      for (String location : locations) {
+        try {
+          models.add(
+              new ModelInfo(
+                  Paths.get(location).getFileName().toString(),
+                  location,
+                  Algorithm.parseIterations(location),
+                  -1,
+                  null));
+        } catch (IllegalArgumentException e) {
+          logger.warn("Skipping model {}: {}", location, e.getMessage());
+        }
+      }
+    }
+    return models;
+  }
+
+  /**
+   * Returns the external models directory set with the system property {@value
+   * Constants#PROP_MODELS_DIR}.
+   *
+   * @return the absolute, normalized directory, or {@code null} if none is set
+   */
+  public static Path getExternalDirectory() {
+    String dir = System.getProperty(Constants.PROP_MODELS_DIR);
+    if (dir == null || dir.trim().isEmpty()) {
+      return null;
+    }
+    return Paths.get(dir.trim()).toAbsolutePath().normalize();
+  }
+
+  /**
+   * Describes the models in a directory. Models that did not change since the last scan are not
+   * read again.
+   *
+   * @param dir the directory to scan
+   * @return the models in the directory, located by their absolute paths
+   */
+  public static List<ModelInfo> scan(Path dir) {
+    List<ModelInfo> models = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.pt")) {
+      for (Path file : stream) {
+        Path path = file.toAbsolutePath().normalize();
+        try {
+          String key = path + ":" + Files.size(path) + ":" + Files.getLastModifiedTime(path);
+          ModelInfo info;
+          synchronized (described) {
+            info = described.get(key);
+          }
+          if (info == null) {
+            info = describe(path, path.toString());
+            synchronized (described) {
+              // forget the description of the replaced file
+              described.keySet().removeIf(k -> k.startsWith(path + ":"));
+              described.put(key, info);
+            }
+          }
+          models.add(info);
+        } catch (IOException | IllegalArgumentException e) {
+          logger.warn("Skipping model {}: {}", path, e.getMessage());
+        }
+      }
+    } catch (IOException e) {
+      logger.error("Error scanning the models directory {}: {}", dir, e.getMessage());
+    }
+    return models;
+  }
+
+  /**
+   * Describes a model file: its iteration count, size and checksum.
+   *
+   * @param file the model file
+   * @param location the location to record for the model
+   * @return the description of the model
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if the file name has no iteration count
+   */
+  public static ModelInfo describe(Path file, String location) throws IOException {
+    String name = file.getFileName().toString();
+    return new ModelInfo(
+        name, location, Algorithm.parseIterations(name), Files.size(file), sha256(file));
+  }
+
+  /**
+   * Reads an index.
+   *
+   * @param in the stream to read the index from
+   * @return the models of the index, located by their file names
+   * @throws IOException if the index cannot be read
+   */
+  public static List<ModelInfo> read(InputStream in) throws IOException {
+    Properties index = new Properties();
+    index.load(in);
+    TreeSet<String> names = new TreeSet<>();
+    for (String key : index.stringPropertyNames()) {
+      if (key.endsWith(KEY_ITERATIONS)) {
+        names.add(key.substring(0, key.length() - KEY_ITERATIONS.length()));
+      }
+    }
+    List<ModelInfo> models = new ArrayList<>();
+    for (String name : names) {
+      models.add(
+          new ModelInfo(
+              name,
+              name,
+              Integer.parseInt(index.getProperty(name + KEY_ITERATIONS)),
+              Long.parseLong(index.getProperty(name + KEY_SIZE, "-1")),
+              index.getProperty(name + KEY_SHA256)));
+    }
+    return models;
+  }
+
+  /**
+   * Writes an index.
+   *
+   * @param models the models to list
+   * @param out the stream to write the index to
+   * @throws IOException if the index cannot be written
+   */
+  public static void write(List<ModelInfo> models, OutputStream out) throws IOException {
+    Properties index = new Properties();
+    for (ModelInfo model : models) {
+      index.setProperty(model.name + KEY_ITERATIONS, Integer.toString(model.iterations));
+      index.setProperty(model.name + KEY_SIZE, Long.toString(model.sizeBytes));
+      if (model.sha256 != null) {
+        index.setProperty(model.name + KEY_SHA256, model.sha256);
+      }
+    }
+    index.store(out, "FLFM model index");
+  }
+
+  /**
+   * Computes the SHA-256 checksum of a file.
+   *
+   * @param file the file
+   * @return the hex encoded checksum
+   * @throws IOException if the file cannot be read
+   */
+  public static String sha256(Path file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] buffer = new byte[1 << 16];
+    try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+      while (in.read(buffer) != -1) {
+        // the digest is updated while reading
+      }
+    }
+    return ModelStore.toHex(digest.digest());
+  }
+
+  /**
+   * Watches a models directory and reports when models are added, replaced or removed. Events that
+   * arrive within {@link Constants#MODEL_WATCH_SETTLE_MILLIS} of each other, such as those of a
+   * file being copied, are reported once.
+   */
+  public static class Watcher implements AutoCloseable {
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Starts watching the directory on a daemon thread.
+     *
+     * @param dir the directory to watch
+     * @param onChange called on the watching thread after models changed
+     * @throws IOException if the directory cannot be watched
+     */
+    public Watcher(Path dir, Runnable onChange) throws IOException {
+      this.watchService = dir.getFileSystem().newWatchService();
+      dir.register(
+          watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+      this.thread =
+          new Thread(
+              () -> {
+                try {
+                  while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = isModelEvent(key);
+                    // let a copy finish before reporting it
+                    while ((key =
+                            watchService.poll(
+                                Constants.MODEL_WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS))
+                        != null) {
+                      changed |= isModelEvent(key);
+                    }
+                    if (changed) {
+                      logger.debug("Models changed in {}", dir);
+                      onChange.run();
+                    }
+                  }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                  logger.debug("Stopped watching {}", dir);
+                }
+              },
+              "flfm-model-watcher");
+      thread.setDaemon(true);
+      thread.start();
+      logger.info("Watching {} for models", dir);
+    }
+
+    /** Returns whether the events of the key concern a model file, and resets the key. */
+    private static boolean isModelEvent(WatchKey key) {
+      boolean model = false;
+      for (WatchEvent<?> event : key.pollEvents()) {
+        Object context = event.context();
+        model |=
+            event.kind() == StandardWatchEventKinds.OVERFLOW
+                || (context != null && context.toString().endsWith(".pt"));
+      }
+      key.reset();
+      return model;
+    }
+
+    @Override
+    public void close() throws IOException {
+      watchService.close();
+      thread.interrupt();
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package ssec.jhu.flfm;
+
+/**
+ * Describes an exported model, as listed in the model index, see {@link ModelIndex}.
+ *
+ * <p>The exported models take a light-field image of shape (1, H, W) and a PSF of shape (Z, H, W)
+ * of any size, so the index records no input shape.
+ */
+public class ModelInfo {
+  /** The file name of the model, such as {@code model5.pt}. */
+  public final String name;
+
+  /**
+   * The location passed to {@link Algorithm#runModel}: the file name for a bundled model, the
+   * absolute path for a model in the external models directory.
+   */
+  public final String location;
+
+  /** The number of Richardson-Lucy iterations the model runs. */
+  public final int iterations;
+
+  /** The size of the model file in bytes. */
+  public final long sizeBytes;
+
+  /** The hex encoded SHA-256 checksum of the model file, or {@code null} if unknown. */
+  public final String sha256;
+
+  public ModelInfo(String name, String location, int iterations, long sizeBytes, String sha256) {
+    this.name = name;
+    this.location = location;
+    this.iterations = iterations;
+    this.sizeBytes = sizeBytes;
+    this.sha256 = sha256;
+  }
+
+  @Override
+  public String toString() {
+    return name + " (" + iterations + " iterations, " + sizeBytes + " bytes)";
+  }
+}
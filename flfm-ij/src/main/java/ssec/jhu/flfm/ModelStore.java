@@ -0,0 +1,157 @@
+package ssec.jhu.flfm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local directory the bundled models are extracted to, so they can be loaded from a file.
+ *
+ * <p>Loading a model from a stream buffers the whole TorchScript file on the heap, every time it is
+ * loaded. The store instead copies every model out of the plugin JAR once, into a subdirectory
+ * named after its SHA-256 checksum, and the engine loads the model file directly. The checksum is
+ * verified when the model is extracted, so a new version of a model is extracted next to the old
+ * one and a partial copy is never used. Later loads, also by later sessions, only check that the
+ * file exists.
+ */
+public class ModelStore {
+
+  /** Logger for the ModelStore class. */
+  private static final Logger logger = LoggerFactory.getLogger(ModelStore.class);
+
+  private final Path root;
+
+  /** The models found or extracted by this process, keyed by their bundled location. */
+  private final Map<String, Path> known = new HashMap<>();
+
+  /**
+   * Creates a store in the given directory.
+   *
+   * @param root the directory of the store, created when the first model is extracted
+   */
+  public ModelStore(Path root) {
+    this.root = root.toAbsolutePath().normalize();
+  }
+
+  /**
+   * Returns the directory of the store: the system property {@value Constants#PROP_MODEL_STORE} or
+   * else {@value Constants#DEFAULT_MODEL_STORE} in the home directory of the user.
+   *
+   * @return the directory of the store
+   */
+  public static Path getDefaultRoot() {
+    String dir = System.getProperty(Constants.PROP_MODEL_STORE);
+    if (dir != null && !dir.trim().isEmpty()) {
+      return Paths.get(dir.trim());
+    }
+    return Paths.get(System.getProperty("user.home"), Constants.DEFAULT_MODEL_STORE);
+  }
+
+  /**
+   * Returns the local file of a model, extracting it first if it is not in the store yet.
+   *
+   * @param name the file name of the model
+   * @param url the location of the bundled model
+   * @param sha256 the expected checksum of the model, or {@code null} if unknown, in which case the
+   *     model is extracted and hashed once per process
+   * @return the model file in the store
+   * @throws IOException if the model cannot be extracted or its checksum does not match
+   */
+  public synchronized Path get(String name, URL url, String sha256) throws IOException {
+    Path file = known.get(url.toString());
+    if (file == null && sha256 != null) {
+      file = resolve(sha256, name);
+    }
+    if (file != null && Files.isRegularFile(file)) {
+      known.put(url.toString(), file);
+      logger.debug("Model {} found in the store at {}", name, file);
+      return file;
+    }
+
+    Files.createDirectories(root);
+    Path temp = Files.createTempFile(root, "model", ".part");
+    try {
+      MessageDigest digest = newDigest();
+      long start = System.currentTimeMillis();
+      try (InputStream in = new DigestInputStream(url.openStream(), digest)) {
+        Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+      }
+      String actual = toHex(digest.digest());
+      if (sha256 != null && !sha256.equalsIgnoreCase(actual)) {
+        throw new IOException(
+            "Checksum of model " + name + " is " + actual + ", expected " + sha256);
+      }
+      file = resolve(actual, name);
+      Files.createDirectories(file.getParent());
+      move(temp, file);
+      known.put(url.toString(), file);
+      logger.info(
+          "Extracted model {} to {} in {} s",
+          name,
+          file,
+          (System.currentTimeMillis() - start) / 1000.0);
+      return file;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Returns the path of a model in the store, rejecting names that leave the store. */
+  private Path resolve(String sha256, String name) throws IOException {
+    Path file = root.resolve(sha256.toLowerCase()).resolve(name).normalize();
+    if (!file.startsWith(root) || !file.getFileName().toString().equals(name)) {
+      throw new IOException("Potential path traversal attempt detected: " + name);
+    }
+    return file;
+  }
+
+  /** Moves the extracted file into place; another process may have done so already. */
+  private static void move(Path temp, Path file) throws IOException {
+    try {
+      Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      try {
+        Files.move(temp, file);
+      } catch (FileAlreadyExistsException exists) {
+        logger.debug("Model {} was extracted concurrently", file);
+      }
+    } catch (FileAlreadyExistsException e) {
+      logger.debug("Model {} was extracted concurrently", file);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Encodes bytes as lower case hex.
+   *
+   * @param bytes the bytes to encode
+   * @return the hex string
+   */
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,37 @@
+package ssec.jhu.flfm;
+
+import java.nio.file.Path;
+
+/** File format reconstructions are written in, see {@link OutputSink}. */
+public enum OutputFormat {
+  /** A TIFF stack, or BigTIFF for volumes larger than 4 GB. */
+  TIFF(".tif"),
+  /** An OME-Zarr directory with one chunk file per plane and tile. */
+  OME_ZARR(".ome.zarr");
+
+  private final String extension;
+
+  OutputFormat(String extension) {
+    this.extension = extension;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * Creates a sink that writes a volume in this format.
+   *
+   * @param path the file or directory to write
+   * @param threads the number of writer threads
+   * @return the sink, not yet open
+   */
+  public OutputSink createSink(Path path, int threads) {
+    switch (this) {
+      case OME_ZARR:
+        return new ZarrOutputSink(path, threads);
+      default:
+        return new TiffOutputSink(path, threads);
+    }
+  }
+}
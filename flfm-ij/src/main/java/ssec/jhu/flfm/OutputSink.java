@@ -0,0 +1,60 @@
+package ssec.jhu.flfm;
+
+import java.io.IOException;
+
+/**
+ * A destination reconstructed volumes are written to plane by plane, so a volume does not have to
+ * be held on the heap as a whole before it is saved.
+ *
+ * <p>A sink is opened once with the dimensions of the volume, then receives every Z plane exactly
+ * once, in any order and from any thread, and is finally closed, which waits until all planes are
+ * written. A time series of volumes is written as one sink whose planes run frame by frame. See
+ * {@link OutputFormat} for the available sinks and {@link
+ * ArrayUtils#writeArray(ai.djl.ndarray.NDArray, OutputType, OutputSink)} for writing a volume.
+ */
+public interface OutputSink extends AutoCloseable {
+
+  /**
+   * Prepares the sink for a volume.
+   *
+   * @param width the width of a plane
+   * @param height the height of a plane
+   * @param planes the number of planes
+   * @param outputType the pixel type; {@link OutputType#FLOAT32} planes are {@code float[]}, all
+   *     others {@code short[]} holding unsigned 16 bit values
+   * @throws IOException if the destination cannot be created
+   */
+  void open(int width, int height, int planes, OutputType outputType) throws IOException;
+
+  /**
+   * Prepares the sink for a time series of volumes. Plane {@code z} of frame {@code t} is then
+   * written as plane {@code t * planes / frames + z}.
+   *
+   * @param width the width of a plane
+   * @param height the height of a plane
+   * @param planes the number of planes of all frames together, a multiple of {@code frames}
+   * @param frames the number of frames
+   * @param outputType the pixel type, see {@link #open(int, int, int, OutputType)}
+   * @throws IOException if the destination cannot be created
+   */
+  void open(int width, int height, int planes, int frames, OutputType outputType)
+      throws IOException;
+
+  /**
+   * Writes a plane. The sink may write it asynchronously, so the array must not be changed
+   * afterwards.
+   *
+   * @param z the zero based index of the plane
+   * @param pixels the pixels of the plane, row by row
+   * @throws IOException if an earlier plane could not be written
+   */
+  void writePlane(int z, Object pixels) throws IOException;
+
+  /**
+   * Waits until every plane is written and completes the destination.
+   *
+   * @throws IOException if a plane or the metadata could not be written
+   */
+  @Override
+  void close() throws IOException;
+}
@@ -0,0 +1,35 @@
+package ssec.jhu.flfm;
+
+/** Pixel type of the reconstructed image stack. */
+public enum OutputType {
+  /** 16 bit, values outside [0, 65535] are clipped. */
+  UINT16_SATURATE("16-bit (clip)"),
+  /** 16 bit, scaled so that the largest value maps to 65535. Negative values are clipped to 0. */
+  UINT16_RESCALE("16-bit (scaled)"),
+  /** 32 bit float, the values are kept as computed. */
+  FLOAT32("32-bit float");
+
+  private final String display;
+
+  OutputType(String display) {
+    this.display = display;
+  }
+
+  public String toDisplay() {
+    return display;
+  }
+
+  /**
+   * Returns the display names of all output types, in declaration order.
+   *
+   * @return the display names
+   */
+  public static String[] displays() {
+    OutputType[] values = values();
+    String[] displays = new String[values.length];
+    for (int i = 0; i < values.length; i++) {
+      displays[i] = values[i].display;
+    }
+    return displays;
+  }
+}
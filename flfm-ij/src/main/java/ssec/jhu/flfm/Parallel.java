@@ -0,0 +1,51 @@
+package ssec.jhu.flfm;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/** Helpers for running independent loop iterations, such as slices or rows, in parallel. */
+public class Parallel {
+  private Parallel() {}
+
+  /**
+   * Runs {@code body} for every index in {@code [0, count)} on the pool of the {@link
+   * ThreadingConfig} and waits for all of them to finish. The iterations must not depend on each
+   * other.
+   *
+   * @param count the number of iterations
+   * @param body the loop body, called with the iteration index
+   */
+  public static void forEach(int count, IntConsumer body) {
+    if (count == 1) {
+      body.accept(0);
+      return;
+    }
+    ForkJoinPool pool = ThreadingConfig.getPool();
+    if (ForkJoinTask.getPool() == pool) {
+      // already on the pool, e.g. a parallel loop inside a parallel loop
+      IntStream.range(0, count).parallel().forEach(body);
+      return;
+    }
+    // a parallel stream started from a task runs on the pool of that task
+    try {
+      pool.submit(() -> IntStream.range(0, count).parallel().forEach(body)).join();
+    } catch (RejectedExecutionException e) {
+      // the pool was replaced and shut down since it was looked up, run on its successor
+      ThreadingConfig.getPool()
+          .submit(() -> IntStream.range(0, count).parallel().forEach(body))
+          .join();
+    }
+  }
+
+  /**
+   * Returns the number of threads the loops run on, to size work that is split into chunks.
+   *
+   * @return the parallelism of the pool of the {@link ThreadingConfig}
+   */
+  public static int getParallelism() {
+    return ThreadingConfig.getPool().getParallelism();
+  }
+}
@@ -1,13 +1,13 @@
 package ssec.jhu.flfm;
 
+import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.OvalRoi;
-import ij.gui.Roi;
-import ij.process.ImageProcessor;
+import ij.ImageStack;
 import java.awt.Button;
 import java.awt.Component;
 import java.awt.EventQueue;
 import java.awt.FileDialog;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
@@ -15,12 +15,18 @@ import java.io.IOException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import org.slf4j.Logger;
@@ -35,7 +41,17 @@ public class PluginController implements ActionListener {
   private ImagePlus psfImage;
   private ImagePlus inputImage;
   private DeviceInfo[] deviceInfos;
-  private String[] modelLocations;
+  private volatile List<ModelInfo> models = Collections.emptyList();
+  private ModelIndex.Watcher modelWatcher;
+
+  /** Spreads the frames of time series across the selected devices, started on first use. */
+  private DeviceScheduler scheduler;
+
+  /** The devices and model the scheduler was started for, see {@link #getScheduler}. */
+  private String schedulerKey;
+
+  /** Options of the active run, used to cancel it; {@code null} when no run is active. */
+  private volatile RunOptions activeRun;
 
   public PluginController(PluginView pluginView) {
     this.pluginView = pluginView;
@@ -66,19 +82,50 @@ public class PluginController implements ActionListener {
         }
         runModel();
         break;
+      case Constants.BTN_CANCEL:
+        cancelRun();
+        break;
+      case Constants.BTN_EXPORT_METRICS:
+        exportMetrics();
+        break;
+      case Constants.BTN_RESET_METRICS:
+        Metrics.getGlobal().reset();
+        pluginView.setMetrics(Metrics.getGlobal().summary());
+        break;
       default:
         logger.warn("Unknown action command: {}", command);
     }
   }
 
   public void postInit() {
-    processModelLocations();
-    processAvailableDevices();
+    Future<?> models = processModelLocations();
+    Future<?> devices = processAvailableDevices();
+    warmUp(models, devices);
+    watchModels();
+  }
+
+  /** Stops background work and releases the cached models. Called when the plugin is closed. */
+  public void shutdown() {
+    logger.debug("Shutting down plugin controller");
+    executorService.shutdownNow();
+    synchronized (this) {
+      if (scheduler != null) {
+        scheduler.close();
+      }
+    }
+    if (modelWatcher != null) {
+      try {
+        modelWatcher.close();
+      } catch (IOException e) {
+        logger.warn("Error closing the models directory watcher: {}", e.getMessage());
+      }
+    }
+    Algorithm.shutdown();
   }
 
   /// Async Methods ==================================================
-  public void processAvailableDevices() {
-    executorService.submit(
+  public Future<?> processAvailableDevices() {
+    return executorService.submit(
         () -> {
           ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
           try {
@@ -95,40 +142,31 @@ public class PluginController implements ActionListener {
             logger.error("No devices found, error in engine.");
           }
           logger.debug("Found {} devices", this.deviceInfos.length);
-          String[] deviceDisplays =
-              java.util.Arrays.stream(this.deviceInfos)
-                  .map(DeviceInfo::toDisplay)
-                  .toArray(String[]::new);
-          EventQueue.invokeLater(() -> pluginView.setDevices(deviceDisplays));
+          List<String> deviceDisplays = new ArrayList<>();
+          for (DeviceInfo deviceInfo : this.deviceInfos) {
+            deviceDisplays.add(deviceInfo.toDisplay());
+          }
+          if (this.deviceInfos.length > 1) {
+            // the last choice spreads the frames of a time series across all devices
+            deviceDisplays.add(Constants.LBL_ALL_DEVICES);
+          }
+          EventQueue.invokeLater(
+              () -> pluginView.setDevices(deviceDisplays.toArray(new String[0])));
         });
   }
 
-  public void processModelLocations() {
-    executorService.submit(
+  public Future<?> processModelLocations() {
+    return executorService.submit(
         () -> {
-          this.modelLocations = getModelLocations();
-          if (this.modelLocations == null || this.modelLocations.length == 0) {
-            this.modelLocations = new String[] {}; // Default to an empty array if no models found
-          }
+          List<ModelInfo> models = ModelIndex.getModels();
+          this.models = models;
+          logger.debug("Found {} models", models.size());
 
-          Arrays.sort(
-              this.modelLocations,
-              (path1, path2) -> {
-                // Sort by iteration number extracted from the file name
-                int iter1 = Integer.parseInt(path1.replaceAll("[^0-9]", ""));
-                int iter2 = Integer.parseInt(path2.replaceAll("[^0-9]", ""));
-                return Integer.compare(iter1, iter2);
-              });
-
-          logger.debug("Found {} model locations", this.modelLocations.length);
-
-          if (this.modelLocations != null && this.modelLocations.length > 0) {
+          if (!models.isEmpty()) {
             String[] iterations =
-                java.util.Arrays.stream(this.modelLocations)
-                    .map(path -> path.replaceAll("[^0-9]", ""))
-                    .filter(path -> !path.isEmpty())
+                models.stream()
+                    .map(model -> String.valueOf(model.iterations))
                     .distinct()
-                    .map(String::valueOf)
                     .toArray(String[]::new);
 
             EventQueue.invokeLater(() -> pluginView.setIterations(iterations));
@@ -138,27 +176,296 @@ public class PluginController implements ActionListener {
         });
   }
 
-  public void runModel() {
-    String selectedModel = modelLocations[pluginView.getSelectedIterationIndex()];
-    DeviceInfo selectedDevice = deviceInfos[pluginView.getSelectedDeviceIndex()];
-    logger.debug("Selected model: {}, Selected device: {}", selectedModel, selectedDevice);
-    this.pluginView.startProcessImage();
+  /**
+   * Watches the external models directory, if one is set, and updates the list of models when
+   * models are added or removed there, see {@link ModelIndex.Watcher}.
+   */
+  public void watchModels() {
+    Path dir = ModelIndex.getExternalDirectory();
+    if (dir == null || !Files.isDirectory(dir)) {
+      return;
+    }
+    try {
+      modelWatcher = new ModelIndex.Watcher(dir, this::processModelLocations);
+    } catch (IOException e) {
+      logger.error("Cannot watch the models directory {}: {}", dir, e.getMessage());
+    }
+  }
+
+  /**
+   * Loads the default model on the default device in the background and runs a small dummy
+   * reconstruction with it, once the devices and models are known. This moves native library
+   * loading, engine start-up, model deserialization and JIT warm-up out of the first real run. The
+   * progress is shown in the status line of the view; setting the system property {@value
+   * Constants#PROP_WARMUP} to {@code false} disables it.
+   *
+   * @param models the task that finds the models
+   * @param devices the task that finds the devices
+   */
+  public void warmUp(Future<?> models, Future<?> devices) {
+    if (!Boolean.parseBoolean(System.getProperty(Constants.PROP_WARMUP, "true"))) {
+      logger.debug("Warm-up disabled");
+      return;
+    }
     executorService.submit(
         () -> {
-          if (psfImage == null || inputImage == null) {
-            logger.error("PSF or Input image is not set");
+          try {
+            models.get();
+            devices.get();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          } catch (ExecutionException e) {
+            logger.error("Cannot warm up, devices or models not found: {}", e.getMessage());
+            return;
+          }
+          if (deviceInfos == null || deviceInfos.length == 0) {
             return;
           }
+          DeviceInfo device = deviceInfos[0];
+          List<ModelInfo> available = this.models;
+          String model = available.isEmpty() ? null : available.get(0).location;
+          EventQueue.invokeLater(
+              () ->
+                  pluginView.setStatus(
+                      String.format(Constants.LBL_STATUS_WARMING_UP, device.toDisplay())));
+          boolean ready = false;
+          ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
+          try {
+            Thread.currentThread().setContextClassLoader(PluginController.class.getClassLoader());
+            ready = Algorithm.warmUp(model, device);
+          } catch (CancellationException e) {
+            logger.debug("Warm-up cancelled");
+          } catch (Exception e) {
+            logger.error("Error occurred during warm-up: {}", e.getMessage());
+            logger.error("Stack trace: ");
+            for (StackTraceElement ste : e.getStackTrace()) {
+              logger.error(ste.toString());
+            }
+          } finally {
+            Thread.currentThread().setContextClassLoader(originalClassLoader);
+          }
+          String status = ready ? Constants.LBL_STATUS_READY : Constants.LBL_STATUS_WARMUP_FAILED;
+          EventQueue.invokeLater(() -> pluginView.setStatus(status));
+        });
+  }
+
+  /**
+   * Reconstructs every slice of the input as a frame of a time series. The frames are spread across
+   * the lanes of the given devices by the {@link DeviceScheduler}, and the volumes are assembled
+   * into a hyperstack with one time point per frame. The frames run without previews.
+   *
+   * @param devices the devices to run the frames on, see {@link #selectDevices}
+   * @param modelPathStr the path to the model file
+   * @param psf the point spread function image
+   * @param input the input frames
+   * @param options the options of the run, shared by all frames
+   * @return the reconstructed frames, or {@code null} if a frame fails
+   * @throws CancellationException if the run is cancelled
+   */
+  public ImagePlus runFrames(
+      DeviceInfo[] devices,
+      String modelPathStr,
+      ImagePlus psf,
+      ImagePlus input,
+      RunOptions options) {
+    return runFrames(getScheduler(devices, modelPathStr), modelPathStr, psf, input, options);
+  }
+
+  /**
+   * Reconstructs every slice of the input as a frame of a time series on the lanes of a scheduler,
+   * see {@link #runFrames(DeviceInfo[], String, ImagePlus, ImagePlus, RunOptions)}.
+   *
+   * @param scheduler the scheduler the frames are queued on
+   * @param modelPathStr the path to the model file
+   * @param psf the point spread function image
+   * @param input the input frames
+   * @param options the options of the run, shared by all frames
+   * @return the reconstructed frames, or {@code null} if a frame fails
+   * @throws CancellationException if the run is cancelled
+   */
+  public static ImagePlus runFrames(
+      DeviceScheduler scheduler,
+      String modelPathStr,
+      ImagePlus psf,
+      ImagePlus input,
+      RunOptions options) {
+    int frames = input.getStackSize();
+    List<Future<ImagePlus>> results = new ArrayList<>();
+    for (int t = 1; t <= frames; t++) {
+      RunOptions frameOptions = options.copy();
+      frameOptions.previewInterval = 0;
+      results.add(scheduler.submit(modelPathStr, psf, getFrame(input, t), frameOptions));
+    }
+
+    List<ImagePlus> volumes = new ArrayList<>();
+    try {
+      for (int t = 0; t < frames; t++) {
+        ImagePlus volume = results.get(t).get();
+        if (volume == null) {
+          logger.error("Reconstruction of frame {} failed", t + 1);
+          options.cancel();
+          return null;
+        }
+        volumes.add(volume);
+        logger.debug("Reconstructed frame {} of {}", t + 1, frames);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      options.cancel();
+      throw new CancellationException("Interrupted while waiting for the frames");
+    } catch (ExecutionException e) {
+      options.cancel();
+      throw new IllegalStateException("Reconstruction of a frame failed", e.getCause());
+    }
+    return stackFrames(volumes);
+  }
+
+  /**
+   * Returns a slice of a multi-slice input as a frame of its own.
+   *
+   * @param input the input frames
+   * @param t the frame, from 1
+   * @return the frame
+   */
+  static ImagePlus getFrame(ImagePlus input, int t) {
+    return new ImagePlus(input.getTitle() + "-" + t, input.getStack().getProcessor(t));
+  }
+
+  /**
+   * Stacks the reconstructed frames of a time series into a hyperstack of Z slices and frames.
+   *
+   * @param volumes the reconstructions of the frames, all of the same size
+   * @return the hyperstack
+   */
+  static ImagePlus stackFrames(List<ImagePlus> volumes) {
+    ImagePlus first = volumes.get(0);
+    int planes = first.getStackSize();
+    ImageStack stack = new ImageStack(first.getWidth(), first.getHeight());
+    for (ImagePlus volume : volumes) {
+      for (int z = 1; z <= planes; z++) {
+        stack.addSlice(volume.getStack().getProcessor(z));
+      }
+    }
+    ImagePlus result = new ImagePlus("reconstruction", stack);
+    result.setDimensions(1, planes, volumes.size());
+    result.setOpenAsHyperStack(true);
+    return result;
+  }
+
+  /**
+   * Returns the scheduler of the frame runs on the devices, with every lane warmed up with the
+   * model. The scheduler is kept for the next time series and replaced when the devices or the
+   * model change.
+   */
+  private synchronized DeviceScheduler getScheduler(DeviceInfo[] devices, String modelPathStr) {
+    StringBuilder key = new StringBuilder(String.valueOf(modelPathStr));
+    for (DeviceInfo device : devices) {
+      key.append(',').append(device.toDisplay());
+    }
+    if (scheduler == null || !key.toString().equals(schedulerKey)) {
+      if (scheduler != null) {
+        scheduler.close();
+      }
+      scheduler =
+          new DeviceScheduler(
+              devices,
+              Integer.getInteger(Constants.PROP_HOST_LANES, Constants.DEFAULT_HOST_LANES),
+              0,
+              modelPathStr);
+      schedulerKey = key.toString();
+    }
+    return scheduler;
+  }
+
+  /**
+   * Returns the devices the frames of a time series run on: the device chosen in the window, or
+   * every device worth scheduling on if the last choice, {@value Constants#LBL_ALL_DEVICES}, is
+   * selected, see {@link DeviceScheduler#selectDevices}.
+   *
+   * @param devices the available devices, in the order of the device choice
+   * @param selectedIndex the index of the selected choice
+   * @return the devices to run on
+   */
+  public static DeviceInfo[] selectDevices(DeviceInfo[] devices, int selectedIndex) {
+    if (selectedIndex >= devices.length) {
+      return DeviceScheduler.selectDevices(devices);
+    }
+    return new DeviceInfo[] {devices[Math.max(0, selectedIndex)]};
+  }
+
+  /** Cancels the active run. It stops at the next iteration or stage and releases its resources. */
+  public void cancelRun() {
+    RunOptions options = activeRun;
+    if (options != null) {
+      logger.debug("Cancelling the active run");
+      options.cancel();
+      pluginView.cancelProcessImage();
+    }
+  }
+
+  public void runModel() {
+    if (activeRun != null) {
+      logger.warn("A reconstruction is already running");
+      return;
+    }
+    final ImagePlus psf = this.psfImage;
+    final ImagePlus input = this.inputImage;
+    if (psf == null || input == null) {
+      logger.error("PSF or Input image is not set");
+      return;
+    }
+    RunOptions options = new RunOptions(pluginView.getSelectedOutputType());
+    options.iterations = pluginView.getIterations();
+    options.tolerance = pluginView.getTolerance();
+    options.previewInterval = pluginView.getPreviewInterval();
+    options.tiled = pluginView.isTiled();
+    options.precision = pluginView.getSelectedPrecision();
+    ThreadingConfig threading = ThreadingConfig.getCurrent().copy();
+    threading.intraOpThreads = pluginView.getThreads();
+    ThreadingConfig.setCurrent(threading);
+    String selectedModel = findModelLocation(models, options.iterations);
+    DeviceInfo[] selectedDevices = selectDevices(deviceInfos, pluginView.getSelectedDeviceIndex());
+    DeviceInfo selectedDevice = selectedDevices[0];
+    if (selectedModel == null && options.iterations <= 0) {
+      logger.error("No model or iteration count selected");
+      return;
+    }
+    logger.debug("Selected model: {}, Selected devices: {}", selectedModel, selectedDevices.length);
+    if (input.getStackSize() > 1 && options.previewInterval > 0) {
+      logger.warn("Previews are not shown for time series, the frames run on their own lanes");
+      pluginView.setStatus(Constants.LBL_STATUS_NO_PREVIEW);
+    }
+    if (Algorithm.isPrecisionIgnored(selectedModel, options)) {
+      // the warning itself is logged by Algorithm.getPrecision
+      pluginView.setStatus(Constants.LBL_STATUS_MODEL_FP32);
+    }
+    int centerX = pluginView.getCenterX();
+    int centerY = pluginView.getCenterY();
+    int radius = pluginView.getRadius();
+    options.crop = new CircleCrop(centerX, centerY, radius);
+    options.previewListener =
+        (estimate, iteration) ->
+            EventQueue.invokeLater(() -> pluginView.updatePreview(estimate, iteration));
+    this.activeRun = options;
+    this.pluginView.startProcessImage();
+    executorService.submit(
+        () -> {
           final ImagePlus[] processedImage = new ImagePlus[1];
 
           ClassLoader originalClassLoader = Thread.currentThread().getContextClassLoader();
           ImagePlus tmpImage = null;
 
-          // Step 1: Run the algoritm with the selected model and device
+          // Run the algoritm with the selected model and device, the result is cropped and masked
+          // before it is copied from the device
           try {
             Thread.currentThread().setContextClassLoader(PluginController.class.getClassLoader());
             tmpImage =
-                Algorithm.runModel(selectedModel, selectedDevice, this.psfImage, this.inputImage);
+                input.getStackSize() > 1
+                    ? runFrames(selectedDevices, selectedModel, psf, input, options)
+                    : Algorithm.runModel(selectedModel, selectedDevice, psf, input, options);
+          } catch (CancellationException e) {
+            logger.info("Reconstruction cancelled");
           } catch (Exception e) {
             logger.error("Error occurred while running model: {}", e.getMessage());
             e.printStackTrace();
@@ -166,26 +473,37 @@ public class PluginController implements ActionListener {
             Thread.currentThread().setContextClassLoader(originalClassLoader);
           }
 
-          // Step 2: Crop and apply a circle mask
-          if (tmpImage != null) {
-            try {
-              int centerX = pluginView.getCenterX();
-              int centerY = pluginView.getCenterY();
-              int radius = pluginView.getRadius();
-
-              tmpImage =
-                  cropImage(tmpImage, centerX - radius, centerY - radius, radius * 2, radius * 2);
-              tmpImage = applyCircleMask(tmpImage, radius, radius, radius * 2);
-            } catch (Exception ex) {
-              logger.error("Error during cropping or masking: {}", ex.getMessage());
-              ex.printStackTrace();
-            }
-          }
-
-          processedImage[0] = tmpImage;
-          EventQueue.invokeLater(() -> pluginView.endProcessedImage(processedImage[0]));
+          processedImage[0] = options.isCancelled() ? null : tmpImage;
+          this.activeRun = null;
+          String metrics = Metrics.getGlobal().summary();
+          EventQueue.invokeLater(
+              () -> {
+                pluginView.endProcessedImage(processedImage[0]);
+                pluginView.setMetrics(metrics);
+              });
         });
   }
+
+  /**
+   * Asks for a file and writes the metrics of the runs so far to it, as CSV if its name ends with
+   * {@code .csv} and as JSON otherwise.
+   */
+  public void exportMetrics() {
+    FileDialog fileDialog =
+        new FileDialog(pluginView, Constants.LBL_EXPORT_METRICS, FileDialog.SAVE);
+    fileDialog.setFile(Constants.METRICS_FILE);
+    fileDialog.setVisible(true);
+    if (fileDialog.getFile() == null) {
+      return;
+    }
+    File file = new File(fileDialog.getDirectory(), fileDialog.getFile());
+    try {
+      Metrics.getGlobal().write(file.toPath());
+      logger.info("Metrics written to {}", file);
+    } catch (IOException e) {
+      logger.error("Cannot write the metrics to {}: {}", file, e.getMessage());
+    }
+  }
   // ===========================================================================
 
   // Image Retrieval Methods ===================================================
@@ -207,6 +525,13 @@ public class PluginController implements ActionListener {
     if (filePath != null) {
       String directory = fileDialog.getDirectory();
       File selectedFile = new File(directory, filePath);
+      if (selectedFile.length() > Constants.VIRTUAL_STACK_BYTES) {
+        // the slices of a large stack are read when the input array is built, not held on the heap
+        ImagePlus image = IJ.openVirtual(selectedFile.getAbsolutePath());
+        if (image != null) {
+          return image;
+        }
+      }
       return new ImagePlus(selectedFile.getAbsolutePath());
     }
     return null;
@@ -237,25 +562,65 @@ public class PluginController implements ActionListener {
 
   // Image Processing Methods ==================================================
 
+  /**
+   * Crops every slice of the image to the rectangle, clipped to the image bounds.
+   *
+   * <p>The rows are copied straight from the pixel arrays of the stack, with the slices spread by
+   * {@link Parallel#forEach} over the pool of the {@link ThreadingConfig}. The current slice and
+   * ROI of the source image are left untouched, so it is safe to crop an image that is shown or
+   * used by another run.
+   */
   protected static ImagePlus cropImage(ImagePlus image, int x, int y, int width, int height) {
     logger.debug(
         "Cropping image stack at ({}, {}) with width {} and height {}", x, y, width, height);
 
-    int stackSize = image.getStackSize();
-    ij.ImageStack croppedStack = new ij.ImageStack(width, height);
+    ij.ImageStack stack = image.getStack();
+    Rectangle bounds =
+        new Rectangle(x, y, width, height)
+            .intersection(new Rectangle(0, 0, stack.getWidth(), stack.getHeight()));
+    if (bounds.isEmpty()) {
+      throw new IllegalArgumentException("The crop rectangle lies outside the image");
+    }
+
+    int stackSize = stack.getSize();
+    int srcWidth = stack.getWidth();
+    Object[] croppedPixels = new Object[stackSize];
+    try (Metrics.Timer timer = Metrics.getGlobal().start(Metrics.Stage.CROP_MASK)) {
+      Parallel.forEach(
+          stackSize,
+          i -> {
+            Object pixels = stack.getPixels(i + 1);
+            Object cropped =
+                java.lang.reflect.Array.newInstance(
+                    pixels.getClass().getComponentType(), bounds.width * bounds.height);
+            for (int row = 0; row < bounds.height; row++) {
+              System.arraycopy(
+                  pixels,
+                  (bounds.y + row) * srcWidth + bounds.x,
+                  cropped,
+                  row * bounds.width,
+                  bounds.width);
+            }
+            croppedPixels[i] = cropped;
+          });
+    }
 
-    for (int i = 1; i <= stackSize; i++) {
-      image.setSlice(i);
-      Roi roi = new Roi(x, y, width, height);
-      image.setRoi(roi);
-      ImageProcessor croppedProcessor = image.getProcessor().crop();
-      croppedStack.addSlice(image.getStack().getSliceLabel(i), croppedProcessor);
+    ij.ImageStack croppedStack = new ij.ImageStack(bounds.width, bounds.height);
+    croppedStack.setColorModel(stack.getColorModel());
+    for (int i = 0; i < stackSize; i++) {
+      croppedStack.addSlice(stack.getSliceLabel(i + 1), croppedPixels[i]);
     }
 
     ImagePlus croppedImage = new ImagePlus("croppedImage", croppedStack);
     return croppedImage;
   }
 
+  /**
+   * Sets every pixel outside the circle to zero. The mask is computed once per center, diameter and
+   * image size, see {@link CircleMask}, and the slices are masked in place and in parallel.
+   *
+   * @return a new image sharing the masked stack of the input image
+   */
   protected static ImagePlus applyCircleMask(
       ImagePlus image, int centerX, int centerY, int diameter) {
     logger.debug(
@@ -263,37 +628,35 @@ public class PluginController implements ActionListener {
         centerX,
         centerY,
         diameter);
-    int stackSize = image.getStackSize();
-    int width = image.getWidth();
-    int height = image.getHeight();
-    ij.ImageStack maskedStack = new ij.ImageStack(width, height);
-
-    // Create the mask once
-    OvalRoi circleRoi =
-        new OvalRoi(centerX - diameter / 2, centerY - diameter / 2, diameter, diameter);
-
-    for (int i = 1; i <= stackSize; i++) {
-      image.setSlice(i);
-      image.setRoi(circleRoi);
-      ImageProcessor ip = image.getProcessor().duplicate();
-
-      for (int y = 0; y < ip.getHeight(); y++) {
-        for (int x = 0; x < ip.getWidth(); x++) {
-          if (!circleRoi.contains(x, y)) {
-            ip.putPixel(x, y, 0); // Set pixel to black if outside the circle
-          }
-        }
-      }
-      maskedStack.addSlice(image.getStack().getSliceLabel(i), ip);
+    ij.ImageStack stack = image.getStack();
+    try (Metrics.Timer timer = Metrics.getGlobal().start(Metrics.Stage.CROP_MASK)) {
+      CircleMask.of(centerX, centerY, diameter, image.getWidth(), image.getHeight()).apply(stack);
     }
-
-    ImagePlus maskedImage = new ImagePlus("maskedImage", maskedStack);
-    return maskedImage;
+    return new ImagePlus("maskedImage", stack);
   }
   // ===========================================================================
 
   // Model Retrieval Methods ===================================================
 
+  /**
+   * Returns the exported model that runs exactly the given number of iterations.
+   *
+   * @param models the available models, see {@link ModelIndex}
+   * @param iterations the requested number of iterations
+   * @return the model location, or {@code null} if no model runs that many iterations
+   */
+  public static String findModelLocation(List<ModelInfo> models, int iterations) {
+    if (models == null) {
+      return null;
+    }
+    for (ModelInfo model : models) {
+      if (model.iterations == iterations) {
+        return model.location;
+      }
+    }
+    return null;
+  }
+
   public static String[] getModelLocations() {
     return Optional.ofNullable(getModelLocationsFromJar())
         .orElseGet(() -> getModelLocationsFromFile());
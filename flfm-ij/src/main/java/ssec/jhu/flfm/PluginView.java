@@ -4,11 +4,14 @@ import ij.ImagePlus;
 import ij.gui.GUI;
 import ij.plugin.frame.PlugInFrame;
 import java.awt.Button;
+import java.awt.Checkbox;
 import java.awt.Choice;
+import java.awt.Font;
 import java.awt.Frame;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Label;
+import java.awt.TextArea;
 import java.awt.TextField;
 import java.awt.event.ActionListener;
 import org.slf4j.Logger;
@@ -27,11 +30,25 @@ public class PluginView extends PlugInFrame {
   protected Button btnCalculate;
   protected Choice iterationChoice;
   protected Choice deviceChoice;
+  protected Choice outputTypeChoice;
+  protected Choice precisionChoice;
   protected TextField textFieldPsf;
   protected TextField textFieldInput;
   protected TextField textFieldCenterX;
   protected TextField textFieldCenterY;
   protected TextField textFieldRadius;
+  protected TextField textFieldIterations;
+  protected TextField textFieldTolerance;
+  protected TextField textFieldPreviewInterval;
+  protected TextField textFieldThreads;
+  protected Checkbox checkboxTiled;
+  protected Label labelStatus;
+  protected TextArea textAreaMetrics;
+  protected Button btnExportMetrics;
+  protected Button btnResetMetrics;
+
+  /** Window showing the intermediate estimates of the running reconstruction. */
+  private ImagePlus previewImage;
 
   public PluginView() {
     this("PluginUI");
@@ -59,6 +76,12 @@ public class PluginView extends PlugInFrame {
     ui.setLocationRelativeTo(null);
   }
 
+  @Override
+  public void close() {
+    this.pluginController.shutdown();
+    super.close();
+  }
+
   // Make initComponents method public for testing
   public void initComponents() {
     logger.debug("Initializing PluginUI components");
@@ -126,6 +149,82 @@ public class PluginView extends PlugInFrame {
     gbc.gridwidth = 1;
     this.textFieldRadius = addTextField(this, String.valueOf(Constants.DEFAULT_RADIUS), gbc, true);
 
+    row++;
+    logger.debug("Initializing Output Type Choice");
+    gbc.gridx = 0;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
+    addLabel(this, Constants.LBL_OUTPUT_TYPE, gbc);
+
+    gbc.gridx = 1;
+    gbc.gridy = row;
+    gbc.gridwidth = 2;
+    this.outputTypeChoice = addChoice(this, OutputType.displays(), gbc);
+
+    logger.debug("Initializing Tolerance Text Field");
+    gbc.gridx = 3;
+    gbc.gridy = row;
+    gbc.gridwidth = 2;
+    addLabel(this, Constants.LBL_TOLERANCE, gbc);
+
+    gbc.gridx = 5;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
+    this.textFieldTolerance = addTextField(this, "0", gbc, true);
+
+    row++;
+    logger.debug("Initializing Preview Interval Text Field");
+    gbc.gridx = 0;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
+    addLabel(this, Constants.LBL_PREVIEW_INTERVAL, gbc);
+
+    gbc.gridx = 1;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
+    this.textFieldPreviewInterval = addTextField(this, "0", gbc, true);
+
+    gbc.gridx = 2;
+    gbc.gridy = row;
+    gbc.gridwidth = 2;
+    addLabel(this, Constants.LBL_PREVIEW_UNIT, gbc);
+
+    logger.debug("Initializing Tiled Checkbox");
+    gbc.gridx = 4;
+    gbc.gridy = row;
+    gbc.gridwidth = 2;
+    this.checkboxTiled = new Checkbox(Constants.LBL_TILED, false);
+    this.add(this.checkboxTiled, gbc);
+
+    row++;
+    logger.debug("Initializing Threads Text Field");
+    gbc.gridx = 0;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
+    addLabel(this, Constants.LBL_THREADS, gbc);
+
+    gbc.gridx = 1;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
+    this.textFieldThreads =
+        addTextField(this, String.valueOf(ThreadingConfig.getCurrent().intraOpThreads), gbc, true);
+
+    gbc.gridx = 2;
+    gbc.gridy = row;
+    gbc.gridwidth = 2;
+    addLabel(this, Constants.LBL_THREADS_UNIT, gbc);
+
+    logger.debug("Initializing Precision Choice");
+    gbc.gridx = 4;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
+    addLabel(this, Constants.LBL_PRECISION, gbc);
+
+    gbc.gridx = 5;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
+    this.precisionChoice = addChoice(this, Precision.displays(), gbc);
+
     row++;
     logger.debug("Initializing Iterations Label");
     gbc.gridx = 0;
@@ -138,19 +237,57 @@ public class PluginView extends PlugInFrame {
     gbc.gridy = row;
     gbc.gridwidth = 1;
     this.iterationChoice = addChoice(this, PluginView.placeholder, gbc);
+    // The choice offers the iteration counts of the exported models, any other count can be typed
+    this.iterationChoice.addItemListener(
+        e -> this.textFieldIterations.setText(this.iterationChoice.getSelectedItem()));
 
-    logger.debug("Initializing Device Choice");
+    logger.debug("Initializing Iterations Text Field");
     gbc.gridx = 2;
     gbc.gridy = row;
     gbc.gridwidth = 1;
+    this.textFieldIterations = addTextField(this, "", gbc, true);
+
+    logger.debug("Initializing Device Choice");
+    gbc.gridx = 3;
+    gbc.gridy = row;
+    gbc.gridwidth = 1;
     this.deviceChoice = addChoice(this, PluginView.placeholder, gbc);
 
     logger.debug("Initializing Calculate Button");
-    gbc.gridx = 3;
+    gbc.gridx = 4;
     gbc.gridy = row;
-    gbc.gridwidth = 4;
+    gbc.gridwidth = 2;
     this.btnCalculate = addButton(this, Constants.BTN_CALCULATE, gbc, this.pluginController);
 
+    row++;
+    logger.debug("Initializing Status Label");
+    gbc.gridx = 0;
+    gbc.gridy = row;
+    gbc.gridwidth = 6;
+    this.labelStatus = addLabel(this, Constants.LBL_STATUS_STARTING, gbc);
+
+    row++;
+    logger.debug("Initializing Metrics Panel");
+    gbc.gridx = 0;
+    gbc.gridy = row;
+    gbc.gridwidth = 6;
+    this.textAreaMetrics = new TextArea("", 6, 60, TextArea.SCROLLBARS_VERTICAL_ONLY);
+    this.textAreaMetrics.setEditable(false);
+    this.textAreaMetrics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+    this.add(this.textAreaMetrics, gbc);
+
+    row++;
+    gbc.gridx = 0;
+    gbc.gridy = row;
+    gbc.gridwidth = 3;
+    this.btnExportMetrics =
+        addButton(this, Constants.BTN_EXPORT_METRICS, gbc, this.pluginController);
+
+    gbc.gridx = 3;
+    gbc.gridy = row;
+    gbc.gridwidth = 3;
+    this.btnResetMetrics = addButton(this, Constants.BTN_RESET_METRICS, gbc, this.pluginController);
+
     logger.debug("Finished initializing UI components");
   }
 
@@ -200,10 +337,31 @@ public class PluginView extends PlugInFrame {
     for (String iteration : iterations) {
       this.iterationChoice.add(iteration);
     }
+    if (iterations.length > 0 && this.textFieldIterations.getText().trim().isEmpty()) {
+      this.textFieldIterations.setText(iterations[0]);
+    }
 
     this.repaint();
   }
 
+  /**
+   * Shows a message in the status line, such as the progress of the warm-up.
+   *
+   * @param status the message to show
+   */
+  public void setStatus(String status) {
+    this.labelStatus.setText(status);
+  }
+
+  /**
+   * Shows the metrics of the runs so far in the metrics panel, see {@link Metrics#summary}.
+   *
+   * @param summary the summary to show
+   */
+  public void setMetrics(String summary) {
+    this.textAreaMetrics.setText(summary);
+  }
+
   public void setDevices(String[] devices) {
     this.deviceChoice.removeAll();
     for (String device : devices) {
@@ -240,6 +398,62 @@ public class PluginView extends PlugInFrame {
     }
   }
 
+  /**
+   * Returns the number of iterations typed by the user, or the selected model's count if the field
+   * does not hold a positive number.
+   */
+  public int getIterations() {
+    try {
+      int iterations = Integer.parseInt(this.textFieldIterations.getText().trim());
+      if (iterations > 0) {
+        return iterations;
+      }
+    } catch (NumberFormatException e) {
+      logger.error("Invalid iterations value: {}", this.textFieldIterations.getText(), e);
+    }
+    String selected = this.iterationChoice.getSelectedItem();
+    return selected != null && selected.trim().matches("[0-9]+")
+        ? Integer.parseInt(selected.trim())
+        : 0;
+  }
+
+  public double getTolerance() {
+    try {
+      return Math.max(0, Double.parseDouble(this.textFieldTolerance.getText()));
+    } catch (NumberFormatException e) {
+      logger.error("Invalid tolerance value: {}", this.textFieldTolerance.getText(), e);
+      return 0;
+    }
+  }
+
+  public int getPreviewInterval() {
+    try {
+      return Math.max(0, Integer.parseInt(this.textFieldPreviewInterval.getText().trim()));
+    } catch (NumberFormatException e) {
+      logger.error("Invalid preview interval: {}", this.textFieldPreviewInterval.getText(), e);
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the PyTorch intra-op threads of a run, 0 to divide the cores automatically, see {@link
+   * ThreadingConfig}.
+   *
+   * @return the number of threads
+   */
+  public int getThreads() {
+    try {
+      return Math.max(0, Integer.parseInt(this.textFieldThreads.getText().trim()));
+    } catch (NumberFormatException e) {
+      logger.error("Invalid thread count: {}", this.textFieldThreads.getText(), e);
+      return 0;
+    }
+  }
+
+  public boolean isTiled() {
+    return this.checkboxTiled.getState();
+  }
+
   public int getSelectedIterationIndex() {
     return this.iterationChoice.getSelectedIndex();
   }
@@ -248,18 +462,61 @@ public class PluginView extends PlugInFrame {
     return this.deviceChoice.getSelectedIndex();
   }
 
+  public OutputType getSelectedOutputType() {
+    int index = this.outputTypeChoice.getSelectedIndex();
+    return index < 0 ? OutputType.UINT16_SATURATE : OutputType.values()[index];
+  }
+
+  public Precision getSelectedPrecision() {
+    int index = this.precisionChoice.getSelectedIndex();
+    return index < 0 ? Precision.FP32 : Precision.values()[index];
+  }
+
+  /** Turns the Calculate button into a Cancel button while a run is active. */
   public void startProcessImage() {
-    this.btnCalculate.setLabel(Constants.BTN_WORKING);
+    this.btnCalculate.setLabel(Constants.BTN_CANCEL);
+    this.btnCalculate.setEnabled(true);
+    this.repaint();
+  }
+
+  /** Disables the Cancel button until the cancelled run has released its resources. */
+  public void cancelProcessImage() {
+    this.btnCalculate.setLabel(Constants.BTN_CANCELLING);
     this.btnCalculate.setEnabled(false);
     this.repaint();
   }
 
+  /**
+   * Shows an intermediate estimate, replacing the previous one in the same window.
+   *
+   * @param estimate the cropped and masked estimate
+   * @param iteration the number of iterations run so far
+   */
+  public void updatePreview(ImagePlus estimate, int iteration) {
+    String title = Constants.TITLE_PREVIEW + " (iteration " + iteration + ")";
+    if (this.previewImage == null || this.previewImage.getWindow() == null) {
+      this.previewImage = new ImagePlus(title, estimate.getStack());
+      this.previewImage.show();
+    } else {
+      int slice = this.previewImage.getCurrentSlice();
+      this.previewImage.setStack(estimate.getStack());
+      this.previewImage.setSlice(Math.min(slice, this.previewImage.getStackSize()));
+      this.previewImage.setTitle(title);
+    }
+  }
+
   public void endProcessedImage(ImagePlus processedImage) {
     if (processedImage == null) {
       logger.error("Processed image is null");
     } else {
       logger.debug("Displaying processed image: {}", processedImage.getTitle());
       processedImage.show();
+      if (this.previewImage != null) {
+        // the final result replaces the preview
+        this.previewImage.changes = false;
+        this.previewImage.close();
+        this.previewImage = null;
+      }
     }
     this.btnCalculate.setLabel(Constants.BTN_CALCULATE);
     this.btnCalculate.setEnabled(true);
@@ -0,0 +1,60 @@
+package ssec.jhu.flfm;
+
+import ai.djl.ndarray.types.DataType;
+
+/**
+ * Floating point precision of the Richardson-Lucy iterations on a PyTorch device.
+ *
+ * <p>The 16 bit precisions halve the memory of the estimate kept between iterations. Each step,
+ * including its FFTs and the ratio deconvolution is sensitive to, is still computed in 32 bit, see
+ * {@link TorchRichardsonLucy}. Models always run in 32 bit, see {@link Algorithm#getPrecision}.
+ */
+public enum Precision {
+  /** 32 bit float, the precision the models are exported with. */
+  FP32("32-bit", DataType.FLOAT32),
+  /** 16 bit IEEE half precision; only run on GPUs, as PyTorch lacks most half kernels on CPUs. */
+  FP16("16-bit", DataType.FLOAT16),
+  /** 16 bit brain float, with the range of 32 bit float; runs on GPUs and recent CPUs. */
+  BF16("bf16", DataType.BFLOAT16);
+
+  private final String display;
+  private final DataType dataType;
+
+  Precision(String display, DataType dataType) {
+    this.display = display;
+    this.dataType = dataType;
+  }
+
+  public String toDisplay() {
+    return display;
+  }
+
+  public DataType getDataType() {
+    return dataType;
+  }
+
+  /**
+   * Returns whether the iterations can run in this precision on the device. Runs that need an
+   * unsupported precision fall back to {@link #FP32}.
+   *
+   * @param deviceInfo the device to run on
+   * @return {@code true} if the precision is supported
+   */
+  public boolean isSupported(DeviceInfo deviceInfo) {
+    return this != FP16 || "GPU".equalsIgnoreCase(deviceInfo.type);
+  }
+
+  /**
+   * Returns the display names of all precisions, in declaration order.
+   *
+   * @return the display names
+   */
+  public static String[] displays() {
+    Precision[] values = values();
+    String[] displays = new String[values.length];
+    for (int i = 0; i < values.length; i++) {
+      displays[i] = values[i].display;
+    }
+    return displays;
+  }
+}
@@ -0,0 +1,16 @@
+package ssec.jhu.flfm;
+
+import ij.ImagePlus;
+
+/** Receives intermediate reconstructions while the iterations are still running. */
+public interface PreviewListener {
+
+  /**
+   * Called with the current estimate every {@link RunOptions#previewInterval} iterations. It is
+   * called on the thread running the reconstruction, which waits until it returns.
+   *
+   * @param estimate the current estimate, converted like the final output
+   * @param iteration the number of iterations run so far
+   */
+  void onPreview(ImagePlus estimate, int iteration);
+}
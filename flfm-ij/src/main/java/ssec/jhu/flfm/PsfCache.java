@@ -0,0 +1,344 @@
+package ssec.jhu.flfm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of normalized PSF arrays kept on the device they are used on.
+ *
+ * <p>The PSF of an experiment is large, read only and identical for every frame, so it is
+ * converted, normalized and copied to the device once. Entries are keyed by the device and a hash
+ * of the pixel content, so an edited PSF is never served from the cache while a reopened copy of
+ * the same file still is. Entries evicted while in use are closed once the last lease is released.
+ *
+ * <p>Images in memory are hashed on every acquire, as ImageJ does not reliably report edits: saving
+ * clears the change flag and plugins may edit the pixels directly. One pass over the host arrays is
+ * cheap next to the upload. Only the hash of a virtual stack is reused, while its files keep their
+ * modification times, so it is not read from disk again for every run or tile. Hashing and
+ * uploading happen outside the lock of the cache; threads that need a PSF that is being uploaded
+ * wait for that upload.
+ */
+public class PsfCache {
+
+  /** Logger for the PsfCache class. */
+  private static final Logger logger = LoggerFactory.getLogger(PsfCache.class);
+
+  /** A normalized PSF array on a device. */
+  private static class Entry {
+    final NDArray array;
+    final int imageId;
+    int users;
+    boolean evicted;
+
+    Entry(NDArray array, int imageId) {
+      this.array = array;
+      this.imageId = imageId;
+    }
+  }
+
+  /** Shared, read only access to a cached PSF array. Closing the lease returns it to the cache. */
+  public class Lease implements AutoCloseable {
+    private final Entry entry;
+    private boolean released;
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+    }
+
+    public NDArray getArray() {
+      return entry.array;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(entry);
+      }
+    }
+  }
+
+  private final int maxEntries;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, NDManager> managers = new HashMap<>();
+
+  /** Uploads in progress by key, completed with the entry or with {@code null} if they failed. */
+  private final Map<String, CompletableFuture<Entry>> loading = new HashMap<>();
+
+  /**
+   * Counts the calls of {@link #invalidateAll}. An upload that started before the last one leases
+   * its array to its caller only and closes it on release instead of publishing it.
+   */
+  private long generation;
+
+  /** Most virtual stacks whose hash is kept, see {@link #hashOf}. */
+  private static final int MAX_HASHES = 64;
+
+  /** Content hashes of virtual stacks by their files and modification times. */
+  private final Map<String, Long> hashes =
+      new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+          return size() > MAX_HASHES;
+        }
+      };
+
+  private long hits;
+  private long misses;
+
+  /**
+   * Creates a new cache.
+   *
+   * @param maxEntries the maximum number of PSF arrays to keep
+   */
+  public PsfCache(int maxEntries) {
+    this.maxEntries = Math.max(1, maxEntries);
+  }
+
+  /**
+   * Returns the normalized PSF array for the image on the device, converting and uploading it only
+   * if it is not cached yet.
+   *
+   * @param psfImage the point spread function image
+   * @param deviceInfo the device the array is needed on
+   * @return a lease on the array that must be closed after use
+   */
+  public Lease acquire(ImagePlus psfImage, DeviceInfo deviceInfo) {
+    String key = deviceInfo.toDeviceName() + ":" + Long.toHexString(hashOf(psfImage));
+    Entry entry = null;
+    CompletableFuture<Entry> pending = null;
+    NDManager manager = null;
+    long started;
+    while (true) {
+      synchronized (this) {
+        started = generation;
+        entry = entries.get(key);
+        if (entry != null) {
+          hits++;
+          logger.debug(
+              "PSF cache hit for image {} (cached from image {})", psfImage.getID(), entry.imageId);
+          entry.users++;
+          return new Lease(entry);
+        }
+        pending = loading.get(key);
+        if (pending == null) {
+          misses++;
+          logger.debug("PSF cache miss for image {} ({})", psfImage.getID(), key);
+          manager =
+              managers.computeIfAbsent(
+                  deviceInfo.toDeviceName(), d -> Algorithm.newManager(deviceInfo));
+          pending = new CompletableFuture<>();
+          loading.put(key, pending);
+          break;
+        }
+      }
+      // another thread is uploading the PSF, look again once it is done or has failed
+      await(pending);
+    }
+
+    boolean published = false;
+    try {
+      entry = new Entry(Algorithm.preparePsf(psfImage, manager), psfImage.getID());
+      return new Lease(entry);
+    } finally {
+      synchronized (this) {
+        loading.remove(key);
+        if (entry != null) {
+          entry.users++;
+          if (started == generation) {
+            entries.put(key, entry);
+            evict(entry);
+            published = true;
+          } else {
+            // the cache was invalidated during the upload, the array leaves with the lease
+            entry.evicted = true;
+          }
+        }
+      }
+      pending.complete(published ? entry : null);
+    }
+  }
+
+  /** Waits for the upload of another thread, whatever its outcome. */
+  private static void await(CompletableFuture<Entry> pending) {
+    try {
+      pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted while waiting for the PSF");
+    } catch (ExecutionException e) {
+      // the uploading thread reports the failure, this one tries again
+    }
+  }
+
+  /**
+   * Returns the content hash of an image. A virtual stack is hashed again only when one of its
+   * files has been modified; any other image is hashed every time.
+   *
+   * @param image the image to hash
+   * @return the content hash, see {@link #contentHash}
+   */
+  long hashOf(ImagePlus image) {
+    String source = virtualSource(image);
+    if (source == null) {
+      return contentHash(image);
+    }
+    synchronized (hashes) {
+      Long hash = hashes.get(source);
+      if (hash != null) {
+        return hash;
+      }
+    }
+    long hash = contentHash(image);
+    synchronized (hashes) {
+      hashes.put(source, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Describes the files a virtual stack is read from by their paths and modification times.
+   *
+   * @param image the image to describe
+   * @return the description, or {@code null} if the image is not a virtual stack of known files
+   */
+  static String virtualSource(ImagePlus image) {
+    ImageStack stack = image.getStack();
+    if (!(stack instanceof VirtualStack)) {
+      return null;
+    }
+    VirtualStack virtual = (VirtualStack) stack;
+    StringBuilder source = new StringBuilder();
+    if (virtual.getDirectory() != null && virtual.getFileName(1) != null) {
+      // a folder opened as a stack, one file per slice
+      for (int slice = 1; slice <= virtual.getSize(); slice++) {
+        appendFile(source, new File(virtual.getDirectory(), virtual.getFileName(slice)));
+      }
+      return source.toString();
+    }
+    FileInfo info = image.getOriginalFileInfo();
+    if (info == null || info.directory == null || info.fileName == null) {
+      return null;
+    }
+    appendFile(source, new File(info.directory, info.fileName));
+    return source.toString();
+  }
+
+  private static void appendFile(StringBuilder source, File file) {
+    source.append(file.getAbsolutePath()).append('@').append(file.lastModified()).append(';');
+  }
+
+  /**
+   * Removes all entries and releases the device memory of every PSF that is not in use. PSFs still
+   * uploading are not cached either, see {@link #generation}, and keep their managers open.
+   */
+  public void invalidateAll() {
+    List<NDManager> idleManagers = new ArrayList<>();
+    synchronized (this) {
+      generation++;
+      boolean inUse = !loading.isEmpty();
+      for (Entry entry : entries.values()) {
+        entry.evicted = true;
+        if (entry.users == 0) {
+          entry.array.close();
+        } else {
+          inUse = true;
+        }
+      }
+      entries.clear();
+      if (!inUse) {
+        idleManagers.addAll(managers.values());
+        managers.clear();
+      }
+    }
+    for (NDManager manager : idleManagers) {
+      manager.close();
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private synchronized void release(Entry entry) {
+    entry.users--;
+    if (entry.evicted && entry.users == 0) {
+      entry.array.close();
+    }
+  }
+
+  /** Evicts least recently used entries, other than {@code keep}, until the cache fits. */
+  private void evict(Entry keep) {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (entries.size() > maxEntries && it.hasNext()) {
+      Entry entry = it.next().getValue();
+      if (entry == keep) {
+        continue;
+      }
+      it.remove();
+      entry.evicted = true;
+      if (entry.users == 0) {
+        entry.array.close();
+      }
+    }
+  }
+
+  /**
+   * Computes a 64 bit hash of the dimensions and pixel values of every slice of the image.
+   *
+   * @param image the image to hash
+   * @return the content hash
+   */
+  public static long contentHash(ImagePlus image) {
+    ImageStack stack = image.getStack();
+    long hash = 1125899906842597L;
+    hash = 31 * hash + image.getWidth();
+    hash = 31 * hash + image.getHeight();
+    hash = 31 * hash + stack.getSize();
+    for (int slice = 1; slice <= stack.getSize(); slice++) {
+      Object pixels = stack.getPixels(slice);
+      if (pixels instanceof short[]) {
+        for (short value : (short[]) pixels) {
+          hash = 31 * hash + value;
+        }
+      } else if (pixels instanceof byte[]) {
+        for (byte value : (byte[]) pixels) {
+          hash = 31 * hash + value;
+        }
+      } else if (pixels instanceof float[]) {
+        for (float value : (float[]) pixels) {
+          hash = 31 * hash + Float.floatToIntBits(value);
+        }
+      } else if (pixels instanceof int[]) {
+        for (int value : (int[]) pixels) {
+          hash = 31 * hash + value;
+        }
+      }
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,63 @@
+package ssec.jhu.flfm;
+
+import ij.ImagePlus;
+
+/**
+ * A backend that reconstructs a volume from a light-field image and its PSF.
+ *
+ * <p>Every engine contributes its devices to the device list shown to the user, and {@link
+ * Algorithm} runs a reconstruction with the engine that owns the selected device.
+ */
+public interface ReconstructionEngine {
+
+  /**
+   * Returns the devices this engine can run on.
+   *
+   * @return the available devices, possibly empty
+   */
+  DeviceInfo[] getDevices();
+
+  /**
+   * Returns whether this engine owns the given device.
+   *
+   * @param deviceInfo the device selected by the user
+   * @return {@code true} if this engine runs on the device
+   */
+  boolean supports(DeviceInfo deviceInfo);
+
+  /**
+   * Returns the memory a reconstruction on the device may use, see {@link TiledReconstruction}.
+   *
+   * @param deviceInfo the device to run on
+   * @return the available memory in bytes
+   */
+  long getAvailableBytes(DeviceInfo deviceInfo);
+
+  /**
+   * Estimates the peak memory of a reconstruction of the given size.
+   *
+   * @param numPlanes the number of planes of the volume
+   * @param height the height of the image
+   * @param width the width of the image
+   * @return the estimated memory use in bytes
+   */
+  long estimateBytes(int numPlanes, int height, int width);
+
+  /**
+   * Reconstructs the volume for the input image.
+   *
+   * @param modelPathStr the path to the model file, which determines the iteration count unless the
+   *     options set one; may be {@code null} in that case
+   * @param deviceInfo the device to run on
+   * @param psfImage the point spread function image
+   * @param inputImage the input image to process
+   * @param options the options of this run
+   * @return the reconstructed volume, or {@code null} if an error occurs
+   */
+  ImagePlus reconstruct(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus inputImage,
+      RunOptions options);
+}
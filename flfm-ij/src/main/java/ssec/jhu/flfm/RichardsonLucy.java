@@ -0,0 +1,324 @@
+package ssec.jhu.flfm;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Richardson-Lucy deconvolution of a light-field image into a volume, in pure Java.
+ *
+ * <p>This follows the formulation used by the exported FLFM TorchScript models. For a light-field
+ * image {@code d} of shape (1, H, W) and a PSF {@code p} of shape (Z, H, W) normalized to sum to
+ * one, the object {@code o} starts at 0.5 everywhere and every iteration computes
+ *
+ * <pre>
+ *   est = sum_z fftshift(ifft2(fft2(p_z) * fft2(o_z)))
+ *   o_z = o_z * fftshift(ifft2(fft2(d / est) * fft2(flip(p_z))))
+ * </pre>
+ *
+ * <p>The shifts are folded into the precomputed PSF spectra and the flipped PSF spectrum is derived
+ * from the PSF spectrum with a phase ramp, so only one spectrum per plane is kept in memory. Work
+ * is spread over the fork/join pool across Z planes and across FFT rows and columns.
+ */
+public class RichardsonLucy {
+
+  /** Logger for the RichardsonLucy class. */
+  private static final Logger logger = LoggerFactory.getLogger(RichardsonLucy.class);
+
+  /** Receives the estimate while a reconstruction is running. */
+  public interface Observer {
+    /**
+     * Called after an iteration has updated the estimate.
+     *
+     * @param iteration the number of iterations run so far
+     * @param object the current estimate; it is updated in place by the next iteration
+     */
+    void onIteration(int iteration, float[][] object);
+  }
+
+  private final int numPlanes;
+  private final int height;
+  private final int width;
+  private final Fft2d fft;
+
+  /** Spectra of the shifted PSF planes. */
+  private final float[][] psfRe;
+
+  private final float[][] psfIm;
+
+  /** Phase ramps turning the conjugate PSF spectrum into the spectrum of the flipped PSF. */
+  private final double[] rowPhaseRe;
+
+  private final double[] rowPhaseIm;
+  private final double[] colPhaseRe;
+  private final double[] colPhaseIm;
+
+  private int iterationsRun;
+
+  /**
+   * Prepares a deconvolution with the given PSF.
+   *
+   * @param psf the PSF planes, each of length {@code height * width}; normalized to sum to one
+   * @param height the height of a plane
+   * @param width the width of a plane
+   */
+  public RichardsonLucy(float[][] psf, int height, int width) {
+    this.numPlanes = psf.length;
+    this.height = height;
+    this.width = width;
+    this.fft = new Fft2d(height, width);
+    this.psfRe = new float[numPlanes][];
+    this.psfIm = new float[numPlanes][];
+
+    int shiftY = height / 2;
+    int shiftX = width / 2;
+    Parallel.forEach(
+        numPlanes,
+        z -> {
+          float[] re = new float[height * width];
+          float[] im = new float[height * width];
+          // fftshift: out[y][x] = in[(y - H/2) mod H][(x - W/2) mod W]
+          for (int y = 0; y < height; y++) {
+            int srcY = Math.floorMod(y - shiftY, height);
+            for (int x = 0; x < width; x++) {
+              int srcX = Math.floorMod(x - shiftX, width);
+              re[y * width + x] = psf[z][srcY * width + srcX];
+            }
+          }
+          fft.forward(re, im);
+          psfRe[z] = re;
+          psfIm[z] = im;
+        });
+
+    // The shifted, flipped PSF is the shifted PSF reversed about d = (n - 1 + 2 * (n / 2)) mod n,
+    // whose spectrum is conj(P[k]) * exp(-2 pi i k d / n) along each axis.
+    rowPhaseRe = new double[height];
+    rowPhaseIm = new double[height];
+    int dy = (height - 1 + 2 * shiftY) % height;
+    for (int k = 0; k < height; k++) {
+      double angle = -2 * Math.PI * (((long) k * dy) % height) / height;
+      rowPhaseRe[k] = Math.cos(angle);
+      rowPhaseIm[k] = Math.sin(angle);
+    }
+    colPhaseRe = new double[width];
+    colPhaseIm = new double[width];
+    int dx = (width - 1 + 2 * shiftX) % width;
+    for (int k = 0; k < width; k++) {
+      double angle = -2 * Math.PI * (((long) k * dx) % width) / width;
+      colPhaseRe[k] = Math.cos(angle);
+      colPhaseIm[k] = Math.sin(angle);
+    }
+  }
+
+  /**
+   * Normalizes the PSF planes in place so that all values sum to one. The sum is accumulated in
+   * double precision.
+   *
+   * @param psf the PSF planes
+   */
+  public static void normalize(float[][] psf) {
+    double sum = 0;
+    for (float[] plane : psf) {
+      for (float value : plane) {
+        sum += value;
+      }
+    }
+    if (sum == 0) {
+      return;
+    }
+    float scale = (float) (1.0 / sum);
+    Parallel.forEach(
+        psf.length,
+        z -> {
+          float[] plane = psf[z];
+          for (int i = 0; i < plane.length; i++) {
+            plane[i] *= scale;
+          }
+        });
+  }
+
+  /**
+   * Creates the initial object estimate, 0.5 everywhere.
+   *
+   * @return the initial estimate, one array per plane
+   */
+  public float[][] initialEstimate() {
+    float[][] object = new float[numPlanes][height * width];
+    for (float[] plane : object) {
+      Arrays.fill(plane, 0.5f);
+    }
+    return object;
+  }
+
+  /**
+   * Reconstructs the volume from the image with the given number of iterations.
+   *
+   * @param image the light-field image, of length {@code height * width}
+   * @param iterations the number of Richardson-Lucy iterations
+   * @return the reconstructed planes
+   */
+  public float[][] run(float[] image, int iterations) {
+    return run(image, iterations, 0);
+  }
+
+  /**
+   * Reconstructs the volume from the image, stopping early once the estimate has converged.
+   *
+   * @param image the light-field image, of length {@code height * width}
+   * @param iterations the maximum number of Richardson-Lucy iterations
+   * @param tolerance stop once the relative change of the volume in an iteration falls below this
+   *     value; 0 always runs all iterations
+   * @return the reconstructed planes
+   */
+  public float[][] run(float[] image, int iterations, double tolerance) {
+    return run(image, iterations, tolerance, null);
+  }
+
+  /**
+   * Reconstructs the volume from the image, reporting the estimate after every iteration.
+   *
+   * @param image the light-field image, of length {@code height * width}
+   * @param iterations the maximum number of Richardson-Lucy iterations
+   * @param tolerance stop once the relative change of the volume in an iteration falls below this
+   *     value; 0 always runs all iterations
+   * @param observer notified after every iteration, may be {@code null}
+   * @return the reconstructed planes
+   */
+  public float[][] run(float[] image, int iterations, double tolerance, Observer observer) {
+    float[][] object = initialEstimate();
+    iterationsRun = 0;
+    for (int i = 0; i < iterations; i++) {
+      double change = step(image, object);
+      iterationsRun++;
+      if (observer != null) {
+        observer.onIteration(iterationsRun, object);
+      }
+      if (change < tolerance) {
+        logger.debug("Converged after {} iterations, relative change {}", iterationsRun, change);
+        break;
+      }
+    }
+    return object;
+  }
+
+  /**
+   * Returns the number of iterations the last call to {@link #run} performed.
+   *
+   * @return the number of iterations run
+   */
+  public int getIterationsRun() {
+    return iterationsRun;
+  }
+
+  /**
+   * Performs one Richardson-Lucy iteration, updating the estimate in place.
+   *
+   * @param image the light-field image, of length {@code height * width}
+   * @param object the current estimate, updated in place
+   * @return the relative change of the estimate, {@code sum|o' - o| / sum|o|}
+   */
+  public double step(float[] image, float[][] object) {
+    int size = height * width;
+
+    // Forward projection: est = sum_z ifft(P_z * fft(o_z)). The sum is linear, so the spectra are
+    // accumulated and only one inverse transform is needed. Each chunk of planes has its own
+    // accumulator so the planes can be transformed in parallel.
+    int numChunks = Math.min(numPlanes, Parallel.getParallelism());
+    float[][] accRe = new float[numChunks][size];
+    float[][] accIm = new float[numChunks][size];
+    Parallel.forEach(
+        numChunks,
+        c -> {
+          float[] re = new float[size];
+          float[] im = new float[size];
+          for (int z = c; z < numPlanes; z += numChunks) {
+            System.arraycopy(object[z], 0, re, 0, size);
+            Arrays.fill(im, 0);
+            fft.forward(re, im);
+            float[] pr = psfRe[z];
+            float[] pi = psfIm[z];
+            float[] ar = accRe[c];
+            float[] ai = accIm[c];
+            for (int i = 0; i < size; i++) {
+              ar[i] += re[i] * pr[i] - im[i] * pi[i];
+              ai[i] += re[i] * pi[i] + im[i] * pr[i];
+            }
+          }
+        });
+    float[] estRe = accRe[0];
+    float[] estIm = accIm[0];
+    for (int c = 1; c < numChunks; c++) {
+      for (int i = 0; i < size; i++) {
+        estRe[i] += accRe[c][i];
+        estIm[i] += accIm[c][i];
+      }
+    }
+    fft.inverse(estRe, estIm);
+
+    // Ratio of the measured image to the forward projection, and its spectrum.
+    float[] errRe = estRe;
+    float[] errIm = estIm;
+    for (int i = 0; i < size; i++) {
+      float est = estRe[i];
+      errRe[i] = est != 0 ? image[i] / est : 0;
+      errIm[i] = 0;
+    }
+    fft.forward(errRe, errIm);
+
+    // Back projection: o_z *= ifft(E * conj(P_z) * phase).
+    double[] changes = new double[numPlanes];
+    double[] norms = new double[numPlanes];
+    Parallel.forEach(
+        numPlanes,
+        z -> {
+          float[] re = new float[size];
+          float[] im = new float[size];
+          float[] pr = psfRe[z];
+          float[] pi = psfIm[z];
+          for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+              int i = y * width + x;
+              double phaseRe = rowPhaseRe[y] * colPhaseRe[x] - rowPhaseIm[y] * colPhaseIm[x];
+              double phaseIm = rowPhaseRe[y] * colPhaseIm[x] + rowPhaseIm[y] * colPhaseRe[x];
+              // conj(P) * phase
+              double kr = pr[i] * phaseRe + pi[i] * phaseIm;
+              double ki = pr[i] * phaseIm - pi[i] * phaseRe;
+              re[i] = (float) (errRe[i] * kr - errIm[i] * ki);
+              im[i] = (float) (errRe[i] * ki + errIm[i] * kr);
+            }
+          }
+          fft.inverse(re, im);
+          float[] plane = object[z];
+          double change = 0;
+          double norm = 0;
+          for (int i = 0; i < size; i++) {
+            float updated = plane[i] * re[i];
+            change += Math.abs(updated - plane[i]);
+            norm += Math.abs(plane[i]);
+            plane[i] = updated;
+          }
+          changes[z] = change;
+          norms[z] = norm;
+        });
+
+    double change = 0;
+    double norm = 0;
+    for (int z = 0; z < numPlanes; z++) {
+      change += changes[z];
+      norm += norms[z];
+    }
+    return norm > 0 ? change / norm : 0;
+  }
+
+  public int getNumPlanes() {
+    return numPlanes;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+}
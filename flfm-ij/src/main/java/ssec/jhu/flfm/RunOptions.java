@@ -0,0 +1,110 @@
+package ssec.jhu.flfm;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Options for a single reconstruction run that are independent of the model and the device. */
+public class RunOptions {
+  /** Pixel type of the reconstructed stack. */
+  public OutputType outputType = OutputType.UINT16_SATURATE;
+
+  /**
+   * Precision of the iterations on PyTorch devices; models run in 32 bit. Falls back to {@link
+   * Precision#FP32} where the device does not support it.
+   */
+  public Precision precision = Precision.FP32;
+
+  /** Number of Richardson-Lucy iterations, or 0 to run as many as the selected model. */
+  public int iterations = 0;
+
+  /**
+   * Relative change of the volume in one iteration below which the reconstruction stops early, or 0
+   * to always run all iterations.
+   */
+  public double tolerance = 0;
+
+  /** Number of iterations between two preview updates, or 0 to disable previews. */
+  public int previewInterval = 0;
+
+  /** Receives the intermediate estimates while previews are enabled, may be {@code null}. */
+  public PreviewListener previewListener = null;
+
+  /**
+   * Crop and circle mask applied to the volume before it leaves the device, may be {@code null}.
+   */
+  public CircleCrop crop = null;
+
+  /** Splits the field of view into tiles that fit into the memory of the device. */
+  public boolean tiled = false;
+
+  /** Upper bound on the memory used for one tile in bytes, or 0 to use the available memory. */
+  public long maxTileBytes = 0;
+
+  /** Overlap of neighbouring tiles in pixels. */
+  public int tileOverlap = Constants.DEFAULT_TILE_OVERLAP;
+
+  /** Set when the run is cancelled; checked between iterations and stages. */
+  private AtomicBoolean cancelled = new AtomicBoolean();
+
+  public RunOptions() {}
+
+  public RunOptions(OutputType outputType) {
+    this.outputType = outputType;
+  }
+
+  /**
+   * Returns whether a preview is due after the given iteration. No preview is sent after the last
+   * iteration, as the final result follows right away.
+   *
+   * @param iteration the number of iterations run so far
+   * @param iterations the total number of iterations
+   * @return {@code true} if the estimate should be sent to the preview listener
+   */
+  public boolean isPreviewDue(int iteration, int iterations) {
+    return previewListener != null
+        && previewInterval > 0
+        && iteration % previewInterval == 0
+        && iteration < iterations;
+  }
+
+  /**
+   * Returns a copy of these options for a part of the run, such as a tile. Cancelling either one
+   * cancels both.
+   *
+   * @return the copy
+   */
+  public RunOptions copy() {
+    RunOptions copy = new RunOptions(outputType);
+    copy.precision = precision;
+    copy.iterations = iterations;
+    copy.tolerance = tolerance;
+    copy.previewInterval = previewInterval;
+    copy.previewListener = previewListener;
+    copy.crop = crop;
+    copy.tiled = tiled;
+    copy.maxTileBytes = maxTileBytes;
+    copy.tileOverlap = tileOverlap;
+    copy.cancelled = cancelled;
+    return copy;
+  }
+
+  /** Requests the run to stop at the next iteration or stage boundary. */
+  public void cancel() {
+    cancelled.set(true);
+  }
+
+  public boolean isCancelled() {
+    return cancelled.get();
+  }
+
+  /**
+   * Stops the run if it has been cancelled or its thread has been interrupted.
+   *
+   * @throws CancellationException if the run should stop
+   */
+  public void checkCancelled() {
+    if (cancelled.get() || Thread.currentThread().isInterrupted()) {
+      throw new CancellationException("Reconstruction cancelled");
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package ssec.jhu.flfm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ForkJoinPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The number of threads reconstructions use on the host.
+ *
+ * <p>PyTorch runs every operator on a pool of intra-op threads and independent operators on a pool
+ * of inter-op threads, and the Java code of the plugin (FFTs, masking, blending) runs on the pool
+ * of {@link Parallel}. By default PyTorch and the Java pool both use every core, which
+ * oversubscribes the cores as soon as several reconstructions run at once, see {@link
+ * DeviceScheduler}. In the auto mode (a count of 0) the cores are divided between the concurrent
+ * runs instead.
+ *
+ * <p>The counts are read from the system properties {@value Constants#PROP_INTRA_OP_THREADS},
+ * {@value Constants#PROP_INTER_OP_THREADS}, {@value Constants#PROP_POOL_THREADS} and {@value
+ * Constants#PROP_HOST_LANES} for the number of concurrent runs. They are handed to PyTorch before
+ * its engine starts; the intra-op count can also be changed later, for example from the plugin
+ * window, with {@link #setCurrent}.
+ */
+public class ThreadingConfig {
+
+  /** Logger for the ThreadingConfig class. */
+  private static final Logger logger = LoggerFactory.getLogger(ThreadingConfig.class);
+
+  /** The intra-op threads of PyTorch, 0 for auto. */
+  public int intraOpThreads;
+
+  /** The inter-op threads of PyTorch, 0 for auto. */
+  public int interOpThreads;
+
+  /** The threads of the pool of {@link Parallel}, 0 for auto. */
+  public int poolThreads;
+
+  /** The number of reconstructions that run at the same time on the host. */
+  public int concurrentRuns = 1;
+
+  private static ThreadingConfig current = fromSystemProperties();
+  private static ForkJoinPool pool;
+
+  /**
+   * Reads the configuration from the system properties.
+   *
+   * @return a new configuration
+   */
+  public static ThreadingConfig fromSystemProperties() {
+    ThreadingConfig config = new ThreadingConfig();
+    config.intraOpThreads = Integer.getInteger(Constants.PROP_INTRA_OP_THREADS, 0);
+    config.interOpThreads = Integer.getInteger(Constants.PROP_INTER_OP_THREADS, 0);
+    config.poolThreads = Integer.getInteger(Constants.PROP_POOL_THREADS, 0);
+    config.concurrentRuns =
+        Math.max(1, Integer.getInteger(Constants.PROP_HOST_LANES, Constants.DEFAULT_HOST_LANES));
+    return config;
+  }
+
+  /**
+   * Returns a copy of this configuration.
+   *
+   * @return the copy
+   */
+  public ThreadingConfig copy() {
+    ThreadingConfig copy = new ThreadingConfig();
+    copy.intraOpThreads = intraOpThreads;
+    copy.interOpThreads = interOpThreads;
+    copy.poolThreads = poolThreads;
+    copy.concurrentRuns = concurrentRuns;
+    return copy;
+  }
+
+  /**
+   * Returns the intra-op threads of one run; in the auto mode the cores divided by the concurrent
+   * runs.
+   *
+   * @return the number of threads, at least 1
+   */
+  public int getIntraOpThreads() {
+    if (intraOpThreads > 0) {
+      return intraOpThreads;
+    }
+    return Math.max(1, cores() / Math.max(1, concurrentRuns));
+  }
+
+  /**
+   * Returns the inter-op threads; in the auto mode 1, as a reconstruction is a chain of dependent
+   * operators that gains nothing from running operators side by side.
+   *
+   * @return the number of threads, at least 1
+   */
+  public int getInterOpThreads() {
+    return interOpThreads > 0 ? interOpThreads : 1;
+  }
+
+  /**
+   * Returns the threads of the pool of {@link Parallel}; in the auto mode one per core, as the pool
+   * is shared by all runs.
+   *
+   * @return the number of threads, at least 1
+   */
+  public int getPoolThreads() {
+    return poolThreads > 0 ? poolThreads : cores();
+  }
+
+  private static int cores() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Returns the configuration in use.
+   *
+   * @return the configuration; must not be modified
+   */
+  public static synchronized ThreadingConfig getCurrent() {
+    return current;
+  }
+
+  /**
+   * Changes the configuration in use. The pool of {@link Parallel} is replaced if its size changes;
+   * the old pool is shut down, so its workers exit once the loops still running on it finish. The
+   * intra-op threads of a running PyTorch engine are updated. The inter-op threads of PyTorch
+   * cannot be changed once the engine runs.
+   *
+   * @param config the new configuration
+   */
+  public static synchronized void setCurrent(ThreadingConfig config) {
+    ThreadingConfig previous = current;
+    current = config.copy();
+    if (pool != null && pool.getParallelism() != current.getPoolThreads()) {
+      // loops still running finish on the old pool, which then terminates
+      pool.shutdown();
+      pool = null;
+    }
+    if (previous.getIntraOpThreads() != current.getIntraOpThreads()
+        && Algorithm.isEngineStarted()) {
+      setEngineThreads(current.getIntraOpThreads());
+    }
+  }
+
+  /**
+   * Returns the pool {@link Parallel} runs on, creating it on first use.
+   *
+   * @return the pool
+   */
+  public static synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(current.getPoolThreads());
+    }
+    return pool;
+  }
+
+  /**
+   * Passes the thread counts to PyTorch through the system properties it reads when its engine
+   * starts. Counts the user set for PyTorch directly are kept.
+   */
+  static synchronized void applyToEngine() {
+    if (System.getProperty(Constants.DJL_NUM_THREADS) == null) {
+      System.setProperty(Constants.DJL_NUM_THREADS, Integer.toString(current.getIntraOpThreads()));
+    }
+    if (System.getProperty(Constants.DJL_NUM_INTEROP_THREADS) == null) {
+      System.setProperty(
+          Constants.DJL_NUM_INTEROP_THREADS, Integer.toString(current.getInterOpThreads()));
+    }
+    logger.debug(
+        "PyTorch threads: intra-op {}, inter-op {}",
+        System.getProperty(Constants.DJL_NUM_THREADS),
+        System.getProperty(Constants.DJL_NUM_INTEROP_THREADS));
+  }
+
+  /**
+   * Sets the intra-op threads of the running PyTorch engine. The engine is only on the runtime
+   * class path, so it is called by reflection.
+   */
+  private static void setEngineThreads(int threads) {
+    try {
+      Class<?> jniUtils =
+          Class.forName(Constants.PT_JNI_UTILS_CLASS, true, Algorithm.class.getClassLoader());
+      Method setNumThreads = jniUtils.getMethod("setNumThreads", int.class);
+      setNumThreads.invoke(null, threads);
+      logger.info("PyTorch intra-op threads set to {}", threads);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      logger.warn("Unable to set the PyTorch threads: {}", e.getMessage());
+    }
+  }
+}
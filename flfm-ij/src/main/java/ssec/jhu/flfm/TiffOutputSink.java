@@ -0,0 +1,215 @@
+package ssec.jhu.flfm;
+
+import ij.ImageJ;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a volume as an uncompressed, little endian TIFF stack that ImageJ opens as Z slices, or a
+ * time series as a hyperstack of Z slices and frames.
+ *
+ * <p>All planes have the same size, so the directories are written up front and every plane has a
+ * fixed place in the file that the writer threads fill in with positional writes, in any order.
+ * Volumes whose pixels do not fit below the 4 GB limit of TIFF offsets are written as BigTIFF. Both
+ * variants can be read back with {@link TiffReader}.
+ *
+ * <p>The file is written next to its destination with a {@code .part} suffix and moved into place
+ * once every plane is written, so a failed run neither leaves a truncated TIFF nor replaces an
+ * earlier result.
+ */
+public class TiffOutputSink extends ChunkedOutputSink {
+
+  private static final long CLASSIC_LIMIT = 0xFFFFFFFFL;
+
+  private final Path path;
+  private final Path partPath;
+  private final boolean forceBigTiff;
+  private FileChannel channel;
+  private boolean bigTiff;
+  private long dataOffset;
+
+  /**
+   * Creates a sink for a TIFF file.
+   *
+   * @param path the file to write, replaced if it exists
+   * @param threads the number of writer threads
+   */
+  public TiffOutputSink(Path path, int threads) {
+    this(path, threads, false);
+  }
+
+  /**
+   * Creates a sink for a TIFF file.
+   *
+   * @param path the file to write, replaced if it exists
+   * @param threads the number of writer threads
+   * @param forceBigTiff whether to write BigTIFF even if the volume would fit into a TIFF file
+   */
+  public TiffOutputSink(Path path, int threads, boolean forceBigTiff) {
+    super(threads);
+    this.path = path;
+    this.partPath = path.resolveSibling(path.getFileName() + ".part");
+    this.forceBigTiff = forceBigTiff;
+  }
+
+  /**
+   * Returns whether the file is written as BigTIFF; known once the sink is open.
+   *
+   * @return {@code true} for BigTIFF
+   */
+  public boolean isBigTiff() {
+    return bigTiff;
+  }
+
+  @Override
+  protected void begin() throws IOException {
+    String series = frames > 1 ? "\nframes=" + frames + "\nhyperstack=true" : "";
+    byte[] description =
+        ("ImageJ="
+                + ImageJ.VERSION
+                + "\nimages="
+                + planes
+                + "\nslices="
+                + getSlices()
+                + series
+                + "\nloop=false\n\0")
+            .getBytes(StandardCharsets.US_ASCII);
+    bigTiff =
+        forceBigTiff || headerSize(false, description) + planes * getPlaneBytes() > CLASSIC_LIMIT;
+    ByteBuffer header = buildHeader(description);
+    dataOffset = header.capacity();
+
+    channel =
+        FileChannel.open(
+            partPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+    writeFully(header, 0);
+  }
+
+  /** The number of entries of a directory; the first also holds the description. */
+  private static int entries(int index) {
+    return index == 0 ? 11 : 10;
+  }
+
+  private long directorySize(boolean big, int index) {
+    return big ? 8 + 20L * entries(index) + 8 : 2 + 12L * entries(index) + 4;
+  }
+
+  /** Returns the size of the header, the directories and the description, aligned to 16 bytes. */
+  private long headerSize(boolean big, byte[] description) {
+    long size = big ? 16 : 8;
+    for (int i = 0; i < planes; i++) {
+      size += directorySize(big, i);
+    }
+    size += description.length;
+    return (size + 15) & ~15L;
+  }
+
+  /** Builds the header, the directory of every plane and the description. */
+  private ByteBuffer buildHeader(byte[] description) {
+    long size = headerSize(bigTiff, description);
+    ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    long directory = bigTiff ? 16 : 8;
+    buffer.put((byte) 'I').put((byte) 'I');
+    if (bigTiff) {
+      buffer.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(directory);
+    } else {
+      buffer.putShort((short) 42).putInt((int) directory);
+    }
+    long descriptionOffset = directory;
+    for (int i = 0; i < planes; i++) {
+      descriptionOffset += directorySize(bigTiff, i);
+    }
+
+    int offsetType = bigTiff ? 16 : 4;
+    int sampleFormat = outputType == OutputType.FLOAT32 ? 3 : 1;
+    for (int z = 0; z < planes; z++) {
+      buffer.position((int) directory);
+      long next = z + 1 < planes ? directory + directorySize(bigTiff, z) : 0;
+      putCount(buffer, entries(z));
+      putEntry(buffer, 256, 4, 1, width); // ImageWidth
+      putEntry(buffer, 257, 4, 1, height); // ImageLength
+      putEntry(buffer, 258, 3, 1, getBytesPerPixel() * 8); // BitsPerSample
+      putEntry(buffer, 259, 3, 1, 1); // Compression: none
+      putEntry(buffer, 262, 3, 1, 1); // PhotometricInterpretation: black is zero
+      if (z == 0) {
+        putEntry(buffer, 270, 2, description.length, descriptionOffset); // ImageDescription
+      }
+      putEntry(buffer, 273, offsetType, 1, size + z * getPlaneBytes()); // StripOffsets
+      putEntry(buffer, 277, 3, 1, 1); // SamplesPerPixel
+      putEntry(buffer, 278, 4, 1, height); // RowsPerStrip
+      putEntry(buffer, 279, offsetType, 1, getPlaneBytes()); // StripByteCounts
+      putEntry(buffer, 339, 3, 1, sampleFormat); // SampleFormat
+      putOffset(buffer, next);
+      directory += directorySize(bigTiff, z);
+    }
+    buffer.position((int) descriptionOffset);
+    buffer.put(description);
+    buffer.rewind();
+    return buffer;
+  }
+
+  private void putCount(ByteBuffer buffer, int count) {
+    if (bigTiff) {
+      buffer.putLong(count);
+    } else {
+      buffer.putShort((short) count);
+    }
+  }
+
+  private void putOffset(ByteBuffer buffer, long offset) {
+    if (bigTiff) {
+      buffer.putLong(offset);
+    } else {
+      buffer.putInt((int) offset);
+    }
+  }
+
+  /** Writes a directory entry whose single value or offset is stored in the entry. */
+  private void putEntry(ByteBuffer buffer, int tag, int type, long count, long value) {
+    buffer.putShort((short) tag).putShort((short) type);
+    putOffset(buffer, count);
+    int end = buffer.position() + (bigTiff ? 8 : 4);
+    if (type == 3) {
+      buffer.putShort((short) value);
+    } else if (type == 16) {
+      buffer.putLong(value);
+    } else {
+      buffer.putInt((int) value);
+    }
+    buffer.position(end);
+  }
+
+  @Override
+  protected void writePlaneBytes(int z, ByteBuffer bytes) throws IOException {
+    writeFully(bytes, dataOffset + z * getPlaneBytes());
+  }
+
+  private void writeFully(ByteBuffer bytes, long position) throws IOException {
+    while (bytes.hasRemaining()) {
+      position += channel.write(bytes, position);
+    }
+  }
+
+  @Override
+  protected void finish(boolean complete) throws IOException {
+    if (channel == null) {
+      return;
+    }
+    channel.close();
+    if (complete) {
+      Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.deleteIfExists(partPath);
+    }
+  }
+}
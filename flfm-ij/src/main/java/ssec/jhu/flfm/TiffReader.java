@@ -0,0 +1,468 @@
+package ssec.jhu.flfm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the slices of an uncompressed TIFF or BigTIFF file straight into float buffers.
+ *
+ * <p>Only the directories of the file are read up front. The pixels of a slice are read from one
+ * memory-mapped view of its strips, or into one buffer if the strips are scattered across the file,
+ * and widened to floats directly into the destination, usually the direct buffer an {@link NDArray}
+ * is created from, so a stack never exists as an {@code ImageStack} on the heap. Grayscale images
+ * of 8 or 16 bit unsigned integers or 32 bit floats in strips are supported, which covers the files
+ * ImageJ writes, including large stacks that ImageJ stores contiguously behind a single directory.
+ */
+public class TiffReader implements AutoCloseable {
+
+  private static final int TAG_IMAGE_WIDTH = 256;
+  private static final int TAG_IMAGE_LENGTH = 257;
+  private static final int TAG_BITS_PER_SAMPLE = 258;
+  private static final int TAG_COMPRESSION = 259;
+  private static final int TAG_IMAGE_DESCRIPTION = 270;
+  private static final int TAG_STRIP_OFFSETS = 273;
+  private static final int TAG_SAMPLES_PER_PIXEL = 277;
+  private static final int TAG_STRIP_BYTE_COUNTS = 279;
+  private static final int TAG_TILE_WIDTH = 322;
+  private static final int TAG_SAMPLE_FORMAT = 339;
+
+  private static final int SAMPLE_FORMAT_UNSIGNED = 1;
+  private static final int SAMPLE_FORMAT_SIGNED = 2;
+  private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+  /** The number of images of an ImageJ stack, in its image description. */
+  private static final Pattern IMAGEJ_IMAGES = Pattern.compile("images=(\\d+)");
+
+  /** The location of the pixels of one slice. */
+  private static class Slice {
+    final long[] stripOffsets;
+    final long[] stripByteCounts;
+
+    Slice(long[] stripOffsets, long[] stripByteCounts) {
+      this.stripOffsets = stripOffsets;
+      this.stripByteCounts = stripByteCounts;
+    }
+
+    /** Returns whether the strips follow each other in the file and hold at least the bytes. */
+    boolean isContiguous(long bytes) {
+      long end = stripOffsets[0];
+      for (int s = 0; s < stripOffsets.length && end < stripOffsets[0] + bytes; s++) {
+        if (stripOffsets[s] != end) {
+          return false;
+        }
+        end += stripByteCounts[s];
+      }
+      return end >= stripOffsets[0] + bytes;
+    }
+  }
+
+  private final FileChannel channel;
+  private final Path path;
+  private ByteOrder order;
+  private boolean bigTiff;
+  private int width;
+  private int height;
+  private int bitsPerSample;
+  /** The sample format of the pixels, unsigned integers if the file does not set one. */
+  private int sampleFormat = SAMPLE_FORMAT_UNSIGNED;
+
+  private final List<Slice> slices = new ArrayList<>();
+
+  /**
+   * Opens a TIFF file and reads its directories.
+   *
+   * @param path the file to read
+   * @throws IOException if the file cannot be read or is not a supported TIFF file
+   */
+  public TiffReader(Path path) throws IOException {
+    this.path = path;
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      readDirectories();
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getSliceCount() {
+    return slices.size();
+  }
+
+  public int getBitsPerSample() {
+    return bitsPerSample;
+  }
+
+  public boolean isBigTiff() {
+    return bigTiff;
+  }
+
+  /**
+   * Reads all slices as an array of shape (slices, height, width).
+   *
+   * @param manager the manager to allocate the array with
+   * @return the pixels as a float32 array
+   * @throws IOException if the file cannot be read
+   */
+  public NDArray toArray(NDManager manager) throws IOException {
+    ByteBuffer buffer = manager.allocateDirect(checkedSize());
+    readSlices(buffer.asFloatBuffer());
+    return manager.create(buffer, new Shape(getSliceCount(), height, width), DataType.FLOAT32);
+  }
+
+  /**
+   * Reads all slices into a new direct buffer of floats in native byte order, the layout {@link
+   * NDManager#create(java.nio.Buffer, Shape, DataType)} takes without a copy.
+   *
+   * @return the buffer, with the slices one after another
+   * @throws IOException if the file cannot be read
+   */
+  public ByteBuffer readAll() throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(checkedSize()).order(ByteOrder.nativeOrder());
+    readSlices(buffer.asFloatBuffer());
+    return buffer;
+  }
+
+  /** Returns the size of all slices as floats, which must fit into a single buffer. */
+  private int checkedSize() {
+    long numBytes = (long) getSliceCount() * height * width * Float.BYTES;
+    if (numBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Image is too large to convert at once: " + numBytes);
+    }
+    return (int) numBytes;
+  }
+
+  /** Reads all slices in parallel, one after another into the buffer. */
+  private void readSlices(FloatBuffer buffer) throws IOException {
+    int sliceSize = width * height;
+    IOException[] error = new IOException[1];
+    Parallel.forEach(
+        getSliceCount(),
+        slice -> {
+          try {
+            readSlice(slice, buffer, slice * sliceSize);
+          } catch (IOException e) {
+            error[0] = e;
+          }
+        });
+    if (error[0] != null) {
+      throw error[0];
+    }
+  }
+
+  /**
+   * Reads one slice and writes its pixels to the buffer as floats.
+   *
+   * @param index the zero based index of the slice
+   * @param buffer the destination
+   * @param offset the index in the buffer of the first pixel of the slice
+   * @throws IOException if the file cannot be read
+   */
+  public void readSlice(int index, FloatBuffer buffer, int offset) throws IOException {
+    Slice slice = slices.get(index);
+    int sliceBytes = width * height * (bitsPerSample / 8);
+    ByteBuffer pixels;
+    if (slice.isContiguous(sliceBytes)) {
+      if (slice.stripOffsets[0] + sliceBytes > channel.size()) {
+        throw new EOFException("Slice " + index + " of " + path + " is incomplete");
+      }
+      pixels = channel.map(FileChannel.MapMode.READ_ONLY, slice.stripOffsets[0], sliceBytes);
+    } else {
+      pixels = ByteBuffer.allocate(sliceBytes);
+      for (int s = 0; s < slice.stripOffsets.length && pixels.hasRemaining(); s++) {
+        int count = (int) Math.min(slice.stripByteCounts[s], pixels.remaining());
+        pixels.limit(pixels.position() + count);
+        readFully(pixels, slice.stripOffsets[s]);
+        pixels.limit(sliceBytes);
+      }
+      if (pixels.hasRemaining()) {
+        throw new EOFException("Slice " + index + " of " + path + " is incomplete");
+      }
+      pixels.flip();
+    }
+    pixels.order(order);
+    decode(pixels, width * height, buffer, offset);
+  }
+
+  /** Widens {@code count} pixels of a slice to floats. */
+  private void decode(ByteBuffer pixels, int count, FloatBuffer buffer, int offset) {
+    if (bitsPerSample == 16) {
+      ShortBuffer values = pixels.asShortBuffer();
+      for (int i = 0; i < count; i++) {
+        buffer.put(offset + i, values.get(i) & 0xFFFF); // Unsigned conversion
+      }
+    } else if (bitsPerSample == 8) {
+      for (int i = 0; i < count; i++) {
+        buffer.put(offset + i, pixels.get(i) & 0xFF);
+      }
+    } else {
+      FloatBuffer values = pixels.asFloatBuffer();
+      for (int i = 0; i < count; i++) {
+        buffer.put(offset + i, values.get(i));
+      }
+    }
+  }
+
+  /** Reads the header and every image file directory. */
+  private void readDirectories() throws IOException {
+    ByteBuffer header = read(0, (int) Math.min(16, channel.size()));
+    if (header.limit() < 8) {
+      throw new IOException("Not a TIFF file: " + path);
+    }
+    int byteOrder = header.getShort(0);
+    if (byteOrder == 0x4949) {
+      order = ByteOrder.LITTLE_ENDIAN;
+    } else if (byteOrder == 0x4D4D) {
+      order = ByteOrder.BIG_ENDIAN;
+    } else {
+      throw new IOException("Not a TIFF file: " + path);
+    }
+    header.order(order);
+    int version = header.getShort(2);
+    long next;
+    if (version == 42) {
+      next = header.getInt(4) & 0xFFFFFFFFL;
+    } else if (version == 43) {
+      bigTiff = true;
+      next = header.getLong(8);
+    } else {
+      throw new IOException("Unsupported TIFF version " + version + ": " + path);
+    }
+
+    String description = null;
+    boolean first = true;
+    while (next != 0) {
+      int countSize = bigTiff ? 8 : 2;
+      int entrySize = bigTiff ? 20 : 12;
+      ByteBuffer countBuffer = read(next, countSize);
+      long entries = bigTiff ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xFFFF;
+      ByteBuffer directory =
+          read(next + countSize, (int) (entries * entrySize + (bigTiff ? 8 : 4)));
+
+      long[] stripOffsets = null;
+      long[] stripByteCounts = null;
+      for (int i = 0; i < entries; i++) {
+        int entry = i * entrySize;
+        int tag = directory.getShort(entry) & 0xFFFF;
+        switch (tag) {
+          case TAG_IMAGE_WIDTH:
+          case TAG_IMAGE_LENGTH:
+          case TAG_BITS_PER_SAMPLE:
+          case TAG_COMPRESSION:
+          case TAG_SAMPLES_PER_PIXEL:
+          case TAG_SAMPLE_FORMAT:
+            if (first) {
+              setField(tag, (int) readValues(directory, entry)[0]);
+            }
+            break;
+          case TAG_STRIP_OFFSETS:
+            stripOffsets = readValues(directory, entry);
+            break;
+          case TAG_STRIP_BYTE_COUNTS:
+            stripByteCounts = readValues(directory, entry);
+            break;
+          case TAG_TILE_WIDTH:
+            throw new IOException("Tiled TIFF files are not supported: " + path);
+          case TAG_IMAGE_DESCRIPTION:
+            if (first) {
+              description = readString(directory, entry);
+            }
+            break;
+          default:
+            break;
+        }
+      }
+      if (stripOffsets == null || stripByteCounts == null) {
+        throw new IOException("TIFF directory without strips: " + path);
+      }
+      slices.add(new Slice(stripOffsets, stripByteCounts));
+      if (first && bitsPerSample == 32 && sampleFormat != SAMPLE_FORMAT_FLOAT) {
+        // without a sample format the pixels are unsigned integers, which ImageJ reads itself
+        throw new IOException("Only 32 bit float TIFF files are supported: " + path);
+      }
+      first = false;
+      int nextOffset = (int) (entries * entrySize);
+      next = bigTiff ? directory.getLong(nextOffset) : directory.getInt(nextOffset) & 0xFFFFFFFFL;
+    }
+    addContiguousSlices(description);
+  }
+
+  /** Stores a field of the first directory and checks that it is supported. */
+  private void setField(int tag, int value) throws IOException {
+    switch (tag) {
+      case TAG_IMAGE_WIDTH:
+        width = value;
+        break;
+      case TAG_IMAGE_LENGTH:
+        height = value;
+        break;
+      case TAG_BITS_PER_SAMPLE:
+        if (value != 8 && value != 16 && value != 32) {
+          throw new IOException("Unsupported bits per sample " + value + ": " + path);
+        }
+        bitsPerSample = value;
+        break;
+      case TAG_COMPRESSION:
+        if (value != 1) {
+          throw new IOException("Compressed TIFF files are not supported: " + path);
+        }
+        break;
+      case TAG_SAMPLES_PER_PIXEL:
+        if (value != 1) {
+          throw new IOException("Only grayscale TIFF files are supported: " + path);
+        }
+        break;
+      case TAG_SAMPLE_FORMAT:
+        if (value == SAMPLE_FORMAT_SIGNED) {
+          // ImageJ shifts signed pixels into the unsigned range, which is left to ImageJ
+          throw new IOException("Signed TIFF files are not supported: " + path);
+        }
+        sampleFormat = value;
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * ImageJ writes the slices of a large stack one after another behind a single directory and
+   * records their number in the image description; adds the slices that follow the first.
+   */
+  private void addContiguousSlices(String description) throws IOException {
+    if (slices.size() != 1 || description == null) {
+      return;
+    }
+    Matcher matcher = IMAGEJ_IMAGES.matcher(description);
+    if (!matcher.find()) {
+      return;
+    }
+    int images = Integer.parseInt(matcher.group(1));
+    Slice first = slices.get(0);
+    long sliceBytes = (long) width * height * (bitsPerSample / 8);
+    long start = first.stripOffsets[0];
+    if (start + sliceBytes * images > channel.size()) {
+      throw new EOFException("The stack in " + path + " is incomplete");
+    }
+    for (int i = 1; i < images; i++) {
+      slices.add(new Slice(new long[] {start + sliceBytes * i}, new long[] {sliceBytes}));
+    }
+  }
+
+  /** Returns the values of a directory entry of an integer type. */
+  private long[] readValues(ByteBuffer directory, int entry) throws IOException {
+    int type = directory.getShort(entry + 2) & 0xFFFF;
+    long count = bigTiff ? directory.getLong(entry + 4) : directory.getInt(entry + 4) & 0xFFFFFFFFL;
+    int size = typeSize(type);
+    int valueOffset = entry + (bigTiff ? 12 : 8);
+    ByteBuffer values;
+    int position;
+    if (count * size <= (bigTiff ? 8 : 4)) {
+      values = directory;
+      position = valueOffset;
+    } else {
+      long offset =
+          bigTiff ? directory.getLong(valueOffset) : directory.getInt(valueOffset) & 0xFFFFFFFFL;
+      values = read(offset, (int) (count * size));
+      position = 0;
+    }
+    long[] result = new long[(int) count];
+    for (int i = 0; i < count; i++) {
+      int p = position + i * size;
+      switch (type) {
+        case 1:
+          result[i] = values.get(p) & 0xFF;
+          break;
+        case 3:
+          result[i] = values.getShort(p) & 0xFFFF;
+          break;
+        case 4:
+          result[i] = values.getInt(p) & 0xFFFFFFFFL;
+          break;
+        default:
+          result[i] = values.getLong(p);
+          break;
+      }
+    }
+    return result;
+  }
+
+  /** Returns the ASCII value of a directory entry. */
+  private String readString(ByteBuffer directory, int entry) throws IOException {
+    long count = bigTiff ? directory.getLong(entry + 4) : directory.getInt(entry + 4) & 0xFFFFFFFFL;
+    int valueOffset = entry + (bigTiff ? 12 : 8);
+    byte[] bytes = new byte[(int) count];
+    if (count <= (bigTiff ? 8 : 4)) {
+      for (int i = 0; i < count; i++) {
+        bytes[i] = directory.get(valueOffset + i);
+      }
+    } else {
+      long offset =
+          bigTiff ? directory.getLong(valueOffset) : directory.getInt(valueOffset) & 0xFFFFFFFFL;
+      read(offset, (int) count).get(bytes);
+    }
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  /** Returns the size in bytes of the integer field types. */
+  private int typeSize(int type) throws IOException {
+    switch (type) {
+      case 1: // BYTE
+        return 1;
+      case 3: // SHORT
+        return 2;
+      case 4: // LONG
+        return 4;
+      case 16: // LONG8
+        return 8;
+      default:
+        throw new IOException("Unsupported TIFF field type " + type + ": " + path);
+    }
+  }
+
+  /** Reads bytes at a position of the file into a buffer in the byte order of the file. */
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    readFully(buffer, position);
+    buffer.flip();
+    return buffer.order(order == null ? ByteOrder.BIG_ENDIAN : order);
+  }
+
+  /** Fills the remaining bytes of a buffer from a position of the file. */
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position() - start) < 0) {
+        throw new EOFException("Unexpected end of " + path);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
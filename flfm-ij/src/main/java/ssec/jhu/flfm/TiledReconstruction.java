@@ -0,0 +1,257 @@
+package ssec.jhu.flfm;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reconstruction of inputs that are too large for the device, one overlapping tile at a time.
+ *
+ * <p>The field of view is split into tiles of equal size that overlap by a margin. Every tile is
+ * reconstructed with the central crop of the PSF of the same size, and the tile volumes are blended
+ * back together with weights that ramp down linearly across the overlap, so there are no visible
+ * seams. Since all tiles share the same PSF crop, the PSF is prepared only once, see {@link
+ * PsfCache}.
+ *
+ * <p>Cutting the PSF to the tile size is an approximation: light from outside a tile that the full
+ * PSF would spread into it is lost. The overlap should therefore be at least as large as the
+ * support of the PSF.
+ */
+public class TiledReconstruction {
+
+  /** Logger for the TiledReconstruction class. */
+  private static final Logger logger = LoggerFactory.getLogger(TiledReconstruction.class);
+
+  /** A rectangular region of the field of view. */
+  public static class Tile {
+    public final int x;
+    public final int y;
+    public final int width;
+    public final int height;
+
+    public Tile(int x, int y, int width, int height) {
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  /** Private constructor to prevent instantiation. */
+  private TiledReconstruction() {}
+
+  /**
+   * Reconstructs the volume tile by tile with the engine of the device. The caller must hold the
+   * lock of the device, see {@link Algorithm#lockDevice}.
+   *
+   * @param engine the engine that reconstructs every tile
+   * @param modelPathStr the path to the model file
+   * @param deviceInfo the device to use for inference
+   * @param psfImage the point spread function image
+   * @param inputImage the input image to process
+   * @param options the options of this run
+   * @return the reconstructed volume, or {@code null} if a tile fails
+   */
+  public static ImagePlus run(
+      ReconstructionEngine engine,
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus inputImage,
+      RunOptions options) {
+    int width = inputImage.getWidth();
+    int height = inputImage.getHeight();
+    int numPlanes = psfImage.getStackSize();
+    if (psfImage.getWidth() != width || psfImage.getHeight() != height) {
+      throw new IllegalArgumentException("The input image and the PSF must have the same size");
+    }
+
+    long budget = engine.getAvailableBytes(deviceInfo);
+    if (options.maxTileBytes > 0) {
+      budget = Math.min(budget, options.maxTileBytes);
+    }
+    int tileSize = chooseTileSize(engine, budget, numPlanes, height, width);
+    int tileWidth = Math.min(tileSize, width);
+    int tileHeight = Math.min(tileSize, height);
+    int overlap = Math.min(options.tileOverlap, Math.min(tileWidth, tileHeight) / 4);
+    List<Tile> tiles = layout(width, height, tileWidth, tileHeight, overlap);
+    logger.info(
+        "Reconstructing in {} tiles of {}x{} with an overlap of {} (memory budget {} MB)",
+        tiles.size(),
+        tileWidth,
+        tileHeight,
+        overlap,
+        budget / (1024 * 1024));
+
+    float[] input = ArrayUtils.convertImageToPlanes(inputImage)[0];
+    // keep the PSF center at (w / 2, h / 2) of the crop, where the reconstruction expects it
+    Tile psfTile =
+        new Tile(width / 2 - tileWidth / 2, height / 2 - tileHeight / 2, tileWidth, tileHeight);
+    ImagePlus psfCrop = crop(ArrayUtils.convertImageToPlanes(psfImage), width, psfTile);
+
+    RunOptions tileOptions = options.copy();
+    tileOptions.outputType = OutputType.FLOAT32;
+    tileOptions.tiled = false;
+    tileOptions.previewInterval = 0;
+    tileOptions.crop = null;
+
+    float[][] volume = new float[numPlanes][width * height];
+    float[] weights = new float[width * height];
+    for (int i = 0; i < tiles.size(); i++) {
+      options.checkCancelled();
+      Tile tile = tiles.get(i);
+      ImagePlus tileInput = crop(new float[][] {input}, width, tile);
+      ImagePlus tileOutput =
+          engine.reconstruct(modelPathStr, deviceInfo, psfCrop, tileInput, tileOptions);
+      if (tileOutput == null) {
+        logger.error("Reconstruction of tile {} of {} failed", i + 1, tiles.size());
+        return null;
+      }
+      blend(
+          volume,
+          weights,
+          width,
+          height,
+          ArrayUtils.convertImageToPlanes(tileOutput),
+          tile,
+          overlap);
+      logger.debug("Reconstructed tile {} of {}", i + 1, tiles.size());
+    }
+
+    for (float[] plane : volume) {
+      for (int i = 0; i < plane.length; i++) {
+        if (weights[i] > 0) {
+          plane[i] /= weights[i];
+        }
+      }
+    }
+    return JavaEngine.toImage(volume, height, width, options);
+  }
+
+  /**
+   * Returns the largest tile size whose reconstruction fits into the memory budget. Powers of two
+   * are preferred as they have the fastest FFTs; the size of the whole image is returned if it
+   * fits.
+   *
+   * @param engine the engine that estimates the memory use
+   * @param budget the memory available for one tile in bytes
+   * @param numPlanes the number of planes of the volume
+   * @param height the height of the image
+   * @param width the width of the image
+   * @return the side length of a square tile
+   */
+  public static int chooseTileSize(
+      ReconstructionEngine engine, long budget, int numPlanes, int height, int width) {
+    int full = Math.max(height, width);
+    if (engine.estimateBytes(numPlanes, height, width) <= budget) {
+      return full;
+    }
+    int size = Integer.highestOneBit(full);
+    while (size > Constants.MIN_TILE_SIZE && engine.estimateBytes(numPlanes, size, size) > budget) {
+      size >>= 1;
+    }
+    return Math.max(size, Math.min(Constants.MIN_TILE_SIZE, full));
+  }
+
+  /**
+   * Splits the field of view into tiles of the given size that overlap by at least {@code overlap}.
+   * The last tile in every row and column is aligned to the edge of the image.
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param tileWidth the width of a tile, at most {@code width}
+   * @param tileHeight the height of a tile, at most {@code height}
+   * @param overlap the overlap of neighbouring tiles
+   * @return the tiles in row major order
+   */
+  public static List<Tile> layout(
+      int width, int height, int tileWidth, int tileHeight, int overlap) {
+    List<Tile> tiles = new ArrayList<>();
+    for (int y : origins(height, tileHeight, overlap)) {
+      for (int x : origins(width, tileWidth, overlap)) {
+        tiles.add(new Tile(x, y, tileWidth, tileHeight));
+      }
+    }
+    return tiles;
+  }
+
+  /** Returns the start positions of the tiles along one axis. */
+  private static List<Integer> origins(int length, int tileLength, int overlap) {
+    List<Integer> origins = new ArrayList<>();
+    int step = Math.max(1, tileLength - overlap);
+    int origin = 0;
+    while (origin + tileLength < length) {
+      origins.add(origin);
+      origin += step;
+    }
+    origins.add(Math.max(0, length - tileLength));
+    return origins;
+  }
+
+  /**
+   * Adds the weighted tile volume to the volume. Along the sides that border another tile the
+   * weight ramps from 1 down to 0 across the overlap; at the edges of the image it stays 1.
+   */
+  static void blend(
+      float[][] volume,
+      float[] weights,
+      int width,
+      int height,
+      float[][] tileVolume,
+      Tile tile,
+      int overlap) {
+    float[] rowWeights = ramp(tile.height, overlap, tile.y > 0, tile.y + tile.height < height);
+    float[] colWeights = ramp(tile.width, overlap, tile.x > 0, tile.x + tile.width < width);
+    for (int y = 0; y < tile.height; y++) {
+      int offset = (tile.y + y) * width + tile.x;
+      for (int x = 0; x < tile.width; x++) {
+        weights[offset + x] += rowWeights[y] * colWeights[x];
+      }
+    }
+    Parallel.forEach(
+        volume.length,
+        z -> {
+          float[] plane = volume[z];
+          float[] tilePlane = tileVolume[z];
+          for (int y = 0; y < tile.height; y++) {
+            int offset = (tile.y + y) * width + tile.x;
+            for (int x = 0; x < tile.width; x++) {
+              plane[offset + x] += rowWeights[y] * colWeights[x] * tilePlane[y * tile.width + x];
+            }
+          }
+        });
+  }
+
+  /** Returns the blending weights along one side of a tile. */
+  private static float[] ramp(int length, int overlap, boolean rampStart, boolean rampEnd) {
+    float[] weights = new float[length];
+    for (int i = 0; i < length; i++) {
+      float weight = 1;
+      if (rampStart && i < overlap) {
+        weight = Math.min(weight, (i + 1) / (float) (overlap + 1));
+      }
+      if (rampEnd && i >= length - overlap) {
+        weight = Math.min(weight, (length - i) / (float) (overlap + 1));
+      }
+      weights[i] = weight;
+    }
+    return weights;
+  }
+
+  /** Copies the region of the tile from every plane into a new 32 bit stack. */
+  private static ImagePlus crop(float[][] planes, int width, Tile tile) {
+    ImageStack stack = new ImageStack(tile.width, tile.height);
+    for (float[] plane : planes) {
+      float[] pixels = new float[tile.width * tile.height];
+      for (int y = 0; y < tile.height; y++) {
+        System.arraycopy(plane, (tile.y + y) * width + tile.x, pixels, y * tile.width, tile.width);
+      }
+      stack.addSlice(new FloatProcessor(tile.width, tile.height, pixels));
+    }
+    return new ImagePlus("tile", stack);
+  }
+}
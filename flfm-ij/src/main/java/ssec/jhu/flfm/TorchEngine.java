@@ -0,0 +1,195 @@
+package ssec.jhu.flfm;
+
+import ai.djl.Device;
+import ai.djl.engine.EngineException;
+import ai.djl.ndarray.NDManager;
+import ai.djl.util.cuda.CudaUtils;
+import ij.ImagePlus;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.CancellationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reconstruction engine that runs the exported TorchScript models through DJL and PyTorch.
+ *
+ * <p>A run uses the exported model when it matches the requested iteration count; any other count,
+ * and runs with early stopping, iterate {@link TorchRichardsonLucy} on the device instead. The DJL
+ * helpers it uses live in {@link Algorithm}, which also owns the model and PSF caches. All arrays
+ * of a run belong to its {@link NDManager}, so they are released when the run ends or is cancelled.
+ */
+public class TorchEngine implements ReconstructionEngine {
+
+  /** Logger for the TorchEngine class. */
+  private static final Logger logger = LoggerFactory.getLogger(TorchEngine.class);
+
+  /** Estimated peak device memory of a reconstruction per voxel of the volume. */
+  private static final long BYTES_PER_VOXEL = 64;
+
+  /**
+   * Returns the available devices for model inference.
+   *
+   * <p>If the engine is not available, returns a single error device.
+   *
+   * @return an array of {@link DeviceInfo} representing available devices
+   */
+  @Override
+  public DeviceInfo[] getDevices() {
+    // Returns the available devices for model inference
+    Device[] devices;
+    try {
+      devices = Algorithm.initEngine().getDevices();
+    } catch (EngineException | NullPointerException e) {
+      logger.error("Engine not available or error retrieving devices: " + e.getMessage());
+      logger.error("Stack trace: ");
+      for (StackTraceElement ste : e.getStackTrace()) {
+        logger.error(ste.toString());
+      }
+
+      return new DeviceInfo[] {
+        new DeviceInfo(
+            Constants.DEVICE_ERROR, -2) // show an error device if the engine is not available
+      };
+    }
+
+    DeviceInfo[] deviceInfos;
+    if (devices[0].getDeviceType().toLowerCase().equals("gpu")) {
+      // if the first device is a GPU then all listed devices are GPUs and we
+      // can add one more CPU device to the list.
+      deviceInfos = new DeviceInfo[devices.length + 1];
+
+      for (int i = 0; i < devices.length; i++) {
+        deviceInfos[i] = new DeviceInfo("GPU", devices[i].getDeviceId());
+      }
+      deviceInfos[devices.length] = new DeviceInfo("CPU", -1); // Add CPU as last device
+    } else {
+      // If the first device is not a GPU, then there is just a single CPU device
+      deviceInfos = new DeviceInfo[1];
+      deviceInfos[0] = new DeviceInfo("CPU", -1); // Only CPU
+    }
+    return deviceInfos;
+  }
+
+  @Override
+  public boolean supports(DeviceInfo deviceInfo) {
+    return "CPU".equalsIgnoreCase(deviceInfo.type) || "GPU".equalsIgnoreCase(deviceInfo.type);
+  }
+
+  /**
+   * Returns the free memory of the GPU, or the free physical memory for the CPU, scaled by {@link
+   * Constants#TILE_MEMORY_FRACTION} to leave room for other allocations.
+   */
+  @Override
+  public long getAvailableBytes(DeviceInfo deviceInfo) {
+    long free;
+    if ("GPU".equalsIgnoreCase(deviceInfo.type)) {
+      MemoryUsage usage = CudaUtils.getGpuMemory(Device.fromName(deviceInfo.toDeviceName()));
+      free = usage.getMax() - usage.getUsed();
+    } else {
+      java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+      free =
+          os instanceof com.sun.management.OperatingSystemMXBean
+              ? ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize()
+              : Runtime.getRuntime().maxMemory();
+    }
+    return (long) (free * Constants.TILE_MEMORY_FRACTION);
+  }
+
+  /**
+   * The iteration keeps two complex PSF spectra and a handful of complex and real temporaries of
+   * the size of the volume, about {@value #BYTES_PER_VOXEL} bytes per voxel.
+   */
+  @Override
+  public long estimateBytes(int numPlanes, int height, int width) {
+    return BYTES_PER_VOXEL * numPlanes * height * width;
+  }
+
+  /**
+   * Reconstructs in the precision of {@link Algorithm#getPrecision}. Iterations that fail in a
+   * reduced precision, such as on a device without 16 bit kernels for an operation, are run again
+   * in 32 bit and not given the reduced precision again.
+   */
+  @Override
+  public ImagePlus reconstruct(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus inputImage,
+      RunOptions options) {
+    boolean usesModel = Algorithm.usesModel(modelPathStr, options);
+    try {
+      Precision precision = Algorithm.getPrecision(modelPathStr, deviceInfo, options);
+      if (precision == Precision.FP32) {
+        return reconstruct(modelPathStr, deviceInfo, psfImage, inputImage, options, precision);
+      }
+      String reason = "the iterations failed";
+      try {
+        ImagePlus output =
+            reconstruct(modelPathStr, deviceInfo, psfImage, inputImage, options, precision);
+        if (output != null) {
+          return output;
+        }
+      } catch (EngineException | UnsupportedOperationException e) {
+        reason = e.getMessage();
+      }
+      Algorithm.disablePrecision(deviceInfo, precision, reason);
+      return reconstruct(modelPathStr, deviceInfo, psfImage, inputImage, options, Precision.FP32);
+    } catch (CancellationException e) {
+      if (usesModel) {
+        // a cancelled run gives its device memory back instead of keeping the model cached
+        Algorithm.getModelCache().invalidate(modelPathStr, deviceInfo);
+      }
+      throw e;
+    } finally {
+      sampleDeviceMemory(deviceInfo);
+    }
+  }
+
+  /** Records the memory in use on a GPU, see {@link Metrics#recordDeviceMemory}. */
+  private static void sampleDeviceMemory(DeviceInfo deviceInfo) {
+    if (!"GPU".equalsIgnoreCase(deviceInfo.type)) {
+      return;
+    }
+    try {
+      MemoryUsage usage = CudaUtils.getGpuMemory(Device.fromName(deviceInfo.toDeviceName()));
+      Metrics.getGlobal().recordDeviceMemory(deviceInfo.toDeviceName(), usage.getUsed());
+    } catch (RuntimeException e) {
+      logger.debug("Cannot read the memory of {}: {}", deviceInfo.toDisplay(), e.getMessage());
+    }
+  }
+
+  /**
+   * Reconstructs with the model or the iterations in the given precision. The iterations keep the
+   * PSF in 32 bit for its spectra and only the estimate in the precision; models run in 32 bit.
+   */
+  private ImagePlus reconstruct(
+      String modelPathStr,
+      DeviceInfo deviceInfo,
+      ImagePlus psfImage,
+      ImagePlus inputImage,
+      RunOptions options,
+      Precision precision) {
+    try (NDManager manager = Algorithm.newManager(deviceInfo);
+        PsfCache.Lease psf = Algorithm.getPsfCache().acquire(psfImage, deviceInfo)) {
+      options.checkCancelled();
+      if (Algorithm.usesModel(modelPathStr, options)) {
+        try (ModelCache.Handle handle = Algorithm.acquireModel(modelPathStr, deviceInfo)) {
+          if (handle == null) {
+            return null;
+          }
+          options.checkCancelled();
+          ImagePlus output =
+              Algorithm.predict(handle, manager, psf.getArray(), inputImage, options);
+          options.checkCancelled();
+          return output;
+        }
+      }
+      int iterations = Algorithm.getIterations(modelPathStr, options);
+      try (TorchRichardsonLucy deconvolution =
+          new TorchRichardsonLucy(psf.getArray(), manager, precision)) {
+        return Algorithm.iterate(deconvolution, manager, inputImage, iterations, options);
+      }
+    }
+  }
+}
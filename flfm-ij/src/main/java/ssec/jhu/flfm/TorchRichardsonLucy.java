@@ -0,0 +1,193 @@
+package ssec.jhu.flfm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Richardson-Lucy deconvolution expressed with DJL array operations, so it runs on any device the
+ * PyTorch engine supports.
+ *
+ * <p>This is the iteration step of the exported FLFM models (see {@link RichardsonLucy} for the
+ * formulation) run in a loop, which allows any number of iterations without exporting a model for
+ * each count. The PSF spectra are computed once and the estimate stays on the device between
+ * iterations; intermediate arrays of an iteration are released as soon as it finishes.
+ *
+ * <p>Several images of the same size can be reconstructed at once by stacking them along a batch
+ * dimension in front, see {@link BatchedReconstruction}; the PSF spectra are broadcast across it.
+ *
+ * <p>In a reduced {@link Precision} the estimate is kept in 16 bit between iterations, halving the
+ * memory of the volume. Every step still runs in 32 bit: PyTorch has no 16 bit FFTs on most
+ * devices, and the ratio of the image to the blurred estimate loses too many digits in 16 bit.
+ */
+public class TorchRichardsonLucy implements AutoCloseable {
+
+  /** Logger for the TorchRichardsonLucy class. */
+  private static final Logger logger = LoggerFactory.getLogger(TorchRichardsonLucy.class);
+
+  private static final long[] FFT_AXES = {-2, -1};
+
+  /** Receives the estimate while a reconstruction is running. */
+  public interface Observer {
+    /**
+     * Called after an iteration has updated the estimate.
+     *
+     * @param iteration the number of iterations run so far
+     * @param object the current estimate of shape (Z, H, W), or (B, Z, H, W) for a batch; it is
+     *     closed by the next iteration
+     */
+    void onIteration(int iteration, NDArray object);
+  }
+
+  private final long[] fftSizes;
+
+  /** Spectrum of the shifted PSF. */
+  private final NDArray psfSpectrum;
+
+  /** Spectrum of the shifted, flipped PSF. */
+  private final NDArray flippedSpectrum;
+
+  /** Type of the estimate between iterations. */
+  private final DataType stateType;
+
+  private int iterationsRun;
+
+  /**
+   * Prepares a deconvolution with the given PSF.
+   *
+   * @param psf the normalized PSF of shape (Z, H, W), see {@link Algorithm#preparePsf}
+   * @param manager the manager that owns the precomputed spectra
+   */
+  public TorchRichardsonLucy(NDArray psf, NDManager manager) {
+    this(psf, manager, Precision.FP32);
+  }
+
+  /**
+   * Prepares a deconvolution with the given PSF that keeps its estimate in the given precision.
+   *
+   * @param psf the normalized 32 bit PSF of shape (Z, H, W), see {@link Algorithm#preparePsf}
+   * @param manager the manager that owns the precomputed spectra
+   * @param precision the precision of the estimate between iterations
+   */
+  public TorchRichardsonLucy(NDArray psf, NDManager manager, Precision precision) {
+    this.stateType = precision.getDataType();
+    long height = psf.getShape().get(1);
+    long width = psf.getShape().get(2);
+    this.fftSizes = new long[] {height, width};
+    try (NDManager scope = manager.newSubManager()) {
+      scope.tempAttachAll(psf);
+      NDArray spectrum = fftshift(psf).fft2(fftSizes, FFT_AXES);
+      NDArray flipped = fftshift(psf.flip(1, 2)).fft2(fftSizes, FFT_AXES);
+      spectrum.attach(manager);
+      flipped.attach(manager);
+      this.psfSpectrum = spectrum;
+      this.flippedSpectrum = flipped;
+    }
+  }
+
+  /**
+   * Reconstructs the volume from the image.
+   *
+   * @param image the light-field image of shape (1, H, W)
+   * @param iterations the maximum number of iterations
+   * @param tolerance stop once the relative change of the volume in an iteration falls below this
+   *     value; 0 always runs all iterations
+   * @return the reconstructed volume of shape (Z, H, W), owned by the manager of the image
+   */
+  public NDArray run(NDArray image, int iterations, double tolerance) {
+    return run(image, iterations, tolerance, null);
+  }
+
+  /**
+   * Reconstructs the volume from the image, reporting the estimate after every iteration.
+   *
+   * @param image the light-field image of shape (1, H, W), or a batch of images of shape (B, 1, H,
+   *     W)
+   * @param iterations the maximum number of iterations
+   * @param tolerance stop once the relative change of the volume in an iteration falls below this
+   *     value; 0 always runs all iterations
+   * @param observer notified after every iteration, may be {@code null}
+   * @return the reconstructed volume of shape (Z, H, W), or (B, Z, H, W) for a batch, in the
+   *     precision of the deconvolution and owned by the manager of the image
+   */
+  public NDArray run(NDArray image, int iterations, double tolerance, Observer observer) {
+    NDManager manager = image.getManager();
+    Shape shape = psfSpectrum.getShape();
+    if (image.getShape().dimension() == 4) {
+      shape = new Shape(image.getShape().get(0)).addAll(shape);
+    }
+    NDArray object = manager.full(shape, 0.5f, stateType);
+    iterationsRun = 0;
+    for (int i = 0; i < iterations; i++) {
+      NDArray next;
+      double change;
+      try (NDManager scope = manager.newSubManager()) {
+        scope.tempAttachAll(image, object, psfSpectrum, flippedSpectrum);
+        NDArray current = object.toType(DataType.FLOAT32, false);
+        next = step(image, current);
+        change =
+            tolerance > 0
+                ? next.sub(current).abs().sum().div(current.sum()).getFloat()
+                : Double.NaN;
+        next = next.toType(stateType, false);
+        next.attach(manager);
+      }
+      object.close();
+      object = next;
+      iterationsRun++;
+      if (observer != null) {
+        observer.onIteration(iterationsRun, object);
+      }
+      if (tolerance > 0 && change < tolerance) {
+        logger.debug("Converged after {} iterations, relative change {}", iterationsRun, change);
+        break;
+      }
+    }
+    return object;
+  }
+
+  /**
+   * Returns the number of iterations the last call to {@link #run} performed.
+   *
+   * @return the number of iterations run
+   */
+  public int getIterationsRun() {
+    return iterationsRun;
+  }
+
+  /** One iteration; all arrays created here belong to the manager of the arguments. */
+  private NDArray step(NDArray image, NDArray object) {
+    // est = sum_z fftshift(ifft2(fft2(p_z) * fft2(o_z))), summed in the frequency domain
+    int planeAxis = object.getShape().dimension() - 3;
+    NDArray spectrum =
+        object.fft2(fftSizes, FFT_AXES).mul(psfSpectrum).sum(new int[] {planeAxis}, true);
+    NDArray est = realPart(spectrum.ifft2(fftSizes, FFT_AXES));
+    NDArray ratio = NDArrays.where(est.eq(0), est, image.div(est));
+    NDArray error = ratio.fft2(fftSizes, FFT_AXES);
+    NDArray update = realPart(error.mul(flippedSpectrum).ifft2(fftSizes, FFT_AXES));
+    return object.mul(update);
+  }
+
+  @Override
+  public void close() {
+    psfSpectrum.close();
+    flippedSpectrum.close();
+  }
+
+  /** Returns the real part of a complex array. */
+  private static NDArray realPart(NDArray complex) {
+    return complex.real().get("..., 0");
+  }
+
+  /** Centers the zero frequency: out[y][x] = in[(y - H/2) mod H][(x - W/2) mod W]. */
+  private static NDArray fftshift(NDArray array) {
+    long splitY = array.getShape().get(1) - array.getShape().get(1) / 2;
+    long splitX = array.getShape().get(2) - array.getShape().get(2) / 2;
+    NDArray rows = array.get(":, {}:, :", splitY).concat(array.get(":, :{}, :", splitY), 1);
+    return rows.get(":, :, {}:", splitX).concat(rows.get(":, :, :{}", splitX), 2);
+  }
+}
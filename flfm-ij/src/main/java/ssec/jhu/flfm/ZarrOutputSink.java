@@ -0,0 +1,182 @@
+package ssec.jhu.flfm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Writes a volume as an OME-Zarr image: a Zarr v2 group with the multiscales metadata of OME-NGFF
+ * 0.4 and a single, full resolution array {@code 0} of shape (z, y, x), or (t, z, y, x) for a time
+ * series.
+ *
+ * <p>Every chunk holds one plane, split into tiles of at most {@link Constants#ZARR_CHUNK_SIZE}
+ * pixels along y and x, and is stored uncompressed in its own file {@code 0/z/y/x}, or {@code
+ * 0/t/z/y/x} for a time series. A plane is therefore written as soon as it is available,
+ * independent of the other planes, and readers can load a region of the volume without reading the
+ * rest.
+ *
+ * <p>The chunks and metadata of an earlier image in the same directory are removed first, and so
+ * are those of this image if not every plane is written, as missing chunks read as zeros.
+ */
+public class ZarrOutputSink extends ChunkedOutputSink {
+
+  private final Path root;
+  private final int chunkSize;
+  private Path array;
+  private int chunkWidth;
+  private int chunkHeight;
+
+  /**
+   * Creates a sink for a Zarr directory.
+   *
+   * @param root the directory to write, usually named {@code *.ome.zarr}
+   * @param threads the number of writer threads
+   */
+  public ZarrOutputSink(Path root, int threads) {
+    this(root, threads, Constants.ZARR_CHUNK_SIZE);
+  }
+
+  /**
+   * Creates a sink for a Zarr directory.
+   *
+   * @param root the directory to write, usually named {@code *.ome.zarr}
+   * @param threads the number of writer threads
+   * @param chunkSize the largest extent of a chunk along y and x
+   */
+  public ZarrOutputSink(Path root, int threads, int chunkSize) {
+    super(threads);
+    this.root = root;
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  protected void begin() throws IOException {
+    chunkWidth = Math.min(width, chunkSize);
+    chunkHeight = Math.min(height, chunkSize);
+    array = root.resolve("0");
+    clear();
+    Files.createDirectories(array);
+    boolean series = frames > 1;
+
+    write(root.resolve(".zgroup"), "{\n  \"zarr_format\": 2\n}\n");
+    write(
+        root.resolve(".zattrs"),
+        "{\n"
+            + "  \"multiscales\": [\n"
+            + "    {\n"
+            + "      \"version\": \"0.4\",\n"
+            + "      \"name\": \"reconstruction\",\n"
+            + "      \"axes\": [\n"
+            + (series ? "        {\"name\": \"t\", \"type\": \"time\"},\n" : "")
+            + "        {\"name\": \"z\", \"type\": \"space\"},\n"
+            + "        {\"name\": \"y\", \"type\": \"space\"},\n"
+            + "        {\"name\": \"x\", \"type\": \"space\"}\n"
+            + "      ],\n"
+            + "      \"datasets\": [\n"
+            + "        {\n"
+            + "          \"path\": \"0\",\n"
+            + "          \"coordinateTransformations\": [\n"
+            + "            {\"type\": \"scale\", \"scale\": ["
+            + (series ? "1.0, " : "")
+            + "1.0, 1.0, 1.0]}\n"
+            + "          ]\n"
+            + "        }\n"
+            + "      ]\n"
+            + "    }\n"
+            + "  ]\n"
+            + "}\n");
+    write(
+        array.resolve(".zarray"),
+        String.format(
+            Locale.ROOT,
+            "{\n"
+                + "  \"zarr_format\": 2,\n"
+                + "  \"shape\": [%s%d, %d, %d],\n"
+                + "  \"chunks\": [%s1, %d, %d],\n"
+                + "  \"dtype\": \"%s\",\n"
+                + "  \"compressor\": null,\n"
+                + "  \"fill_value\": 0,\n"
+                + "  \"order\": \"C\",\n"
+                + "  \"filters\": null,\n"
+                + "  \"dimension_separator\": \"/\"\n"
+                + "}\n",
+            series ? frames + ", " : "",
+            getSlices(),
+            height,
+            width,
+            series ? "1, " : "",
+            chunkHeight,
+            chunkWidth,
+            outputType == OutputType.FLOAT32 ? "<f4" : "<u2"));
+  }
+
+  private static void write(Path path, String content) throws IOException {
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Splits the plane into its chunks. Chunks at the right and bottom edge are padded with zeros to
+   * the full chunk size, as Zarr requires.
+   */
+  @Override
+  protected void writePlaneBytes(int z, ByteBuffer bytes) throws IOException {
+    int bytesPerPixel = getBytesPerPixel();
+    byte[] plane = bytes.array();
+    Path planeDir =
+        frames > 1
+            ? array
+                .resolve(Integer.toString(z / getSlices()))
+                .resolve(Integer.toString(z % getSlices()))
+            : array.resolve(Integer.toString(z));
+    for (int cy = 0; cy * chunkHeight < height; cy++) {
+      Path rowDir = planeDir.resolve(Integer.toString(cy));
+      Files.createDirectories(rowDir);
+      for (int cx = 0; cx * chunkWidth < width; cx++) {
+        byte[] chunk = new byte[chunkHeight * chunkWidth * bytesPerPixel];
+        int x0 = cx * chunkWidth;
+        int columns = Math.min(chunkWidth, width - x0);
+        for (int row = 0; row < chunkHeight && cy * chunkHeight + row < height; row++) {
+          int y = cy * chunkHeight + row;
+          System.arraycopy(
+              plane,
+              (y * width + x0) * bytesPerPixel,
+              chunk,
+              row * chunkWidth * bytesPerPixel,
+              columns * bytesPerPixel);
+        }
+        Files.write(rowDir.resolve(Integer.toString(cx)), chunk);
+      }
+    }
+  }
+
+  @Override
+  protected void finish(boolean complete) throws IOException {
+    // every chunk is a file of its own, there is nothing left to complete
+    if (complete || array == null) {
+      return;
+    }
+    clear();
+    String[] rest = root.toFile().list();
+    if (rest != null && rest.length == 0) {
+      Files.delete(root);
+    }
+  }
+
+  /** Deletes the array and the metadata of an image in the root, leaving any other files. */
+  private void clear() throws IOException {
+    if (Files.isDirectory(array)) {
+      try (Stream<Path> paths = Files.walk(array)) {
+        for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+          Files.delete(path);
+        }
+      }
+    }
+    Files.deleteIfExists(root.resolve(".zattrs"));
+    Files.deleteIfExists(root.resolve(".zgroup"));
+  }
+}
@@ -0,0 +1,60 @@
+package ssec.jhu.flfm;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.nio.file.Path;
+
+/** Small images shared by the tests that run reconstructions on the Java engine. */
+final class Fixtures {
+
+  /** Private constructor to prevent instantiation. */
+  private Fixtures() {}
+
+  /**
+   * Creates a 32 bit PSF with a centered delta in every plane plus a weaker neighbour that moves
+   * with the plane, so the planes of a reconstruction differ.
+   *
+   * @param size the width and height of the planes
+   * @param planes the number of planes
+   * @return the PSF
+   */
+  static ImagePlus psf(int size, int planes) {
+    ImageStack stack = new ImageStack(size, size);
+    for (int z = 0; z < planes; z++) {
+      float[] pixels = new float[size * size];
+      pixels[(size / 2) * size + size / 2] = 1;
+      pixels[(size / 2 + z) * size + size / 2 + 1] = 0.5f;
+      stack.addSlice(new FloatProcessor(size, size, pixels));
+    }
+    return new ImagePlus("psf", stack);
+  }
+
+  /**
+   * Creates a 32 bit frame of positive values that differ with the seed.
+   *
+   * @param size the width and height of the frame
+   * @param seed varies the pixel values
+   * @return the frame
+   */
+  static ImagePlus input(int size, int seed) {
+    float[] pixels = new float[size * size];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = 1 + (i * 31 + seed * 17) % 13;
+    }
+    return new ImagePlus("input" + seed, new FloatProcessor(size, size, pixels));
+  }
+
+  /**
+   * Saves an image as TIFF.
+   *
+   * @param image the image to save
+   * @param path the file to write
+   * @return the path, as a string
+   */
+  static String save(ImagePlus image, Path path) {
+    IJ.saveAsTiff(image, path.toString());
+    return path.toString();
+  }
+}
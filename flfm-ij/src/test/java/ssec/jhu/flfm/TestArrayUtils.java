@@ -7,12 +7,40 @@ import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.Shape;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.process.FloatProcessor;
 import ij.process.ShortProcessor;
+import java.nio.FloatBuffer;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
 public class TestArrayUtils {
 
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 3})
+  void testConvertImageToArrayInSlabs(int slabSlices) {
+    try (NDManager manager = NDManager.newBaseManager()) {
+      int width = 6;
+      int height = 4;
+      ImageStack stack = new ImageStack(width, height);
+      for (int i = 0; i < 5; i++) {
+        short[] pixels = new short[width * height];
+        for (int j = 0; j < pixels.length; j++) {
+          pixels[j] = (short) (i * 100 + j);
+        }
+        stack.addSlice(new ShortProcessor(width, height, pixels, null));
+      }
+      ImagePlus image = new ImagePlus("TestImage", stack);
+
+      long slabBytes = (long) slabSlices * width * height * Float.BYTES;
+      try (NDArray whole = ArrayUtils.convertImageToArray(image, manager);
+          NDArray slabs = ArrayUtils.convertImageToArray(image, manager, slabBytes)) {
+        assertEquals(whole.getShape(), slabs.getShape());
+        assertEquals(whole, slabs);
+      }
+    }
+  }
+
   @ParameterizedTest
   @ValueSource(ints = {1, 3, 5})
   void testConvertImageToArray(int numSlices) {
@@ -91,4 +119,90 @@ public class TestArrayUtils {
       }
     }
   }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 3, 5})
+  void testConvertImageToPlanes(int numSlices) {
+    int width = 7;
+    int height = 4;
+    ImageStack stack = new ImageStack(width, height);
+    for (int i = 0; i < numSlices; i++) {
+      short[] pixels = new short[width * height];
+      for (int j = 0; j < pixels.length; j++) {
+        pixels[j] = (short) (i * 1000 + j * 2000); // exceeds Short.MAX_VALUE for larger j
+      }
+      stack.addSlice(new ShortProcessor(width, height, pixels, null));
+    }
+
+    float[][] planes = ArrayUtils.convertImageToPlanes(new ImagePlus("stack", stack));
+
+    assertEquals(numSlices, planes.length);
+    for (int slice = 0; slice < numSlices; slice++) {
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          float expected = stack.getProcessor(slice + 1).getPixel(x, y);
+          assertEquals(expected, planes[slice][y * width + x], 1e-5);
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(OutputType.class)
+  void testConvertBufferToImage(OutputType outputType) {
+    int numSlices = 2;
+    int width = 5;
+    int height = 3;
+    float[] values = new float[numSlices * width * height];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i * 1000.5f - 2000f; // negative, in range and above 65535
+    }
+
+    ImagePlus image =
+        ArrayUtils.convertBufferToImage(
+            FloatBuffer.wrap(values), numSlices, height, width, outputType);
+
+    assertEquals(width, image.getWidth());
+    assertEquals(height, image.getHeight());
+    assertEquals(numSlices, image.getStackSize());
+    assertEquals(outputType == OutputType.FLOAT32 ? 32 : 16, image.getBitDepth());
+
+    float max = values[values.length - 1];
+    for (int slice = 0; slice < numSlices; slice++) {
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          float value = values[(slice * height + y) * width + x];
+          float actual = image.getStack().getProcessor(slice + 1).getPixelValue(x, y);
+          switch (outputType) {
+            case FLOAT32:
+              assertEquals(value, actual, 1e-5);
+              break;
+            case UINT16_SATURATE:
+              assertEquals(Math.round(Math.min(Math.max(value, 0), 65535)), actual, 1e-5);
+              break;
+            default:
+              assertEquals(Math.round(Math.max(value, 0) * 65535f / max), actual, 1e-5);
+          }
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(floats = {0f, 0.001f, 0.1f})
+  void testRelativeError(float noise) {
+    int width = 4;
+    int height = 3;
+    float[] expected = new float[width * height];
+    float[] actual = new float[width * height];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = 1 + i;
+      actual[i] = expected[i] * (1 + noise);
+    }
+    double error =
+        ArrayUtils.relativeError(
+            new ImagePlus("expected", new FloatProcessor(width, height, expected)),
+            new ImagePlus("actual", new FloatProcessor(width, height, actual)));
+    assertEquals(noise, error, 1e-6);
+  }
 }
@@ -0,0 +1,170 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestBatchRunner {
+
+  @TempDir Path tempDir;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    Files.createFile(tempDir.resolve("frame_002.tif"));
+    Files.createFile(tempDir.resolve("frame_001.tif"));
+    Files.createFile(tempDir.resolve("other.tiff"));
+    Files.createFile(tempDir.resolve("notes.txt"));
+  }
+
+  @Test
+  public void testResolveDirectory() throws IOException {
+    List<Path> inputs = BatchRunner.resolveInputs(tempDir.toString());
+    assertEquals(3, inputs.size());
+    assertEquals("frame_001.tif", inputs.get(0).getFileName().toString());
+    assertEquals("frame_002.tif", inputs.get(1).getFileName().toString());
+    assertEquals("other.tiff", inputs.get(2).getFileName().toString());
+  }
+
+  @Test
+  public void testResolveGlob() throws IOException {
+    List<Path> inputs = BatchRunner.resolveInputs(tempDir.resolve("frame_*.tif").toString());
+    assertEquals(2, inputs.size());
+    assertEquals("frame_001.tif", inputs.get(0).getFileName().toString());
+  }
+
+  private static final int SIZE = 16;
+  private static final DeviceInfo JAVA = new DeviceInfo(Constants.DEVICE_JAVA, -1);
+
+  @Test
+  public void testRunWritesEveryInput() throws Exception {
+    Path inputs = Files.createDirectories(tempDir.resolve("inputs"));
+    ImagePlus psf = Fixtures.psf(SIZE, 2);
+    Path first = Paths.get(Fixtures.save(Fixtures.input(SIZE, 1), inputs.resolve("a.tif")));
+    Path second = Paths.get(Fixtures.save(Fixtures.input(SIZE, 2), inputs.resolve("b.tif")));
+    Path missing = inputs.resolve("c.tif");
+    Files.write(missing, new byte[] {1, 2, 3});
+
+    RunOptions options = new RunOptions(OutputType.FLOAT32);
+    options.iterations = 2;
+    BatchRunner runner =
+        new BatchRunner(null, JAVA, psf, tempDir.resolve("out"), SIZE / 2, SIZE / 2, 4, options);
+    List<BatchRunner.Result> results = runner.run(Arrays.asList(first, second, missing));
+
+    assertEquals(3, results.size());
+    for (int i = 0; i < 2; i++) {
+      BatchRunner.Result result = results.get(i);
+      assertNull(result.error);
+      assertTrue(result.isSuccess());
+      ImagePlus output = IJ.openImage(result.output.toString());
+      assertEquals(8, output.getWidth());
+      assertEquals(8, output.getHeight());
+      assertEquals(2, output.getStackSize());
+    }
+    assertEquals(tempDir.resolve("out").resolve("a_recon.tif"), results.get(0).output);
+    assertFalse(results.get(2).isSuccess());
+  }
+
+  @Test
+  public void testMultiSliceInputIsTimeSeries() throws Exception {
+    ImageStack frames = new ImageStack(SIZE, SIZE);
+    for (int t = 1; t <= 3; t++) {
+      frames.addSlice(Fixtures.input(SIZE, t).getProcessor());
+    }
+    ImagePlus input = new ImagePlus("frames", frames);
+    Path file = Paths.get(Fixtures.save(input, tempDir.resolve("frames.tif")));
+    ImagePlus psf = Fixtures.psf(SIZE, 2);
+    RunOptions options = new RunOptions(OutputType.FLOAT32);
+    options.iterations = 2;
+    options.crop = new CircleCrop(SIZE / 2, SIZE / 2, 4);
+
+    try (DeviceScheduler scheduler = new DeviceScheduler(new DeviceInfo[] {JAVA}, 2, 0, null)) {
+      ImagePlus expected = PluginController.runFrames(scheduler, null, psf, input, options);
+      for (boolean scheduled : new boolean[] {false, true}) {
+        BatchRunner runner =
+            new BatchRunner(
+                null,
+                JAVA,
+                psf,
+                tempDir.resolve("out" + scheduled),
+                SIZE / 2,
+                SIZE / 2,
+                4,
+                options);
+        runner.setScheduler(scheduled ? scheduler : null);
+        BatchRunner.Result result = runner.run(Collections.singletonList(file)).get(0);
+        assertTrue(result.isSuccess(), result.error);
+
+        ImagePlus output = IJ.openImage(result.output.toString());
+        assertEquals(2, output.getNSlices());
+        assertEquals(3, output.getNFrames());
+        for (int i = 1; i <= expected.getStackSize(); i++) {
+          assertArrayEquals(
+              (float[]) expected.getStack().getPixels(i),
+              (float[]) output.getStack().getPixels(i),
+              1e-6f);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testFailureBeforePipelineReleasesDevice() throws Exception {
+    BatchRunner runner =
+        new BatchRunner(
+            null,
+            JAVA,
+            Fixtures.psf(SIZE, 2),
+            tempDir.resolve("out"),
+            SIZE / 2,
+            SIZE / 2,
+            4,
+            new RunOptions(OutputType.FLOAT32));
+    // neither a model nor an iteration count, so the run fails after locking the device
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> run =
+          executor.submit(() -> runner.run(BatchRunner.resolveInputs(tempDir.toString())));
+      assertThrows(Exception.class, () -> run.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    RunOptions cancelled = new RunOptions(OutputType.FLOAT32);
+    cancelled.cancel();
+    ExecutorService other = Executors.newSingleThreadExecutor();
+    try {
+      ReentrantLock lock =
+          assertDoesNotThrow(
+              () ->
+                  other
+                      .submit(() -> Algorithm.lockDevice(JAVA, cancelled))
+                      .get(10, TimeUnit.SECONDS));
+      other.submit(lock::unlock).get();
+    } finally {
+      other.shutdownNow();
+    }
+  }
+}
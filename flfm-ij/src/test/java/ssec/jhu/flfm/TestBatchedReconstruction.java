@@ -0,0 +1,194 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ai.djl.Model;
+import ai.djl.engine.EngineException;
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.translate.TranslateException;
+import ai.djl.translate.TranslatorContext;
+import ij.ImagePlus;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class TestBatchedReconstruction {
+
+  private static final int FRAMES = 3;
+
+  private final NDArray psf = mock(NDArray.class);
+  private final NDArray frames = array(new Shape(FRAMES, 4, 4), 0);
+  private final NDArray[] frame = new NDArray[FRAMES];
+  private final Map<NDArray, NDArray> volumeOf = new HashMap<>();
+  private final RunOptions options = new RunOptions();
+  private Predictor<NDArray[], NDArray> predictor;
+  private Predictor<NDArray[], NDList> batchPredictor;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    for (int i = 0; i < FRAMES; i++) {
+      frame[i] = array(new Shape(1, 4, 4), i);
+      when(frames.get("{}:{}", i, i + 1)).thenReturn(frame[i]);
+      volumeOf.put(frame[i], array(new Shape(2, 2, 2), i));
+    }
+    predictor = mock(Predictor.class);
+    when(predictor.predict(any()))
+        .thenAnswer(invocation -> volumeOf.get(invocation.<NDArray[]>getArgument(0)[0]));
+    batchPredictor = mock(Predictor.class);
+    options.outputType = OutputType.FLOAT32;
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    // available, per frame, frames, max batch, expected
+    "1000, 100, 20, 8, 8",
+    "1000, 100, 3, 8, 3",
+    "450, 100, 20, 8, 4",
+    "50, 100, 20, 8, 1",
+    "1000, 0, 5, 8, 5",
+    "1000, 100, 20, 1, 1"
+  })
+  public void testBatchSize(long available, long perFrame, int frames, int maxBatch, int expected) {
+    assertEquals(
+        expected, BatchedReconstruction.getBatchSize(available, perFrame, frames, maxBatch));
+  }
+
+  @Test
+  public void testTranslatorKeepsFrameOrder() {
+    TranslatorContext ctx = mock(TranslatorContext.class);
+    NDArray expanded = mock(NDArray.class);
+    when(frames.expandDims(1)).thenReturn(expanded);
+    BatchedModelTranslator translator = new BatchedModelTranslator();
+
+    NDList input = translator.processInput(ctx, new NDArray[] {frames, psf});
+    assertSame(expanded, input.get(0));
+    assertSame(psf, input.get(1));
+    verify(ctx).setAttachment("frames", frames);
+
+    when(ctx.getAttachment("frames")).thenReturn(frames);
+    NDArray output = array(new Shape(FRAMES, 2, 4, 4), 0);
+    NDArray[] volumes = new NDArray[FRAMES];
+    for (int i = 0; i < FRAMES; i++) {
+      volumes[i] = mock(NDArray.class);
+      when(output.get((long) i)).thenReturn(volumes[i]);
+    }
+    NDList split = translator.processOutput(ctx, new NDList(output));
+    assertEquals(FRAMES, split.size());
+    for (int i = 0; i < FRAMES; i++) {
+      assertSame(volumes[i], split.get(i));
+    }
+  }
+
+  @Test
+  public void testBatchKeepsFrameOrder() throws Exception {
+    NDList volumes = new NDList();
+    for (int i = 0; i < FRAMES; i++) {
+      volumes.add(volumeOf.get(frame[i]));
+    }
+    when(batchPredictor.predict(any())).thenReturn(volumes);
+
+    ModelCache.Handle handle = acquire();
+    assertFrames(BatchedReconstruction.predict(handle, psf, frames, options));
+    assertTrue(handle.supportsBatches());
+    verify(predictor, never()).predict(any());
+  }
+
+  @Test
+  public void testShapeFailureDisablesBatches() throws Exception {
+    when(batchPredictor.predict(any()))
+        .thenThrow(
+            new TranslateException(
+                new IllegalStateException("Expected 3 volumes, the model returned shape (2)")));
+
+    ModelCache.Handle handle = acquire();
+    assertFrames(BatchedReconstruction.predict(handle, psf, frames, options));
+    assertFalse(handle.supportsBatches());
+
+    assertFrames(BatchedReconstruction.predict(handle, psf, frames, options));
+    verify(batchPredictor, times(1)).predict(any());
+  }
+
+  @Test
+  public void testOutOfMemoryKeepsBatches() throws Exception {
+    when(batchPredictor.predict(any()))
+        .thenThrow(new EngineException("CUDA out of memory. Tried to allocate 2.00 GiB"));
+
+    ModelCache.Handle handle = acquire();
+    assertFrames(BatchedReconstruction.predict(handle, psf, frames, options));
+    assertTrue(handle.supportsBatches());
+    verify(predictor, times(FRAMES)).predict(any());
+  }
+
+  @Test
+  public void testIsBatchUnsupported() {
+    assertTrue(
+        BatchedReconstruction.isBatchUnsupported(
+            new TranslateException(new EngineException("The size of tensor a (3) must match"))));
+    assertTrue(
+        BatchedReconstruction.isBatchUnsupported(
+            new UnsupportedOperationException("Batches are not implemented")));
+    assertFalse(
+        BatchedReconstruction.isBatchUnsupported(
+            new TranslateException(
+                new EngineException(
+                    "CUDA out of memory. Try setting max_split_size_mb to avoid fragmentation"))));
+    assertFalse(BatchedReconstruction.isBatchUnsupported(new IllegalStateException()));
+  }
+
+  /** Returns a handle to a cached fake model whose predictors are the mocks of this test. */
+  private ModelCache.Handle acquire() throws Exception {
+    Model model = mock(Model.class);
+    when(model.newPredictor(any(BatchedModelTranslator.class))).thenReturn(batchPredictor);
+    return new ModelCache(1, 1000)
+        .acquire(
+            "model.pt",
+            new DeviceInfo("GPU", 0),
+            (p, d) -> new ModelCache.Entry(model, predictor, 10));
+  }
+
+  private void assertFrames(ImagePlus[] outputs) {
+    assertEquals(FRAMES, outputs.length);
+    for (int i = 0; i < FRAMES; i++) {
+      assertEquals(2, outputs[i].getStackSize());
+      assertEquals(i, outputs[i].getStack().getProcessor(2).getf(1, 1), 0);
+    }
+  }
+
+  /** Returns a mocked 32 bit array of the shape whose values are all {@code value}. */
+  private static NDArray array(Shape shape, float value) {
+    NDArray array = mock(NDArray.class);
+    when(array.getShape()).thenReturn(shape);
+    when(array.getDataType()).thenReturn(DataType.FLOAT32);
+    int size = (int) shape.size();
+    when(array.toByteBuffer())
+        .thenAnswer(
+            invocation -> {
+              ByteBuffer buffer = ByteBuffer.allocate(size * 4).order(ByteOrder.nativeOrder());
+              for (int i = 0; i < size; i++) {
+                buffer.putFloat(value);
+              }
+              buffer.flip();
+              return buffer;
+            });
+    return array;
+  }
+}
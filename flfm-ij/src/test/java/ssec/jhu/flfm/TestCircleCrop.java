@@ -0,0 +1,70 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.awt.Rectangle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class TestCircleCrop {
+
+  private static float[][] createPlanes(int numPlanes, int width, int height) {
+    float[][] planes = new float[numPlanes][width * height];
+    for (int z = 0; z < numPlanes; z++) {
+      for (int i = 0; i < width * height; i++) {
+        planes[z][i] = z * 1000 + i;
+      }
+    }
+    return planes;
+  }
+
+  @ParameterizedTest
+  @CsvSource({"20, 18, 7", "25, 25, 10", "31, 12, 5"})
+  public void testMatchesRoiCropAndMask(int centerX, int centerY, int radius) {
+    int width = 64;
+    int height = 48;
+    float[][] planes = createPlanes(3, width, height);
+    ImageStack stack = new ImageStack(width, height);
+    for (float[] plane : planes) {
+      stack.addSlice(new FloatProcessor(width, height, plane.clone()));
+    }
+    ImagePlus cropped =
+        PluginController.cropImage(
+            new ImagePlus("volume", stack),
+            centerX - radius,
+            centerY - radius,
+            2 * radius,
+            2 * radius);
+    ImagePlus expected = PluginController.applyCircleMask(cropped, radius, radius, 2 * radius);
+
+    float[][] actual = new CircleCrop(centerX, centerY, radius).apply(planes, width, height);
+
+    assertEquals(expected.getStackSize(), actual.length);
+    for (int z = 0; z < actual.length; z++) {
+      float[] pixels = (float[]) expected.getStack().getPixels(z + 1);
+      assertEquals(pixels.length, actual[z].length);
+      for (int i = 0; i < pixels.length; i++) {
+        assertEquals(pixels[i], actual[z][i], 0, "Pixel " + i + " of slice " + z);
+      }
+    }
+  }
+
+  @Test
+  public void testBoundsAreClipped() {
+    CircleCrop crop = new CircleCrop(5, 40, 10);
+    assertEquals(new Rectangle(0, 30, 15, 18), crop.getBounds(64, 48));
+    float[][] cropped = crop.apply(createPlanes(1, 64, 48), 64, 48);
+    assertEquals(15 * 18, cropped[0].length);
+  }
+
+  @Test
+  public void testOutsideImage() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new CircleCrop(200, 200, 10).getBounds(64, 48));
+  }
+}
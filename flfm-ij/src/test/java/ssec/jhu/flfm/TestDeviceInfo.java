@@ -37,4 +37,21 @@ public class TestDeviceInfo {
       assertEquals(type + ":" + id, device.toDisplay());
     }
   }
+
+  @ParameterizedTest
+  @CsvSource({"CPU, CPU, -1, 0", "GPU:0, GPU, 0, 0", "gpu:2, GPU, 2, 0", "CPU#3, CPU, -1, 3"})
+  public void testFromDisplay(String display, String type, int id, int lane) {
+    DeviceInfo device = DeviceInfo.fromDisplay(display);
+    assertEquals(type, device.type);
+    assertEquals(id, device.id);
+    assertEquals(lane, device.lane);
+  }
+
+  @ParameterizedTest
+  @CsvSource({"CPU, -1, 2, CPU#2", "GPU, 1, 1, GPU:1#1", "GPU, 0, 0, GPU:0"})
+  public void testLaneDisplay(String type, int id, int lane, String display) {
+    DeviceInfo device = new DeviceInfo(type, id).withLane(lane);
+    assertEquals(display, device.toDisplay());
+    assertEquals(new DeviceInfo(type, id).toDeviceName(), device.toDeviceName());
+  }
 }
@@ -0,0 +1,100 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ij.ImagePlus;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+public class TestDeviceScheduler {
+
+  private static final int SIZE = 16;
+  private static final int PLANES = 2;
+  private static final DeviceInfo JAVA = new DeviceInfo(Constants.DEVICE_JAVA, -1);
+
+  private static RunOptions createOptions() {
+    RunOptions options = new RunOptions(OutputType.FLOAT32);
+    options.iterations = 2;
+    return options;
+  }
+
+  private static float[] pixels(ImagePlus image, int slice) {
+    return (float[]) image.getStack().getPixels(slice);
+  }
+
+  @Test
+  public void testSpreadsJobsAcrossHostLanes() throws Exception {
+    ImagePlus psf = Fixtures.psf(SIZE, PLANES);
+    List<Future<ImagePlus>> results = new ArrayList<>();
+    try (DeviceScheduler scheduler =
+        new DeviceScheduler(new DeviceInfo[] {JAVA}, 2, Long.MAX_VALUE, null)) {
+      assertEquals(2, scheduler.getLanes().size());
+      for (int i = 0; i < 6; i++) {
+        results.add(scheduler.submit(null, psf, Fixtures.input(SIZE, i), createOptions()));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        ImagePlus expected =
+            new JavaEngine().reconstruct(null, JAVA, psf, Fixtures.input(SIZE, i), createOptions());
+        ImagePlus actual = results.get(i).get();
+        assertNotNull(actual);
+        for (int z = 1; z <= PLANES; z++) {
+          assertArrayEquals(pixels(expected, z), pixels(actual, z), 1e-6f);
+        }
+      }
+      assertEquals(6, Arrays.stream(scheduler.getCompleted()).sum());
+      assertTrue(scheduler.getPeakRunning() <= 2);
+    }
+  }
+
+  @Test
+  public void testAdmissionLimitsConcurrency() throws Exception {
+    ImagePlus psf = Fixtures.psf(SIZE, PLANES);
+    long oneJob = new JavaEngine().estimateBytes(PLANES, SIZE, SIZE);
+    List<Future<ImagePlus>> results = new ArrayList<>();
+    try (DeviceScheduler scheduler =
+        new DeviceScheduler(new DeviceInfo[] {JAVA}, 4, oneJob, null)) {
+      for (int i = 0; i < 5; i++) {
+        results.add(scheduler.submit(null, psf, Fixtures.input(SIZE, i), createOptions()));
+      }
+      for (Future<ImagePlus> result : results) {
+        assertNotNull(result.get());
+      }
+      assertEquals(1, scheduler.getPeakRunning(), "Only one job fits into the memory");
+    }
+  }
+
+  @Test
+  public void testOversizedJobRunsTiled() throws Exception {
+    RunOptions options = createOptions();
+    try (DeviceScheduler scheduler = new DeviceScheduler(new DeviceInfo[] {JAVA}, 1, 1, null)) {
+      assertNotNull(
+          scheduler
+              .submit(null, Fixtures.psf(SIZE, PLANES), Fixtures.input(SIZE, 0), options)
+              .get());
+    }
+    assertTrue(options.tiled, "A job larger than the device should run tiled");
+    assertEquals(1, options.maxTileBytes);
+  }
+
+  @Test
+  public void testSelectDevices() {
+    DeviceInfo[] devices =
+        DeviceScheduler.selectDevices(
+            new DeviceInfo[] {new DeviceInfo("GPU", 0), new DeviceInfo("CPU", -1), JAVA});
+    assertEquals(2, devices.length);
+    assertEquals("GPU:0", devices[0].toDisplay());
+    assertEquals("CPU", devices[1].toDisplay());
+
+    devices =
+        DeviceScheduler.selectDevices(
+            new DeviceInfo[] {new DeviceInfo(Constants.DEVICE_ERROR, -2), JAVA});
+    assertEquals(1, devices.length);
+    assertEquals(Constants.DEVICE_JAVA, devices[0].type);
+  }
+}
@@ -0,0 +1,64 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class TestFft2d {
+
+  @ParameterizedTest
+  @CsvSource({"4, 8", "5, 7", "6, 6", "1, 12"})
+  public void testForwardMatchesDft(int height, int width) {
+    Random random = new Random(42);
+    float[] re = new float[height * width];
+    float[] im = new float[height * width];
+    for (int i = 0; i < re.length; i++) {
+      re[i] = random.nextFloat();
+      im[i] = random.nextFloat();
+    }
+    float[] inRe = re.clone();
+    float[] inIm = im.clone();
+
+    new Fft2d(height, width).forward(re, im);
+
+    for (int ky = 0; ky < height; ky++) {
+      for (int kx = 0; kx < width; kx++) {
+        double sumRe = 0;
+        double sumIm = 0;
+        for (int y = 0; y < height; y++) {
+          for (int x = 0; x < width; x++) {
+            double angle = -2 * Math.PI * ((double) ky * y / height + (double) kx * x / width);
+            int i = y * width + x;
+            sumRe += inRe[i] * Math.cos(angle) - inIm[i] * Math.sin(angle);
+            sumIm += inRe[i] * Math.sin(angle) + inIm[i] * Math.cos(angle);
+          }
+        }
+        assertEquals(sumRe, re[ky * width + kx], 1e-4);
+        assertEquals(sumIm, im[ky * width + kx], 1e-4);
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @CsvSource({"4, 8", "5, 7", "9, 3"})
+  public void testInverseRoundTrip(int height, int width) {
+    Random random = new Random(7);
+    float[] re = new float[height * width];
+    float[] im = new float[height * width];
+    for (int i = 0; i < re.length; i++) {
+      re[i] = random.nextFloat();
+    }
+    float[] original = re.clone();
+
+    Fft2d fft = new Fft2d(height, width);
+    fft.forward(re, im);
+    fft.inverse(re, im);
+
+    for (int i = 0; i < re.length; i++) {
+      assertEquals(original[i], re[i], 1e-5);
+      assertEquals(0, im[i], 1e-5);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestHeadlessRunner {
+
+  @TempDir Path tempDir;
+
+  @Test
+  public void testFromArguments() {
+    HeadlessRunner.Settings settings =
+        HeadlessRunner.Settings.fromArguments(
+            new String[] {
+              "--psf", "psf.tif",
+              "--input", "frame.tif",
+              "--output", "out",
+              "--iterations", "5",
+              "--device", "GPU:1",
+              "--center-x", "100",
+              "--center-y", "90",
+              "--radius", "20",
+              "--output-type", "float32",
+              "--precision", "bf16"
+            });
+    assertEquals("psf.tif", settings.psf);
+    assertEquals("frame.tif", settings.input);
+    assertEquals("out", settings.output);
+    assertEquals(5, settings.iterations);
+    assertEquals("GPU:1", settings.device);
+    assertEquals(100, settings.centerX);
+    assertEquals(90, settings.centerY);
+    assertEquals(20, settings.radius);
+    assertEquals(OutputType.FLOAT32, settings.outputType);
+    assertEquals(Precision.BF16, settings.precision);
+    assertNull(settings.model);
+  }
+
+  @Test
+  public void testFromArgumentsRejectsUnknown() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> HeadlessRunner.Settings.fromArguments(new String[] {"--colour", "red"}));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> HeadlessRunner.Settings.fromArguments(new String[] {"--psf"}));
+  }
+
+  @Test
+  public void testFromMacroOptions() {
+    HeadlessRunner.Settings settings =
+        HeadlessRunner.Settings.fromMacroOptions(
+            "psf=[/data/my psf.tif] input=frame.tif iterations=3 center_x=12 radius=4"
+                + " output_type=UINT16_RESCALE output=[/data/out dir]");
+    assertEquals("/data/my psf.tif", settings.psf);
+    assertEquals("frame.tif", settings.input);
+    assertEquals("/data/out dir", settings.output);
+    assertEquals(3, settings.iterations);
+    assertEquals(12, settings.centerX);
+    assertEquals(Constants.DEFAULT_CENTER_Y, settings.centerY);
+    assertEquals(4, settings.radius);
+    assertEquals(OutputType.UINT16_RESCALE, settings.outputType);
+    assertEquals("CPU", settings.device);
+  }
+
+  @Test
+  public void testToRunOptions() {
+    HeadlessRunner.Settings settings = new HeadlessRunner.Settings();
+    settings.iterations = 7;
+    settings.centerX = 10;
+    settings.centerY = 11;
+    settings.radius = 5;
+    RunOptions options = settings.toRunOptions();
+    assertEquals(7, options.iterations);
+    assertEquals(10, options.crop.centerX);
+    assertEquals(11, options.crop.centerY);
+    assertEquals(5, options.crop.radius);
+  }
+
+  @Test
+  public void testReconstructRequiresModelOrIterations() throws Exception {
+    HeadlessRunner.Settings settings = new HeadlessRunner.Settings();
+    settings.psf = Fixtures.save(Fixtures.psf(16, 2), tempDir.resolve("psf.tif"));
+    settings.input = Fixtures.save(frame(), tempDir.resolve("frame.tif"));
+    settings.model = null;
+    settings.iterations = -1;
+    assertThrows(IllegalArgumentException.class, () -> HeadlessRunner.reconstruct(settings));
+  }
+
+  @Test
+  public void testReconstructAndWrite() throws Exception {
+    HeadlessRunner.Settings settings = new HeadlessRunner.Settings();
+    settings.psf = Fixtures.save(Fixtures.psf(16, 2), tempDir.resolve("psf.tif"));
+    settings.input = Fixtures.save(frame(), tempDir.resolve("frame.tif"));
+    settings.iterations = 2;
+    settings.device = Constants.DEVICE_JAVA;
+    settings.centerX = 8;
+    settings.centerY = 8;
+    settings.radius = 4;
+    settings.outputType = OutputType.FLOAT32;
+    settings.output = tempDir.resolve("out").toString();
+    Files.createDirectories(tempDir.resolve("out"));
+
+    ImagePlus result = HeadlessRunner.reconstruct(settings);
+    assertEquals(8, result.getWidth());
+    assertEquals(8, result.getHeight());
+    assertEquals(2, result.getStackSize());
+
+    Path written = HeadlessRunner.write(result, settings);
+    assertEquals(tempDir.resolve("out").resolve("frame_recon.tif"), written);
+    assertTrue(Files.size(written) > 0);
+    ImagePlus reopened = IJ.openImage(written.toString());
+    assertEquals(2, reopened.getStackSize());
+  }
+
+  @Test
+  public void testTimeSeriesToZarr() throws Exception {
+    ImageStack frames = new ImageStack(16, 16);
+    frames.addSlice(frame().getProcessor());
+    frames.addSlice(frame().getProcessor());
+    frames.addSlice(frame().getProcessor());
+    HeadlessRunner.Settings settings = new HeadlessRunner.Settings();
+    settings.psf = Fixtures.save(Fixtures.psf(16, 2), tempDir.resolve("psf.tif"));
+    settings.input = Fixtures.save(new ImagePlus("frames", frames), tempDir.resolve("frames.tif"));
+    settings.iterations = 1;
+    settings.device = Constants.DEVICE_JAVA;
+    settings.centerX = 8;
+    settings.centerY = 8;
+    settings.radius = 4;
+    settings.output = tempDir.resolve("frames.ome.zarr").toString();
+
+    ImagePlus result = HeadlessRunner.reconstruct(settings);
+    assertEquals(3, result.getNFrames());
+    Path written = HeadlessRunner.write(result, settings);
+    String zarray =
+        new String(Files.readAllBytes(written.resolve("0/.zarray")), StandardCharsets.UTF_8);
+    assertTrue(zarray.contains("\"shape\": [3, 2, 8, 8]"), zarray);
+    assertTrue(Files.exists(written.resolve("0/2/1/0/0")));
+  }
+
+  @Test
+  public void testReconstructRestoresThreading() throws Exception {
+    int threads = ThreadingConfig.getCurrent().getIntraOpThreads();
+    HeadlessRunner.Settings settings = new HeadlessRunner.Settings();
+    settings.psf = Fixtures.save(Fixtures.psf(16, 2), tempDir.resolve("psf.tif"));
+    settings.input = Fixtures.save(frame(), tempDir.resolve("frame.tif"));
+    settings.iterations = 1;
+    settings.device = Constants.DEVICE_JAVA;
+    settings.centerX = 8;
+    settings.centerY = 8;
+    settings.radius = 4;
+    settings.threads = threads + 1;
+
+    HeadlessRunner.reconstruct(settings);
+    assertEquals(threads, ThreadingConfig.getCurrent().getIntraOpThreads());
+
+    // an interrupted run fails while it waits for the device
+    Thread.currentThread().interrupt();
+    try {
+      assertThrows(CancellationException.class, () -> HeadlessRunner.reconstruct(settings));
+    } finally {
+      Thread.interrupted();
+    }
+    assertEquals(threads, ThreadingConfig.getCurrent().getIntraOpThreads());
+  }
+
+  private static ImagePlus frame() {
+    short[] pixels = new short[16 * 16];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = (short) (100 + i % 7);
+    }
+    return new ImagePlus("frame", new ShortProcessor(16, 16, pixels, null));
+  }
+}
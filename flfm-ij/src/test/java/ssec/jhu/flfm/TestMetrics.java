@@ -0,0 +1,133 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class TestMetrics {
+
+  private static final long MILLIS = 1_000_000L;
+
+  @Test
+  public void testHistogramBuckets() {
+    Metrics metrics = new Metrics();
+    metrics.record(Metrics.Stage.PREDICT, MILLIS / 2);
+    metrics.record(Metrics.Stage.PREDICT, 3 * MILLIS);
+    metrics.record(Metrics.Stage.PREDICT, 3 * MILLIS);
+    metrics.record(Metrics.Stage.PREDICT, 90_000 * MILLIS);
+
+    Metrics.Histogram histogram = metrics.getHistogram(Metrics.Stage.PREDICT);
+    long[] expected = new long[Metrics.Histogram.BOUNDS_MILLIS.length + 1];
+    expected[0] = 1;
+    expected[2] = 2;
+    expected[expected.length - 1] = 1;
+    assertArrayEquals(expected, histogram.getBuckets());
+    assertEquals(4, histogram.getCount());
+    assertEquals(0.5, histogram.getMinMillis(), 1e-9);
+    assertEquals(90_000, histogram.getMaxMillis(), 1e-9);
+    assertEquals((0.5 + 3 + 3 + 90_000) / 4, histogram.getMeanMillis(), 1e-9);
+  }
+
+  @Test
+  public void testPercentiles() {
+    Metrics metrics = new Metrics();
+    for (int i = 0; i < 19; i++) {
+      metrics.record(Metrics.Stage.ITERATE, 15 * MILLIS);
+    }
+    metrics.record(Metrics.Stage.ITERATE, 400 * MILLIS);
+
+    Metrics.Histogram histogram = metrics.getHistogram(Metrics.Stage.ITERATE);
+    assertEquals(20, histogram.getPercentileMillis(50), 1e-9);
+    assertEquals(20, histogram.getPercentileMillis(95), 1e-9);
+    assertEquals(400, histogram.getPercentileMillis(100), 1e-9);
+    assertEquals(0, metrics.getHistogram(Metrics.Stage.PREDICT).getPercentileMillis(95));
+  }
+
+  @Test
+  public void testTimerRecordsOnce() {
+    Metrics metrics = new Metrics();
+    Metrics.Timer timer = metrics.start(Metrics.Stage.CROP_MASK);
+    timer.close();
+    timer.close();
+    assertEquals(1, metrics.getHistogram(Metrics.Stage.CROP_MASK).getCount());
+  }
+
+  @Test
+  public void testCounters() {
+    Metrics metrics = new Metrics();
+    metrics.increment("runs");
+    metrics.increment("runs");
+    metrics.add("batch.frames", 8);
+    assertEquals(2, metrics.getCounter("runs"));
+    assertEquals(8, metrics.getCounter("batch.frames"));
+    assertEquals(0, metrics.getCounter("runs.failed"));
+  }
+
+  @Test
+  public void testJson() {
+    Metrics metrics = new Metrics();
+    metrics.record(Metrics.Stage.MODEL_LOAD, 250 * MILLIS);
+    metrics.increment("runs");
+    metrics.addCache("model", () -> 3, () -> 1);
+    metrics.recordDeviceMemory("gpu0", 2048);
+    metrics.recordDeviceMemory("gpu0", 1024);
+
+    String json = metrics.toJson();
+    assertTrue(json.contains("\"model_load\": {\"count\": 1"), json);
+    assertTrue(json.contains("\"le200\": 0, \"le500\": 1"), json);
+    assertTrue(json.contains("\"runs\": 1"), json);
+    assertTrue(json.contains("\"model\": {\"hits\": 3, \"misses\": 1, \"hitRate\": 0.7500}"), json);
+    assertTrue(json.contains("\"gpu0\": 2048"), json);
+  }
+
+  @Test
+  public void testCsv() {
+    Metrics metrics = new Metrics();
+    metrics.record(Metrics.Stage.ARRAY_TO_IMAGE, 7 * MILLIS);
+    metrics.increment("runs.failed");
+    metrics.addCache("PSF", () -> 0, () -> 0);
+
+    String csv = metrics.toCsv();
+    assertTrue(csv.startsWith("section,name,metric,value\n"), csv);
+    assertTrue(csv.contains("stage,array_to_image,count,1\n"), csv);
+    assertTrue(csv.contains("stage,array_to_image,bucket_le10,1\n"), csv);
+    assertTrue(csv.contains("stage,array_to_image,bucket_inf,0\n"), csv);
+    assertTrue(csv.contains("counter,runs.failed,value,1\n"), csv);
+    assertTrue(csv.contains("cache,PSF,hitRate,0.0000\n"), csv);
+    assertTrue(csv.contains("memory,heap,peakBytes,"), csv);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"metrics.json", "metrics.csv", "METRICS.CSV"})
+  public void testWrite(String name, @TempDir Path tempDir) throws Exception {
+    Metrics metrics = new Metrics();
+    metrics.record(Metrics.Stage.PREDICT, MILLIS);
+    Path path = tempDir.resolve(name);
+    metrics.write(path);
+
+    String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    boolean csv = name.toLowerCase().endsWith(".csv");
+    assertEquals(csv ? metrics.toCsv() : metrics.toJson(), content);
+  }
+
+  @Test
+  public void testReset() {
+    Metrics metrics = new Metrics();
+    metrics.record(Metrics.Stage.PREDICT, MILLIS);
+    metrics.increment("runs");
+    metrics.addCache("model", () -> 1, () -> 0);
+    metrics.reset();
+
+    assertEquals(0, metrics.getHistogram(Metrics.Stage.PREDICT).getCount());
+    assertEquals(0, metrics.getCounter("runs"));
+    assertTrue(metrics.summary().contains("model cache: 1 hits, 0 misses (100%)"));
+  }
+}
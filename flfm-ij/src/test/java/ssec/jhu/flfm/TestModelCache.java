@@ -0,0 +1,250 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import ai.djl.Model;
+import ai.djl.inference.Predictor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class TestModelCache {
+
+  private final DeviceInfo cpu = new DeviceInfo("CPU", -1);
+  private final List<ModelCache.Entry> loaded = new ArrayList<>();
+
+  @SuppressWarnings("unchecked")
+  private ModelCache.Entry load(String modelPathStr, DeviceInfo deviceInfo, long size) {
+    ModelCache.Entry entry = new ModelCache.Entry(mock(Model.class), mock(Predictor.class), size);
+    loaded.add(entry);
+    return entry;
+  }
+
+  @Test
+  public void testHitReusesModel() throws Exception {
+    ModelCache cache = new ModelCache(2, 1000);
+    Model first;
+    try (ModelCache.Handle h = cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 10))) {
+      first = h.getModel();
+    }
+    try (ModelCache.Handle h = cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 10))) {
+      assertSame(first, h.getModel());
+    }
+    assertEquals(1, loaded.size());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testDeviceIsPartOfKey() throws Exception {
+    ModelCache cache = new ModelCache(2, 1000);
+    cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 10)).close();
+    cache.acquire("model1.pt", new DeviceInfo("GPU", 0), (p, d) -> load(p, d, 10)).close();
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedByCount() throws Exception {
+    ModelCache cache = new ModelCache(2, 1000);
+    cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 10)).close();
+    cache.acquire("model2.pt", cpu, (p, d) -> load(p, d, 10)).close();
+    cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 10)).close();
+    cache.acquire("model3.pt", cpu, (p, d) -> load(p, d, 10)).close();
+
+    assertEquals(2, cache.size());
+    verify(loaded.get(1).getModel()).close(); // model2 was least recently used
+    verify(loaded.get(0).getModel(), never()).close();
+  }
+
+  @Test
+  public void testEvictsByMemoryCap() throws Exception {
+    ModelCache cache = new ModelCache(10, 100);
+    cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 60)).close();
+    cache.acquire("model2.pt", cpu, (p, d) -> load(p, d, 60)).close();
+
+    assertEquals(1, cache.size());
+    assertEquals(60, cache.getTotalBytes());
+    verify(loaded.get(0).getModel()).close();
+  }
+
+  @Test
+  public void testInvalidateWhileInUseDefersClose() throws Exception {
+    ModelCache cache = new ModelCache(2, 1000);
+    ModelCache.Handle handle = cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 10));
+    cache.invalidateAll();
+    verify(loaded.get(0).getModel(), never()).close();
+
+    handle.close();
+    verify(loaded.get(0).getModel()).close();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testReserveLanesKeepsEveryLaneCached() throws Exception {
+    ModelCache cache = new ModelCache(2, 1000);
+    cache.reserveLanes(4);
+    assertEquals(5, cache.getMaxEntries());
+    cache.reserveLanes(2);
+    assertEquals(5, cache.getMaxEntries());
+
+    for (int lane = 0; lane < 4; lane++) {
+      cache.acquire("model1.pt", cpu.withLane(lane), (p, d) -> load(p, d, 10)).close();
+    }
+    cache.acquire("model2.pt", cpu, (p, d) -> load(p, d, 10)).close();
+    assertEquals(5, cache.size());
+    for (ModelCache.Entry entry : loaded) {
+      verify(entry.getModel(), never()).close();
+    }
+  }
+
+  @Test
+  public void testSlowLoadDoesNotBlockOtherKeys() throws Exception {
+    ModelCache cache = new ModelCache(4, 1000);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> slow =
+          executor.submit(
+              () -> {
+                cache
+                    .acquire(
+                        "model1.pt",
+                        new DeviceInfo("GPU", 0),
+                        (p, d) -> {
+                          started.countDown();
+                          await(release);
+                          return load(p, d, 10);
+                        })
+                    .close();
+                return null;
+              });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+
+      // the statistics and other devices stay available while the first model loads
+      assertEquals(0, cache.size());
+      cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 10)).close();
+      assertEquals(1, cache.size());
+
+      release.countDown();
+      slow.get(5, TimeUnit.SECONDS);
+      assertEquals(2, cache.size());
+      assertEquals(2, cache.getMisses());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testConcurrentMissesLoadOnce() throws Exception {
+    ModelCache cache = new ModelCache(4, 1000);
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    ModelCache.Loader loader =
+        (p, d) -> {
+          loads.incrementAndGet();
+          await(release);
+          return new ModelCache.Entry(mock(Model.class), mock(Predictor.class), 10);
+        };
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Model>> models = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        models.add(
+            executor.submit(
+                () -> {
+                  try (ModelCache.Handle h = cache.acquire("model1.pt", cpu, loader)) {
+                    return h.getModel();
+                  }
+                }));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      Model first = models.get(0).get(5, TimeUnit.SECONDS);
+      for (Future<Model> model : models) {
+        assertSame(first, model.get(5, TimeUnit.SECONDS));
+      }
+      assertEquals(1, loads.get());
+      assertEquals(1, cache.getMisses());
+      assertEquals(3, cache.getHits());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testLoadAfterInvalidateAllIsNotCached() throws Exception {
+    ModelCache cache = new ModelCache(4, 1000);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Model> slow =
+          executor.submit(
+              () -> {
+                ModelCache.Loader loader =
+                    (p, d) -> {
+                      started.countDown();
+                      await(release);
+                      return load(p, d, 10);
+                    };
+                try (ModelCache.Handle h = cache.acquire("model1.pt", cpu, loader)) {
+                  return h.getModel();
+                }
+              });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      cache.invalidateAll();
+      release.countDown();
+
+      // the run that loaded the model still gets it, but it is closed instead of cached
+      Model model = slow.get(5, TimeUnit.SECONDS);
+      verify(model).close();
+      assertEquals(0, cache.size());
+      assertEquals(0, cache.getTotalBytes());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedLoadIsNotCached() throws Exception {
+    ModelCache cache = new ModelCache(4, 1000);
+    assertThrows(
+        IOException.class,
+        () ->
+            cache.acquire(
+                "model1.pt",
+                cpu,
+                (p, d) -> {
+                  throw new IOException("missing");
+                }));
+    assertEquals(0, cache.size());
+    cache.acquire("model1.pt", cpu, (p, d) -> load(p, d, 10)).close();
+    assertEquals(1, cache.size());
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestModelIndex {
+
+  @TempDir Path tempDir;
+
+  private Path writeModel(String name, String content) throws IOException {
+    return Files.write(tempDir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    List<ModelInfo> models =
+        Arrays.asList(
+            new ModelInfo("model5.pt", "model5.pt", 5, 1234, "abc"),
+            new ModelInfo("model12.pt", "model12.pt", 12, 5678, null));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ModelIndex.write(models, out);
+    List<ModelInfo> read = ModelIndex.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(2, read.size());
+    ModelInfo model12 = read.get(0);
+    ModelInfo model5 = read.get(1);
+    assertEquals("model12.pt", model12.name);
+    assertEquals(12, model12.iterations);
+    assertEquals(5678, model12.sizeBytes);
+    assertNull(model12.sha256);
+    assertEquals("model5.pt", model5.location);
+    assertEquals(5, model5.iterations);
+    assertEquals("abc", model5.sha256);
+  }
+
+  @Test
+  public void testDescribe() throws IOException {
+    Path file = writeModel("model7.pt", "abc");
+    ModelInfo info = ModelIndex.describe(file, "model7.pt");
+    assertEquals(7, info.iterations);
+    assertEquals(3, info.sizeBytes);
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", info.sha256);
+  }
+
+  @Test
+  public void testScanReusesUnchangedModels() throws IOException {
+    writeModel("model3.pt", "three");
+    writeModel("model10.pt", "ten");
+    writeModel("notes.txt", "not a model");
+
+    List<ModelInfo> first = ModelIndex.scan(tempDir);
+    List<ModelInfo> second = ModelIndex.scan(tempDir);
+    assertEquals(2, first.size());
+    for (ModelInfo model : first) {
+      assertTrue(Files.isSameFile(tempDir.resolve(model.name), Paths.get(model.location)));
+      assertSame(model, second.stream().filter(m -> m.name.equals(model.name)).findFirst().get());
+    }
+  }
+
+  @Test
+  public void testFindModelLocation() {
+    List<ModelInfo> models =
+        Arrays.asList(
+            new ModelInfo("model1.pt", "model1.pt", 1, 1, null),
+            new ModelInfo("model15.pt", "/models/model15.pt", 15, 1, null));
+    assertEquals("/models/model15.pt", PluginController.findModelLocation(models, 15));
+    assertNull(PluginController.findModelLocation(models, 4));
+    assertNull(PluginController.findModelLocation(null, 1));
+  }
+
+  @Test
+  public void testWatcherReportsNewModels() throws Exception {
+    CountDownLatch changed = new CountDownLatch(1);
+    try (ModelIndex.Watcher watcher = new ModelIndex.Watcher(tempDir, changed::countDown)) {
+      writeModel("model2.pt", "two");
+      assertTrue(changed.await(30, TimeUnit.SECONDS), "The new model should be reported");
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestModelStore {
+
+  private static final byte[] CONTENT = "abc".getBytes(StandardCharsets.UTF_8);
+  private static final String SHA256 =
+      "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  @TempDir Path tempDir;
+
+  private URL writeBundled(String name) throws IOException {
+    Path source = tempDir.resolve("bundled");
+    Files.createDirectories(source);
+    return Files.write(source.resolve(name), CONTENT).toUri().toURL();
+  }
+
+  @Test
+  public void testExtractsOnce() throws IOException {
+    URL url = writeBundled("model3.pt");
+    ModelStore store = new ModelStore(tempDir.resolve("store"));
+    Path file = store.get("model3.pt", url, SHA256);
+    assertEquals(tempDir.resolve("store").resolve(SHA256).resolve("model3.pt"), file);
+    assertArrayEquals(CONTENT, Files.readAllBytes(file));
+
+    // a new store, as in a later session, uses the extracted copy without reading the source
+    Files.delete(tempDir.resolve("bundled").resolve("model3.pt"));
+    assertEquals(file, new ModelStore(tempDir.resolve("store")).get("model3.pt", url, SHA256));
+  }
+
+  @Test
+  public void testUnknownChecksumIsComputed() throws IOException {
+    URL url = writeBundled("model4.pt");
+    ModelStore store = new ModelStore(tempDir.resolve("store"));
+    Path file = store.get("model4.pt", url, null);
+    assertEquals(SHA256, file.getParent().getFileName().toString());
+    Files.delete(tempDir.resolve("bundled").resolve("model4.pt"));
+    assertEquals(file, store.get("model4.pt", url, null));
+  }
+
+  @Test
+  public void testChecksumMismatchIsRejected() throws IOException {
+    URL url = writeBundled("model5.pt");
+    Path root = tempDir.resolve("store");
+    ModelStore store = new ModelStore(root);
+    String wrong = SHA256.replace('a', 'b');
+    assertThrows(IOException.class, () -> store.get("model5.pt", url, wrong));
+    try (Stream<Path> files = Files.walk(root)) {
+      assertFalse(files.anyMatch(Files::isRegularFile), "No partial copy should be left");
+    }
+  }
+
+  @Test
+  public void testNameCannotLeaveStore() throws IOException {
+    URL url = writeBundled("model6.pt");
+    ModelStore store = new ModelStore(tempDir.resolve("store"));
+    assertThrows(IOException.class, () -> store.get("../model6.pt", url, SHA256));
+    assertTrue(Files.notExists(tempDir.resolve("model6.pt")));
+  }
+}
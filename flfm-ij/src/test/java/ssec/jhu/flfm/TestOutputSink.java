@@ -0,0 +1,218 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class TestOutputSink {
+
+  private static final int WIDTH = 7;
+  private static final int HEIGHT = 5;
+  private static final int PLANES = 4;
+
+  @TempDir Path tempDir;
+
+  private static ImagePlus createVolume(boolean float32) {
+    ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+    for (int z = 0; z < PLANES; z++) {
+      if (float32) {
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+          pixels[i] = (i + z * 100) / 7f;
+        }
+        stack.addSlice(new FloatProcessor(WIDTH, HEIGHT, pixels));
+      } else {
+        short[] pixels = new short[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+          pixels[i] = (short) (60000 - i * 13 - z * 1000);
+        }
+        stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+      }
+    }
+    return new ImagePlus("volume", stack);
+  }
+
+  private static float[] toFloats(ImagePlus image) {
+    FloatBuffer buffer = FloatBuffer.allocate(image.getStackSize() * WIDTH * HEIGHT);
+    for (float[] plane : ArrayUtils.convertImageToPlanes(image)) {
+      buffer.put(plane);
+    }
+    return buffer.array();
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void testTiffRoundTrip(boolean float32) throws IOException {
+    ImagePlus volume = createVolume(float32);
+    Path path = tempDir.resolve("volume.tif");
+    try (TiffOutputSink sink = new TiffOutputSink(path, 3)) {
+      ArrayUtils.writeImage(volume, sink);
+    }
+
+    ImagePlus opened = IJ.openImage(path.toString());
+    assertNotNull(opened, "ImageJ opens the written stack");
+    assertEquals(PLANES, opened.getNSlices());
+    assertEquals(float32 ? 32 : 16, opened.getBitDepth());
+    assertArrayEquals(toFloats(volume), toFloats(opened));
+  }
+
+  @Test
+  public void testBigTiffRoundTrip() throws IOException {
+    ImagePlus volume = createVolume(false);
+    Path path = tempDir.resolve("volume.tif");
+    try (TiffOutputSink sink = new TiffOutputSink(path, 2, true)) {
+      ArrayUtils.writeImage(volume, sink);
+      assertTrue(sink.isBigTiff());
+    }
+
+    try (TiffReader reader = new TiffReader(path)) {
+      assertTrue(reader.isBigTiff());
+      assertEquals(PLANES, reader.getSliceCount());
+      ByteBuffer pixels = reader.readAll();
+      float[] values = new float[PLANES * WIDTH * HEIGHT];
+      pixels.asFloatBuffer().get(values);
+      assertArrayEquals(toFloats(volume), values);
+    }
+  }
+
+  @Test
+  public void testPlanesInAnyOrder() throws IOException {
+    ImagePlus volume = createVolume(true);
+    Path path = tempDir.resolve("reversed.tif");
+    try (TiffOutputSink sink = new TiffOutputSink(path, 4)) {
+      sink.open(WIDTH, HEIGHT, PLANES, OutputType.FLOAT32);
+      for (int z = PLANES - 1; z >= 0; z--) {
+        sink.writePlane(z, volume.getStack().getPixels(z + 1));
+      }
+    }
+    assertArrayEquals(toFloats(volume), toFloats(IJ.openImage(path.toString())));
+  }
+
+  @Test
+  public void testMissingPlaneFails() throws IOException {
+    Path path = tempDir.resolve("partial.tif");
+    Files.write(path, new byte[] {1, 2, 3});
+    TiffOutputSink sink = new TiffOutputSink(path, 1);
+    sink.open(WIDTH, HEIGHT, 2, OutputType.UINT16_SATURATE);
+    sink.writePlane(0, new short[WIDTH * HEIGHT]);
+    assertThrows(IOException.class, sink::close);
+
+    // the earlier file is kept and no partial file is left behind
+    assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(path));
+    assertFalse(Files.exists(tempDir.resolve("partial.tif.part")));
+  }
+
+  @Test
+  public void testZarrMissingPlaneRemovesImage() throws IOException {
+    Path root = tempDir.resolve("partial.ome.zarr");
+    ZarrOutputSink sink = new ZarrOutputSink(root, 1);
+    sink.open(WIDTH, HEIGHT, 2, OutputType.UINT16_SATURATE);
+    sink.writePlane(0, new short[WIDTH * HEIGHT]);
+    assertThrows(IOException.class, sink::close);
+    assertFalse(Files.exists(root));
+  }
+
+  @Test
+  public void testZarrReplacesEarlierChunks() throws IOException {
+    Path root = tempDir.resolve("volume.ome.zarr");
+    try (ZarrOutputSink sink = new ZarrOutputSink(root, 2)) {
+      ArrayUtils.writeImage(createVolume(false), sink);
+    }
+    assertTrue(Files.exists(root.resolve("0/3/0/0")));
+
+    try (ZarrOutputSink sink = new ZarrOutputSink(root, 2)) {
+      sink.open(WIDTH, HEIGHT, 2, OutputType.UINT16_SATURATE);
+      sink.writePlane(0, new short[WIDTH * HEIGHT]);
+      sink.writePlane(1, new short[WIDTH * HEIGHT]);
+    }
+    assertTrue(Files.exists(root.resolve("0/1/0/0")));
+    assertFalse(Files.exists(root.resolve("0/2")));
+    assertFalse(Files.exists(root.resolve("0/3")));
+  }
+
+  @Test
+  public void testZarrChunks() throws IOException {
+    ImagePlus volume = createVolume(false);
+    Path root = tempDir.resolve("volume.ome.zarr");
+    try (ZarrOutputSink sink = new ZarrOutputSink(root, 2, 4)) {
+      ArrayUtils.writeImage(volume, sink);
+    }
+
+    String zarray =
+        new String(Files.readAllBytes(root.resolve("0/.zarray")), StandardCharsets.UTF_8);
+    assertTrue(zarray.contains("\"shape\": [4, 5, 7]"), zarray);
+    assertTrue(zarray.contains("\"chunks\": [1, 4, 4]"), zarray);
+    assertTrue(zarray.contains("\"dtype\": \"<u2\""), zarray);
+    assertTrue(Files.exists(root.resolve(".zattrs")));
+    assertTrue(Files.exists(root.resolve(".zgroup")));
+
+    // the chunk at the bottom right holds rows 4 and columns 4 to 6, padded to 4 by 4
+    short[] expected = (short[]) volume.getStack().getPixels(3);
+    ByteBuffer chunk =
+        ByteBuffer.wrap(Files.readAllBytes(root.resolve("0/2/1/1"))).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(4 * 4 * 2, chunk.capacity());
+    for (int x = 0; x < 4; x++) {
+      short value = x < 3 ? expected[4 * WIDTH + 4 + x] : 0;
+      assertEquals(value, chunk.getShort(x * 2));
+    }
+    for (int i = 4; i < 16; i++) {
+      assertEquals(0, chunk.getShort(i * 2), "Rows below the plane are padded");
+    }
+  }
+
+  @Test
+  public void testTimeSeries() throws IOException {
+    ImagePlus series = createVolume(true);
+    series.setDimensions(1, 2, 2);
+    series.setOpenAsHyperStack(true);
+
+    Path tiff = tempDir.resolve("series.tif");
+    try (OutputSink sink = OutputFormat.TIFF.createSink(tiff, 2)) {
+      ArrayUtils.writeImage(series, sink);
+    }
+    ImagePlus reopened = IJ.openImage(tiff.toString());
+    assertEquals(2, reopened.getNSlices());
+    assertEquals(2, reopened.getNFrames());
+    assertArrayEquals(toFloats(series), toFloats(reopened), 0);
+
+    Path root = tempDir.resolve("series.ome.zarr");
+    try (OutputSink sink = OutputFormat.OME_ZARR.createSink(root, 2)) {
+      ArrayUtils.writeImage(series, sink);
+    }
+    String zarray =
+        new String(Files.readAllBytes(root.resolve("0/.zarray")), StandardCharsets.UTF_8);
+    assertTrue(zarray.contains("\"shape\": [2, 2, 5, 7]"), zarray);
+    assertTrue(zarray.contains("\"chunks\": [1, 1, 5, 7]"), zarray);
+    String zattrs = new String(Files.readAllBytes(root.resolve(".zattrs")), StandardCharsets.UTF_8);
+    assertTrue(zattrs.contains("{\"name\": \"t\", \"type\": \"time\"}"), zattrs);
+
+    // plane 1 of frame 1 is the last plane of the stack
+    ByteBuffer chunk =
+        ByteBuffer.wrap(Files.readAllBytes(root.resolve("0/1/1/0/0")))
+            .order(ByteOrder.LITTLE_ENDIAN);
+    float[] expected = (float[]) series.getStack().getPixels(4);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], chunk.getFloat(i * 4), 0);
+    }
+  }
+}
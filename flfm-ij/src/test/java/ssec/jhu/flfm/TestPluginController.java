@@ -0,0 +1,130 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class TestPluginController {
+
+  private static ImagePlus createImage(int width, int height, int numSlices, boolean isFloat) {
+    ImageStack stack = new ImageStack(width, height);
+    for (int z = 0; z < numSlices; z++) {
+      ImageProcessor ip =
+          isFloat ? new FloatProcessor(width, height) : new ShortProcessor(width, height);
+      for (int i = 0; i < width * height; i++) {
+        ip.setf(i, 1 + z * 100 + i % 997);
+      }
+      stack.addSlice("slice" + z, ip);
+    }
+    return new ImagePlus("image", stack);
+  }
+
+  /** The original per pixel implementation of the mask. */
+  private static ImagePlus referenceMask(ImagePlus image, int centerX, int centerY, int diameter) {
+    OvalRoi circleRoi =
+        new OvalRoi(centerX - diameter / 2, centerY - diameter / 2, diameter, diameter);
+    ImageStack maskedStack = new ImageStack(image.getWidth(), image.getHeight());
+    for (int i = 1; i <= image.getStackSize(); i++) {
+      ImageProcessor ip = image.getStack().getProcessor(i).duplicate();
+      for (int y = 0; y < ip.getHeight(); y++) {
+        for (int x = 0; x < ip.getWidth(); x++) {
+          if (!circleRoi.contains(x, y)) {
+            ip.putPixel(x, y, 0);
+          }
+        }
+      }
+      maskedStack.addSlice(image.getStack().getSliceLabel(i), ip);
+    }
+    return new ImagePlus("reference", maskedStack);
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "40, 40, 20, 20, 40, true",
+    "40, 40, 20, 20, 40, false",
+    "33, 21, 10, 12, 17, true",
+    "30, 30, 0, 5, 25, false",
+    "64, 48, 60, 40, 30, true"
+  })
+  public void testApplyCircleMaskMatchesOvalRoi(
+      int width, int height, int centerX, int centerY, int diameter, boolean isFloat) {
+    ImagePlus expected =
+        referenceMask(createImage(width, height, 3, isFloat), centerX, centerY, diameter);
+    ImagePlus actual =
+        PluginController.applyCircleMask(
+            createImage(width, height, 3, isFloat), centerX, centerY, diameter);
+
+    assertEquals(expected.getStackSize(), actual.getStackSize());
+    for (int i = 1; i <= expected.getStackSize(); i++) {
+      assertEquals(expected.getStack().getSliceLabel(i), actual.getStack().getSliceLabel(i));
+      if (isFloat) {
+        assertArrayEquals(
+            (float[]) expected.getStack().getPixels(i), (float[]) actual.getStack().getPixels(i));
+      } else {
+        assertArrayEquals(
+            (short[]) expected.getStack().getPixels(i), (short[]) actual.getStack().getPixels(i));
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+    "10, 5, 20, 15, true",
+    "10, 5, 20, 15, false",
+    "-4, -3, 12, 10, true",
+    "30, 35, 20, 20, false"
+  })
+  public void testCropImageMatchesProcessorCrop(
+      int x, int y, int width, int height, boolean isFloat) {
+    ImagePlus image = createImage(40, 45, 3, isFloat);
+    image.setSlice(2);
+    image.setRoi(new Roi(1, 1, 3, 3));
+
+    ImagePlus cropped = PluginController.cropImage(image, x, y, width, height);
+
+    assertEquals(2, image.getCurrentSlice(), "The source slice must not change");
+    assertEquals(new Rectangle(1, 1, 3, 3), image.getRoi().getBounds(), "The ROI must not change");
+    for (int i = 1; i <= image.getStackSize(); i++) {
+      ImageProcessor ip = image.getStack().getProcessor(i);
+      ip.setRoi(new Rectangle(x, y, width, height));
+      ImageProcessor expected = ip.crop();
+      assertEquals(expected.getWidth(), cropped.getWidth());
+      assertEquals(expected.getHeight(), cropped.getHeight());
+      assertEquals(image.getStack().getSliceLabel(i), cropped.getStack().getSliceLabel(i));
+      if (isFloat) {
+        assertArrayEquals(
+            (float[]) expected.getPixels(), (float[]) cropped.getStack().getPixels(i));
+      } else {
+        assertArrayEquals(
+            (short[]) expected.getPixels(), (short[]) cropped.getStack().getPixels(i));
+      }
+    }
+  }
+
+  @Test
+  public void testSelectDevicesHonoursChoice() {
+    DeviceInfo cpu = new DeviceInfo("CPU", -1);
+    DeviceInfo gpu0 = new DeviceInfo("GPU", 0);
+    DeviceInfo gpu1 = new DeviceInfo("GPU", 1);
+    DeviceInfo[] devices = {gpu0, gpu1, cpu};
+
+    DeviceInfo[] selected = PluginController.selectDevices(devices, 1);
+    assertEquals(1, selected.length);
+    assertSame(gpu1, selected[0]);
+
+    // the choice after the devices is "All devices"
+    assertEquals(3, PluginController.selectDevices(devices, devices.length).length);
+  }
+}
@@ -66,6 +66,14 @@ public class TestPluginView {
         "Iteration Choice should have correct item count");
   }
 
+  @Test
+  public void testSetStatus() {
+    assertEquals(Constants.LBL_STATUS_STARTING, pluginView.labelStatus.getText());
+    pluginView.setStatus(Constants.LBL_STATUS_READY);
+    assertEquals(
+        Constants.LBL_STATUS_READY, pluginView.labelStatus.getText(), "Status should be updated");
+  }
+
   @Test
   public void testSetDevices() {
     String[] devices = {"CPU", "GPU"};
@@ -97,10 +105,21 @@ public class TestPluginView {
   public void testStartProcessImage() {
     pluginView.startProcessImage();
     assertEquals(
-        Constants.BTN_WORKING,
+        Constants.BTN_CANCEL,
+        pluginView.btnCalculate.getLabel(),
+        "Calculate button should become a Cancel button");
+    assertTrue(pluginView.btnCalculate.isEnabled(), "Cancel button should be enabled");
+  }
+
+  @Test
+  public void testCancelProcessImage() {
+    pluginView.startProcessImage();
+    pluginView.cancelProcessImage();
+    assertEquals(
+        Constants.BTN_CANCELLING,
         pluginView.btnCalculate.getLabel(),
-        "Calculate button label should be updated");
-    assertFalse(pluginView.btnCalculate.isEnabled(), "Calculate button should be disabled");
+        "Cancel button label should be updated");
+    assertFalse(pluginView.btnCalculate.isEnabled(), "Cancel button should be disabled");
   }
 
   @Test
@@ -0,0 +1,58 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class TestPrecision {
+
+  private final DeviceInfo cpu = new DeviceInfo("CPU", -1);
+
+  @Test
+  public void testIsSupported() {
+    assertTrue(Precision.FP32.isSupported(cpu));
+    assertTrue(Precision.BF16.isSupported(cpu));
+    assertFalse(Precision.FP16.isSupported(cpu));
+    assertTrue(Precision.FP16.isSupported(new DeviceInfo("GPU", 0)));
+  }
+
+  @Test
+  public void testIterationsUseSupportedPrecision() {
+    RunOptions options = new RunOptions();
+    options.iterations = 3;
+    options.precision = Precision.BF16;
+    assertEquals(Precision.BF16, Algorithm.getPrecision(null, cpu, options));
+
+    options.precision = Precision.FP16;
+    assertEquals(Precision.FP32, Algorithm.getPrecision(null, cpu, options));
+  }
+
+  @Test
+  public void testModelsRunInFp32() {
+    RunOptions options = new RunOptions();
+    options.precision = Precision.BF16;
+    assertEquals(Precision.FP32, Algorithm.getPrecision("model.pt", cpu, options));
+    assertTrue(Algorithm.isPrecisionIgnored("model.pt", options));
+    assertTrue(Double.isNaN(Algorithm.checkPrecision("model.pt", cpu, null, null, options)));
+
+    options.iterations = 3;
+    assertFalse(Algorithm.isPrecisionIgnored(null, options));
+    options.precision = Precision.FP32;
+    assertFalse(Algorithm.isPrecisionIgnored("model.pt", options));
+  }
+
+  @Test
+  public void testDisabledPrecisionFallsBack() {
+    DeviceInfo gpu = new DeviceInfo("GPU", 7);
+    RunOptions options = new RunOptions();
+    options.iterations = 3;
+    options.precision = Precision.FP16;
+    assertEquals(Precision.FP16, Algorithm.getPrecision(null, gpu, options));
+
+    Algorithm.disablePrecision(gpu, Precision.FP16, "no half kernel");
+    assertEquals(Precision.FP16, Algorithm.getPrecision(null, new DeviceInfo("GPU", 6), options));
+    assertEquals(Precision.FP32, Algorithm.getPrecision(null, gpu, options));
+  }
+}
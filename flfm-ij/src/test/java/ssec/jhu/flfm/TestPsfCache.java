@@ -0,0 +1,86 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestPsfCache {
+
+  private static ImagePlus createImage(int numSlices, int offset) {
+    int width = 8;
+    int height = 6;
+    ImageStack stack = new ImageStack(width, height);
+    for (int i = 0; i < numSlices; i++) {
+      short[] pixels = new short[width * height];
+      for (int j = 0; j < pixels.length; j++) {
+        pixels[j] = (short) (i * 100 + j + offset);
+      }
+      stack.addSlice(new ShortProcessor(width, height, pixels, null));
+    }
+    return new ImagePlus("PSF", stack);
+  }
+
+  @Test
+  public void testSameContentSameHash() {
+    assertEquals(PsfCache.contentHash(createImage(3, 0)), PsfCache.contentHash(createImage(3, 0)));
+  }
+
+  @Test
+  public void testEditedContentChangesHash() {
+    ImagePlus image = createImage(3, 0);
+    long before = PsfCache.contentHash(image);
+    ((short[]) image.getStack().getPixels(2))[5]++;
+    assertNotEquals(before, PsfCache.contentHash(image));
+  }
+
+  @Test
+  public void testSliceCountChangesHash() {
+    assertNotEquals(
+        PsfCache.contentHash(createImage(2, 0)), PsfCache.contentHash(createImage(3, 0)));
+  }
+
+  @Test
+  public void testEditedImageIsHashedAgain() {
+    PsfCache cache = new PsfCache(2);
+    ImagePlus image = createImage(3, 0);
+    long before = cache.hashOf(image);
+    assertEquals(before, cache.hashOf(createImage(3, 0)));
+    // an edit ImageJ was not told about, or one that was saved since, still changes the hash
+    ((short[]) image.getStack().getPixels(2))[5]++;
+    assertNotEquals(before, cache.hashOf(image));
+    image.changes = true;
+    ((short[]) image.getStack().getPixels(2))[6]++;
+    image.changes = false;
+    assertNotEquals(before, cache.hashOf(image));
+  }
+
+  @Test
+  public void testVirtualStackHashFollowsFile(@TempDir Path tempDir) throws Exception {
+    Path path = tempDir.resolve("psf.tif");
+    IJ.saveAsTiff(createImage(3, 0), path.toString());
+    ImagePlus virtual = IJ.openVirtual(path.toString());
+    assertNull(PsfCache.virtualSource(createImage(3, 0)));
+    assertNotNull(PsfCache.virtualSource(virtual));
+
+    PsfCache cache = new PsfCache(2);
+    long before = cache.hashOf(virtual);
+    assertEquals(PsfCache.contentHash(createImage(3, 0)), before);
+    assertEquals(before, cache.hashOf(virtual));
+
+    IJ.saveAsTiff(createImage(3, 1), path.toString());
+    Files.setLastModifiedTime(
+        path, FileTime.fromMillis(Files.getLastModifiedTime(path).toMillis() + 2000));
+    assertNotEquals(before, cache.hashOf(IJ.openVirtual(path.toString())));
+  }
+}
@@ -0,0 +1,190 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class TestRichardsonLucy {
+
+  /** fftshift of a plane: out[y][x] = in[(y - h/2) mod h][(x - w/2) mod w]. */
+  private static double[] fftshift(double[] in, int height, int width) {
+    double[] out = new double[in.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int sy = Math.floorMod(y - height / 2, height);
+        int sx = Math.floorMod(x - width / 2, width);
+        out[y * width + x] = in[sy * width + sx];
+      }
+    }
+    return out;
+  }
+
+  /** Circular convolution, the spatial equivalent of ifft2(fft2(a) * fft2(b)). */
+  private static double[] convolve(double[] a, double[] b, int height, int width) {
+    double[] out = new double[a.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        double sum = 0;
+        for (int my = 0; my < height; my++) {
+          for (int mx = 0; mx < width; mx++) {
+            int by = Math.floorMod(y - my, height);
+            int bx = Math.floorMod(x - mx, width);
+            sum += a[my * width + mx] * b[by * width + bx];
+          }
+        }
+        out[y * width + x] = sum;
+      }
+    }
+    return out;
+  }
+
+  private static double[] flip(double[] in, int height, int width) {
+    double[] out = new double[in.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        out[y * width + x] = in[(height - 1 - y) * width + (width - 1 - x)];
+      }
+    }
+    return out;
+  }
+
+  @ParameterizedTest
+  @CsvSource({"3, 8, 8, 2", "2, 5, 7, 3", "1, 6, 4, 1"})
+  public void testMatchesSpatialReference(int numPlanes, int height, int width, int iterations) {
+    Random random = new Random(1);
+    int size = height * width;
+    float[][] psf = new float[numPlanes][size];
+    for (float[] plane : psf) {
+      for (int i = 0; i < size; i++) {
+        plane[i] = random.nextFloat();
+      }
+    }
+    float[] image = new float[size];
+    for (int i = 0; i < size; i++) {
+      image[i] = 10 + 100 * random.nextFloat();
+    }
+    RichardsonLucy.normalize(psf);
+
+    // Reference implementation in double precision
+    double[][] object = new double[numPlanes][size];
+    for (double[] plane : object) {
+      Arrays.fill(plane, 0.5);
+    }
+    for (int it = 0; it < iterations; it++) {
+      double[] est = new double[size];
+      for (int z = 0; z < numPlanes; z++) {
+        double[] p = new double[size];
+        for (int i = 0; i < size; i++) {
+          p[i] = psf[z][i];
+        }
+        double[] projected = fftshift(convolve(p, object[z], height, width), height, width);
+        for (int i = 0; i < size; i++) {
+          est[i] += projected[i];
+        }
+      }
+      double[] ratio = new double[size];
+      for (int i = 0; i < size; i++) {
+        ratio[i] = image[i] / est[i];
+      }
+      for (int z = 0; z < numPlanes; z++) {
+        double[] p = new double[size];
+        for (int i = 0; i < size; i++) {
+          p[i] = psf[z][i];
+        }
+        double[] update =
+            fftshift(convolve(ratio, flip(p, height, width), height, width), height, width);
+        for (int i = 0; i < size; i++) {
+          object[z][i] *= update[i];
+        }
+      }
+    }
+
+    float[][] result = new RichardsonLucy(psf, height, width).run(image, iterations);
+
+    for (int z = 0; z < numPlanes; z++) {
+      for (int i = 0; i < size; i++) {
+        assertEquals(object[z][i], result[z][i], 1e-3 * Math.max(1, Math.abs(object[z][i])));
+      }
+    }
+  }
+
+  @Test
+  public void testEarlyStopping() {
+    int height = 6;
+    int width = 6;
+    float[][] psf = new float[2][height * width];
+    psf[0][0] = 1;
+    psf[1][1] = 1;
+    RichardsonLucy.normalize(psf);
+    float[] image = new float[height * width];
+    Arrays.fill(image, 1);
+
+    RichardsonLucy deconvolution = new RichardsonLucy(psf, height, width);
+    deconvolution.run(image, 20, 0);
+    assertEquals(20, deconvolution.getIterationsRun());
+
+    deconvolution.run(image, 20, 1e-3);
+    assertTrue(deconvolution.getIterationsRun() < 20, "Should stop before the maximum");
+    assertTrue(deconvolution.getIterationsRun() >= 1, "Should run at least one iteration");
+  }
+
+  @Test
+  public void testObserverSeesEveryIteration() {
+    int size = 4 * 4;
+    float[][] psf = new float[1][size];
+    psf[0][0] = 1;
+    float[] image = new float[size];
+    Arrays.fill(image, 2);
+
+    List<Integer> seen = new ArrayList<>();
+    RunOptions options = new RunOptions();
+    options.previewInterval = 2;
+    options.previewListener = (estimate, iteration) -> {};
+    new RichardsonLucy(psf, 4, 4)
+        .run(
+            image,
+            5,
+            0,
+            (iteration, object) -> {
+              if (options.isPreviewDue(iteration, 5)) {
+                seen.add(iteration);
+              }
+            });
+    assertEquals(Arrays.asList(2, 4), seen);
+  }
+
+  @Test
+  public void testCancelStopsBetweenIterations() {
+    int size = 4 * 4;
+    float[][] psf = new float[1][size];
+    psf[0][0] = 1;
+    float[] image = new float[size];
+    Arrays.fill(image, 2);
+
+    RunOptions options = new RunOptions();
+    RichardsonLucy deconvolution = new RichardsonLucy(psf, 4, 4);
+    assertThrows(
+        CancellationException.class,
+        () ->
+            deconvolution.run(
+                image,
+                10,
+                0,
+                (iteration, object) -> {
+                  if (iteration == 3) {
+                    options.cancel();
+                  }
+                  options.checkCancelled();
+                }));
+    assertEquals(3, deconvolution.getIterationsRun());
+  }
+}
@@ -0,0 +1,106 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class TestThreadingConfig {
+
+  private final ThreadingConfig original = ThreadingConfig.getCurrent();
+
+  @AfterEach
+  public void restore() {
+    ThreadingConfig.setCurrent(original);
+    System.clearProperty(Constants.PROP_INTRA_OP_THREADS);
+    System.clearProperty(Constants.PROP_HOST_LANES);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 3, 64})
+  public void testAutoDividesCores(int concurrentRuns) {
+    int cores = Runtime.getRuntime().availableProcessors();
+    ThreadingConfig config = new ThreadingConfig();
+    config.concurrentRuns = concurrentRuns;
+    assertEquals(Math.max(1, cores / concurrentRuns), config.getIntraOpThreads());
+    assertEquals(1, config.getInterOpThreads());
+    assertEquals(cores, config.getPoolThreads());
+  }
+
+  @Test
+  public void testExplicitCounts() {
+    ThreadingConfig config = new ThreadingConfig();
+    config.intraOpThreads = 3;
+    config.interOpThreads = 2;
+    config.poolThreads = 5;
+    config.concurrentRuns = 4;
+    assertEquals(3, config.getIntraOpThreads());
+    assertEquals(2, config.getInterOpThreads());
+    assertEquals(5, config.getPoolThreads());
+  }
+
+  @Test
+  public void testFromSystemProperties() {
+    System.setProperty(Constants.PROP_INTRA_OP_THREADS, "6");
+    System.setProperty(Constants.PROP_HOST_LANES, "2");
+    ThreadingConfig config = ThreadingConfig.fromSystemProperties();
+    assertEquals(6, config.getIntraOpThreads());
+    assertEquals(2, config.concurrentRuns);
+  }
+
+  @Test
+  public void testParallelRunsOnConfiguredPool() {
+    ThreadingConfig config = new ThreadingConfig();
+    config.poolThreads = 2;
+    ThreadingConfig.setCurrent(config);
+    ForkJoinPool pool = ThreadingConfig.getPool();
+    assertEquals(2, pool.getParallelism());
+
+    AtomicInteger sum = new AtomicInteger();
+    Parallel.forEach(
+        8,
+        i -> {
+          assertSame(pool, ForkJoinTask.getPool());
+          // nested loops stay on the same pool
+          Parallel.forEach(4, j -> sum.addAndGet(i * 4 + j));
+        });
+    assertEquals(31 * 32 / 2, sum.get());
+
+    config.poolThreads = 3;
+    ThreadingConfig.setCurrent(config);
+    assertNotSame(pool, ThreadingConfig.getPool());
+    assertEquals(3, ThreadingConfig.getPool().getParallelism());
+    assertEquals(3, Parallel.getParallelism());
+  }
+
+  @Test
+  public void testReplacedPoolIsShutDown() throws Exception {
+    ThreadingConfig config = new ThreadingConfig();
+    config.poolThreads = 2;
+    ThreadingConfig.setCurrent(config);
+    ForkJoinPool pool = ThreadingConfig.getPool();
+    Parallel.forEach(4, i -> {});
+
+    ThreadingConfig changed = config.copy();
+    changed.poolThreads = 3;
+    ThreadingConfig.setCurrent(changed);
+    assertTrue(pool.isShutdown());
+    assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+    // the same size keeps the pool
+    ForkJoinPool current = ThreadingConfig.getPool();
+    ThreadingConfig.setCurrent(changed.copy());
+    assertSame(current, ThreadingConfig.getPool());
+    assertFalse(current.isShutdown());
+  }
+}
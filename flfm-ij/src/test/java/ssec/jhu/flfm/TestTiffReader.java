@@ -0,0 +1,260 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class TestTiffReader {
+
+  private static final int WIDTH = 7;
+  private static final int HEIGHT = 5;
+
+  @TempDir Path tempDir;
+
+  private static ImageProcessor createProcessor(int bitDepth, int seed) {
+    ImageProcessor ip;
+    switch (bitDepth) {
+      case 8:
+        ip = new ByteProcessor(WIDTH, HEIGHT);
+        break;
+      case 16:
+        ip = new ShortProcessor(WIDTH, HEIGHT);
+        break;
+      default:
+        ip = new FloatProcessor(WIDTH, HEIGHT);
+        break;
+    }
+    for (int i = 0; i < WIDTH * HEIGHT; i++) {
+      // values above the signed range of 8 and 16 bit pixels check the unsigned conversion
+      float value = (i * 37 + seed * 101) % 250 + (bitDepth == 16 ? 40000 : 0);
+      ip.setf(i, bitDepth == 32 ? value / 3 : value);
+    }
+    return ip;
+  }
+
+  private static float[] expected(ImagePlus image) {
+    FloatBuffer buffer = FloatBuffer.allocate(image.getStackSize() * WIDTH * HEIGHT);
+    for (float[] plane : ArrayUtils.convertImageToPlanes(image)) {
+      buffer.put(plane);
+    }
+    return buffer.array();
+  }
+
+  private static float[] toArray(ByteBuffer pixels) {
+    FloatBuffer floats = pixels.asFloatBuffer();
+    float[] values = new float[floats.remaining()];
+    floats.get(values);
+    return values;
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {8, 16, 32})
+  public void testReadsImageJStack(int bitDepth) throws IOException {
+    ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+    for (int z = 0; z < 3; z++) {
+      stack.addSlice(createProcessor(bitDepth, z));
+    }
+    ImagePlus image = new ImagePlus("stack", stack);
+    Path path = tempDir.resolve("stack.tif");
+    assertTrue(new FileSaver(image).saveAsTiffStack(path.toString()));
+
+    try (TiffReader reader = new TiffReader(path)) {
+      assertEquals(WIDTH, reader.getWidth());
+      assertEquals(HEIGHT, reader.getHeight());
+      assertEquals(3, reader.getSliceCount());
+      assertEquals(bitDepth, reader.getBitsPerSample());
+      assertFalse(reader.isBigTiff());
+      assertArrayEquals(expected(image), toArray(reader.readAll()));
+    }
+  }
+
+  @Test
+  public void testReadsSingleImage() throws IOException {
+    ImagePlus image = new ImagePlus("image", createProcessor(16, 4));
+    Path path = tempDir.resolve("image.tif");
+    assertTrue(new FileSaver(image).saveAsTiff(path.toString()));
+
+    try (TiffReader reader = new TiffReader(path)) {
+      assertEquals(1, reader.getSliceCount());
+      FloatBuffer buffer = FloatBuffer.allocate(WIDTH * HEIGHT + 3);
+      reader.readSlice(0, buffer, 3);
+      float[] values = new float[WIDTH * HEIGHT];
+      buffer.position(3);
+      buffer.get(values);
+      assertArrayEquals(expected(image), values);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  public void testReadsBigTiff(boolean contiguous) throws IOException {
+    short[][] slices = new short[2][WIDTH * HEIGHT];
+    float[] values = new float[2 * WIDTH * HEIGHT];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 60000 - i * 11;
+      slices[i / (WIDTH * HEIGHT)][i % (WIDTH * HEIGHT)] = (short) values[i];
+    }
+    Path path = tempDir.resolve("big.tif");
+    writeTiff(path, true, slices, contiguous);
+
+    try (TiffReader reader = new TiffReader(path)) {
+      assertTrue(reader.isBigTiff());
+      assertEquals(2, reader.getSliceCount());
+      assertArrayEquals(values, toArray(reader.readAll()));
+    }
+  }
+
+  @Test
+  public void testReadsContiguousImageJStack() throws IOException {
+    short[][] slices = new short[3][WIDTH * HEIGHT];
+    float[] values = new float[3 * WIDTH * HEIGHT];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i;
+      slices[i / (WIDTH * HEIGHT)][i % (WIDTH * HEIGHT)] = (short) i;
+    }
+    Path path = tempDir.resolve("contiguous.tif");
+    writeTiff(path, false, slices, true);
+
+    try (TiffReader reader = new TiffReader(path)) {
+      assertEquals(3, reader.getSliceCount());
+      assertArrayEquals(values, toArray(reader.readAll()));
+    }
+  }
+
+  @Test
+  public void testRejectsOtherFiles() throws IOException {
+    Path path = tempDir.resolve("notes.tif");
+    Files.write(path, "not a tiff file".getBytes(StandardCharsets.US_ASCII));
+    assertThrows(IOException.class, () -> new TiffReader(path));
+  }
+
+  @Test
+  public void testRejects32BitWithoutSampleFormat() throws IOException {
+    Path path = tempDir.resolve("float.tif");
+    assertTrue(
+        new FileSaver(new ImagePlus("float", createProcessor(32, 1))).saveAsTiff(path.toString()));
+    byte[] bytes = Files.readAllBytes(path);
+    // renames the SampleFormat entry (339, SHORT) to a private tag, in either byte order
+    for (int i = 8; i + 4 <= bytes.length; i++) {
+      if (bytes[i] == 0x01 && bytes[i + 1] == 0x53 && bytes[i + 2] == 0 && bytes[i + 3] == 3
+          || bytes[i] == 0x53 && bytes[i + 1] == 0x01 && bytes[i + 2] == 3 && bytes[i + 3] == 0) {
+        bytes[i] = (byte) 0xFD;
+        bytes[i + 1] = (byte) 0xFD;
+        break;
+      }
+    }
+    Files.write(path, bytes);
+    assertThrows(IOException.class, () -> new TiffReader(path));
+  }
+
+  /**
+   * Writes a little endian 16 bit TIFF with the pixels after the header. With {@code contiguous}
+   * only the first slice has a directory, and its description tells the number of slices the way
+   * ImageJ does for large stacks.
+   */
+  private static void writeTiff(Path path, boolean bigTiff, short[][] slices, boolean contiguous)
+      throws IOException {
+    int sliceBytes = WIDTH * HEIGHT * 2;
+    int headerSize = bigTiff ? 16 : 8;
+    int entrySize = bigTiff ? 20 : 12;
+    int countSize = bigTiff ? 8 : 2;
+    int nextSize = bigTiff ? 8 : 4;
+    byte[] description =
+        ("ImageJ=1.54p\nimages=" + slices.length + "\n\0").getBytes(StandardCharsets.US_ASCII);
+    int directories = contiguous ? 1 : slices.length;
+    int entries = contiguous ? 8 : 7;
+    int directorySize = countSize + entries * entrySize + nextSize;
+    int firstDirectory = headerSize + slices.length * sliceBytes;
+
+    ByteBuffer buffer =
+        ByteBuffer.allocate(firstDirectory + directories * directorySize + description.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put((byte) 'I').put((byte) 'I');
+    if (bigTiff) {
+      buffer.putShort((short) 43).putShort((short) 8).putShort((short) 0);
+      buffer.putLong(firstDirectory);
+    } else {
+      buffer.putShort((short) 42).putInt(firstDirectory);
+    }
+    for (short[] slice : slices) {
+      for (short value : slice) {
+        buffer.putShort(value);
+      }
+    }
+    for (int d = 0; d < directories; d++) {
+      int start = firstDirectory + d * directorySize;
+      buffer.position(start);
+      if (bigTiff) {
+        buffer.putLong(entries);
+      } else {
+        buffer.putShort((short) entries);
+      }
+      putEntry(buffer, bigTiff, 256, 3, 1, WIDTH);
+      putEntry(buffer, bigTiff, 257, 3, 1, HEIGHT);
+      putEntry(buffer, bigTiff, 258, 3, 1, 16);
+      putEntry(buffer, bigTiff, 259, 3, 1, 1);
+      if (contiguous) {
+        putEntry(
+            buffer,
+            bigTiff,
+            270,
+            2,
+            description.length,
+            firstDirectory + directories * directorySize);
+      }
+      int longType = bigTiff ? 16 : 4;
+      putEntry(buffer, bigTiff, 273, longType, 1, headerSize + d * sliceBytes);
+      putEntry(buffer, bigTiff, 277, 3, 1, 1);
+      putEntry(buffer, bigTiff, 279, longType, 1, sliceBytes);
+      long next = d + 1 < directories ? start + directorySize : 0;
+      if (bigTiff) {
+        buffer.putLong(next);
+      } else {
+        buffer.putInt((int) next);
+      }
+    }
+    buffer.put(description);
+    Files.write(path, buffer.array());
+  }
+
+  private static void putEntry(
+      ByteBuffer buffer, boolean bigTiff, int tag, int type, long count, long value) {
+    buffer.putShort((short) tag).putShort((short) type);
+    if (bigTiff) {
+      buffer.putLong(count);
+    } else {
+      buffer.putInt((int) count);
+    }
+    int valueSize = bigTiff ? 8 : 4;
+    int end = buffer.position() + valueSize;
+    if (type == 3) {
+      buffer.putShort((short) value);
+    } else if (type == 16) {
+      buffer.putLong(value);
+    } else {
+      buffer.putInt((int) value);
+    }
+    buffer.position(end);
+  }
+}
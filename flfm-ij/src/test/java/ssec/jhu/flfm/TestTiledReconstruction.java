@@ -0,0 +1,113 @@
+package ssec.jhu.flfm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+public class TestTiledReconstruction {
+
+  @ParameterizedTest
+  @CsvSource({"100, 80, 32, 32, 8", "64, 64, 64, 64, 8", "70, 33, 16, 16, 4"})
+  public void testLayoutCoversImage(
+      int width, int height, int tileWidth, int tileHeight, int overlap) {
+    List<TiledReconstruction.Tile> tiles =
+        TiledReconstruction.layout(width, height, tileWidth, tileHeight, overlap);
+    int[] covered = new int[width * height];
+    for (TiledReconstruction.Tile tile : tiles) {
+      assertTrue(tile.x >= 0 && tile.x + tile.width <= width, "Tile must be inside the image");
+      assertTrue(tile.y >= 0 && tile.y + tile.height <= height, "Tile must be inside the image");
+      for (int y = tile.y; y < tile.y + tile.height; y++) {
+        for (int x = tile.x; x < tile.x + tile.width; x++) {
+          covered[y * width + x]++;
+        }
+      }
+    }
+    for (int count : covered) {
+      assertTrue(count > 0, "Every pixel must be covered");
+    }
+  }
+
+  @Test
+  public void testBlendOfConstantTilesIsConstant() {
+    int width = 50;
+    int height = 40;
+    List<TiledReconstruction.Tile> tiles = TiledReconstruction.layout(width, height, 16, 16, 4);
+    float[][] volume = new float[2][width * height];
+    float[] weights = new float[width * height];
+    for (TiledReconstruction.Tile tile : tiles) {
+      float[][] tileVolume = new float[2][tile.width * tile.height];
+      Arrays.fill(tileVolume[0], 3);
+      Arrays.fill(tileVolume[1], 7);
+      TiledReconstruction.blend(volume, weights, width, height, tileVolume, tile, 4);
+    }
+    for (int i = 0; i < weights.length; i++) {
+      assertEquals(3, volume[0][i] / weights[i], 1e-5);
+      assertEquals(7, volume[1][i] / weights[i], 1e-5);
+    }
+  }
+
+  @Test
+  public void testChooseTileSize() {
+    ReconstructionEngine engine = mock(ReconstructionEngine.class);
+    when(engine.estimateBytes(anyInt(), anyInt(), anyInt()))
+        .thenAnswer(
+            invocation ->
+                10L
+                    * (int) invocation.getArgument(0)
+                    * (int) invocation.getArgument(1)
+                    * (int) invocation.getArgument(2));
+
+    // the whole image fits
+    assertEquals(300, TiledReconstruction.chooseTileSize(engine, 10L * 4 * 300 * 200, 4, 200, 300));
+    // the largest power of two that fits
+    assertEquals(128, TiledReconstruction.chooseTileSize(engine, 10L * 4 * 150 * 150, 4, 200, 300));
+    // never below the minimum tile size
+    assertEquals(
+        Constants.MIN_TILE_SIZE, TiledReconstruction.chooseTileSize(engine, 1, 4, 200, 300));
+  }
+
+  @Test
+  public void testSingleTileMatchesUntiledRun() {
+    int width = 12;
+    int height = 10;
+    ImageStack psfStack = new ImageStack(width, height);
+    for (int z = 0; z < 2; z++) {
+      float[] pixels = new float[width * height];
+      pixels[(height / 2 + z) * width + width / 2] = 1;
+      psfStack.addSlice(new FloatProcessor(width, height, pixels));
+    }
+    float[] input = new float[width * height];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = 1 + i % 7;
+    }
+    ImagePlus psfImage = new ImagePlus("psf", psfStack);
+    ImagePlus inputImage = new ImagePlus("input", new FloatProcessor(width, height, input));
+    DeviceInfo java = new DeviceInfo(Constants.DEVICE_JAVA, -1);
+    RunOptions options = new RunOptions(OutputType.FLOAT32);
+    options.iterations = 3;
+
+    JavaEngine engine = new JavaEngine();
+    float[][] expected =
+        ArrayUtils.convertImageToPlanes(
+            engine.reconstruct(null, java, psfImage, inputImage, options));
+    float[][] actual =
+        ArrayUtils.convertImageToPlanes(
+            TiledReconstruction.run(engine, null, java, psfImage, inputImage, options));
+    for (int z = 0; z < expected.length; z++) {
+      for (int i = 0; i < expected[z].length; i++) {
+        assertEquals(expected[z][i], actual[z][i], 1e-5);
+      }
+    }
+  }
+}